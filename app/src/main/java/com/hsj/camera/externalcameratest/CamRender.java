@@ -1,28 +1,105 @@
 package com.hsj.camera.externalcameratest;
 
-import static android.opengl.GLES10.GL_RGB;
-import static android.opengl.GLES10.GL_TEXTURE_2D;
-import static android.opengl.GLES10.GL_UNSIGNED_BYTE;
-import static android.opengl.GLES10.glTexImage2D;
-
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 
+import com.hsj.camera.externalcameratest.frame.BayerDemosaic;
+import com.hsj.camera.externalcameratest.frame.CameraMode;
+import com.hsj.camera.externalcameratest.frame.ColorLut;
+import com.hsj.camera.externalcameratest.frame.FlatField;
+import com.hsj.camera.externalcameratest.frame.FlatFieldStore;
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameAverager;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.FrameSource;
+import com.hsj.camera.externalcameratest.frame.FrameStats;
+import com.hsj.camera.externalcameratest.frame.MonoHistogram;
+import com.hsj.camera.externalcameratest.frame.MonoWindow;
+import com.hsj.camera.externalcameratest.frame.RawFrameRecorder;
+import com.hsj.camera.externalcameratest.frame.TileHasher;
+import com.hsj.camera.externalcameratest.frame.YuvColorMatrix;
+import com.hsj.camera.externalcameratest.gles.ColorMapTexture;
+import com.hsj.camera.externalcameratest.gles.DirtyTileUploader;
+import com.hsj.camera.externalcameratest.gles.FilterChain;
+import com.hsj.camera.externalcameratest.gles.FilterPipeline;
+import com.hsj.camera.externalcameratest.gles.FilterPipelineRenderer;
+import com.hsj.camera.externalcameratest.gles.FlatFieldTextureCache;
+import com.hsj.camera.externalcameratest.gles.FrameStatsRenderer;
 import com.hsj.camera.externalcameratest.gles.FullFrameRect;
+import com.hsj.camera.externalcameratest.gles.GlUtil;
+import com.hsj.camera.externalcameratest.gles.LutTexture;
+import com.hsj.camera.externalcameratest.gles.PixelBufferUploader;
+import com.hsj.camera.externalcameratest.gles.ProgramBinaryCache;
+import com.hsj.camera.externalcameratest.gles.ProgramCache;
+import com.hsj.camera.externalcameratest.gles.ProgramCompiler;
+import com.hsj.camera.externalcameratest.gles.TexSubImageUploader;
 import com.hsj.camera.externalcameratest.gles.Texture2dProgram;
+import com.hsj.camera.externalcameratest.gles.TextureUploader;
+import com.hsj.camera.externalcameratest.gles.YuvUploader;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 public class CamRender implements GLSurfaceView.Renderer {
+	private static final String TAG = "CamRender";
+
+	/**
+	 * How frames get into the texture.
+	 */
+	public enum UploadMode {
+		/** Synchronous glTexSubImage2D from client memory. */
+		SUB_IMAGE,
+		/** Rotating pixel unpack buffers; needs GLES 3, otherwise SUB_IMAGE is used. */
+		PIXEL_BUFFER,
+		/**
+		 * Only the tiles that changed since the last frame; a frame that changed nothing
+		 * isn't redrawn.  For mostly static scenes.
+		 */
+		DIRTY_TILES
+	}
+
+	// Pixel buffers in rotation for UploadMode.PIXEL_BUFFER.
+	private static final int PIXEL_BUFFER_COUNT = 3;
+	// Tile edge for UploadMode.DIRTY_TILES, in pixels.
+	private static final int DIRTY_TILE_SIZE = 64;
+	// Programs built ahead of use on the compiler thread, so the first switch to a filter or
+	// format doesn't wait for one.
+	private static final Texture2dProgram.ProgramType[] PRECOMPILED_PROGRAMS = {
+			Texture2dProgram.ProgramType.TEXTURE_2D_LUT,
+			Texture2dProgram.ProgramType.TEXTURE_MONO16,
+			Texture2dProgram.ProgramType.TEXTURE_MONO16_FLAT,
+			Texture2dProgram.ProgramType.TEXTURE_2D_FILT,
+			Texture2dProgram.ProgramType.TEXTURE_NV12,
+			Texture2dProgram.ProgramType.TEXTURE_I420,
+			Texture2dProgram.ProgramType.TEXTURE_YUYV,
+			Texture2dProgram.ProgramType.TEXTURE_BAYER,
+			Texture2dProgram.ProgramType.TOUPCAM_DEF
+	};
+
 	private int mCurrentTextureId;
-	private final float[] mVertices = new float[16];
 
 	private int mFrameRate;
 	private FullFrameRect mFullScreen;
+	private ProgramCache mProgramCache;     // owns mFullScreen's program
+	private ProgramBinaryCache mProgramBinaries;
+
+	// Cold start: when the surface was created, and whether the first frame has been uploaded
+	// since.
+	private long mSurfaceCreatedNanos;
+	private boolean mFirstFrameLogged;
 
 	// width/height of the incoming camera preview frames
 	private boolean mIncomingSizeUpdated;
@@ -32,7 +109,13 @@ public class CamRender implements GLSurfaceView.Renderer {
 	private int mCurrentFilter;
 	private int mNewFilter;
 	private Texture2dProgram.ProgramType mProgramType = Texture2dProgram.ProgramType.TOUPCAM_DEF;
-
+	private FilterChain mFilterChain;       // replaces mNewFilter while set
+	private FilterPipeline mFilterPipeline; // replaces both while set
+	private FilterPipelineRenderer mPipelineRenderer;
+	private int mDrawTextureId;             // the frame, or the pipeline's output
+	private ColorLut mColorLut;             // replaces mNewFilter while set
+	private LutTexture mLutTexture;
+	private boolean mTableUploaded;         // a color table or map went up since the fence
 
 	static final int FILTER_NONE = 0;
 	static final int FILTER_BLACK_WHITE = 1;
@@ -43,13 +126,94 @@ public class CamRender implements GLSurfaceView.Renderer {
 	static final int FILTER_NEGATIVE = 6;
 	static final int FILTER_GRAYSC_NEGATIVE = 7;
 
-	private byte[] testData1;
-	private byte[] testData2;
+	// The point filters, baked into tables the first time they're used.
+	private final ColorLut[] mFilterLuts = new ColorLut[FILTER_GRAYSC_NEGATIVE + 1];
+
+	private FrameSource mFrameSource;
+	private volatile RawFrameRecorder mRecorder;     // set from any thread
+	private UploadMode mUploadMode = UploadMode.PIXEL_BUFFER;
+	private TextureUploader mUploader;
+	private DirtyTileUploader mTileUploader;      // mUploader, in UploadMode.DIRTY_TILES
+	private YuvUploader mYuvUploader;
+	private long mStatsWindowsLogged;
+	private final FrameStatsRenderer mStatsRenderer;
+	private boolean mFrameStatsEnabled;
+
+	// Format of the frames in the texture; YUV, Bayer and mono formats are converted to RGB
+	// by the program.
+	private FrameFormat mFrameFormat = FrameFormat.RGB888;
+	private YuvColorMatrix mYuvMatrix = YuvColorMatrix.BT601;
+	private BayerDemosaic.Mode mDemosaicMode = BayerDemosaic.Mode.BILINEAR;
+	private boolean mConversionUpdated;
+
+	// Monochrome frames: the window they're shown through (null for the format's full
+	// range), whether it follows each frame's histogram, and that histogram.  The histogram
+	// is refilled in place; other threads read it holding its lock.
+	private static final int MONO_HISTOGRAM_STEP = 8;
+	private static final float MONO_CLIP_FRACTION = 0.001f;
+	private MonoWindow mMonoWindow;
+	private boolean mMonoAutoWindow;
+	private final MonoHistogram mMonoHistogram = new MonoHistogram();
+	private boolean mMonoHistogramCounted;      // guarded by mMonoHistogram
+	private ColorMapTexture mColorMapTexture;
+
+	// Flat-field correction: the mode of the latest frame (null until one arrives), and the
+	// calibration applied to it (null for none).  Calibrations are kept with their textures
+	// in mFlatFieldCache, and on disk in mFlatFieldStore, which is read and written on
+	// mStoreExecutor; loads come back through mLoadedFlatFields.  Modes already looked up in
+	// the store are in mFlatFieldLookups, so a mode with nothing saved is looked up once.
+	private volatile int mExposureMicros;
+	private CameraMode mCameraMode;
+	private boolean mFlatFieldEnabled = true;
+	private volatile FlatField mFlatField;
+	private boolean mFlatFieldWarned;
+	private final FlatFieldTextureCache mFlatFieldCache =
+			new FlatFieldTextureCache(FlatFieldTextureCache.DEFAULT_CAPACITY);
+	private volatile FlatFieldStore mFlatFieldStore;
+	private final ExecutorService mStoreExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "FlatFieldStore");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final ConcurrentLinkedQueue<FlatField> mLoadedFlatFields = new ConcurrentLinkedQueue<>();
+	private final Set<CameraMode> mFlatFieldLookups = new HashSet<>();
+
+	// Reference captures: the one requested (from any thread) and the one in progress.
+	// Frames are copied and summed on mStoreExecutor, in up to CALIBRATION_BUFFERS copies at
+	// a time; free copies are in mCalibrationBuffers, and finished captures come back
+	// through mCapturedCalibrations.
+	private static final int CALIBRATION_BUFFERS = 3;
+	private final AtomicReference<Calibration> mPendingCalibration = new AtomicReference<>();
+	private volatile Calibration mCalibration;
+	private final ConcurrentLinkedQueue<ByteBuffer> mCalibrationBuffers =
+			new ConcurrentLinkedQueue<>();
+	private int mCalibrationBufferCount;
+	private final ConcurrentLinkedQueue<Calibration> mCapturedCalibrations =
+			new ConcurrentLinkedQueue<>();
+
+	/**
+	 * A reference capture: what to capture, and the frames averaged so far.
+	 */
+	private static class Calibration {
+		final FlatField.Reference reference;
+		final int frameCount;
+		FrameAverager averager;     // for the mode of the frames; null until the first
+		int submittedCount;         // frames handed to the averager
+		float[] mean;               // set on mStoreExecutor when the last one is summed
+
+		Calibration(FlatField.Reference reference, int frameCount) {
+			this.reference = reference;
+			this.frameCount = frameCount;
+		}
+	}
 
-	private int frame = 0;
+	// GLES version of the share group, and the sync object inserted after the last upload.
+	private int mGlVersion;
+	private long mUploadFence;
 
-	CamRender() {
+	CamRender(int frameRate) {
 		mCurrentTextureId = -1;
+		mFrameRate = frameRate;
 
 		mIncomingSizeUpdated = false;
 		mIncomingWidth = 2048;
@@ -58,16 +222,7 @@ public class CamRender implements GLSurfaceView.Renderer {
 		// We could preserve the old filter mode, but currently not bothering.
 		mCurrentFilter = -1;
 		mNewFilter = FILTER_NONE;
-
-		testData1 = new byte[1080*2048*3];
-		for (int i=0; i<1080*2048*3; i++) {
-			testData1[i] = (byte) 65;
-		}
-
-		testData2 = new byte[1080*2048*3];
-		for (int i=0; i<1080*2048*3; i++) {
-			testData2[i] = (byte) 222;
-		}
+		mStatsRenderer = new FrameStatsRenderer(FrameStatsRenderer.DEFAULT_SAMPLE_WIDTH, frameRate);
 	}
 
 	// TODO mIncomingWidth & mIncomingHeight ?
@@ -76,14 +231,99 @@ public class CamRender implements GLSurfaceView.Renderer {
 			mFullScreen.release(false);     // assume the GLSurfaceView EGL context is about
 			mFullScreen = null;             //  to be destroyed
 		}
+		if (mPipelineRenderer != null) {
+			mPipelineRenderer.release(false);
+			mPipelineRenderer = null;
+		}
+		if (mLutTexture != null) {
+			mLutTexture.release(false);
+			mLutTexture = null;
+		}
+		if (mColorMapTexture != null) {
+			mColorMapTexture.release(false);
+			mColorMapTexture = null;
+		}
+		mStatsRenderer.release(false);
+		mFlatFieldCache.release(false);
+		mCurrentTextureId = -1;         // goes with the context
+		if (mProgramCache != null) {
+			mProgramCache.release(false);
+			mProgramCache = null;
+		}
+		if (mUploader != null) {
+			mUploader.release(false);
+			mUploader = null;
+			mTileUploader = null;
+		}
+		if (mYuvUploader != null) {
+			mYuvUploader.release(false);
+			mYuvUploader = null;
+		}
+		mUploadFence = 0;
 		mIncomingWidth = 2048;
 		mIncomingHeight = 1080;
 	}
 
 	@Override
 	public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-		mFullScreen = new FullFrameRect(new Texture2dProgram(mProgramType));
-		mCurrentTextureId = mFullScreen.getProgram().getTextureId();
+		mSurfaceCreatedNanos = System.nanoTime();
+		mFirstFrameLogged = false;
+		mGlVersion = GlUtil.getGlMajorVersion();
+		// Program binaries need GLES 3.
+		ProgramBinaryCache binaries = mGlVersion >= 3 ? mProgramBinaries : null;
+		ProgramCompiler compiler = new ProgramCompiler(EGL14.eglGetCurrentContext(), binaries);
+		compiler.start();
+		mProgramCache = new ProgramCache(binaries, compiler);
+		mFullScreen = new FullFrameRect(mProgramCache.get(mProgramType), false);
+		mProgramCache.pin(mFullScreen.getProgram());
+		mProgramCache.precompile(PRECOMPILED_PROGRAMS);
+		// Ours, not the program's; programs come and go with the filters.
+		mCurrentTextureId = mFullScreen.createTextureObject();
+		mDrawTextureId = mCurrentTextureId;
+		mPipelineRenderer = new FilterPipelineRenderer(mProgramCache);
+		mPipelineRenderer.setPipeline(getEffectivePipeline());
+		mLutTexture = new LutTexture();
+		mColorMapTexture = new ColorMapTexture();
+		// The new programs have no kernel, table or window yet.
+		mCurrentFilter = -1;
+		mConversionUpdated = true;
+		mUploader = createUploader();
+		mYuvUploader = new YuvUploader(mFrameRate);
+	}
+
+	private TextureUploader createUploader() {
+		mTileUploader = null;
+		if (mUploadMode == UploadMode.DIRTY_TILES) {
+			mTileUploader = new DirtyTileUploader(
+					new TileHasher(DIRTY_TILE_SIZE, mFrameRate), mGlVersion, mFrameRate);
+			return mTileUploader;
+		}
+		if (mUploadMode == UploadMode.PIXEL_BUFFER) {
+			if (mGlVersion >= 3) {
+				return new PixelBufferUploader(PIXEL_BUFFER_COUNT, mFrameRate);
+			}
+			Log.i(TAG, "GLES 3 not available; using glTexSubImage2D uploads");
+		}
+		return new TexSubImageUploader(mFrameRate);
+	}
+
+	/**
+	 * Stops the thread that saves and loads calibrations, once it has finished what's
+	 * queued.  Call when done with the renderer, after notifyPausing(); it can't be used
+	 * afterwards.
+	 */
+	public void release() {
+		mStoreExecutor.shutdown();
+	}
+
+	/**
+	 * Forgets per-context state of a context sharing with this one, e.g. a preview or
+	 * recorder context.  Call before destroying it.
+	 */
+	public void releaseContext(EGLContext context) {
+		if (mFullScreen != null) {
+			mFullScreen.releaseContext(context);
+		}
 	}
 
 	@Override
@@ -93,73 +333,566 @@ public class CamRender implements GLSurfaceView.Renderer {
 
 	@Override
 	public void onDrawFrame(GL10 gl10) {
+		if (ingestFrame()) {
+			drawFrame();
+		}
+	}
+
+	/**
+	 * Uploads the next frame from the source into the shared texture, and applies any
+	 * pending filter or size change.  Call once per frame, before drawFrame() is called for
+	 * each output surface.
+	 * <p>
+	 * The texture and programs live in the share group, so this can run in any context that
+	 * shares with the outputs.  On GLES 3 a fence is inserted after the upload, and drawFrame()
+	 * makes the drawing context wait on it; without one, a context may sample the texture
+	 * before another context's upload has landed.
+	 *
+	 * @return true if something changed and the outputs should be redrawn.
+	 */
+	public boolean ingestFrame() {
 		if (mCurrentTextureId == 0)
-			return;
+			return false;
 
 		if (mIncomingWidth <= 0 || mIncomingHeight <= 0) {
 			// Texture size isn't set yet.  This is only used for the filters, but to be
 			// safe we can just skip drawing while we wait for the various races to resolve.
 			// (This seems to happen if you toggle the screen off/on with power button.)
 			Log.i("TAG", "Drawing before incoming texture size set; skipping");
-			return;
+			return false;
 		}
 
+		// If no new frame has arrived the texture keeps the previous one.
+		Frame frame = mFrameSource != null ? mFrameSource.acquireFrame() : null;
+		if (frame != null && frame.getFormat() != mFrameFormat) {
+			// The texture layout and the program both depend on the format.
+			Log.d(TAG, "frame format " + mFrameFormat + " -> " + frame.getFormat());
+			mFrameFormat = frame.getFormat();
+			if (!mFrameFormat.isYuv()) {
+				mYuvUploader.restoreFilters();
+			}
+			mUploader.invalidate();
+			mYuvUploader.invalidate();
+			mCurrentFilter = -1;
+			mConversionUpdated = true;
+			mStatsWindowsLogged = 0;
+		}
+		if (frame != null && (frame.getWidth() != mIncomingWidth ||
+				frame.getHeight() != mIncomingHeight)) {
+			// The programs that work on whole texels need the real frame size.
+			mIncomingWidth = frame.getWidth();
+			mIncomingHeight = frame.getHeight();
+			mIncomingSizeUpdated = true;
+		}
+		if (frame != null && mFrameFormat.isMono()) {
+			// Before the upload releases the frame.
+			updateMonoWindow(frame);
+		}
+		if (frame != null) {
+			updateCameraMode(frame);
+			// Also before the upload.
+			calibrate(frame);
+		}
+		updateFlatField();
+
+		boolean changed = false;
 		if (mCurrentFilter != mNewFilter) {
-			updateFilter();
+			changed = updateFilter();
 		}
 		if (mIncomingSizeUpdated) {
 			mFullScreen.getProgram().setTexSize(mIncomingWidth, mIncomingHeight);
 			mIncomingSizeUpdated = false;
+			changed = true;
+		}
+		if (mConversionUpdated) {
+			Texture2dProgram program = mFullScreen.getProgram();
+			program.setYuvMatrix(mYuvMatrix);
+			if (mFrameFormat.isBayer()) {
+				program.setBayerPattern(mFrameFormat);
+			}
+			program.setDemosaicMode(mDemosaicMode);
+			if (mFrameFormat.isMono()) {
+				MonoWindow window = getMonoWindow();
+				program.setMonoWindow(window);
+				if (mColorMapTexture.upload(window.getColorMap())) {
+					mTableUploaded = true;
+				}
+			}
+			mConversionUpdated = false;
+			changed = true;
 		}
 
-		mFullScreen.preDrawFrame();
+		boolean uploaded = false;
+		if (frame == null) {
+			// Take in programs the compiler has finished.
+			mProgramCache.compilePending(0);
+		} else {
+			uploaded = upload(frame);
+		}
+		if (uploaded && mFrameStatsEnabled) {
+			measureFrame();
+		}
+		if (!uploaded && !changed) {
+			return false;
+		}
+		// The pipeline filters once here, instead of once per output in drawFrame().
+		boolean filtered = runPipeline();
+		boolean tableUploaded = mTableUploaded;
+		mTableUploaded = false;
+		if (!uploaded && !filtered && !tableUploaded) {
+			return true;    // the textures are as they were
+		}
+
+		if (mGlVersion >= 3) {
+			if (mUploadFence != 0) {
+				// Any waits on the old fence have been queued by now; it goes away once
+				// they've been satisfied.
+				GLES30.glDeleteSync(mUploadFence);
+			}
+			mUploadFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+			// The fence must reach the GPU before another context can wait on it.
+			GLES20.glFlush();
+		} else {
+			// No sync objects; make sure the upload is complete before anyone samples it.
+			GLES20.glFinish();
+		}
+		return true;
+	}
 
-		// nativeLib.nativeUpdate(); // native function replaced with below function for test
-		if (frame < 30)
-			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, mIncomingWidth, mIncomingHeight, 0, GL_RGB, GL_UNSIGNED_BYTE, ByteBuffer.wrap(testData1));
-		else
-			glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB, mIncomingWidth, mIncomingHeight, 0, GL_RGB, GL_UNSIGNED_BYTE, ByteBuffer.wrap(testData2));
+	/**
+	 * Uploads a frame into the shared texture and releases it.
+	 *
+	 * @return false if the texture already showed the frame.
+	 */
+	private boolean upload(Frame frame) {
+		TextureUploader uploader = mFrameFormat.isYuv() ? mYuvUploader : mUploader;
+		try {
+			RawFrameRecorder recorder = mRecorder;
+			if (recorder != null) {
+				// The frame as the camera sent it, before any conversion or filter.
+				recorder.record(frame);
+			}
+			uploader.upload(mCurrentTextureId, frame);
+		} finally {
+			mFrameSource.releaseFrame(frame);
+		}
+		if (!mFirstFrameLogged) {
+			mFirstFrameLogged = true;
+			Log.d(TAG, "first frame uploaded " + (System.nanoTime() - mSurfaceCreatedNanos) / 1000000 +
+					"ms after surface creation" + (mProgramBinaries != null ? "; program binaries: " +
+					mProgramBinaries.getLoadedCount() + " loaded, " + mProgramBinaries.getSavedCount() +
+					" saved, " + mProgramBinaries.getRejectedCount() + " rejected" : ""));
+		}
+		if (uploader.getUploadStats().getWindowCount() > mStatsWindowsLogged) {
+			mStatsWindowsLogged = uploader.getUploadStats().getWindowCount();
+			Log.d(TAG, uploader.getUploadStats() + " @" + mFrameRate + "fps");
+			if (uploader.getStallStats() != uploader.getUploadStats()) {
+				Log.d(TAG, uploader.getStallStats().toString());
+			}
+			if (uploader == mTileUploader) {
+				Log.d(TAG, mTileUploader.getHasher().getHashStats().toString());
+			}
+		}
+		if (uploader == mTileUploader && mTileUploader.getLastDirtyTileCount() == 0) {
+			// Static scene: the texture already shows this frame, so there's nothing to
+			// fence and nothing new to draw.
+			return false;
+		}
+		return true;
+	}
 
-		mFullScreen.drawFrame(mCurrentTextureId, mVertices);
+	/**
+	 * Takes the histogram of a monochrome frame and, with auto-windowing on, fits the window
+	 * to it.  The window only changes, and the program's uniforms only go out, when the
+	 * histogram's clipped range moves by a bin or more.
+	 */
+	private void updateMonoWindow(Frame frame) {
+		MonoHistogram histogram = mMonoHistogram;
+		synchronized (histogram) {
+			histogram.count(frame, MONO_HISTOGRAM_STEP);
+			mMonoHistogramCounted = true;
+		}
+		if (mMonoAutoWindow) {
+			MonoWindow window = getMonoWindow();
+			MonoWindow fitted = window.fit(histogram, MONO_CLIP_FRACTION);
+			if (fitted != window) {
+				mMonoWindow = fitted;
+				mConversionUpdated = true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the window monochrome frames are shown through: the one set, or the format's
+	 * full range.
+	 */
+	private MonoWindow getMonoWindow() {
+		return mMonoWindow != null ? mMonoWindow : MonoWindow.full(mFrameFormat);
+	}
+
+	/**
+	 * Binds the textures other than the frame that a program samples, in the current context.
+	 */
+	@SuppressWarnings("fallthrough")
+	private void bindTables(Texture2dProgram program) {
+		if (program.isYuv()) {
+			mYuvUploader.bindChromaTextures();
+			return;
+		}
+		switch (program.getProgramType()) {
+			case TEXTURE_2D_LUT:
+				mLutTexture.bind();
+				break;
+			case TEXTURE_2D_FUSED:
+				// Samplers the chain doesn't have are left alone.
+				mLutTexture.bind();
+				bindFlatField();
+				break;
+			case TEXTURE_MONO16_FLAT:
+				bindFlatField();
+				// fall through
+			case TEXTURE_MONO16:
+				mColorMapTexture.bind();
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void bindFlatField() {
+		if (mFlatField != null) {
+			mFlatFieldCache.bind(mFlatField.getMode());
+		}
+	}
+
+	/**
+	 * Updates mCameraMode for a frame; it only changes when the format, size or exposure
+	 * does.
+	 */
+	private void updateCameraMode(Frame frame) {
+		CameraMode mode = mCameraMode;
+		int exposure = mExposureMicros;
+		if (mode == null || mode.getFormat() != frame.getFormat() ||
+				mode.getWidth() != frame.getWidth() || mode.getHeight() != frame.getHeight() ||
+				mode.getExposureMicros() != exposure) {
+			mCameraMode = new CameraMode(frame.getFormat(), frame.getWidth(), frame.getHeight(),
+					exposure);
+		}
+	}
+
+	/**
+	 * Adds a frame to the reference being captured, if any.  The frame is copied, and summed
+	 * on mStoreExecutor; when the last one is, updateFlatField() puts the reference into the
+	 * mode's calibration.  A capture starts over if the mode changes midway, and skips frames
+	 * while the summing is behind.
+	 */
+	private void calibrate(Frame frame) {
+		Calibration calibration = mCalibration;
+		Calibration pending = mPendingCalibration.get();
+		if (pending != null) {
+			// Set the new capture before clearing the request, so isCalibrating() can't
+			// catch neither.
+			calibration = pending;
+			mCalibration = pending;
+			mPendingCalibration.compareAndSet(pending, null);
+		}
+		if (calibration == null || calibration.submittedCount == calibration.frameCount) {
+			return;
+		}
+		CameraMode mode = mCameraMode;
+		if (!mode.isCalibratable()) {
+			Log.w(TAG, mode + " frames can't be calibrated; capture canceled");
+			mCalibration = null;
+			freeCalibrationBuffers();
+			return;
+		}
+		if (calibration.averager == null || !calibration.averager.getMode().equals(mode)) {
+			if (calibration.averager != null) {
+				Log.w(TAG, "mode changed to " + mode + "; " + calibration.reference +
+						" capture restarted");
+			}
+			calibration.averager = new FrameAverager(mode, calibration.frameCount);
+			calibration.submittedCount = 0;
+		}
+		ByteBuffer copy = obtainCalibrationBuffer(frame.getSize());
+		if (copy == null) {
+			return;
+		}
+		ByteBuffer src = frame.getBuffer().duplicate();
+		src.clear();
+		src.limit(frame.getSize());
+		copy.clear();
+		copy.put(src);
+		Calibration capture = calibration;
+		FrameAverager averager = calibration.averager;
+		calibration.submittedCount++;
+		mStoreExecutor.execute(() -> {
+			boolean done;
+			try {
+				done = averager.add(copy);
+			} finally {
+				mCalibrationBuffers.add(copy);
+			}
+			// After the copy is back: it's the capture's last task, and the tasks before
+			// it (of this capture, or of ones it replaced) have finished too.
+			if (done) {
+				capture.mean = averager.getMean();
+				mCapturedCalibrations.add(capture);
+			}
+		});
+	}
+
+	/**
+	 * Returns a free buffer for a copy of a frame of the given size, or null if all
+	 * CALIBRATION_BUFFERS are being summed.
+	 */
+	private ByteBuffer obtainCalibrationBuffer(int size) {
+		ByteBuffer buffer;
+		while ((buffer = mCalibrationBuffers.poll()) != null) {
+			if (buffer.capacity() >= size) {
+				return buffer;
+			}
+			mCalibrationBufferCount--;      // too small for this mode; let it go
+		}
+		if (mCalibrationBufferCount == CALIBRATION_BUFFERS) {
+			return null;
+		}
+		mCalibrationBufferCount++;
+		return ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Lets go of the copies that aren't being summed.  Those that are stay counted, and are
+	 * kept for the next capture when they come back.
+	 */
+	private void freeCalibrationBuffers() {
+		while (mCalibrationBuffers.poll() != null) {
+			mCalibrationBufferCount--;
+		}
+	}
+
+	/**
+	 * Puts a finished capture's reference into its mode's calibration, which is cached and
+	 * saved.  Captures replaced in the meantime are dropped.
+	 */
+	private void storeCalibration(Calibration calibration) {
+		if (calibration != mCalibration) {
+			return;
+		}
+		mCalibration = null;
+		freeCalibrationBuffers();
+		CameraMode mode = calibration.averager.getMode();
+		float[] mean = calibration.mean;
+		FlatField old = mFlatFieldCache.get(mode);
+		FlatField field;
+		try {
+			if (old != null) {
+				field = old.with(calibration.reference, mean);
+			} else if (calibration.reference == FlatField.Reference.DARK) {
+				field = new FlatField(mode, mean, null);
+			} else {
+				field = new FlatField(mode, null, mean);
+			}
+		} catch (IllegalArgumentException iae) {
+			Log.w(TAG, calibration.reference + " reference rejected: " + iae.getMessage());
+			return;
+		}
+		Log.d(TAG, "calibrated " + field + " from " + calibration.frameCount + " frames");
+		mFlatFieldCache.put(field);
+		FlatFieldStore store = mFlatFieldStore;
+		if (store != null) {
+			mStoreExecutor.execute(() -> {
+				try {
+					store.save(field);
+				} catch (IOException ioe) {
+					Log.w(TAG, "can't save " + field, ioe);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Picks the calibration for the current mode, looking it up in the store if it isn't
+	 * cached, and uploads its textures if needed.  A change of calibration means a change of
+	 * program, on the next updateFilter().
+	 */
+	private void updateFlatField() {
+		Calibration captured;
+		while ((captured = mCapturedCalibrations.poll()) != null) {
+			storeCalibration(captured);
+		}
+		FlatField loaded;
+		while ((loaded = mLoadedFlatFields.poll()) != null) {
+			// Captured meanwhile, or loaded twice; the cached one is newer.
+			if (mFlatFieldCache.get(loaded.getMode()) == null) {
+				mFlatFieldCache.put(loaded);
+			}
+			// If it's evicted, look it up again.
+			mFlatFieldLookups.remove(loaded.getMode());
+		}
+
+		CameraMode mode = mCameraMode;
+		FlatField field = null;
+		if (mFlatFieldEnabled && mode != null && mode.isCalibratable()) {
+			if (mGlVersion < 3) {
+				if (!mFlatFieldWarned) {
+					mFlatFieldWarned = true;
+					Log.w(TAG, "flat-field correction needs GLES 3; not applied");
+				}
+			} else {
+				field = mFlatFieldCache.get(mode);
+				if (field == null) {
+					lookUpFlatField(mode);
+				} else if (mFlatFieldCache.upload(mode)) {
+					mTableUploaded = true;
+				}
+			}
+		}
+		if (field != mFlatField) {
+			Log.d(TAG, "flat field " + mFlatField + " -> " + field);
+			mFlatField = field;
+			mCurrentFilter = -1;
+		}
+	}
+
+	/**
+	 * Loads a mode's calibration from the store in the background, unless it's been looked
+	 * up before.
+	 */
+	private void lookUpFlatField(CameraMode mode) {
+		FlatFieldStore store = mFlatFieldStore;
+		if (store == null || !mFlatFieldLookups.add(mode)) {
+			return;
+		}
+		mStoreExecutor.execute(() -> {
+			try {
+				FlatField field = store.load(mode);
+				if (field != null) {
+					mLoadedFlatFields.add(field);
+				}
+			} catch (IOException ioe) {
+				Log.w(TAG, "can't load calibration of " + mode, ioe);
+			}
+		});
 	}
 
-	public void updateFilter() {
+	/**
+	 * Returns the pipeline to run: the one set, with the flat-field correction in front while
+	 * it applies.
+	 */
+	private FilterPipeline getEffectivePipeline() {
+		if (mFilterPipeline != null && mFlatField != null &&
+				mFrameFormat == FrameFormat.RGB888) {
+			return mFilterPipeline.withFirstStage(FilterChain.flatField());
+		}
+		return mFilterPipeline;
+	}
+
+	/**
+	 * Queues the measurement of the frame just uploaded, unfiltered, for getFrameStats().
+	 */
+	private void measureFrame() {
+		// RGB frames may be drawn by a filter program; measure with the plain one.  Other
+		// formats are drawn by their base program, unless it's still being switched to.
+		Texture2dProgram program = mFrameFormat == FrameFormat.RGB888 ?
+				mProgramCache.getIfReady(getBaseProgramType(mFrameFormat)) :
+				mFullScreen.getProgram();
+		if (program == null || (program.getProgramType() != getBaseProgramType(mFrameFormat) &&
+				program.getProgramType() != Texture2dProgram.ProgramType.TEXTURE_MONO16_FLAT)) {
+			return;
+		}
+		bindTables(program);
+		mStatsRenderer.measure(program, mCurrentTextureId, mIncomingWidth, mIncomingHeight);
+	}
+
+	/**
+	 * Runs the filter pipeline, if one is set and can filter the current format, and points
+	 * drawFrame() at its output.  Until its programs are built, the frame is drawn as is.
+	 *
+	 * @return true if the pipeline drew.
+	 */
+	private boolean runPipeline() {
+		mDrawTextureId = mCurrentTextureId;
+		if (mFilterPipeline == null || mFrameFormat != FrameFormat.RGB888) {
+			return false;
+		}
+		bindFlatField();
+		int output = mPipelineRenderer.render(mCurrentTextureId, mIncomingWidth, mIncomingHeight);
+		if (output == 0) {
+			return false;
+		}
+		mDrawTextureId = output;
+		return true;
+	}
+
+	/**
+	 * Draws the shared texture into the current surface.  Issues no uploads; call
+	 * ingestFrame() first.
+	 */
+	public void drawFrame() {
+		if (mFullScreen == null)
+			return;
+
+		if (mUploadFence != 0) {
+			// Server-side wait: doesn't block this thread, only this context's GPU commands.
+			GLES30.glWaitSync(mUploadFence, 0, GLES30.GL_TIMEOUT_IGNORED);
+		}
+		mFullScreen.preDrawFrame(mDrawTextureId);
+		bindTables(mFullScreen.getProgram());
+		// Frames are uploaded upright, so texture coordinates pass through unchanged.
+		mFullScreen.drawFrame(mDrawTextureId, GlUtil.IDENTITY_MATRIX);
+	}
+
+	/**
+	 * Switches to the program and kernel (or color table) for mNewFilter, or to the fused
+	 * program of the filter chain, or the color table, if one is set.  A program that isn't
+	 * built yet is
+	 * requested from the compiler, and the current one stays in use meanwhile, as long as it
+	 * can draw the current format; the switch is retried on the next frame.
+	 *
+	 * @return true if the program or kernel changed.
+	 */
+	public boolean updateFilter() {
 		float[] kernel = null;
 		float colorAdj = 0.0f;
+		ColorLut lut = null;
+		FilterChain chain = mFilterChain;
 
 		switch (mNewFilter) {
 			case FILTER_NONE:
-				mProgramType = Texture2dProgram.ProgramType.TOUPCAM_DEF;
+				mProgramType = getBaseProgramType(mFrameFormat);
 				break;
 			case FILTER_BLACK_WHITE:
 				// (In a previous version the TEXTURE_EXT_BW variant was enabled by a flag called
 				// ROSE_COLORED_GLASSES, because the shader set the red channel to the B&W color+
-				// and green/blue to zero.)
-				mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_BW;
+				// and green/blue to zero.)  The point filters are color tables now, so switching
+				// between them only uploads a table.
+				mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_LUT;
+				lut = getFilterLut(FILTER_BLACK_WHITE, ColorLut.GRAYSCALE);
 				break;
 			case FILTER_BLUR:
-				mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
+				mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_FILT;
 				kernel = new float[] {
 						1f/16f, 2f/16f, 1f/16f,
 						2f/16f, 4f/16f, 2f/16f,
 						1f/16f, 2f/16f, 1f/16f };
 				break;
 			case FILTER_SHARPEN:
-				mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
+				mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_FILT;
 				kernel = new float[] {
 						0f, -1f, 0f,
 						-1f, 5f, -1f,
 						0f, -1f, 0f };
 				break;
 			case FILTER_EDGE_DETECT:
-				mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
+				mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_FILT;
 				kernel = new float[] {
 						-1f, -1f, -1f,
 						-1f, 8f, -1f,
 						-1f, -1f, -1f };
 				break;
 			case FILTER_EMBOSS:
-				mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_FILT;
+				mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_FILT;
 				kernel = new float[] {
 						2f, 0f, 0f,
 						0f, -1f, 0f,
@@ -167,30 +900,205 @@ public class CamRender implements GLSurfaceView.Renderer {
 				colorAdj = 0.5f;
 				break;
 			case FILTER_NEGATIVE:
-				mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_NEG;
+				mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_LUT;
+				lut = getFilterLut(FILTER_NEGATIVE, ColorLut.NEGATIVE);
 				break;
 
 			case FILTER_GRAYSC_NEGATIVE:
-				mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT_BW_NEG;
+				mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_LUT;
+				lut = getFilterLut(FILTER_GRAYSC_NEGATIVE, ColorLut.GRAYSCALE, ColorLut.NEGATIVE);
 				break;
 			default:
 				throw new RuntimeException("Unknown filter mode " + mNewFilter);
 		}
+		if (mFrameFormat != FrameFormat.RGB888 && mProgramType != getBaseProgramType(mFrameFormat)) {
+			// The filter programs sample RGB; other formats only get the conversion to RGB.
+			Log.w(TAG, "filter " + mNewFilter + " not supported for " + mFrameFormat);
+			mProgramType = getBaseProgramType(mFrameFormat);
+			kernel = null;
+			lut = null;
+		} else if (mFilterPipeline != null) {
+			// The pipeline has filtered the frame already; draw its output as is.
+			mProgramType = getBaseProgramType(mFrameFormat);
+			kernel = null;
+			lut = null;
+		} else if (mFilterChain != null) {
+			mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_FUSED;
+			kernel = null;
+			lut = null;
+		} else if (mColorLut != null) {
+			mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_LUT;
+			kernel = null;
+			lut = mColorLut;
+		}
+		if (mFlatField != null && mFrameFormat.isMono()) {
+			mProgramType = Texture2dProgram.ProgramType.TEXTURE_MONO16_FLAT;
+		} else if (mFlatField != null && mFilterPipeline == null) {
+			// Fuse the correction into whatever the filter does, so it costs no extra pass.
+			// Kernels keep the filter demo's split, as TEXTURE_2D_FILT draws it.
+			if (mProgramType == Texture2dProgram.ProgramType.TEXTURE_2D_FUSED) {
+				chain = mFilterChain;
+			} else if (lut != null) {
+				chain = new FilterChain(FilterChain.colorLut(lut.getSize()));
+			} else if (kernel != null) {
+				chain = new FilterChain(FilterChain.diagonalSplit(
+						FilterChain.convolution(kernel, 3, colorAdj)));
+			} else {
+				chain = new FilterChain();
+			}
+			chain = chain.withFirstStage(FilterChain.flatField());
+			mProgramType = Texture2dProgram.ProgramType.TEXTURE_2D_FUSED;
+			kernel = null;
+		}
+		mPipelineRenderer.setPipeline(getEffectivePipeline());
+		String vertexShader = Texture2dProgram.getVertexShader(mProgramType);
+		String fragmentShader = mProgramType == Texture2dProgram.ProgramType.TEXTURE_2D_FUSED ?
+				chain.getFragmentShader() : Texture2dProgram.getFragmentShader(mProgramType);
 
-		// Do we need a whole new program?  (We want to avoid doing this if we don't have
-		// too -- compiling a program could be expensive.)
-		if (mProgramType != mFullScreen.getProgram().getProgramType()) {
-			mFullScreen.changeProgram(new Texture2dProgram(mProgramType));
-			// If we created a new program, we need to initialize the texture width/height.
-			mIncomingSizeUpdated = true;
+		// Do we need a different program?  Fused programs all have the same type, so compare
+		// the programs themselves; the cache hands out one per source.
+		Texture2dProgram currentProgram = mFullScreen.getProgram();
+		if (mProgramType != currentProgram.getProgramType() ||
+				mProgramType == Texture2dProgram.ProgramType.TEXTURE_2D_FUSED) {
+			Texture2dProgram program;
+			if (canDraw(currentProgram.getProgramType(), mFrameFormat)) {
+				program = mProgramCache.getIfReady(mProgramType, vertexShader, fragmentShader);
+				if (program == null) {
+					return false;
+				}
+			} else {
+				// Frames would come out wrong; compile here if we must.
+				program = mProgramCache.get(mProgramType, vertexShader, fragmentShader);
+			}
+			if (program != currentProgram) {
+				// Pinned while drawn with, so the cache keeps it.
+				mProgramCache.pin(program);
+				mFullScreen.changeSharedProgram(program);
+				mProgramCache.unpin(currentProgram);
+				// The program may last have been used with another size or conversion.
+				mIncomingSizeUpdated = true;
+				mConversionUpdated = true;
+			}
 		}
 
-		// Update the filter kernel (if any).
+		// Update the filter kernel or color table (if any).
 		if (kernel != null) {
 			mFullScreen.getProgram().setKernel(kernel, colorAdj);
 		}
+		if (lut != null) {
+			if (mLutTexture.upload(lut)) {
+				mTableUploaded = true;
+			}
+			mFullScreen.getProgram().setLutSize(lut.getSize());
+		}
 
 		mCurrentFilter = mNewFilter;
+		return true;
+	}
+
+	/**
+	 * Returns the table of a point filter mode, baking it on first use.
+	 */
+	private ColorLut getFilterLut(int filter, ColorLut.Transform... transforms) {
+		if (mFilterLuts[filter] == null) {
+			mFilterLuts[filter] = ColorLut.bake(ColorLut.DEFAULT_SIZE, transforms);
+		}
+		return mFilterLuts[filter];
+	}
+
+	/**
+	 * Returns true if a program of the given type shows frames of the given format with the
+	 * right colors, filtered or not.
+	 */
+	private static boolean canDraw(Texture2dProgram.ProgramType type, FrameFormat format) {
+		if (type == getBaseProgramType(format)) {
+			return true;
+		}
+		if (format.isMono()) {
+			// With or without the correction.
+			return type == Texture2dProgram.ProgramType.TEXTURE_MONO16_FLAT;
+		}
+		// The filter programs all sample RGB.
+		return format == FrameFormat.RGB888 && type != Texture2dProgram.ProgramType.TEXTURE_NV12 &&
+				type != Texture2dProgram.ProgramType.TEXTURE_I420 &&
+				type != Texture2dProgram.ProgramType.TEXTURE_YUYV &&
+				type != Texture2dProgram.ProgramType.TEXTURE_BAYER &&
+				type != Texture2dProgram.ProgramType.TEXTURE_MONO16 &&
+				type != Texture2dProgram.ProgramType.TEXTURE_MONO16_FLAT;
+	}
+
+	/**
+	 * Returns the program that draws frames of the given format unfiltered.
+	 */
+	private static Texture2dProgram.ProgramType getBaseProgramType(FrameFormat format) {
+		switch (format) {
+			case NV12:
+				return Texture2dProgram.ProgramType.TEXTURE_NV12;
+			case I420:
+				return Texture2dProgram.ProgramType.TEXTURE_I420;
+			case YUYV:
+				return Texture2dProgram.ProgramType.TEXTURE_YUYV;
+			case BAYER_RGGB:
+			case BAYER_BGGR:
+			case BAYER_GRBG:
+			case BAYER_GBRG:
+				return Texture2dProgram.ProgramType.TEXTURE_BAYER;
+			case MONO10:
+			case MONO12:
+			case MONO16:
+				return Texture2dProgram.ProgramType.TEXTURE_MONO16;
+			default:
+				return Texture2dProgram.ProgramType.TOUPCAM_DEF;
+		}
+	}
+
+	/**
+	 * Selects the Y'CbCr to RGB conversion for YUV frames.  Use BT.709 for HD sources that
+	 * say so; BT.601 is what most UVC cameras send.
+	 */
+	public void setYuvMatrix(YuvColorMatrix matrix) {
+		mYuvMatrix = matrix;
+		mConversionUpdated = true;
+	}
+
+	/**
+	 * Selects how Bayer frames are demosaiced.  Edge-aware interpolation costs a few more
+	 * texture fetches per pixel but avoids zipper artifacts along sharp edges.
+	 */
+	public void setDemosaicMode(BayerDemosaic.Mode mode) {
+		mDemosaicMode = mode;
+		mConversionUpdated = true;
+	}
+
+	/**
+	 * Sets the window, gamma and false-color map that 10- to 16-bit monochrome frames are
+	 * shown through; null shows each format's full range in gray.  Turns auto-windowing off.
+	 * Recordings of the output get the windowed 8-bit picture; record raw frames to keep
+	 * every bit.
+	 */
+	public void setMonoWindow(MonoWindow window) {
+		mMonoWindow = window;
+		mMonoAutoWindow = false;
+		mConversionUpdated = true;
+	}
+
+	/**
+	 * Turns auto-windowing of monochrome frames on or off.  While on, the window follows each
+	 * frame's histogram, clipping its darkest and brightest 0.1%, and keeps the gamma and
+	 * color map last set.
+	 */
+	public void setMonoAutoWindow(boolean enabled) {
+		mMonoAutoWindow = enabled;
+	}
+
+	/**
+	 * Returns a copy of the histogram of the latest monochrome frame, or null if there's been
+	 * none.  May be called from any thread.
+	 */
+	public MonoHistogram getMonoHistogram() {
+		synchronized (mMonoHistogram) {
+			return mMonoHistogramCounted ? mMonoHistogram.copy() : null;
+		}
 	}
 
 	/**
@@ -200,6 +1108,133 @@ public class CamRender implements GLSurfaceView.Renderer {
 		mNewFilter = filter;
 	}
 
+	/**
+	 * Applies a chain of filters, fused into one program, instead of the filter mode; null
+	 * goes back to the filter mode.  Only RGB frames are filtered.  Each distinct chain is a
+	 * program of its own, built in the background the first time it's used.
+	 */
+	public void setFilterChain(FilterChain chain) {
+		mFilterChain = chain;
+		mCurrentFilter = -1;
+	}
+
+	/**
+	 * Grades RGB frames through a color table instead of the filter mode; null goes back to
+	 * the filter mode.  The filter chain and pipeline take precedence.  Changing tables only
+	 * uploads the new one; the program stays.
+	 */
+	public void setColorLut(ColorLut lut) {
+		mColorLut = lut;
+		mCurrentFilter = -1;
+	}
+
+	/**
+	 * Filters RGB frames through a multi-pass pipeline instead of the filter chain or mode;
+	 * null goes back to those.  Use it for kernels too big for one pass, like wide blurs.
+	 */
+	public void setFilterPipeline(FilterPipeline pipeline) {
+		mFilterPipeline = pipeline;
+		if (mPipelineRenderer != null) {
+			mPipelineRenderer.setPipeline(getEffectivePipeline());
+		}
+		mCurrentFilter = -1;
+	}
+
+	/**
+	 * Sets the exposure time of the camera, in microseconds, or 0 if it isn't known.  A
+	 * calibration is only valid for the exposure it was captured at, so the frames after a
+	 * change get the new exposure's.  May be called from any thread.
+	 */
+	public void setExposure(int exposureMicros) {
+		if (exposureMicros < 0) {
+			throw new IllegalArgumentException("negative exposure " + exposureMicros);
+		}
+		mExposureMicros = exposureMicros;
+	}
+
+	/**
+	 * Turns flat-field and dark-frame correction on or off.  While on (the default), RGB888
+	 * and monochrome frames are corrected with the calibration of their mode, if there's one;
+	 * it's applied before any filter.  Needs GLES 3.
+	 */
+	public void setFlatFieldEnabled(boolean enabled) {
+		mFlatFieldEnabled = enabled;
+	}
+
+	/**
+	 * Starts capturing a reference for the current mode: the mean of the next frameCount
+	 * frames.  Set the scene up first (lens capped for DARK, an evenly lit field for FLAT).
+	 * When done, the reference goes into the mode's calibration, replacing that kind of
+	 * reference and keeping the other, and the calibration is saved to the store.  Replaces
+	 * a capture in progress.  May be called from any thread.
+	 *
+	 * @param frameCount Frames to average, 1 to FrameAverager.MAX_FRAME_COUNT; 16 or more
+	 *     keep the reference's noise well below the frames'.
+	 */
+	public void captureFlatFieldReference(FlatField.Reference reference, int frameCount) {
+		if (frameCount <= 0 || frameCount > FrameAverager.MAX_FRAME_COUNT) {
+			throw new IllegalArgumentException("frame count must be 1 to " +
+					FrameAverager.MAX_FRAME_COUNT + ", got " + frameCount);
+		}
+		mPendingCalibration.set(new Calibration(reference, frameCount));
+	}
+
+	/**
+	 * Returns true while a reference capture is requested or in progress.  May be called
+	 * from any thread.
+	 */
+	public boolean isCalibrating() {
+		return mCalibration != null || mPendingCalibration.get() != null;
+	}
+
+	/**
+	 * Returns the calibration being applied, or null.  May be called from any thread.
+	 */
+	public FlatField getFlatField() {
+		return mFlatField;
+	}
+
+	/**
+	 * Forgets the calibration of the current mode, in the cache and the store.
+	 */
+	public void clearFlatField() {
+		CameraMode mode = mCameraMode;
+		if (mode == null) {
+			return;
+		}
+		mFlatFieldCache.remove(mode);
+		// Don't look up what's being deleted.
+		mFlatFieldLookups.add(mode);
+		FlatFieldStore store = mFlatFieldStore;
+		if (store != null) {
+			mStoreExecutor.execute(() -> store.delete(mode));
+		}
+	}
+
+	/**
+	 * Sets where calibrations are saved and looked up, or null to keep them in memory only.
+	 * May be called from any thread.
+	 */
+	public void setFlatFieldStore(FlatFieldStore store) {
+		mFlatFieldStore = store;
+	}
+
+	/**
+	 * Turns frame statistics on or off.  While on, each uploaded frame is sampled on the GPU
+	 * and its histograms arrive in getFrameStats() a frame or two later.
+	 */
+	public void setFrameStatsEnabled(boolean enabled) {
+		mFrameStatsEnabled = enabled;
+	}
+
+	/**
+	 * Returns the stats of the most recently measured frame, or null if none has been.  May
+	 * be called from any thread; the stats are an immutable snapshot.
+	 */
+	public FrameStats getFrameStats() {
+		return mStatsRenderer.getLatest();
+	}
+
 	/**
 	 * Records the size of the incoming camera preview frames.
 	 * <p>
@@ -211,14 +1246,73 @@ public class CamRender implements GLSurfaceView.Renderer {
 		mIncomingWidth = width;
 		mIncomingHeight = height;
 		mIncomingSizeUpdated = true;
+		// The texture storage is reallocated on the next upload.
+		if (mUploader != null) {
+			mUploader.invalidate();
+		}
+		if (mYuvUploader != null) {
+			mYuvUploader.invalidate();
+		}
 	}
 
+	/**
+	 * Replaces the frame texture with a new, empty one.  Call with the context that
+	 * ingestFrame() runs in current.
+	 */
 	public void GenTexture() {
-		if (mFullScreen != null && mFullScreen.getProgram() != null)
-			mFullScreen.getProgram().GenTexture();
+		if (mFullScreen == null)
+			return;
+		mYuvUploader.restoreFilters();      // not on a deleted name
+		GLES20.glDeleteTextures(1, new int[] { mCurrentTextureId }, 0);
+		mCurrentTextureId = mFullScreen.createTextureObject();
+		mDrawTextureId = mCurrentTextureId;
+		// The new texture has no storage yet.
+		mUploader.invalidate();
+		mYuvUploader.invalidate();
 	}
 
-	public void setFrame(int frame) {
-		this.frame = frame;
+	/**
+	 * Sets where linked programs are saved so later runs can skip compiling them, or null to
+	 * always compile from source.  Only used on GLES 3; takes effect the next time the surface
+	 * is created.
+	 */
+	public void setProgramBinaryCache(ProgramBinaryCache binaries) {
+		mProgramBinaries = binaries;
+	}
+
+	/**
+	 * Selects how frames are uploaded.  Takes effect the next time the surface is created.
+	 */
+	public void setUploadMode(UploadMode mode) {
+		mUploadMode = mode;
+	}
+
+	/**
+	 * Returns the uploader in use, or null before onSurfaceCreated().  Its stats tell how
+	 * long the uploads take.
+	 */
+	public TextureUploader getUploader() {
+		return mUploader;
+	}
+
+	/**
+	 * Sets where camera frames come from.  Frames are uploaded as they are drawn.  RGB888
+	 * frames go through the selected upload mode and filter; NV12, I420 and YUYV frames are
+	 * uploaded as planes and converted to RGB in the shader, and Bayer frames are uploaded
+	 * as one byte per pixel and demosaiced in the shader.  The program follows the format
+	 * of the frames, so a source may switch formats between frames.
+	 */
+	public void setFrameSource(FrameSource source) {
+		mFrameSource = source;
+	}
+
+	/**
+	 * Sets a recorder that gets a copy of every frame taken from the source, or null to stop
+	 * recording.  The copy is made on the thread that calls ingestFrame(), before the
+	 * upload.  Unset the recorder before closing it.  To replay the recording, pass a
+	 * RawFrameReplay to setFrameSource().
+	 */
+	public void setFrameRecorder(RawFrameRecorder recorder) {
+		mRecorder = recorder;
 	}
 }
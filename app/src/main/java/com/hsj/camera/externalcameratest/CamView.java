@@ -8,19 +8,38 @@ import android.view.SurfaceView;
 
 import androidx.annotation.NonNull;
 
-import com.hsj.camera.externalcameratest.gles.SurfaceRenderContext;
+import com.hsj.camera.externalcameratest.frame.ColorLut;
+import com.hsj.camera.externalcameratest.frame.FlatField;
+import com.hsj.camera.externalcameratest.frame.FlatFieldStore;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.FrameStats;
+import com.hsj.camera.externalcameratest.frame.MonoHistogram;
+import com.hsj.camera.externalcameratest.frame.MonoWindow;
+import com.hsj.camera.externalcameratest.frame.RawFrameRecorder;
+import com.hsj.camera.externalcameratest.frame.TestPatternGenerator;
+import com.hsj.camera.externalcameratest.frame.TestPatternSource;
+import com.hsj.camera.externalcameratest.gles.FilterChain;
+import com.hsj.camera.externalcameratest.gles.FilterPipeline;
+import com.hsj.camera.externalcameratest.gles.ProgramBinaryCache;
 
 import java.io.File;
 import java.io.IOException;
 
 public class CamView extends SurfaceView {
-	private CamRender mRender;
+	// Size and rate of the incoming camera frames.
+	public static final int FRAME_RATE = 30;
+	private static final int FRAME_WIDTH = 2048;
+	private static final int FRAME_HEIGHT = 1080;
+	private static final int FRAME_BUFFER_COUNT = 3;
+	// Under the code cache dir, which the system clears when the app is updated.
+	private static final String PROGRAM_BINARY_DIR = "program_binaries";
+	// Under the files dir: calibrations take a while to capture, so they're kept.
+	private static final String FLAT_FIELD_DIR = "flat_fields";
+
+	private RenderThread mRenderThread;
+	private TestPatternSource mFrameSource;
 	private MediaRecorder mediaRecorder;
 
-	private SurfaceRenderContext baseContext; // Only used as a connection between the other contexts
-	private SurfaceRenderContext previewContext; // Used to draw the preview
-	private SurfaceRenderContext recorderContext; // Used to draw to the encoder surface
-
 	public CamView(Context context) {
 		super(context);
 		init();
@@ -51,8 +70,6 @@ public class CamView extends SurfaceView {
 	}
 
 	private void init() {
-		baseContext = new SurfaceRenderContext(null, 1, 1, null);
-
 		getHolder().addCallback(new SurfaceHolder.Callback() {
 			@Override
 			public void surfaceCreated(@NonNull SurfaceHolder holder) {
@@ -61,21 +78,60 @@ public class CamView extends SurfaceView {
 
 			@Override
 			public void surfaceChanged(@NonNull SurfaceHolder holder, int format, int width, int height) {
-				if(previewContext != null)
-					previewContext.destroy();
-				previewContext = new SurfaceRenderContext(holder.getSurface(), width, height, baseContext.getEglContext());
+				mRenderThread.surfaceChanged(holder.getSurface(), width, height);
 			}
 
 			@Override
 			public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
-				previewContext.destroy();
-				previewContext = null;
+				mRenderThread.surfaceDestroyed();
 			}
 		});
 
-		mRender = new CamRender();
-		baseContext.makeCurrent();
-		mRender.onSurfaceCreated(null, null);
+		// Stands in for the camera until one is attached.
+		mFrameSource = new TestPatternSource(FrameFormat.RGB888, FRAME_WIDTH, FRAME_HEIGHT,
+				FRAME_RATE, FRAME_BUFFER_COUNT);
+
+		CamRender render = new CamRender(FRAME_RATE);
+		render.setFrameSource(mFrameSource);
+		render.setProgramBinaryCache(new ProgramBinaryCache(
+				new File(getContext().getCodeCacheDir(), PROGRAM_BINARY_DIR)));
+		render.setFlatFieldStore(new FlatFieldStore(
+				new File(getContext().getFilesDir(), FLAT_FIELD_DIR)));
+		mRenderThread = new RenderThread(render);
+		mRenderThread.start();
+		mRenderThread.waitUntilReady();
+	}
+
+	/**
+	 * Returns the number of camera frames that were replaced by a newer one before the
+	 * render thread got to them.
+	 */
+	public long getDroppedFrameCount() {
+		return mFrameSource.getDroppedCount();
+	}
+
+	/**
+	 * Starts delivering frames.  Does nothing if they're already flowing.
+	 */
+	public void startFrames() {
+		mFrameSource.start();
+	}
+
+	/**
+	 * Selects the test pattern shown in place of the camera.
+	 */
+	public void setTestPattern(TestPatternGenerator.Pattern pattern) {
+		mFrameSource.setPattern(pattern);
+	}
+
+	/**
+	 * Stops the frames and the render thread.  The view can't be used afterwards.
+	 */
+	public void release() {
+		mFrameSource.stop();
+		if (mediaRecorder != null)
+			destroyMediaRecorder();
+		mRenderThread.shutdown();
 	}
 
 	private void makeMediaRecorder(File videoFile, int frameRate, int width, int height) {
@@ -100,13 +156,13 @@ public class CamView extends SurfaceView {
 			throw new RuntimeException(e);
 		}
 
-		recorderContext = new SurfaceRenderContext(mediaRecorder.getSurface(), width, height, baseContext.getEglContext());
+		mRenderThread.setRecorderSurface(mediaRecorder.getSurface(), width, height);
 	}
 
 	private void destroyMediaRecorder() {
+		mRenderThread.releaseRecorderSurface();
 		mediaRecorder.release();
 		mediaRecorder = null;
-		recorderContext.destroy();
 	}
 
 	public void changeRecordingState(File videoFile, int frameRate, int width, int height) {
@@ -120,29 +176,141 @@ public class CamView extends SurfaceView {
 	public void changeRecordingState(boolean state) {
 		if(state)
 			mediaRecorder.start();
-		else
+		else {
+			// Stop feeding the recorder's surface before stopping it.
+			mRenderThread.releaseRecorderSurface();
 			mediaRecorder.stop();
+		}
 	}
 
-	int frame = 0;
-	public void onFrameAvailable() {
-		mRender.setFrame(frame);
+	/**
+	 * Changes the filter applied to the preview and recording (one of CamRender.FILTER_*).
+	 */
+	public void changeFilterMode(int filter) {
+		mRenderThread.changeFilterMode(filter);
+	}
 
-		if(previewContext != null) {
-			previewContext.makeCurrent();
-			mRender.onDrawFrame(null);
-			previewContext.swapBuffers();
-		}
+	/**
+	 * Applies a chain of filters, fused into one pass, instead of the filter mode; null goes
+	 * back to the filter mode.
+	 */
+	public void setFilterChain(FilterChain chain) {
+		mRenderThread.setFilterChain(chain);
+	}
 
-		if(recorderContext != null) {
-			recorderContext.makeCurrent();
-			mRender.onDrawFrame(null);
-			recorderContext.swapBuffers();
-		}
+	/**
+	 * Grades colors through a table, e.g. one from {@link ColorLut#parseCube(java.io.Reader)},
+	 * instead of the filter mode; null goes back to the filter mode.  Changing tables doesn't
+	 * change the program, so it's cheap enough to do per frame.
+	 */
+	public void setColorLut(ColorLut lut) {
+		mRenderThread.setColorLut(lut);
+	}
 
-		frame++;
-		if (frame == 60)
-			frame = 0;
+	/**
+	 * Turns live histograms and levels of the incoming frames on or off; see
+	 * getFrameStats().
+	 */
+	public void setFrameStatsEnabled(boolean enabled) {
+		mRenderThread.setFrameStatsEnabled(enabled);
 	}
 
+	/**
+	 * Returns the histograms and levels of the most recently measured frame, or null if none
+	 * has been.  Check its timestamp.  Cheap enough to poll every frame, e.g. for
+	 * auto-exposure.
+	 */
+	public FrameStats getFrameStats() {
+		return mRenderThread.getFrameStats();
+	}
+
+	/**
+	 * Sets the window/level, gamma and false-color map for 10- to 16-bit monochrome cameras,
+	 * e.g. {@link MonoWindow#fromLevel(int, int, float, MonoWindow.ColorMap)}; null shows the
+	 * full range.  Turns auto-windowing off.  Video recordings get the windowed picture at
+	 * 8 bits; use setFrameRecorder() as well to keep the raw samples.
+	 */
+	public void setMonoWindow(MonoWindow window) {
+		mRenderThread.setMonoWindow(window);
+	}
+
+	/**
+	 * Turns auto-windowing of monochrome frames on or off.  While on, the window follows
+	 * each frame's histogram; set the gamma and map with setMonoWindow() first.
+	 */
+	public void setMonoAutoWindow(boolean enabled) {
+		mRenderThread.setMonoAutoWindow(enabled);
+	}
+
+	/**
+	 * Returns the raw-value histogram of the latest monochrome frame, or null if there's been
+	 * none, e.g. to draw under window/level controls.
+	 */
+	public MonoHistogram getMonoHistogram() {
+		return mRenderThread.getMonoHistogram();
+	}
+
+	/**
+	 * Records the frames as the camera sends them, at their full bit depth, alongside any
+	 * video recording; null stops.  Unset the recorder before closing it.
+	 */
+	public void setFrameRecorder(RawFrameRecorder recorder) {
+		mRenderThread.setFrameRecorder(recorder);
+	}
+
+	/**
+	 * Filters frames through a multi-pass pipeline, e.g.
+	 * {@link FilterPipeline#gaussianBlur(int, float, float)}, instead of the filter chain or
+	 * mode; null goes back to those.
+	 */
+	public void setFilterPipeline(FilterPipeline pipeline) {
+		mRenderThread.setFilterPipeline(pipeline);
+	}
+
+	/**
+	 * Tells the renderer the camera's exposure time, in microseconds, or 0 for auto-exposure.
+	 * Calibrations are kept per exposure and resolution.
+	 */
+	public void setExposure(int exposureMicros) {
+		mRenderThread.setExposure(exposureMicros);
+	}
+
+	/**
+	 * Turns flat-field and dark-frame correction on or off; it's on by default, and applies
+	 * once the current mode has been calibrated.  Needs GLES 3.
+	 */
+	public void setFlatFieldEnabled(boolean enabled) {
+		mRenderThread.setFlatFieldEnabled(enabled);
+	}
+
+	/**
+	 * Calibrates the current mode: averages the next frameCount frames into a dark reference
+	 * (cap the lens) or a flat one (point the camera at an evenly lit, featureless field,
+	 * bright but not clipped).  The calibration is saved and reloaded the next time the mode
+	 * is used.  Poll isCalibrating() to tell when it's done.
+	 */
+	public void captureFlatFieldReference(FlatField.Reference reference, int frameCount) {
+		mRenderThread.captureFlatFieldReference(reference, frameCount);
+	}
+
+	/**
+	 * Returns true while a reference is being captured.
+	 */
+	public boolean isCalibrating() {
+		return mRenderThread.isCalibrating();
+	}
+
+	/**
+	 * Returns the calibration being applied, or null if none is.
+	 */
+	public FlatField getFlatField() {
+		return mRenderThread.getFlatField();
+	}
+
+	/**
+	 * Deletes the calibration of the current mode.
+	 */
+	public void clearFlatField() {
+		mRenderThread.clearFlatField();
+	}
 }
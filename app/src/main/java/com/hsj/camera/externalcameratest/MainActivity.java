@@ -26,13 +26,10 @@ import androidx.core.content.ContextCompat;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class MainActivity extends AppCompatActivity {
     private final int MY_PERMISSIONS_REQUEST = 113;
     private boolean isRecording = false;
-    private Timer timer;
     private CamView mCameraView;
 
     @Override
@@ -67,7 +64,7 @@ public class MainActivity extends AppCompatActivity {
                     }
                     
                     // TODO: Get the right resolution from the incoming video frames
-                    mCameraView.changeRecordingState(videoFile, 30, 1280, 720);
+                    mCameraView.changeRecordingState(videoFile, CamView.FRAME_RATE, 1280, 720);
                     isRecording = true;
                     Log.d("TAG", "record file: " + videoFile.getPath());
                     Toast.makeText(context, "Recording Started...", Toast.LENGTH_SHORT).show();
@@ -152,24 +149,13 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
-        timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                runOnUiThread(() -> mCameraView.onFrameAvailable());
-            }
-        }, 2000, 1000/30);
+        mCameraView.startFrames();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        try {
-            if (timer != null) {
-                timer.cancel();
-            }
-        }
-        catch (Exception ignored){}
+        mCameraView.release();
     }
 
     @Override
@@ -178,13 +164,7 @@ public class MainActivity extends AppCompatActivity {
         if (requestCode == MY_PERMISSIONS_REQUEST) {
             if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 Log.d("TAG", "permission granted.");
-                timer = new Timer();
-                timer.scheduleAtFixedRate(new TimerTask() {
-                    @Override
-                    public void run() {
-                        runOnUiThread(() -> mCameraView.onFrameAvailable());
-                    }
-                }, 2000, 1000/30);
+                mCameraView.startFrames();
             } else {
                 Log.d("TAG", "permission denied!");
             }
@@ -0,0 +1,441 @@
+package com.hsj.camera.externalcameratest;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.Surface;
+
+import com.hsj.camera.externalcameratest.frame.ColorLut;
+import com.hsj.camera.externalcameratest.frame.FlatField;
+import com.hsj.camera.externalcameratest.frame.FrameStats;
+import com.hsj.camera.externalcameratest.frame.MonoHistogram;
+import com.hsj.camera.externalcameratest.frame.MonoWindow;
+import com.hsj.camera.externalcameratest.frame.RawFrameRecorder;
+import com.hsj.camera.externalcameratest.gles.FilterChain;
+import com.hsj.camera.externalcameratest.gles.FilterPipeline;
+import com.hsj.camera.externalcameratest.gles.SurfaceRenderContext;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Dedicated rendering thread.
+ * <p>
+ * The thread owns the EGL contexts used by CamView and everything that touches GL: frame
+ * uploads, draws and eglSwapBuffers().  It wakes on every display vsync (Choreographer runs
+ * on this thread's Looper), takes the newest frame from CamRender's source if one has
+ * arrived, and presents it to the preview and, while recording, to the recorder surface.
+ * Vsyncs without a new frame cost nothing beyond the check.
+ * <p>
+ * Other threads only send control messages through the public methods.  The calls that
+ * hand a Surface back to its owner (surfaceDestroyed(), releaseRecorderSurface()) wait for
+ * the render thread to let go of the EGL surface; everything else returns immediately.
+ */
+public class RenderThread extends Thread implements Choreographer.FrameCallback {
+	private static final String TAG = "RenderThread";
+
+	private static final int MSG_SURFACE_CHANGED = 0;
+	private static final int MSG_SURFACE_DESTROYED = 1;
+	private static final int MSG_RECORDER_SURFACE = 2;
+	private static final int MSG_RELEASE_RECORDER_SURFACE = 3;
+	private static final int MSG_CHANGE_FILTER = 4;
+	private static final int MSG_FILTER_CHAIN = 5;
+	private static final int MSG_FILTER_PIPELINE = 6;
+	private static final int MSG_COLOR_LUT = 7;
+	private static final int MSG_FRAME_STATS = 8;
+	private static final int MSG_MONO_WINDOW = 9;
+	private static final int MSG_MONO_AUTO_WINDOW = 10;
+	private static final int MSG_FLAT_FIELD_ENABLED = 11;
+	private static final int MSG_CLEAR_FLAT_FIELD = 12;
+	private static final int MSG_SHUTDOWN = 13;
+
+	// ----- accessed exclusively by render thread -----
+	private final CamRender mRender;
+	private SurfaceRenderContext baseContext; // Only used as a connection between the other contexts
+	private SurfaceRenderContext previewContext; // Used to draw the preview
+	private SurfaceRenderContext recorderContext; // Used to draw to the encoder surface
+
+	// ----- accessed by multiple threads -----
+	private volatile RenderHandler mHandler;
+
+	private final Object mStartLock = new Object();     // guards mReady
+	private boolean mReady;
+
+	/**
+	 * Prepares the thread.  The renderer is owned by the render thread once start() is
+	 * called; other threads must not touch it afterwards.
+	 */
+	public RenderThread(CamRender render) {
+		super("RenderThread");
+		mRender = render;
+	}
+
+	/**
+	 * Waits until the render thread is ready to receive messages.  (Call from non-render
+	 * thread, after start().)
+	 */
+	public void waitUntilReady() {
+		synchronized (mStartLock) {
+			while (!mReady) {
+				try {
+					mStartLock.wait();
+				} catch (InterruptedException ie) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Render thread entry point.  Creates the shared EGL context, then handles messages and
+	 * vsync callbacks until shut down.
+	 */
+	@Override
+	public void run() {
+		Looper.prepare();
+
+		baseContext = new SurfaceRenderContext(null, 1, 1, null);
+		baseContext.makeCurrent();
+		mRender.onSurfaceCreated(null, null);
+
+		synchronized (mStartLock) {
+			mHandler = new RenderHandler(this);
+			mReady = true;
+			mStartLock.notify();
+		}
+
+		Choreographer.getInstance().postFrameCallback(this);
+		Looper.loop();
+
+		Log.d(TAG, "Render thread exiting");
+		Choreographer.getInstance().removeFrameCallback(this);
+		releaseRecorderContext();
+		if (previewContext != null) {
+			destroyContext(previewContext);
+			previewContext = null;
+		}
+		mRender.notifyPausing();
+		mRender.release();
+		baseContext.destroy();
+		baseContext = null;
+
+		synchronized (mStartLock) {
+			mReady = false;
+			mHandler = null;
+		}
+	}
+
+	/**
+	 * Tells the render thread the preview surface has been created or resized.  (Call from
+	 * UI thread.)
+	 */
+	public void surfaceChanged(Surface surface, int width, int height) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_SURFACE_CHANGED, width, height, surface));
+	}
+
+	/**
+	 * Tells the render thread the preview surface is going away, and waits until it has
+	 * stopped using it.  (Call from UI thread, from SurfaceHolder.Callback#surfaceDestroyed.)
+	 */
+	public void surfaceDestroyed() {
+		sendAndWait(MSG_SURFACE_DESTROYED);
+	}
+
+	/**
+	 * Starts drawing every presented frame into the recorder's input surface as well.
+	 * (Call from non-render thread.)
+	 */
+	public void setRecorderSurface(Surface surface, int width, int height) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_RECORDER_SURFACE, width, height, surface));
+	}
+
+	/**
+	 * Stops drawing into the recorder's input surface, and waits until the render thread has
+	 * released it, so the recorder can be stopped safely.  (Call from non-render thread.)
+	 */
+	public void releaseRecorderSurface() {
+		sendAndWait(MSG_RELEASE_RECORDER_SURFACE);
+	}
+
+	/**
+	 * Changes the filter applied to the frames.  (Call from non-render thread.)
+	 */
+	public void changeFilterMode(int filter) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_CHANGE_FILTER, filter, 0));
+	}
+
+	/**
+	 * Applies a chain of filters instead of the filter mode, or goes back to the filter mode
+	 * if null.  (Call from non-render thread.)
+	 */
+	public void setFilterChain(FilterChain chain) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_FILTER_CHAIN, chain));
+	}
+
+	/**
+	 * Grades frames through a color table instead of the filter mode, or goes back to the
+	 * filter mode if null.  (Call from non-render thread.)
+	 */
+	public void setColorLut(ColorLut lut) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_COLOR_LUT, lut));
+	}
+
+	/**
+	 * Turns frame statistics on or off.  (Call from non-render thread.)
+	 */
+	public void setFrameStatsEnabled(boolean enabled) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_STATS, enabled ? 1 : 0, 0));
+	}
+
+	/**
+	 * Returns the stats of the most recently measured frame, or null.  (Call from any
+	 * thread.)
+	 */
+	public FrameStats getFrameStats() {
+		return mRender.getFrameStats();
+	}
+
+	/**
+	 * Sets the window monochrome frames are shown through, or the full range if null, and
+	 * turns auto-windowing off.  (Call from non-render thread.)
+	 */
+	public void setMonoWindow(MonoWindow window) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_MONO_WINDOW, window));
+	}
+
+	/**
+	 * Turns auto-windowing of monochrome frames on or off.  (Call from non-render thread.)
+	 */
+	public void setMonoAutoWindow(boolean enabled) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_MONO_AUTO_WINDOW, enabled ? 1 : 0, 0));
+	}
+
+	/**
+	 * Returns the histogram of the latest monochrome frame, or null.  (Call from any thread.)
+	 */
+	public MonoHistogram getMonoHistogram() {
+		return mRender.getMonoHistogram();
+	}
+
+	/**
+	 * Sets a recorder for the raw frames, or null to stop.  The renderer reads it once per
+	 * frame, so no message is needed.  (Call from any thread.)
+	 */
+	public void setFrameRecorder(RawFrameRecorder recorder) {
+		mRender.setFrameRecorder(recorder);
+	}
+
+	/**
+	 * Filters frames through a multi-pass pipeline instead, or goes back to the filter chain
+	 * or mode if null.  (Call from non-render thread.)
+	 */
+	public void setFilterPipeline(FilterPipeline pipeline) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_FILTER_PIPELINE, pipeline));
+	}
+
+	/**
+	 * Sets the camera's exposure time, which selects the calibration.  The renderer reads it
+	 * once per frame, so no message is needed.  (Call from any thread.)
+	 */
+	public void setExposure(int exposureMicros) {
+		mRender.setExposure(exposureMicros);
+	}
+
+	/**
+	 * Turns flat-field and dark-frame correction on or off.  (Call from non-render thread.)
+	 */
+	public void setFlatFieldEnabled(boolean enabled) {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_FLAT_FIELD_ENABLED, enabled ? 1 : 0, 0));
+	}
+
+	/**
+	 * Starts capturing a reference from the next frames.  The renderer picks the request up
+	 * with the next frame, so no message is needed.  (Call from any thread.)
+	 */
+	public void captureFlatFieldReference(FlatField.Reference reference, int frameCount) {
+		mRender.captureFlatFieldReference(reference, frameCount);
+	}
+
+	/**
+	 * Returns true while a reference capture is pending.  (Call from any thread.)
+	 */
+	public boolean isCalibrating() {
+		return mRender.isCalibrating();
+	}
+
+	/**
+	 * Returns the calibration being applied, or null.  (Call from any thread.)
+	 */
+	public FlatField getFlatField() {
+		return mRender.getFlatField();
+	}
+
+	/**
+	 * Forgets the calibration of the current mode.  (Call from non-render thread.)
+	 */
+	public void clearFlatField() {
+		mHandler.sendMessage(mHandler.obtainMessage(MSG_CLEAR_FLAT_FIELD));
+	}
+
+	/**
+	 * Stops the thread and releases the EGL contexts.  Returns once the thread has exited.
+	 * (Call from non-render thread.)
+	 */
+	public void shutdown() {
+		RenderHandler handler = mHandler;
+		if (handler != null) {
+			handler.sendMessage(handler.obtainMessage(MSG_SHUTDOWN));
+		}
+		try {
+			join();
+		} catch (InterruptedException ie) {
+			Log.w(TAG, "Interrupted waiting for render thread");
+		}
+	}
+
+	/**
+	 * Sends a message with no payload and waits until the render thread has handled it.
+	 */
+	private void sendAndWait(int what) {
+		RenderHandler handler = mHandler;
+		if (handler == null) {
+			return;     // already shut down; nothing is using the surfaces
+		}
+		CountDownLatch done = new CountDownLatch(1);
+		handler.sendMessage(handler.obtainMessage(what, done));
+		try {
+			done.await();
+		} catch (InterruptedException ie) {
+			Log.w(TAG, "Interrupted waiting for message " + what);
+		}
+	}
+
+	/**
+	 * Vsync callback.  Presents the newest frame, if there is one.
+	 */
+	@Override
+	public void doFrame(long frameTimeNanos) {
+		Choreographer.getInstance().postFrameCallback(this);
+
+		// Upload once into the texture shared by all contexts, then only draw per output.
+		baseContext.makeCurrent();
+		if (!mRender.ingestFrame())
+			return;
+
+		if (previewContext != null) {
+			previewContext.makeCurrent();
+			mRender.drawFrame();
+			previewContext.swapBuffers();
+		}
+
+		if (recorderContext != null) {
+			recorderContext.makeCurrent();
+			mRender.drawFrame();
+			recorderContext.swapBuffers();
+		}
+	}
+
+	private void handleSurfaceChanged(Surface surface, int width, int height) {
+		if (previewContext != null)
+			destroyContext(previewContext);
+		previewContext = new SurfaceRenderContext(surface, width, height, baseContext.getEglContext());
+	}
+
+	private void handleSurfaceDestroyed() {
+		if (previewContext != null) {
+			destroyContext(previewContext);
+			previewContext = null;
+		}
+	}
+
+	private void handleRecorderSurface(Surface surface, int width, int height) {
+		releaseRecorderContext();
+		recorderContext = new SurfaceRenderContext(surface, width, height, baseContext.getEglContext());
+	}
+
+	private void releaseRecorderContext() {
+		if (recorderContext != null) {
+			destroyContext(recorderContext);
+			recorderContext = null;
+		}
+	}
+
+	private void destroyContext(SurfaceRenderContext context) {
+		mRender.releaseContext(context.getEglContext());
+		context.destroy();
+	}
+
+	/**
+	 * Handles messages sent from other threads.  The handler is created on the render thread.
+	 */
+	private static class RenderHandler extends Handler {
+		private final WeakReference<RenderThread> mWeakRenderThread;
+
+		public RenderHandler(RenderThread renderThread) {
+			mWeakRenderThread = new WeakReference<>(renderThread);
+		}
+
+		@Override  // runs on render thread
+		public void handleMessage(Message msg) {
+			RenderThread renderThread = mWeakRenderThread.get();
+			if (renderThread == null) {
+				Log.w(TAG, "RenderHandler.handleMessage: render thread is null");
+				return;
+			}
+
+			switch (msg.what) {
+				case MSG_SURFACE_CHANGED:
+					renderThread.handleSurfaceChanged((Surface) msg.obj, msg.arg1, msg.arg2);
+					break;
+				case MSG_SURFACE_DESTROYED:
+					renderThread.handleSurfaceDestroyed();
+					break;
+				case MSG_RECORDER_SURFACE:
+					renderThread.handleRecorderSurface((Surface) msg.obj, msg.arg1, msg.arg2);
+					break;
+				case MSG_RELEASE_RECORDER_SURFACE:
+					renderThread.releaseRecorderContext();
+					break;
+				case MSG_CHANGE_FILTER:
+					renderThread.mRender.changeFilterMode(msg.arg1);
+					break;
+				case MSG_FILTER_CHAIN:
+					renderThread.mRender.setFilterChain((FilterChain) msg.obj);
+					break;
+				case MSG_FILTER_PIPELINE:
+					renderThread.mRender.setFilterPipeline((FilterPipeline) msg.obj);
+					break;
+				case MSG_COLOR_LUT:
+					renderThread.mRender.setColorLut((ColorLut) msg.obj);
+					break;
+				case MSG_FRAME_STATS:
+					renderThread.mRender.setFrameStatsEnabled(msg.arg1 != 0);
+					break;
+				case MSG_MONO_WINDOW:
+					renderThread.mRender.setMonoWindow((MonoWindow) msg.obj);
+					break;
+				case MSG_MONO_AUTO_WINDOW:
+					renderThread.mRender.setMonoAutoWindow(msg.arg1 != 0);
+					break;
+				case MSG_FLAT_FIELD_ENABLED:
+					renderThread.mRender.setFlatFieldEnabled(msg.arg1 != 0);
+					break;
+				case MSG_CLEAR_FLAT_FIELD:
+					renderThread.mRender.clearFlatField();
+					break;
+				case MSG_SHUTDOWN:
+					Looper.myLooper().quit();
+					break;
+				default:
+					throw new RuntimeException("Unhandled msg what=" + msg.what);
+			}
+
+			if (msg.obj instanceof CountDownLatch) {
+				// Sent with sendAndWait(); let the caller go.
+				((CountDownLatch) msg.obj).countDown();
+			}
+		}
+	}
+}
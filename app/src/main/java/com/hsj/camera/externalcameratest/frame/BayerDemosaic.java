@@ -0,0 +1,142 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure-Java demosaicing of 8-bit Bayer mosaics.
+ * <p>
+ * This mirrors the TEXTURE_BAYER fragment shader in Texture2dProgram step for step (same
+ * neighborhoods, same mirrored borders, same weights) so it can serve as the reference for its
+ * output.  Output is packed 0xAARRGGBB, one int per pixel.
+ * <p>
+ * Both modes interpolate red and blue bilinearly.  They differ in how green is filled in at
+ * red and blue sites: {@link Mode#BILINEAR} averages the four neighbors, which leaves zipper
+ * artifacts along sharp edges; {@link Mode#EDGE_AWARE} interpolates along whichever direction
+ * has the smaller gradient, with a Laplacian correction from the center channel
+ * (Hamilton-Adams).
+ */
+public class BayerDemosaic {
+    /**
+     * How missing green samples are interpolated.
+     */
+    public enum Mode {
+        BILINEAR, EDGE_AWARE
+    }
+
+    private final Mode mMode;
+
+    public BayerDemosaic(Mode mode) {
+        mMode = mode;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Demosaics a whole frame.
+     *
+     * @param out Destination, at least width * height ints.
+     */
+    public void demosaic(ByteBuffer src, FrameFormat format, int width, int height, int[] out) {
+        for (int row = 0; row < height; row++) {
+            demosaicRow(src, format, width, height, row, out, row * width);
+        }
+    }
+
+    /**
+     * Demosaics one row of a frame.  Reads src with absolute gets, so its position is left
+     * alone and several threads may convert different rows at once.
+     *
+     * @param row Row to convert, from the top.
+     * @param out Destination, written from outOffset for width ints.
+     */
+    public void demosaicRow(ByteBuffer src, FrameFormat format, int width, int height, int row,
+            int[] out, int outOffset) {
+        int redX = format.getBayerRedX();
+        int siteY = (row + format.getBayerRedY()) & 1;
+        boolean edgeAware = mMode == Mode.EDGE_AWARE;
+
+        for (int x = 0; x < width; x++) {
+            int siteX = (x + redX) & 1;
+            float c = fetch(src, width, height, x, row);
+            float l = fetch(src, width, height, x - 1, row);
+            float r = fetch(src, width, height, x + 1, row);
+            float u = fetch(src, width, height, x, row - 1);
+            float d = fetch(src, width, height, x, row + 1);
+            float horiz = (l + r) * 0.5f;
+            float vert = (u + d) * 0.5f;
+
+            float red, green, blue;
+            if (siteX == siteY) {
+                // Red or blue site: the other of the two is on the diagonals.
+                float cross = (l + r + u + d) * 0.25f;
+                float diag = (fetch(src, width, height, x - 1, row - 1) +
+                        fetch(src, width, height, x + 1, row - 1) +
+                        fetch(src, width, height, x - 1, row + 1) +
+                        fetch(src, width, height, x + 1, row + 1)) * 0.25f;
+                green = cross;
+                if (edgeAware) {
+                    float lapH = 2f * c - fetch(src, width, height, x - 2, row) -
+                            fetch(src, width, height, x + 2, row);
+                    float lapV = 2f * c - fetch(src, width, height, x, row - 2) -
+                            fetch(src, width, height, x, row + 2);
+                    float gradH = Math.abs(l - r) + Math.abs(lapH);
+                    float gradV = Math.abs(u - d) + Math.abs(lapV);
+                    if (gradH < gradV) {
+                        green = horiz + lapH * 0.25f;
+                    } else if (gradV < gradH) {
+                        green = vert + lapV * 0.25f;
+                    } else {
+                        green = cross + (lapH + lapV) * 0.125f;
+                    }
+                }
+                if (siteX == 0) {
+                    red = c;
+                    blue = diag;
+                } else {
+                    red = diag;
+                    blue = c;
+                }
+            } else {
+                // Green site: red and blue are the horizontal or vertical neighbors,
+                // depending on whether this is a red row.
+                green = c;
+                if (siteY == 0) {
+                    red = horiz;
+                    blue = vert;
+                } else {
+                    red = vert;
+                    blue = horiz;
+                }
+            }
+            out[outOffset + x] = 0xff000000 | (toByte(red) << 16) | (toByte(green) << 8) |
+                    toByte(blue);
+        }
+    }
+
+    /**
+     * Reads the sample at (x, y), reflecting coordinates off the edges so that the neighbor
+     * has the same color as the one on the other side.  Frames less than 3 wide or high have
+     * no such neighbor; those reads are clamped to the edge.
+     */
+    private static float fetch(ByteBuffer src, int width, int height, int x, int y) {
+        return src.get(mirror(y, height) * width + mirror(x, width)) & 0xff;
+    }
+
+    // Same expression as the shader.
+    private static int mirror(int p, int size) {
+        int last = size - 1;
+        return Math.max(last - Math.abs(last - Math.abs(p)), 0);
+    }
+
+    private static int toByte(float value) {
+        if (value <= 0f) {
+            return 0;
+        }
+        if (value >= 255f) {
+            return 255;
+        }
+        return (int) (value + 0.5f);
+    }
+}
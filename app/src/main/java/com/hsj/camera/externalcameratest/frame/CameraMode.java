@@ -0,0 +1,107 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.util.Locale;
+
+/**
+ * What a calibration is valid for: the frame format and size, and the exposure.  A dark
+ * frame taken at one exposure doesn't correct another, and a flat taken at one resolution
+ * doesn't line up with another's pixels.
+ * <p>
+ * Immutable; usable as a map key.
+ */
+public final class CameraMode {
+    private final FrameFormat mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mExposureMicros;
+
+    /**
+     * @param exposureMicros Exposure time in microseconds, or 0 if it isn't known (e.g. the
+     *     camera runs auto-exposure), which makes it a mode of its own.
+     */
+    public CameraMode(FrameFormat format, int width, int height, int exposureMicros) {
+        if (format == null) {
+            throw new IllegalArgumentException("null format");
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        }
+        if (exposureMicros < 0) {
+            throw new IllegalArgumentException("negative exposure " + exposureMicros);
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mExposureMicros = exposureMicros;
+    }
+
+    public FrameFormat getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getExposureMicros() {
+        return mExposureMicros;
+    }
+
+    /**
+     * Returns true if the mode's frames are what {@link FlatField} corrects: formats that
+     * store each pixel's samples on their own, RGB888 and monochrome.  Subsampled chroma and
+     * Bayer mosaics aren't.
+     */
+    public boolean isCalibratable() {
+        return mFormat == FrameFormat.RGB888 || mFormat.isMono();
+    }
+
+    /**
+     * Returns the number of samples per pixel: 3 for RGB888, 1 for monochrome.
+     *
+     * @throws IllegalStateException if the mode isn't calibratable.
+     */
+    public int getChannelCount() {
+        if (!isCalibratable()) {
+            throw new IllegalStateException(mFormat + " frames can't be calibrated");
+        }
+        return mFormat == FrameFormat.RGB888 ? 3 : 1;
+    }
+
+    /**
+     * Returns the raw sample value that stands for full scale: 255 for RGB888, and the
+     * 16-bit word's 65535 for monochrome, whatever the bit depth, as the GPU sees it.
+     */
+    public int getFullScale() {
+        getChannelCount();
+        return mFormat == FrameFormat.RGB888 ? 0xff : 0xffff;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CameraMode)) {
+            return false;
+        }
+        CameraMode other = (CameraMode) o;
+        return mFormat == other.mFormat && mWidth == other.mWidth &&
+                mHeight == other.mHeight && mExposureMicros == other.mExposureMicros;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mFormat.hashCode() * 31 + mWidth) * 31 + mHeight) * 31 + mExposureMicros;
+    }
+
+    /**
+     * Returns e.g. "MONO12_2048x1080_10000us"; also names the mode's files.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s_%dx%d_%dus", mFormat, mWidth, mHeight,
+                mExposureMicros);
+    }
+}
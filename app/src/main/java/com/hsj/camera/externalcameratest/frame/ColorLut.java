@@ -0,0 +1,369 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * A 3D color lookup table: an output color for each point of an n x n x n lattice over the
+ * RGB cube, with colors in between interpolated trilinearly.
+ * <p>
+ * Any chain of point operations (a pixel's output depends only on its own color) can be
+ * baked into one, so a look costs a single lookup however many operations went into it, and
+ * changing looks means replacing the table, not the program.  Looks made elsewhere can be
+ * loaded from Adobe/Resolve .cube files.
+ * <p>
+ * The GL side draws from an atlas of the table's blue slices, see toAtlas();
+ * {@link #apply(int)} is the CPU reference for what that draws.  Immutable.
+ */
+public final class ColorLut {
+    /** Lattice size of baked tables; 33 is what most grading tools export. */
+    public static final int DEFAULT_SIZE = 33;
+    /** Largest lattice accepted; the atlas is size * size texels wide. */
+    public static final int MAX_SIZE = 64;
+
+    /**
+     * A point operation, for baking.
+     */
+    public interface Transform {
+        /**
+         * Transforms a color in place.  Channels are nominally in [0, 1]; results are
+         * clamped when baked.
+         */
+        void apply(float[] rgb);
+    }
+
+    /** Luma with the weights of the grayscale shaders. */
+    public static final Transform GRAYSCALE = new Transform() {
+        @Override
+        public void apply(float[] rgb) {
+            float gray = rgb[0] * 0.3f + rgb[1] * 0.59f + rgb[2] * 0.11f;
+            rgb[0] = gray;
+            rgb[1] = gray;
+            rgb[2] = gray;
+        }
+    };
+
+    /** Inverts each channel. */
+    public static final Transform NEGATIVE = new Transform() {
+        @Override
+        public void apply(float[] rgb) {
+            rgb[0] = 1f - rgb[0];
+            rgb[1] = 1f - rgb[1];
+            rgb[2] = 1f - rgb[2];
+        }
+    };
+
+    private final int mSize;
+    private final String mTitle;
+    // Output (r, g, b) of each lattice point, red fastest, then green, then blue, as in .cube
+    // files.
+    private final float[] mData;
+
+    /**
+     * @param size Lattice points per axis, 2 to MAX_SIZE.
+     * @param data Output colors, 3 * size^3 values in [0, 1], red fastest, then green, then
+     *     blue.  Copied.
+     * @param title Name of the look, or null.
+     */
+    public ColorLut(int size, float[] data, String title) {
+        if (size < 2 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("LUT size must be 2 to " + MAX_SIZE + ", got " +
+                    size);
+        }
+        if (data.length != 3 * size * size * size) {
+            throw new IllegalArgumentException("size " + size + " needs " +
+                    3 * size * size * size + " values, got " + data.length);
+        }
+        mSize = size;
+        mData = data.clone();
+        for (int i = 0; i < mData.length; i++) {
+            if (Float.isNaN(mData[i])) {
+                throw new IllegalArgumentException("NaN at " + i);
+            }
+            mData[i] = clamp(mData[i]);
+        }
+        mTitle = title;
+    }
+
+    /**
+     * Returns a table that changes nothing.
+     */
+    public static ColorLut identity(int size) {
+        return bake(size);
+    }
+
+    /**
+     * Bakes point operations, applied in order, into a table.
+     */
+    public static ColorLut bake(int size, Transform... transforms) {
+        float[] data = new float[3 * size * size * size];
+        float[] rgb = new float[3];
+        float step = 1f / (size - 1);
+        int i = 0;
+        for (int b = 0; b < size; b++) {
+            for (int g = 0; g < size; g++) {
+                for (int r = 0; r < size; r++) {
+                    rgb[0] = r * step;
+                    rgb[1] = g * step;
+                    rgb[2] = b * step;
+                    for (Transform transform : transforms) {
+                        transform.apply(rgb);
+                    }
+                    data[i++] = rgb[0];
+                    data[i++] = rgb[1];
+                    data[i++] = rgb[2];
+                }
+            }
+        }
+        return new ColorLut(size, data, null);
+    }
+
+    /**
+     * Reads a .cube file.  TITLE, LUT_3D_SIZE, DOMAIN_MIN, DOMAIN_MAX and # comments are
+     * understood; a domain other than [0, 1] is resampled onto [0, 1].  1D tables aren't
+     * supported.
+     *
+     * @throws IllegalArgumentException if the file is malformed.
+     */
+    public static ColorLut parseCube(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String title = null;
+        int size = 0;
+        float[] domainMin = { 0f, 0f, 0f };
+        float[] domainMax = { 1f, 1f, 1f };
+        float[] data = null;
+        int values = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            String keyword = fields[0];
+            if (keyword.equals("TITLE")) {
+                int start = line.indexOf('"');
+                int end = line.lastIndexOf('"');
+                title = end > start ? line.substring(start + 1, end) : line.substring(5).trim();
+            } else if (keyword.equals("LUT_3D_SIZE")) {
+                size = parseInt(fields, lineNumber);
+                if (size < 2 || size > MAX_SIZE) {
+                    throw new IllegalArgumentException("line " + lineNumber +
+                            ": LUT size must be 2 to " + MAX_SIZE + ", got " + size);
+                }
+                data = new float[3 * size * size * size];
+            } else if (keyword.equals("LUT_1D_SIZE")) {
+                throw new IllegalArgumentException("line " + lineNumber +
+                        ": 1D tables aren't supported");
+            } else if (keyword.equals("DOMAIN_MIN")) {
+                domainMin = parseTriple(fields, lineNumber);
+            } else if (keyword.equals("DOMAIN_MAX")) {
+                domainMax = parseTriple(fields, lineNumber);
+            } else if (Character.isLetter(keyword.charAt(0))) {
+                // Some tools add keywords of their own (e.g. LUT_3D_INPUT_RANGE); skip them.
+                continue;
+            } else {
+                if (data == null) {
+                    throw new IllegalArgumentException("line " + lineNumber +
+                            ": data before LUT_3D_SIZE");
+                }
+                if (values == data.length) {
+                    throw new IllegalArgumentException("line " + lineNumber +
+                            ": more than " + size * size * size + " entries");
+                }
+                float[] rgb = parseTriple(fields, lineNumber, 0);
+                data[values++] = rgb[0];
+                data[values++] = rgb[1];
+                data[values++] = rgb[2];
+            }
+        }
+        if (data == null) {
+            throw new IllegalArgumentException("no LUT_3D_SIZE");
+        }
+        if (values != data.length) {
+            throw new IllegalArgumentException("expected " + size * size * size +
+                    " entries, got " + values / 3);
+        }
+        for (int i = 0; i < 3; i++) {
+            if (!(domainMax[i] > domainMin[i])) {
+                throw new IllegalArgumentException("empty domain " + domainMin[i] + " to " +
+                        domainMax[i]);
+            }
+        }
+        ColorLut lut = new ColorLut(size, data, title);
+        if (domainMin[0] != 0f || domainMin[1] != 0f || domainMin[2] != 0f ||
+                domainMax[0] != 1f || domainMax[1] != 1f || domainMax[2] != 1f) {
+            lut = lut.resample(domainMin, domainMax);
+        }
+        return lut;
+    }
+
+    private static int parseInt(String[] fields, int lineNumber) {
+        if (fields.length != 2) {
+            throw new IllegalArgumentException("line " + lineNumber + ": expected one value");
+        }
+        try {
+            return Integer.parseInt(fields[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage());
+        }
+    }
+
+    private static float[] parseTriple(String[] fields, int lineNumber) {
+        return parseTriple(fields, lineNumber, 1);
+    }
+
+    private static float[] parseTriple(String[] fields, int lineNumber, int first) {
+        if (fields.length != first + 3) {
+            throw new IllegalArgumentException("line " + lineNumber + ": expected three values");
+        }
+        float[] triple = new float[3];
+        try {
+            for (int i = 0; i < 3; i++) {
+                triple[i] = Float.parseFloat(fields[first + i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("line " + lineNumber + ": " + e.getMessage());
+        }
+        for (float value : triple) {
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                throw new IllegalArgumentException("line " + lineNumber + ": " + value);
+            }
+        }
+        return triple;
+    }
+
+    /**
+     * Returns the table over [0, 1], for one defined over [domainMin, domainMax].
+     */
+    private ColorLut resample(float[] domainMin, float[] domainMax) {
+        float[] data = new float[mData.length];
+        float[] in = new float[3];
+        float[] out = new float[3];
+        float step = 1f / (mSize - 1);
+        int i = 0;
+        for (int b = 0; b < mSize; b++) {
+            for (int g = 0; g < mSize; g++) {
+                for (int r = 0; r < mSize; r++) {
+                    in[0] = r * step;
+                    in[1] = g * step;
+                    in[2] = b * step;
+                    for (int c = 0; c < 3; c++) {
+                        in[c] = (in[c] - domainMin[c]) / (domainMax[c] - domainMin[c]);
+                    }
+                    lookup(in, out);
+                    data[i++] = out[0];
+                    data[i++] = out[1];
+                    data[i++] = out[2];
+                }
+            }
+        }
+        return new ColorLut(mSize, data, mTitle);
+    }
+
+    /**
+     * Returns the number of lattice points per axis.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Returns the name of the look, or null.
+     */
+    public String getTitle() {
+        return mTitle;
+    }
+
+    /**
+     * Looks up a color, interpolating trilinearly between lattice points.  Inputs are
+     * clamped to [0, 1].
+     *
+     * @param rgb Input color.
+     * @param out Receives the output color; may be rgb.
+     */
+    public void lookup(float[] rgb, float[] out) {
+        int last = mSize - 1;
+        float r = clamp(rgb[0]) * last;
+        float g = clamp(rgb[1]) * last;
+        float b = clamp(rgb[2]) * last;
+        int r0 = Math.min((int) r, last - 1);
+        int g0 = Math.min((int) g, last - 1);
+        int b0 = Math.min((int) b, last - 1);
+        float fr = r - r0;
+        float fg = g - g0;
+        float fb = b - b0;
+        for (int c = 0; c < 3; c++) {
+            float lo = bilinear(r0, g0, b0, fr, fg, c);
+            float hi = bilinear(r0, g0, b0 + 1, fr, fg, c);
+            out[c] = lo + (hi - lo) * fb;
+        }
+    }
+
+    private float bilinear(int r0, int g0, int b, float fr, float fg, int channel) {
+        int row = ((b * mSize + g0) * mSize + r0) * 3 + channel;
+        int nextRow = row + mSize * 3;
+        float top = mData[row] + (mData[row + 3] - mData[row]) * fr;
+        float bottom = mData[nextRow] + (mData[nextRow + 3] - mData[nextRow]) * fr;
+        return top + (bottom - top) * fg;
+    }
+
+    /**
+     * Applies the table to an 0xAARRGGBB pixel, keeping its alpha.
+     */
+    public int apply(int argb) {
+        float[] rgb = {
+                (argb >> 16 & 0xff) / 255f, (argb >> 8 & 0xff) / 255f, (argb & 0xff) / 255f };
+        lookup(rgb, rgb);
+        return argb & 0xff000000 | toByte(rgb[0]) << 16 | toByte(rgb[1]) << 8 | toByte(rgb[2]);
+    }
+
+    /**
+     * Returns the width of the atlas, in texels; its height is getSize().
+     */
+    public int getAtlasWidth() {
+        return mSize * mSize;
+    }
+
+    /**
+     * Returns the table as a 2D RGB atlas, for GLES 2, which has no 3D textures: the blue
+     * slices side by side, each with red along x and green along y.  Texel
+     * (b * size + r, g) holds lattice point (r, g, b).  With linear filtering one fetch
+     * interpolates red and green within a slice, and the shader mixes two fetches along
+     * blue.
+     * <p>
+     * Rows are tightly packed (3 bytes per texel); upload with GL_UNPACK_ALIGNMENT 1.
+     */
+    public ByteBuffer toAtlas() {
+        ByteBuffer atlas = ByteBuffer.allocateDirect(mData.length);
+        for (int g = 0; g < mSize; g++) {
+            for (int b = 0; b < mSize; b++) {
+                for (int r = 0; r < mSize; r++) {
+                    int i = ((b * mSize + g) * mSize + r) * 3;
+                    atlas.put((byte) toByte(mData[i]));
+                    atlas.put((byte) toByte(mData[i + 1]));
+                    atlas.put((byte) toByte(mData[i + 2]));
+                }
+            }
+        }
+        atlas.flip();
+        return atlas;
+    }
+
+    private static float clamp(float value) {
+        return value < 0f ? 0f : value > 1f ? 1f : value;
+    }
+
+    private static int toByte(float value) {
+        return Math.round(clamp(value) * 255f);
+    }
+
+    @Override
+    public String toString() {
+        return "ColorLut[" + (mTitle != null ? mTitle : "untitled") + " " + mSize + "^3]";
+    }
+}
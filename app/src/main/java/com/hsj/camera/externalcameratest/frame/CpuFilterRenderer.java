@@ -0,0 +1,397 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Pure-Java version of what the Texture2dProgram programs draw: conversion of the frame to
+ * RGB (via {@link YuvConverter}, {@link BayerDemosaic} and {@link MonoWindow}), then one of
+ * the filters.  RGB888 and monochrome frames can be corrected with a {@link FlatField}
+ * first, as the flat-field stage and TEXTURE_MONO16_FLAT do.
+ * <p>
+ * It is the reference the shaders are checked against, and a software fallback.  The
+ * filters do the shaders' arithmetic in float, with the clamp and rounding of an 8-bit
+ * framebuffer, and read past the borders the way CLAMP_TO_EDGE does.  Two things differ on
+ * purpose: the convolution covers the whole frame (TEXTURE_2D_FILT only filters one half,
+ * as a demo), and the output is always opaque, as the display ignores alpha anyway.
+ * Output is packed 0xAARRGGBB, one int per pixel.
+ * <p>
+ * The frame is split into bands of rows that are filtered in parallel on a fork/join pool.
+ * Tasks and rows are reused; once the geometry settles, nothing is allocated per frame.
+ * <p>
+ * Not thread-safe; call render() from one thread.
+ */
+public class CpuFilterRenderer {
+    /**
+     * The filters, by the program that draws them.
+     */
+    public enum Filter {
+        /** TEXTURE_2D, TOUPCAM_DEF, and the YUV, Bayer and mono programs: conversion only. */
+        NONE,
+        /** TEXTURE_2D_BW: luma as gray. */
+        GRAYSCALE,
+        /** TEXTURE_2D_NEG: each channel inverted. */
+        NEGATIVE,
+        /** TEXTURE_2D_BW_NEG: inverted luma. */
+        GRAYSCALE_NEGATIVE,
+        /** TEXTURE_2D_FILT: the 3x3 kernel set by setKernel(), plus its color adjustment. */
+        CONVOLUTION
+    }
+
+    public static final int KERNEL_SIZE = 9;
+
+    // Bands per pool thread; a few each evens out the load.
+    private static final int BANDS_PER_THREAD = 4;
+    // Duplicates of the frame buffers kept by each band; rings are rarely larger.
+    private static final int VIEW_CACHE_SIZE = 4;
+
+    // Channel values as the shaders see them, and scaled by the luma weights: lookups
+    // instead of divisions, with bit-identical results.
+    private static final float[] UNIT = new float[256];
+    private static final float[] RED_LUMA = new float[256];
+    private static final float[] GREEN_LUMA = new float[256];
+    private static final float[] BLUE_LUMA = new float[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            UNIT[i] = i / 255f;
+            RED_LUMA[i] = UNIT[i] * 0.3f;
+            GREEN_LUMA[i] = UNIT[i] * 0.59f;
+            BLUE_LUMA[i] = UNIT[i] * 0.11f;
+        }
+    }
+
+    private final ForkJoinPool mPool;
+    private final TimingStats mStats;
+
+    private YuvConverter mYuvConverter = new YuvConverter(YuvColorMatrix.BT601);
+    private BayerDemosaic mDemosaic = new BayerDemosaic(BayerDemosaic.Mode.BILINEAR);
+    private MonoWindow mMonoWindow;     // null: the format's full range
+    private FlatField mFlatField;       // null: none
+    private final float[] mKernel = new float[KERNEL_SIZE];
+    private float mColorAdjust;
+
+    // Geometry the bands are laid out for.
+    private int mWidth;
+    private int mHeight;
+    private BandTask[] mBands;
+    private final AllBandsTask mRoot = new AllBandsTask();
+
+    // The frame being rendered.
+    private ByteBuffer mSrc;
+    private FrameFormat mFormat;
+    private Filter mFilter;
+    private int[] mOut;
+
+    /**
+     * Renders on the common fork/join pool, which has a thread per core.
+     *
+     * @param statsWindow Number of frames summarized by each getRenderStats() window.
+     */
+    public CpuFilterRenderer(int statsWindow) {
+        this(ForkJoinPool.commonPool(), statsWindow);
+    }
+
+    /**
+     * @param pool Pool to render on.
+     * @param statsWindow Number of frames summarized by each getRenderStats() window.
+     */
+    public CpuFilterRenderer(ForkJoinPool pool, int statsWindow) {
+        mPool = pool;
+        mStats = new TimingStats("cpu filter", statsWindow);
+        mKernel[KERNEL_SIZE / 2] = 1f;
+    }
+
+    /**
+     * Selects the Y'CbCr to RGB conversion for YUV frames.
+     */
+    public void setYuvMatrix(YuvColorMatrix matrix) {
+        mYuvConverter = new YuvConverter(matrix);
+    }
+
+    /**
+     * Selects how Bayer frames are demosaiced.
+     */
+    public void setDemosaicMode(BayerDemosaic.Mode mode) {
+        mDemosaic = new BayerDemosaic(mode);
+    }
+
+    /**
+     * Sets the window monochrome frames are shown through, as for
+     * Texture2dProgram.setMonoWindow(); null shows the format's full range.
+     */
+    public void setMonoWindow(MonoWindow window) {
+        mMonoWindow = window;
+    }
+
+    /**
+     * Sets the flat-field correction applied before everything else, or null for none.  It
+     * only applies to frames of its mode's format and size; the exposure is up to the caller.
+     */
+    public void setFlatField(FlatField field) {
+        mFlatField = field;
+    }
+
+    /**
+     * Sets the CONVOLUTION kernel, as for Texture2dProgram.setKernel().
+     *
+     * @param values KERNEL_SIZE weights, row by row, top row first.
+     */
+    public void setKernel(float[] values, float colorAdjust) {
+        if (values.length != KERNEL_SIZE) {
+            throw new IllegalArgumentException("Kernel size is " + values.length + " vs. " +
+                    KERNEL_SIZE);
+        }
+        System.arraycopy(values, 0, mKernel, 0, KERNEL_SIZE);
+        mColorAdjust = colorAdjust;
+    }
+
+    /**
+     * Converts and filters a frame.
+     *
+     * @param src The frame, tightly packed; its position is left alone.
+     * @param out Destination, at least width * height ints.
+     * @throws IllegalArgumentException if src or out is too small.
+     */
+    public void render(ByteBuffer src, FrameFormat format, int width, int height,
+            Filter filter, int[] out) {
+        long start = System.nanoTime();
+        if (src.capacity() < format.getFrameSize(width, height) || out.length < width * height) {
+            throw new IllegalArgumentException("buffers too small for " + width + "x" + height +
+                    " " + format);
+        }
+        if (width != mWidth || height != mHeight) {
+            layOutBands(width, height);
+        }
+        mSrc = src;
+        mFormat = format;
+        mFilter = filter;
+        mOut = out;
+        for (BandTask band : mBands) {
+            band.reinitialize();
+        }
+        mRoot.reinitialize();
+        mPool.invoke(mRoot);
+        mSrc = null;
+        mOut = null;
+        mStats.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Converts and filters a frame from a {@link FrameSource}.
+     */
+    public void render(Frame frame, Filter filter, int[] out) {
+        render(frame.getBuffer(), frame.getFormat(), frame.getWidth(), frame.getHeight(), filter,
+                out);
+    }
+
+    private void layOutBands(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        int bandCount = Math.min(mPool.getParallelism() * BANDS_PER_THREAD, height);
+        int rowsPerBand = (height + bandCount - 1) / bandCount;
+        bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+        mBands = new BandTask[bandCount];
+        for (int i = 0; i < bandCount; i++) {
+            mBands[i] = new BandTask(i * rowsPerBand, Math.min((i + 1) * rowsPerBand, height));
+        }
+    }
+
+    /**
+     * Returns the time render() takes, in nanoseconds.
+     */
+    public TimingStats getRenderStats() {
+        return mStats;
+    }
+
+    /**
+     * Applies a point filter to one opaque 0xAARRGGBB pixel.
+     */
+    static int filterPixel(Filter filter, int argb) {
+        switch (filter) {
+            case NONE:
+                return argb;
+            case NEGATIVE:
+                return 0xff000000 | ~argb & 0xffffff;
+            case GRAYSCALE:
+            case GRAYSCALE_NEGATIVE: {
+                float gray = RED_LUMA[argb >> 16 & 0xff] + GREEN_LUMA[argb >> 8 & 0xff] +
+                        BLUE_LUMA[argb & 0xff];
+                int y = toByte(filter == Filter.GRAYSCALE_NEGATIVE ? 1f - gray : gray);
+                return 0xff000000 | y << 16 | y << 8 | y;
+            }
+            default:
+                throw new IllegalArgumentException("not a point filter: " + filter);
+        }
+    }
+
+    // Same clamp and rounding as writing a float color to an 8-bit framebuffer.
+    private static int toByte(float value) {
+        if (value <= 0f) {
+            return 0;
+        }
+        if (value >= 1f) {
+            return 255;
+        }
+        return (int) (value * 255f + 0.5f);
+    }
+
+    /**
+     * Forks every band and waits for all of them.
+     */
+    private class AllBandsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            invokeAll(mBands);
+        }
+    }
+
+    /**
+     * Renders rows [top, bottom).
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int top;
+        final int bottom;
+        final byte[] bytes = new byte[mWidth * 3];
+        // The converted rows above, at and below the one being filtered.
+        int[] above = new int[mWidth];
+        int[] center = new int[mWidth];
+        int[] below = new int[mWidth];
+        // Convolution sum of the pixel being filtered: r, g, b.
+        final float[] sum = new float[3];
+
+        // The band reads through its own duplicates of the frame buffers, since relative
+        // bulk gets move the position.  Kept across frames, so a ring of buffers costs one
+        // duplicate each, once.
+        final ByteBuffer[] sources = new ByteBuffer[VIEW_CACHE_SIZE];
+        final ByteBuffer[] views = new ByteBuffer[VIEW_CACHE_SIZE];
+        int nextView;
+
+        BandTask(int top, int bottom) {
+            this.top = top;
+            this.bottom = bottom;
+        }
+
+        @Override
+        protected void compute() {
+            ByteBuffer src = view(mSrc);
+            int width = mWidth;
+            if (mFilter != Filter.CONVOLUTION) {
+                for (int y = top; y < bottom; y++) {
+                    int offset = y * width;
+                    convertRow(src, y, mOut, offset);
+                    if (mFilter != Filter.NONE) {
+                        for (int x = 0; x < width; x++) {
+                            mOut[offset + x] = filterPixel(mFilter, mOut[offset + x]);
+                        }
+                    }
+                }
+                return;
+            }
+
+            // Rows past the edges repeat the edge rows, like CLAMP_TO_EDGE.
+            convertRow(src, Math.max(top - 1, 0), above, 0);
+            convertRow(src, top, center, 0);
+            for (int y = top; y < bottom; y++) {
+                convertRow(src, Math.min(y + 1, mHeight - 1), below, 0);
+                convolveRow(mOut, y * width);
+                int[] recycled = above;
+                above = center;
+                center = below;
+                below = recycled;
+            }
+        }
+
+        private void convolveRow(int[] out, int offset) {
+            int last = mWidth - 1;
+            for (int x = 0; x <= last; x++) {
+                int left = Math.max(x - 1, 0);
+                int right = Math.min(x + 1, last);
+                // Same order as the shader: the taps row by row, then the adjustment.
+                sum[0] = sum[1] = sum[2] = 0f;
+                addTaps(above, left, x, right, 0);
+                addTaps(center, left, x, right, 3);
+                addTaps(below, left, x, right, 6);
+                out[offset + x] = 0xff000000 | toByte(sum[0] + mColorAdjust) << 16 |
+                        toByte(sum[1] + mColorAdjust) << 8 | toByte(sum[2] + mColorAdjust);
+            }
+        }
+
+        private void addTaps(int[] row, int left, int x, int right, int firstWeight) {
+            addTap(row[left], mKernel[firstWeight]);
+            addTap(row[x], mKernel[firstWeight + 1]);
+            addTap(row[right], mKernel[firstWeight + 2]);
+        }
+
+        private void addTap(int argb, float weight) {
+            if (weight != 0f) {
+                sum[0] += UNIT[argb >> 16 & 0xff] * weight;
+                sum[1] += UNIT[argb >> 8 & 0xff] * weight;
+                sum[2] += UNIT[argb & 0xff] * weight;
+            }
+        }
+
+        /**
+         * Converts row y of the frame to 0xAARRGGBB.
+         */
+        private void convertRow(ByteBuffer src, int y, int[] out, int offset) {
+            int width = mWidth;
+            FlatField field = mFlatField;
+            if (field != null && (field.getMode().getFormat() != mFormat ||
+                    field.getMode().getWidth() != width ||
+                    field.getMode().getHeight() != mHeight)) {
+                field = null;
+            }
+            if (mFormat == FrameFormat.RGB888) {
+                src.clear();
+                src.position(y * width * 3);
+                src.get(bytes, 0, width * 3);
+                if (field != null) {
+                    // As the shader: corrected in float, then stored in 8 bits.
+                    int sample = y * width * 3;
+                    for (int i = 0; i < width * 3; i++) {
+                        bytes[i] = (byte) toByte(field.apply(sample + i, UNIT[bytes[i] & 0xff]));
+                    }
+                }
+                for (int x = 0, i = 0; x < width; x++, i += 3) {
+                    out[offset + x] = 0xff000000 | (bytes[i] & 0xff) << 16 |
+                            (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+                }
+            } else if (mFormat.isYuv()) {
+                mYuvConverter.convertRow(src, mFormat, width, mHeight, y, out, offset);
+            } else if (mFormat.isMono()) {
+                MonoWindow window = mMonoWindow != null ? mMonoWindow : MonoWindow.full(mFormat);
+                src.clear();
+                src.position(y * width * 2);
+                src.get(bytes, 0, width * 2);
+                for (int x = 0, i = 0; x < width; x++, i += 2) {
+                    int raw = (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8;
+                    if (field != null) {
+                        float corrected = field.apply(y * width + x, raw / 65535f) * 65535f;
+                        raw = Math.max(0, Math.min(Math.round(corrected), 0xffff));
+                    }
+                    out[offset + x] = window.apply(raw);
+                }
+            } else {
+                mDemosaic.demosaicRow(src, mFormat, width, mHeight, y, out, offset);
+            }
+        }
+
+        private ByteBuffer view(ByteBuffer source) {
+            for (int i = 0; i < VIEW_CACHE_SIZE; i++) {
+                if (sources[i] == source) {
+                    return views[i];
+                }
+            }
+            int slot = nextView;
+            nextView = (nextView + 1) % VIEW_CACHE_SIZE;
+            sources[slot] = source;
+            views[slot] = source.duplicate();
+            return views[slot];
+        }
+    }
+}
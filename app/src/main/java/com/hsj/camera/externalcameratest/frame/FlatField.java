@@ -0,0 +1,145 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.util.Arrays;
+
+/**
+ * Flat-field and dark-frame correction of one {@link CameraMode}: each sample becomes
+ * (raw - dark) * gain.
+ * <p>
+ * The dark reference, the average of frames taken with no light, holds each pixel's
+ * offset and fixed-pattern noise.  The flat reference, the average of frames of an evenly
+ * lit field, holds its response, vignetting and dust included.  A pixel's gain scales its
+ * response to the mean response of its channel, so an even field comes out even without
+ * changing the overall level or color balance.  Either reference may be missing: without a
+ * dark the offset is 0, without a flat the gain is 1.  Gains are capped at MAX_GAIN, so a
+ * dead pixel stays dark instead of turning into amplified noise.
+ * <p>
+ * Values are fractions of the mode's full scale, as {@link FrameAverager} produces them and
+ * the GPU samples frames.  The FilterChain flat-field stage and the mono program apply the
+ * correction on the GPU; {@link #apply(int, float)} is the CPU reference.
+ * <p>
+ * Immutable.  The reference arrays are kept, not copied; don't modify them afterwards.
+ */
+public final class FlatField {
+    /**
+     * The two kinds of reference frames.
+     */
+    public enum Reference {
+        /** Lens capped or shutter closed, at the exposure to be corrected. */
+        DARK,
+        /** An evenly lit, featureless field, bright but not clipped anywhere. */
+        FLAT
+    }
+
+    /** Largest gain given to a pixel. */
+    public static final float MAX_GAIN = 8f;
+
+    private final CameraMode mMode;
+    private final float[] mDarkReference;       // null if none
+    private final float[] mFlatReference;       // null if none
+    private final float[] mDark;
+    private final float[] mGain;
+
+    /**
+     * @param dark Mean dark frame, as from FrameAverager.getMean(), or null.
+     * @param flat Mean flat frame, or null.
+     * @throws IllegalArgumentException if both are null, a reference doesn't match the mode's
+     *     size, or the flat is no brighter than the dark in some channel.
+     */
+    public FlatField(CameraMode mode, float[] dark, float[] flat) {
+        int channels = mode.getChannelCount();
+        int size = mode.getWidth() * mode.getHeight() * channels;
+        if (dark == null && flat == null) {
+            throw new IllegalArgumentException("need a dark or a flat reference");
+        }
+        if ((dark != null && dark.length != size) || (flat != null && flat.length != size)) {
+            throw new IllegalArgumentException("references must have " + size +
+                    " samples for " + mode);
+        }
+        mMode = mode;
+        mDarkReference = dark;
+        mFlatReference = flat;
+        mDark = dark != null ? dark : new float[size];
+        mGain = new float[size];
+        if (flat == null) {
+            Arrays.fill(mGain, 1f);
+            return;
+        }
+
+        // Mean response of each channel.
+        double[] sums = new double[channels];
+        for (int i = 0; i < size; i++) {
+            sums[i % channels] += flat[i] - mDark[i];
+        }
+        float[] means = new float[channels];
+        for (int c = 0; c < channels; c++) {
+            means[c] = (float) (sums[c] / (size / channels));
+            if (!(means[c] > 0f)) {
+                throw new IllegalArgumentException("flat is no brighter than the dark frame in " +
+                        "channel " + c + " of " + mode);
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            float mean = means[i % channels];
+            mGain[i] = mean / Math.max(flat[i] - mDark[i], mean / MAX_GAIN);
+        }
+    }
+
+    /**
+     * Returns a correction with one reference replaced, e.g. to add a flat to a dark-only
+     * correction; the other reference is kept.
+     */
+    public FlatField with(Reference which, float[] mean) {
+        return which == Reference.DARK ? new FlatField(mMode, mean, mFlatReference) :
+                new FlatField(mMode, mDarkReference, mean);
+    }
+
+    public CameraMode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Returns a reference as given to the constructor, or null if there's none.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public float[] getReference(Reference which) {
+        return which == Reference.DARK ? mDarkReference : mFlatReference;
+    }
+
+    /**
+     * Returns the offset subtracted from each sample; zeros without a dark reference.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public float[] getDark() {
+        return mDark;
+    }
+
+    /**
+     * Returns the gain each sample is multiplied by after the offset; ones without a flat
+     * reference.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public float[] getGain() {
+        return mGain;
+    }
+
+    /**
+     * Corrects one sample.
+     *
+     * @param sample Index of the sample in frame order, as in the references.
+     * @param value The raw sample, as a fraction of full scale.
+     * @return the corrected value, not clamped.
+     */
+    public float apply(int sample, float value) {
+        return (value - mDark[sample]) * mGain[sample];
+    }
+
+    @Override
+    public String toString() {
+        return "[FlatField " + mMode + ": " + (mDarkReference != null ? "dark" : "no dark") +
+                ", " + (mFlatReference != null ? "flat" : "no flat") + "]";
+    }
+}
@@ -0,0 +1,153 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps {@link FlatField} calibrations on disk, one file per {@link CameraMode}, so they
+ * survive restarts and a mode can be calibrated once and reused.
+ * <p>
+ * A file holds the mode and the references, not the gains, which are computed again on
+ * load.  Layout, big-endian:
+ * <pre>
+ *   int magic, int version, int format (FrameFormat ordinal), int width, int height,
+ *   int exposureMicros, boolean hasDark, boolean hasFlat,
+ *   the dark reference's floats if present, then the flat's,
+ *   long CRC-32 of everything before it
+ * </pre>
+ * Files are megabytes, so save and load them off the render thread.  Thread-safe.
+ */
+public class FlatFieldStore {
+    static final int MAGIC = 0x46464331;        // "FFC1"
+    static final int VERSION = 1;
+    private static final String SUFFIX = ".ffc";
+
+    private final File mDir;
+
+    /**
+     * @param dir Directory for the calibrations; created if it doesn't exist.
+     */
+    public FlatFieldStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Returns the file a mode's calibration is kept in.
+     */
+    public File getFile(CameraMode mode) {
+        return new File(mDir, mode + SUFFIX);
+    }
+
+    /**
+     * Saves a calibration, replacing any saved for its mode.
+     */
+    public synchronized void save(FlatField field) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("can't create " + mDir);
+        }
+        CameraMode mode = field.getMode();
+        File file = getFile(mode);
+        File temp = new File(mDir, file.getName() + ".tmp");
+        float[] dark = field.getReference(FlatField.Reference.DARK);
+        float[] flat = field.getReference(FlatField.Reference.FLAT);
+        CRC32 crc = new CRC32();
+        // Written aside and renamed, so a crash can't leave a truncated file behind.
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mode.getFormat().ordinal());
+            out.writeInt(mode.getWidth());
+            out.writeInt(mode.getHeight());
+            out.writeInt(mode.getExposureMicros());
+            out.writeBoolean(dark != null);
+            out.writeBoolean(flat != null);
+            writeFloats(out, dark);
+            writeFloats(out, flat);
+            // Covers everything written before it.
+            out.writeLong(crc.getValue());
+        } catch (IOException ioe) {
+            temp.delete();
+            throw ioe;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("can't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Loads the calibration saved for a mode.
+     *
+     * @return the calibration, or null if none was saved.
+     * @throws IOException if the file can't be read or is damaged; a damaged file is
+     *     deleted.
+     */
+    public synchronized FlatField load(CameraMode mode) throws IOException {
+        File file = getFile(mode);
+        if (!file.exists()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a calibration file, or an unknown version");
+            }
+            int format = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            int exposure = in.readInt();
+            if (format != mode.getFormat().ordinal() || width != mode.getWidth() ||
+                    height != mode.getHeight() || exposure != mode.getExposureMicros()) {
+                throw new IOException("file is for another mode");
+            }
+            boolean hasDark = in.readBoolean();
+            boolean hasFlat = in.readBoolean();
+            int size = width * height * mode.getChannelCount();
+            float[] dark = hasDark ? readFloats(in, size) : null;
+            float[] flat = hasFlat ? readFloats(in, size) : null;
+            long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("bad checksum");
+            }
+            return new FlatField(mode, dark, flat);
+        } catch (IOException | IllegalArgumentException e) {
+            file.delete();
+            throw new IOException("discarded " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Deletes the calibration saved for a mode, if any.
+     */
+    public synchronized void delete(CameraMode mode) {
+        getFile(mode).delete();
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        if (values == null) {
+            return;
+        }
+        for (float value : values) {
+            out.writeFloat(value);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in, int count) throws IOException {
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+}
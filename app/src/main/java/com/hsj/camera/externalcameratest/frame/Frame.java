@@ -0,0 +1,115 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A single camera frame held in a reusable direct ByteBuffer.
+ * <p>
+ * Frames are owned by a pool (see {@link FrameRing}) and are never allocated per frame.
+ * The producer fills the buffer and stamps the geometry; the consumer reads it and hands
+ * it back.  The buffer is direct so it can go straight to glTexImage2D() without the
+ * heap-to-native copy that ByteBuffer.wrap() forces.
+ */
+public class Frame {
+    // States, used to catch buffers that are released twice or handed to the wrong pool.
+    static final int STATE_FREE = 0;
+    static final int STATE_DEQUEUED = 1;
+    static final int STATE_QUEUED = 2;
+    static final int STATE_ACQUIRED = 3;
+
+    private final Object mOwner;
+    private final ByteBuffer mBuffer;
+
+    private FrameFormat mFormat = FrameFormat.RGB888;
+    private int mWidth;
+    private int mHeight;
+    private long mTimestampNanos;
+    private long mSequence;
+    volatile int mState = STATE_FREE;
+
+    Frame(Object owner, int capacity) {
+        this(owner, ByteBuffer.allocateDirect(capacity));
+    }
+
+    /**
+     * Wraps storage the owner already has, e.g. a slice of a mapped file.  The buffer's
+     * capacity is the largest frame it can hold.
+     */
+    Frame(Object owner, ByteBuffer buffer) {
+        mOwner = owner;
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Sets the layout of the data the producer is about to write, and limits the buffer
+     * to the matching size.
+     *
+     * @throws IllegalArgumentException if the frame doesn't fit in the buffer.
+     */
+    public void setGeometry(FrameFormat format, int width, int height) {
+        int size = format.getFrameSize(width, height);
+        if (size > mBuffer.capacity()) {
+            throw new IllegalArgumentException("Frame " + width + "x" + height + " " + format +
+                    " needs " + size + " bytes, buffer holds " + mBuffer.capacity());
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mBuffer.clear();
+        mBuffer.limit(size);
+    }
+
+    /**
+     * Returns the pixel data.  Position is zero and limit is the frame size.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not keep a
+     * reference after the frame has been released.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public FrameFormat getFormat() {
+        return mFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the number of meaningful bytes in the buffer.
+     */
+    public int getSize() {
+        return mFormat.getFrameSize(mWidth, mHeight);
+    }
+
+    /**
+     * Returns the capture timestamp, in nanoseconds.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Returns the position of this frame in the producer's output, starting from zero.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    boolean isOwnedBy(Object owner) {
+        return mOwner == owner;
+    }
+
+    void stamp(long timestampNanos, long sequence) {
+        mTimestampNanos = timestampNanos;
+        mSequence = sequence;
+        mBuffer.position(0);
+    }
+}
@@ -0,0 +1,126 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Averages a number of raw frames into a reference for {@link FlatField}: the mean of each
+ * sample, which beats the sensor's temporal noise down by the square root of the count.
+ * <p>
+ * Sums are kept as exact integers, and the mean is normalized to the mode's full scale
+ * (see {@link CameraMode#getFullScale()}), the units the GPU samples in.  Frames are read a
+ * row at a time into an array, rather than a sample at a time out of the buffer.
+ * <p>
+ * Not thread-safe.
+ */
+public class FrameAverager {
+    /** Most frames one average can take; keeps the integer sums from overflowing. */
+    public static final int MAX_FRAME_COUNT = 1024;
+
+    private final CameraMode mMode;
+    private final int mFrameCount;
+    private final int[] mSums;
+    private final byte[] mRow;
+    private int mAddedCount;
+
+    /**
+     * @param mode Mode of the frames to average; must be calibratable.
+     * @param frameCount Number of frames to average, 1 to MAX_FRAME_COUNT.
+     */
+    public FrameAverager(CameraMode mode, int frameCount) {
+        if (frameCount <= 0 || frameCount > MAX_FRAME_COUNT) {
+            throw new IllegalArgumentException("frame count must be 1 to " + MAX_FRAME_COUNT +
+                    ", got " + frameCount);
+        }
+        mMode = mode;
+        mFrameCount = frameCount;
+        mSums = new int[mode.getWidth() * mode.getHeight() * mode.getChannelCount()];
+        mRow = new byte[mode.getFormat().getFrameSize(mode.getWidth(), 1)];
+    }
+
+    public CameraMode getMode() {
+        return mMode;
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    public int getAddedCount() {
+        return mAddedCount;
+    }
+
+    public boolean isComplete() {
+        return mAddedCount == mFrameCount;
+    }
+
+    /**
+     * Adds a frame, which must be in the averager's format and size.
+     *
+     * @return true if that was the last frame needed.
+     */
+    public boolean add(Frame frame) {
+        if (frame.getFormat() != mMode.getFormat() || frame.getWidth() != mMode.getWidth() ||
+                frame.getHeight() != mMode.getHeight()) {
+            throw new IllegalArgumentException(frame.getWidth() + "x" + frame.getHeight() +
+                    " " + frame.getFormat() + " frame doesn't match " + mMode);
+        }
+        return add(frame.getBuffer());
+    }
+
+    /**
+     * Adds a tightly packed frame in the averager's format and size.  The buffer's position
+     * isn't changed.
+     *
+     * @return true if that was the last frame needed.
+     */
+    public boolean add(ByteBuffer data) {
+        if (isComplete()) {
+            throw new IllegalStateException("already averaged " + mFrameCount + " frames");
+        }
+        int[] sums = mSums;
+        if (data.capacity() < mMode.getFormat().getFrameSize(mMode.getWidth(),
+                mMode.getHeight())) {
+            throw new IllegalArgumentException("buffer holds " + data.capacity() +
+                    " bytes, too few for " + mMode);
+        }
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        byte[] row = mRow;
+        int rowSamples = sums.length / mMode.getHeight();
+        boolean rgb = mMode.getFormat() == FrameFormat.RGB888;
+        for (int y = 0, first = 0; y < mMode.getHeight(); y++, first += rowSamples) {
+            src.get(row);
+            if (rgb) {
+                for (int i = 0; i < rowSamples; i++) {
+                    sums[first + i] += row[i] & 0xff;
+                }
+            } else {
+                for (int i = 0; i < rowSamples; i++) {
+                    sums[first + i] += (row[2 * i] & 0xff) | (row[2 * i + 1] & 0xff) << 8;
+                }
+            }
+        }
+        mAddedCount++;
+        return isComplete();
+    }
+
+    /**
+     * Returns the mean of each sample, 0 to 1 of full scale, in frame order: R, G, B per
+     * pixel for RGB888, one per pixel for monochrome.
+     *
+     * @throws IllegalStateException if not all frames have been added.
+     */
+    public float[] getMean() {
+        if (!isComplete()) {
+            throw new IllegalStateException("averaged " + mAddedCount + " of " + mFrameCount +
+                    " frames");
+        }
+        // Sums can pass 2^24, past where floats hold integers exactly.
+        double scale = 1.0 / ((double) mFrameCount * mMode.getFullScale());
+        float[] mean = new float[mSums.length];
+        for (int i = 0; i < mean.length; i++) {
+            mean[i] = (float) (mSums[i] * scale);
+        }
+        return mean;
+    }
+}
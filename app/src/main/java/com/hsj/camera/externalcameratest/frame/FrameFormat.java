@@ -0,0 +1,156 @@
+package com.hsj.camera.externalcameratest.frame;
+
+/**
+ * Pixel layouts that a {@link FrameSource} can deliver.
+ */
+public enum FrameFormat {
+    /** Packed 8-bit R, G, B; what the TOUPCAM_DEF program expects. */
+    RGB888,
+    /** 4:2:0; full-size Y plane followed by one half-size plane of interleaved U, V. */
+    NV12,
+    /** 4:2:0; full-size Y plane followed by half-size U and V planes. */
+    I420,
+    /** 4:2:2 packed as Y0 U Y1 V, two pixels per four bytes. */
+    YUYV,
+    /** Raw 8-bit Bayer mosaic; the top-left 2x2 block is R G / G B. */
+    BAYER_RGGB,
+    /** Raw 8-bit Bayer mosaic; the top-left 2x2 block is B G / G R. */
+    BAYER_BGGR,
+    /** Raw 8-bit Bayer mosaic; the top-left 2x2 block is G R / B G. */
+    BAYER_GRBG,
+    /** Raw 8-bit Bayer mosaic; the top-left 2x2 block is G B / R G. */
+    BAYER_GBRG,
+    /** 10-bit monochrome, one little-endian 16-bit word per pixel, values 0 to 1023. */
+    MONO10,
+    /** 12-bit monochrome, one little-endian 16-bit word per pixel, values 0 to 4095. */
+    MONO12,
+    /** 16-bit monochrome, one little-endian 16-bit word per pixel. */
+    MONO16;
+
+    /**
+     * Returns the number of bytes a tightly-packed frame of the given size occupies.
+     */
+    public int getFrameSize(int width, int height) {
+        switch (this) {
+            case RGB888:
+                return width * height * 3;
+            case NV12:
+            case I420:
+                return width * height + 2 * getChromaWidth(width) * getChromaHeight(height);
+            case YUYV:
+                return getChromaWidth(width) * 4 * height;
+            case BAYER_RGGB:
+            case BAYER_BGGR:
+            case BAYER_GRBG:
+            case BAYER_GBRG:
+                return width * height;
+            case MONO10:
+            case MONO12:
+            case MONO16:
+                return width * height * 2;
+            default:
+                throw new IllegalStateException("unknown format " + this);
+        }
+    }
+
+    /**
+     * Returns the number of bytes per pixel of the layouts that store whole pixels, where a
+     * frame is height rows of width * bytesPerPixel bytes.
+     *
+     * @throws IllegalStateException for the Y'CbCr layouts, which share chroma between
+     *     pixels.
+     */
+    public int getBytesPerPixel() {
+        switch (this) {
+            case RGB888:
+                return 3;
+            case BAYER_RGGB:
+            case BAYER_BGGR:
+            case BAYER_GRBG:
+            case BAYER_GBRG:
+                return 1;
+            case MONO10:
+            case MONO12:
+            case MONO16:
+                return 2;
+            default:
+                throw new IllegalStateException("no whole-pixel layout: " + this);
+        }
+    }
+
+    /**
+     * Returns true for the Y'CbCr layouts, which need a color conversion before display.
+     */
+    public boolean isYuv() {
+        return this == NV12 || this == I420 || this == YUYV;
+    }
+
+    /**
+     * Returns true for the raw Bayer mosaics, which need demosaicing before display.
+     */
+    public boolean isBayer() {
+        return this == BAYER_RGGB || this == BAYER_BGGR || this == BAYER_GRBG ||
+                this == BAYER_GBRG;
+    }
+
+    /**
+     * Returns true for the high-bit-depth monochrome layouts, which need a window mapped to
+     * 8 bits before display.
+     */
+    public boolean isMono() {
+        return this == MONO10 || this == MONO12 || this == MONO16;
+    }
+
+    /**
+     * Returns the number of significant bits of a monochrome sample.
+     */
+    public int getMonoBits() {
+        switch (this) {
+            case MONO10:
+                return 10;
+            case MONO12:
+                return 12;
+            case MONO16:
+                return 16;
+            default:
+                throw new IllegalStateException("not a monochrome format: " + this);
+        }
+    }
+
+    /**
+     * Returns the column (0 or 1) of the red sample in each 2x2 block of a Bayer mosaic.
+     */
+    public int getBayerRedX() {
+        checkBayer();
+        return this == BAYER_RGGB || this == BAYER_GBRG ? 0 : 1;
+    }
+
+    /**
+     * Returns the row (0 or 1) of the red sample in each 2x2 block of a Bayer mosaic.
+     */
+    public int getBayerRedY() {
+        checkBayer();
+        return this == BAYER_RGGB || this == BAYER_GRBG ? 0 : 1;
+    }
+
+    private void checkBayer() {
+        if (!isBayer()) {
+            throw new IllegalStateException("not a Bayer format: " + this);
+        }
+    }
+
+    /**
+     * Returns the width of the subsampled chroma planes.  Odd widths round up.
+     */
+    public static int getChromaWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    /**
+     * Returns the height of the subsampled chroma planes of the 4:2:0 layouts.  Odd heights
+     * round up.
+     */
+    public static int getChromaHeight(int height) {
+        return (height + 1) / 2;
+    }
+}
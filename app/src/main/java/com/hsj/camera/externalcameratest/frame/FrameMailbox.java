@@ -0,0 +1,136 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free hand-off of frames from one producer thread to one consumer thread, where the
+ * newest frame always wins.
+ * <p>
+ * With a depth of one this is a single slot: posting a frame replaces whatever the consumer
+ * hasn't picked up yet.  With a larger depth it's a bounded FIFO that, when full, drops its
+ * oldest entry to make room.  Either way the consumer never sees a backlog longer than the
+ * depth, so latency stays bounded when rendering falls behind, and the producer never
+ * blocks.  Dropped frames are handed back to the producer so it can recycle them.
+ * <p>
+ * Neither operation takes a lock or allocates.
+ */
+public class FrameMailbox {
+    private final int mDepth;
+
+    // Single-slot mode.
+    private final AtomicReference<Frame> mSlot;
+
+    // Queue mode.  Entries in [head, tail) are pending; both indices only grow.  The tail
+    // is only written by the producer.  The head is advanced by the consumer when taking,
+    // and by the producer when it drops the oldest entry; a CAS decides who gets it.
+    private final AtomicReferenceArray<Frame> mEntries;
+    private final AtomicLong mHead;
+    private final AtomicLong mTail;
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param depth Number of frames that may wait for the consumer.  One gives
+     *     latest-frame-wins behavior.
+     */
+    public FrameMailbox(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be at least 1, got " + depth);
+        }
+        mDepth = depth;
+        if (depth == 1) {
+            mSlot = new AtomicReference<>();
+            mEntries = null;
+            mHead = mTail = null;
+        } else {
+            mSlot = null;
+            mEntries = new AtomicReferenceArray<>(depth);
+            mHead = new AtomicLong();
+            mTail = new AtomicLong();
+        }
+    }
+
+    /**
+     * Returns the number of frames that may wait for the consumer.
+     */
+    public int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Makes a frame available to the consumer.  (Producer side.)
+     *
+     * @return The stale frame that had to be dropped to make room, or null.  The caller
+     *     owns it again.
+     */
+    public Frame post(Frame frame) {
+        Frame dropped;
+        if (mSlot != null) {
+            dropped = mSlot.getAndSet(frame);
+        } else {
+            dropped = null;
+            long tail = mTail.get();
+            while (true) {
+                long head = mHead.get();
+                if (tail - head < mDepth) {
+                    break;
+                }
+                // Full: try to take the oldest entry ourselves.  If the consumer beats us to
+                // it there's room now anyway.
+                Frame oldest = mEntries.get((int) (head % mDepth));
+                if (mHead.compareAndSet(head, head + 1)) {
+                    dropped = oldest;
+                    break;
+                }
+            }
+            mEntries.set((int) (tail % mDepth), frame);
+            mTail.set(tail + 1);
+        }
+        if (dropped != null) {
+            mDropped.incrementAndGet();
+        }
+        return dropped;
+    }
+
+    /**
+     * Takes the next frame, or returns null if there's none.  In single-slot mode that's the
+     * newest frame posted.  (Consumer side.)
+     */
+    public Frame take() {
+        if (mSlot != null) {
+            return mSlot.getAndSet(null);
+        }
+        while (true) {
+            long head = mHead.get();
+            if (head == mTail.get()) {
+                return null;
+            }
+            Frame frame = mEntries.get((int) (head % mDepth));
+            if (mHead.compareAndSet(head, head + 1)) {
+                return frame;
+            }
+            // The producer dropped this entry while we were reading it; try the next one.
+        }
+    }
+
+    /**
+     * Returns the number of frames waiting for the consumer.  Only a snapshot if the
+     * producer or consumer are active.
+     */
+    public int size() {
+        if (mSlot != null) {
+            return mSlot.get() != null ? 1 : 0;
+        }
+        long head = mHead.get();
+        return (int) Math.max(0, mTail.get() - head);
+    }
+
+    /**
+     * Returns the number of frames dropped because a newer one displaced them.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
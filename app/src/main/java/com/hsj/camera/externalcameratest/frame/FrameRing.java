@@ -0,0 +1,154 @@
+package com.hsj.camera.externalcameratest.frame;
+
+/**
+ * Fixed ring of reusable direct-buffer frames between one producer and one consumer.
+ * <p>
+ * All buffers are allocated up front.  The producer takes an empty frame with
+ * dequeueFree(), writes into its buffer, and passes it on with queueFilled().  The consumer
+ * sees the filled frames through the {@link FrameSource} methods.  Filled frames travel
+ * through a {@link FrameMailbox}: by default only the newest one is kept, and a frame the
+ * consumer didn't get to in time is dropped and recycled rather than queued behind.  If the
+ * consumer holds on to every buffer, dequeueFree() returns null and the producer should drop
+ * the incoming frame.
+ * <p>
+ * The bookkeeping arrays are preallocated as well, so nothing is allocated once the ring
+ * is constructed.  This class is thread-safe for one producer and one consumer thread.
+ */
+public class FrameRing implements FrameSource {
+    private final Frame[] mFrames;
+
+    // Stack of empty frames.
+    private final Frame[] mFree;
+    private int mFreeCount;
+
+    // Filled frames waiting for the consumer.
+    private final FrameMailbox mMailbox;
+
+    // Only touched by the producer.
+    private long mSequence;
+
+    /**
+     * Allocates a latest-frame-wins ring.
+     *
+     * @param bufferCount Number of frames.  Three lets the producer fill one while the
+     *     consumer holds another and a third waits in between.
+     * @param capacity Size of each buffer, in bytes; the largest frame the ring can carry.
+     */
+    public FrameRing(int bufferCount, int capacity) {
+        this(bufferCount, capacity, 1);
+    }
+
+    /**
+     * Allocates a ring that lets up to queueDepth filled frames wait for the consumer before
+     * the oldest is dropped.
+     *
+     * @param bufferCount Number of frames; at least queueDepth + 2 avoids starving the
+     *     producer.
+     * @param capacity Size of each buffer, in bytes; the largest frame the ring can carry.
+     * @param queueDepth Maximum number of filled frames waiting for the consumer.
+     */
+    public FrameRing(int bufferCount, int capacity, int queueDepth) {
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("need at least two buffers, got " + bufferCount);
+        }
+        mFrames = new Frame[bufferCount];
+        mFree = new Frame[bufferCount];
+        mMailbox = new FrameMailbox(queueDepth);
+        for (int i = 0; i < bufferCount; i++) {
+            mFrames[i] = new Frame(this, capacity);
+            mFree[i] = mFrames[i];
+        }
+        mFreeCount = bufferCount;
+    }
+
+    /**
+     * Returns the number of buffers in the ring.
+     */
+    public int getBufferCount() {
+        return mFrames.length;
+    }
+
+    /**
+     * Takes an empty frame for the producer to fill.  (Producer side.)
+     *
+     * @return The frame, or null if all buffers are busy.
+     */
+    public synchronized Frame dequeueFree() {
+        if (mFreeCount == 0) {
+            return null;
+        }
+        Frame frame = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        frame.mState = Frame.STATE_DEQUEUED;
+        return frame;
+    }
+
+    /**
+     * Publishes a frame obtained from dequeueFree() after its buffer and geometry have been
+     * written.  (Producer side.)
+     */
+    public void queueFilled(Frame frame, long timestampNanos) {
+        checkState(frame, Frame.STATE_DEQUEUED);
+        frame.stamp(timestampNanos, mSequence++);
+        frame.mState = Frame.STATE_QUEUED;
+        Frame dropped = mMailbox.post(frame);
+        if (dropped != null) {
+            synchronized (this) {
+                recycle(dropped);
+            }
+        }
+    }
+
+    /**
+     * Gives back a frame obtained from dequeueFree() without publishing it, e.g. because
+     * the transfer failed half way.  (Producer side.)
+     */
+    public synchronized void cancelFrame(Frame frame) {
+        checkState(frame, Frame.STATE_DEQUEUED);
+        recycle(frame);
+    }
+
+    @Override
+    public Frame acquireFrame() {
+        Frame frame = mMailbox.take();
+        if (frame != null) {
+            frame.mState = Frame.STATE_ACQUIRED;
+        }
+        return frame;
+    }
+
+    @Override
+    public synchronized void releaseFrame(Frame frame) {
+        checkState(frame, Frame.STATE_ACQUIRED);
+        recycle(frame);
+    }
+
+    /**
+     * Returns the number of filled frames waiting for the consumer.
+     */
+    public int getQueuedCount() {
+        return mMailbox.size();
+    }
+
+    /**
+     * Returns the number of filled frames that were dropped before the consumer got to them.
+     */
+    public long getDroppedCount() {
+        return mMailbox.getDroppedCount();
+    }
+
+    private void recycle(Frame frame) {
+        frame.mState = Frame.STATE_FREE;
+        mFree[mFreeCount++] = frame;
+    }
+
+    private void checkState(Frame frame, int expected) {
+        if (!frame.isOwnedBy(this)) {
+            throw new IllegalArgumentException("frame belongs to another pool");
+        }
+        if (frame.mState != expected) {
+            throw new IllegalStateException("frame in state " + frame.mState +
+                    ", expected " + expected);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.hsj.camera.externalcameratest.frame;
+
+/**
+ * Something that delivers camera frames to the renderer: the external camera, a test
+ * pattern, a recording...
+ * <p>
+ * Frames are borrowed, not handed over.  Every frame returned by acquireFrame() must be
+ * given back with releaseFrame() as soon as its pixels have been consumed (for a texture
+ * upload, that's right after the glTexImage2D call returns).  Implementations recycle the
+ * buffers, so nothing is allocated per frame.
+ */
+public interface FrameSource {
+    /**
+     * Returns the next frame, or null if nothing new has arrived since the last call.
+     * <p>
+     * Must not block.
+     */
+    Frame acquireFrame();
+
+    /**
+     * Returns a frame obtained from acquireFrame() to the source.
+     */
+    void releaseFrame(Frame frame);
+}
@@ -0,0 +1,169 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Histograms and mean/min/max levels of a frame, for auto-exposure, auto-levels and the
+ * operator display.
+ * <p>
+ * Computed from a sample of the frame's pixels, e.g. the grid that
+ * {@link com.hsj.camera.externalcameratest.gles.FrameStatsRenderer} reads back, not every
+ * pixel; a 256-pixel-wide grid is plenty for a histogram.  Luma is BT.601,
+ * (77 R + 150 G + 29 B) / 256.
+ * <p>
+ * Immutable, so a snapshot can be handed to any thread.
+ */
+public final class FrameStats {
+    /** Number of histogram bins, one per 8-bit level. */
+    public static final int BINS = 256;
+
+    public enum Channel {
+        RED, GREEN, BLUE, LUMA
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final long mTimestampNanos;
+    // Per channel, indexed by Channel.ordinal().
+    private final int[][] mHistograms = new int[4][BINS];
+    private final float[] mMeans = new float[4];
+    private final int[] mMins = new int[4];
+    private final int[] mMaxes = new int[4];
+
+    private FrameStats(int width, int height, long timestampNanos) {
+        mWidth = width;
+        mHeight = height;
+        mTimestampNanos = timestampNanos;
+    }
+
+    /**
+     * Computes the stats of RGBA pixels.
+     *
+     * @param rgba width * height pixels, 4 bytes each, from the buffer's position; the
+     *     position isn't changed.
+     * @param timestampNanos When the frame was sampled, System.nanoTime() based.
+     */
+    public static FrameStats compute(ByteBuffer rgba, int width, int height,
+            long timestampNanos) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("bad size " + width + "x" + height);
+        }
+        int base = rgba.position();
+        if (rgba.limit() - base < width * height * 4) {
+            throw new IllegalArgumentException("buffer holds " + (rgba.limit() - base) +
+                    " bytes, " + width + "x" + height + " RGBA needs " + width * height * 4);
+        }
+        FrameStats stats = new FrameStats(width, height, timestampNanos);
+        int[] red = stats.mHistograms[Channel.RED.ordinal()];
+        int[] green = stats.mHistograms[Channel.GREEN.ordinal()];
+        int[] blue = stats.mHistograms[Channel.BLUE.ordinal()];
+        int[] luma = stats.mHistograms[Channel.LUMA.ordinal()];
+        int end = base + width * height * 4;
+        for (int i = base; i < end; i += 4) {
+            int r = rgba.get(i) & 0xff;
+            int g = rgba.get(i + 1) & 0xff;
+            int b = rgba.get(i + 2) & 0xff;
+            red[r]++;
+            green[g]++;
+            blue[b]++;
+            luma[(77 * r + 150 * g + 29 * b + 128) >> 8]++;
+        }
+        // Everything else follows from the histograms.
+        int count = width * height;
+        for (int c = 0; c < 4; c++) {
+            int[] histogram = stats.mHistograms[c];
+            long sum = 0;
+            int min = -1;
+            int max = 0;
+            for (int level = 0; level < BINS; level++) {
+                if (histogram[level] != 0) {
+                    sum += (long) level * histogram[level];
+                    if (min < 0) {
+                        min = level;
+                    }
+                    max = level;
+                }
+            }
+            stats.mMeans[c] = (float) sum / count;
+            stats.mMins[c] = min;
+            stats.mMaxes[c] = max;
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the number of pixels sampled.
+     */
+    public int getSampleCount() {
+        return mWidth * mHeight;
+    }
+
+    public int getSampleWidth() {
+        return mWidth;
+    }
+
+    public int getSampleHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns when the frame was sampled, System.nanoTime() based.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Returns the histogram of a channel: the number of samples at each level.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public int[] getHistogram(Channel channel) {
+        return mHistograms[channel.ordinal()];
+    }
+
+    /**
+     * Returns the mean level of a channel, 0 to 255.
+     */
+    public float getMean(Channel channel) {
+        return mMeans[channel.ordinal()];
+    }
+
+    public int getMin(Channel channel) {
+        return mMins[channel.ordinal()];
+    }
+
+    public int getMax(Channel channel) {
+        return mMaxes[channel.ordinal()];
+    }
+
+    /**
+     * Returns the lowest level that at least the given fraction of the samples are at or
+     * below.  Auto-levels typically stretches getPercentile(LUMA, 0.005f) to
+     * getPercentile(LUMA, 0.995f), so a few hot or dead pixels don't pin the range.
+     */
+    public int getPercentile(Channel channel, float fraction) {
+        if (!(fraction >= 0f && fraction <= 1f)) {
+            throw new IllegalArgumentException("fraction must be in [0, 1], got " + fraction);
+        }
+        int[] histogram = mHistograms[channel.ordinal()];
+        long needed = Math.max(1, (long) Math.ceil(fraction * getSampleCount()));
+        long seen = 0;
+        for (int level = 0; level < BINS; level++) {
+            seen += histogram[level];
+            if (seen >= needed) {
+                return level;
+            }
+        }
+        return BINS - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "frame stats (%dx%d samples): luma mean %.1f, " +
+                "min %d, max %d; RGB mean %.1f/%.1f/%.1f", mWidth, mHeight,
+                getMean(Channel.LUMA), getMin(Channel.LUMA), getMax(Channel.LUMA),
+                getMean(Channel.RED), getMean(Channel.GREEN), getMean(Channel.BLUE));
+    }
+}
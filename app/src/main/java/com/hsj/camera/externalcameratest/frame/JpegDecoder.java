@@ -0,0 +1,776 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pure-Java decoder for baseline JPEG, as sent by MJPEG cameras.
+ * <p>
+ * Supports 8-bit sequential Huffman images (SOF0/SOF1) with one or three components, any
+ * sampling factors, restart intervals, and interleaved or per-component scans.  Progressive
+ * and arithmetic-coded images are rejected.  Many UVC cameras leave the Huffman tables out of
+ * their MJPEG frames; the standard tables (ITU T.81 Annex K.3) are used when a scan needs a
+ * table that wasn't defined.
+ * <p>
+ * The output is an I420 frame in full-range Y'CbCr (draw it with
+ * {@link YuvColorMatrix#BT601_FULL}).  Chroma at other subsamplings is averaged down to
+ * 4:2:0; grayscale images get neutral chroma.
+ * <p>
+ * A decoder keeps its tables and scratch planes between frames, so once the geometry settles
+ * it doesn't allocate.  It is not thread-safe; use one per thread.
+ */
+public class JpegDecoder {
+    // Zigzag index -> natural (row-major) index.
+    private static final int[] ZIGZAG = {
+             0,  1,  8, 16,  9,  2,  3, 10,
+            17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    // Per-row/column scale factors of the AAN IDCT, folded into the quantization tables.
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    // Standard Huffman tables, ITU T.81 Annex K.3: code counts per length, then values.
+    private static final int[] STD_DC_LUMA_BITS = { 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] STD_DC_CHROMA_BITS = { 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    private static final int[] STD_DC_VALUES = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] STD_AC_LUMA_BITS = { 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    private static final int[] STD_AC_LUMA_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51,
+            0x61, 0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1,
+            0x15, 0x52, 0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18,
+            0x19, 0x1a, 0x25, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57,
+            0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75,
+            0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92,
+            0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8,
+            0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+    private static final int[] STD_AC_CHROMA_BITS = { 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    private static final int[] STD_AC_CHROMA_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07,
+            0x61, 0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09,
+            0x23, 0x33, 0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25,
+            0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56,
+            0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74,
+            0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba,
+            0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6,
+            0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2,
+            0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa
+    };
+
+    /**
+     * A Huffman table in the canonical form of T.81 Annex F.2.2.3, plus a lookup table for
+     * codes of up to LOOKUP_BITS bits.
+     */
+    private static class HuffmanTable {
+        static final int LOOKUP_BITS = 8;
+
+        final int[] maxCode = new int[18];
+        final int[] valPtr = new int[17];
+        final int[] minCode = new int[17];
+        final int[] values = new int[256];
+        // (length << 8) | value, or 0 if the code is longer than LOOKUP_BITS.
+        final int[] lookup = new int[1 << LOOKUP_BITS];
+        boolean defined;
+
+        /**
+         * @throws IllegalArgumentException if the code counts don't fit the code space.
+         */
+        void set(int[] bits, int[] vals, int valCount) {
+            System.arraycopy(vals, 0, values, 0, valCount);
+            Arrays.fill(lookup, 0);
+            int code = 0;
+            int k = 0;
+            for (int len = 1; len <= 16; len++) {
+                int count = bits[len - 1];
+                valPtr[len] = k;
+                minCode[len] = code;
+                for (int i = 0; i < count; i++, k++, code++) {
+                    if (code >= 1 << len) {
+                        // Would run past the lookup table, and decode garbage anyway.
+                        defined = false;
+                        throw new IllegalArgumentException("over-full Huffman table: " + count +
+                                " codes of length " + len);
+                    }
+                    if (len <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - len;
+                        for (int j = 0; j < 1 << shift; j++) {
+                            lookup[(code << shift) | j] = (len << 8) | values[k];
+                        }
+                    }
+                }
+                maxCode[len] = count > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+            defined = true;
+        }
+    }
+
+    /**
+     * One image component: sampling factors, table selectors and the decoded plane.
+     */
+    private static class Component {
+        int id;
+        int h;
+        int v;
+        int quantTable;
+        int dcTable;
+        int acTable;
+        int dcPred;
+        // Decoded samples; the stride covers whole blocks.
+        byte[] plane = new byte[0];
+        int stride;
+        int blocksWide;
+        int blocksHigh;
+    }
+
+    private final float[][] mQuant = new float[4][64];
+    private final boolean[] mQuantDefined = new boolean[4];
+    private final HuffmanTable[] mDcTables = new HuffmanTable[4];
+    private final HuffmanTable[] mAcTables = new HuffmanTable[4];
+    private final Component[] mComponents = new Component[3];
+    private final Component[] mScanComponents = new Component[3];
+    private int mScanComponentCount;
+    private int mComponentCount;
+    private int mWidth;
+    private int mHeight;
+    private int mMaxH;
+    private int mMaxV;
+    private int mRestartInterval;
+
+    // Entropy-coded data reader.
+    private ByteBuffer mData;
+    private int mPos;
+    private int mEnd;
+    private int mBits;
+    private int mBitCount;
+
+    // Scratch.
+    private final int[] mCoefficients = new int[64];
+    private final float[] mWorkspace = new float[64];
+    private final int[] mBitsScratch = new int[16];
+    private final int[] mValuesScratch = new int[256];
+    private int[] mChromaX = new int[0];
+    private int[] mChromaY = new int[0];
+
+    public JpegDecoder() {
+        for (int i = 0; i < 4; i++) {
+            mDcTables[i] = new HuffmanTable();
+            mAcTables[i] = new HuffmanTable();
+        }
+        for (int i = 0; i < mComponents.length; i++) {
+            mComponents[i] = new Component();
+        }
+    }
+
+    /**
+     * Decodes one JPEG image into the frame, which is set to I420 at the image's size.
+     * Reads from the position to the limit of src with absolute gets; src itself is left
+     * alone.
+     *
+     * @throws IllegalArgumentException if the data is malformed or uses an unsupported mode,
+     *     or the image doesn't fit in the frame.
+     */
+    public void decode(ByteBuffer src, Frame frame) {
+        mData = src;
+        mPos = src.position();
+        mEnd = src.limit();
+        mRestartInterval = 0;
+        mComponentCount = 0;
+        for (int i = 0; i < 4; i++) {
+            // Tables don't carry over between frames; default Huffman tables are filled in
+            // on demand.
+            mDcTables[i].defined = false;
+            mAcTables[i].defined = false;
+            mQuantDefined[i] = false;
+        }
+        try {
+            parse();
+            writeFrame(frame);
+        } finally {
+            mData = null;
+        }
+    }
+
+    /**
+     * Returns the width of the last image decoded.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the height of the last image decoded.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    private void parse() {
+        if (readU8() != 0xff || readU8() != 0xd8) {
+            throw new IllegalArgumentException("missing SOI marker");
+        }
+        boolean decodedScan = false;
+        while (true) {
+            int marker = nextMarker();
+            if (marker < 0) {
+                // Some cameras truncate the tail; what's decoded is still a frame.
+                if (decodedScan) {
+                    return;
+                }
+                throw new IllegalArgumentException("no scan before end of data");
+            }
+            switch (marker) {
+                case 0xc0:      // SOF0, baseline
+                case 0xc1:      // SOF1, extended sequential Huffman
+                    readFrameHeader();
+                    break;
+                case 0xc4:
+                    readHuffmanTables();
+                    break;
+                case 0xdb:
+                    readQuantTables();
+                    break;
+                case 0xdd:
+                    readLength(4);
+                    mRestartInterval = readU16();
+                    break;
+                case 0xda:
+                    if (mComponentCount == 0) {
+                        throw new IllegalArgumentException("SOS before SOF");
+                    }
+                    readScanHeader();
+                    decodeScan();
+                    decodedScan = true;
+                    break;
+                case 0xd9:      // EOI
+                    if (!decodedScan) {
+                        throw new IllegalArgumentException("no scan before EOI");
+                    }
+                    return;
+                case 0xc2: case 0xc3: case 0xc5: case 0xc6: case 0xc7:
+                case 0xc9: case 0xca: case 0xcb: case 0xcd: case 0xce: case 0xcf:
+                    throw new IllegalArgumentException(
+                            "unsupported JPEG process, SOF" + (marker - 0xc0));
+                default:
+                    skipSegment();
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Advances past the next marker and returns its code, or -1 at the end of the data.
+     */
+    private int nextMarker() {
+        while (mPos < mEnd) {
+            if ((mData.get(mPos++) & 0xff) != 0xff) {
+                continue;
+            }
+            // Any number of 0xff fill bytes may precede the code.
+            while (mPos < mEnd && (mData.get(mPos) & 0xff) == 0xff) {
+                mPos++;
+            }
+            if (mPos >= mEnd) {
+                break;
+            }
+            int code = mData.get(mPos++) & 0xff;
+            if (code != 0 && (code < 0xd0 || code > 0xd7)) {
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    private void readFrameHeader() {
+        int length = readLength(8);
+        if (readU8() != 8) {
+            throw new IllegalArgumentException("only 8-bit samples are supported");
+        }
+        mHeight = readU16();
+        mWidth = readU16();
+        mComponentCount = readU8();
+        if (mWidth == 0 || mHeight == 0) {
+            throw new IllegalArgumentException("bad image size " + mWidth + "x" + mHeight);
+        }
+        if (mComponentCount != 1 && mComponentCount != 3) {
+            throw new IllegalArgumentException("unsupported component count " + mComponentCount);
+        }
+        if (length != 8 + 3 * mComponentCount) {
+            throw new IllegalArgumentException("bad SOF length");
+        }
+        mMaxH = 1;
+        mMaxV = 1;
+        for (int i = 0; i < mComponentCount; i++) {
+            Component c = mComponents[i];
+            c.id = readU8();
+            int sampling = readU8();
+            c.h = sampling >> 4;
+            c.v = sampling & 0x0f;
+            c.quantTable = readU8();
+            if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4 || c.quantTable > 3) {
+                throw new IllegalArgumentException("bad component " + i);
+            }
+            mMaxH = Math.max(mMaxH, c.h);
+            mMaxV = Math.max(mMaxV, c.v);
+        }
+
+        int mcusWide = (mWidth + 8 * mMaxH - 1) / (8 * mMaxH);
+        int mcusHigh = (mHeight + 8 * mMaxV - 1) / (8 * mMaxV);
+        for (int i = 0; i < mComponentCount; i++) {
+            Component c = mComponents[i];
+            c.blocksWide = mcusWide * c.h;
+            c.blocksHigh = mcusHigh * c.v;
+            c.stride = c.blocksWide * 8;
+            int size = c.stride * c.blocksHigh * 8;
+            if (c.plane.length < size) {
+                c.plane = new byte[size];
+            }
+        }
+    }
+
+    private void readHuffmanTables() {
+        int end = mPos + readLength(2);
+        while (mPos < end) {
+            int info = readU8();
+            int tableClass = info >> 4;
+            int index = info & 0x0f;
+            if (tableClass > 1 || index > 3) {
+                throw new IllegalArgumentException("bad DHT " + Integer.toHexString(info));
+            }
+            int count = 0;
+            for (int i = 0; i < 16; i++) {
+                mBitsScratch[i] = readU8();
+                count += mBitsScratch[i];
+            }
+            if (count > 256) {
+                throw new IllegalArgumentException("bad DHT code count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                mValuesScratch[i] = readU8();
+            }
+            (tableClass == 0 ? mDcTables : mAcTables)[index].set(mBitsScratch, mValuesScratch,
+                    count);
+        }
+    }
+
+    private void readQuantTables() {
+        int end = mPos + readLength(2);
+        while (mPos < end) {
+            int info = readU8();
+            int precision = info >> 4;
+            int index = info & 0x0f;
+            if (precision > 1 || index > 3) {
+                throw new IllegalArgumentException("bad DQT " + Integer.toHexString(info));
+            }
+            float[] table = mQuant[index];
+            for (int k = 0; k < 64; k++) {
+                int q = precision == 0 ? readU8() : readU16();
+                int natural = ZIGZAG[k];
+                table[natural] = (float) (q * AAN_SCALE[natural >> 3] * AAN_SCALE[natural & 7]);
+            }
+            mQuantDefined[index] = true;
+        }
+    }
+
+    private void readScanHeader() {
+        int length = readLength(6);
+        mScanComponentCount = readU8();
+        if (mScanComponentCount < 1 || mScanComponentCount > mComponentCount ||
+                length != 6 + 2 * mScanComponentCount) {
+            throw new IllegalArgumentException("bad SOS");
+        }
+        for (int i = 0; i < mScanComponentCount; i++) {
+            int id = readU8();
+            int tables = readU8();
+            Component c = null;
+            for (int j = 0; j < mComponentCount; j++) {
+                if (mComponents[j].id == id) {
+                    c = mComponents[j];
+                }
+            }
+            if (c == null) {
+                throw new IllegalArgumentException("SOS names unknown component " + id);
+            }
+            c.dcTable = tables >> 4;
+            c.acTable = tables & 0x0f;
+            if (c.dcTable > 3 || c.acTable > 3) {
+                throw new IllegalArgumentException("bad table selector");
+            }
+            if (!mQuantDefined[c.quantTable]) {
+                throw new IllegalArgumentException("no quantization table " + c.quantTable);
+            }
+            // Motion-JPEG streams usually omit DHT and rely on the standard tables.
+            boolean luma = c == mComponents[0];
+            if (!mDcTables[c.dcTable].defined) {
+                mDcTables[c.dcTable].set(luma ? STD_DC_LUMA_BITS : STD_DC_CHROMA_BITS,
+                        STD_DC_VALUES, STD_DC_VALUES.length);
+            }
+            if (!mAcTables[c.acTable].defined) {
+                if (luma) {
+                    mAcTables[c.acTable].set(STD_AC_LUMA_BITS, STD_AC_LUMA_VALUES,
+                            STD_AC_LUMA_VALUES.length);
+                } else {
+                    mAcTables[c.acTable].set(STD_AC_CHROMA_BITS, STD_AC_CHROMA_VALUES,
+                            STD_AC_CHROMA_VALUES.length);
+                }
+            }
+            mScanComponents[i] = c;
+        }
+        // Spectral selection and successive approximation; fixed for sequential images.
+        mPos += 3;
+    }
+
+    private void decodeScan() {
+        mBits = 0;
+        mBitCount = 0;
+        for (int i = 0; i < mScanComponentCount; i++) {
+            mScanComponents[i].dcPred = 0;
+        }
+
+        if (mScanComponentCount == 1) {
+            // Non-interleaved: one block per MCU, covering only the component's own extent.
+            Component c = mScanComponents[0];
+            int wide = (ceilDiv(mWidth * c.h, mMaxH) + 7) / 8;
+            int high = (ceilDiv(mHeight * c.v, mMaxV) + 7) / 8;
+            int mcu = 0;
+            for (int by = 0; by < high; by++) {
+                for (int bx = 0; bx < wide; bx++) {
+                    if (mRestartInterval > 0 && mcu > 0 && mcu % mRestartInterval == 0) {
+                        restart();
+                    }
+                    decodeBlock(c, bx, by);
+                    mcu++;
+                }
+            }
+        } else {
+            int mcusWide = (mWidth + 8 * mMaxH - 1) / (8 * mMaxH);
+            int mcusHigh = (mHeight + 8 * mMaxV - 1) / (8 * mMaxV);
+            int mcu = 0;
+            for (int my = 0; my < mcusHigh; my++) {
+                for (int mx = 0; mx < mcusWide; mx++) {
+                    if (mRestartInterval > 0 && mcu > 0 && mcu % mRestartInterval == 0) {
+                        restart();
+                    }
+                    for (int i = 0; i < mScanComponentCount; i++) {
+                        Component c = mScanComponents[i];
+                        for (int y = 0; y < c.v; y++) {
+                            for (int x = 0; x < c.h; x++) {
+                                decodeBlock(c, mx * c.h + x, my * c.v + y);
+                            }
+                        }
+                    }
+                    mcu++;
+                }
+            }
+        }
+    }
+
+    private void restart() {
+        mBits = 0;
+        mBitCount = 0;
+        if (mPos + 1 < mEnd && (mData.get(mPos) & 0xff) == 0xff) {
+            int code = mData.get(mPos + 1) & 0xff;
+            if (code >= 0xd0 && code <= 0xd7) {
+                mPos += 2;
+            }
+        }
+        for (int i = 0; i < mScanComponentCount; i++) {
+            mScanComponents[i].dcPred = 0;
+        }
+    }
+
+    private void decodeBlock(Component c, int bx, int by) {
+        int[] coef = mCoefficients;
+        Arrays.fill(coef, 0);
+
+        int s = decodeHuffman(mDcTables[c.dcTable]);
+        c.dcPred += receiveExtend(s);
+        coef[0] = c.dcPred;
+
+        HuffmanTable ac = mAcTables[c.acTable];
+        for (int k = 1; k < 64; ) {
+            int rs = decodeHuffman(ac);
+            int r = rs >> 4;
+            s = rs & 0x0f;
+            if (s == 0) {
+                if (r != 15) {
+                    break;      // EOB
+                }
+                k += 16;
+                continue;
+            }
+            k += r;
+            if (k > 63) {
+                throw new IllegalArgumentException("AC coefficient index out of range");
+            }
+            coef[ZIGZAG[k]] = receiveExtend(s);
+            k++;
+        }
+
+        idct(coef, mQuant[c.quantTable], c.plane, by * 8 * c.stride + bx * 8, c.stride);
+    }
+
+    private void fillBits() {
+        while (mBitCount <= 24) {
+            int b = 0;
+            if (mPos < mEnd) {
+                b = mData.get(mPos) & 0xff;
+                if (b == 0xff) {
+                    int next = mPos + 1 < mEnd ? mData.get(mPos + 1) & 0xff : 0xd9;
+                    if (next == 0) {
+                        mPos += 2;      // stuffed zero
+                    } else {
+                        // A marker ends the entropy-coded data; pad with zeros and leave it
+                        // for the caller.
+                        b = 0;
+                    }
+                } else {
+                    mPos++;
+                }
+            }
+            mBits = (mBits << 8) | b;
+            mBitCount += 8;
+        }
+    }
+
+    private int decodeHuffman(HuffmanTable table) {
+        fillBits();
+        int look = (mBits >>> (mBitCount - HuffmanTable.LOOKUP_BITS)) &
+                ((1 << HuffmanTable.LOOKUP_BITS) - 1);
+        int entry = table.lookup[look];
+        if (entry != 0) {
+            mBitCount -= entry >> 8;
+            return entry & 0xff;
+        }
+        for (int len = HuffmanTable.LOOKUP_BITS + 1; len <= 16; len++) {
+            int code = (mBits >>> (mBitCount - len)) & ((1 << len) - 1);
+            if (code <= table.maxCode[len]) {
+                mBitCount -= len;
+                return table.values[table.valPtr[len] + code - table.minCode[len]];
+            }
+        }
+        throw new IllegalArgumentException("bad Huffman code");
+    }
+
+    private int receiveExtend(int s) {
+        if (s == 0) {
+            return 0;
+        }
+        if (s > 16) {
+            throw new IllegalArgumentException("bad coefficient size " + s);
+        }
+        fillBits();
+        int v = (mBits >>> (mBitCount - s)) & ((1 << s) - 1);
+        mBitCount -= s;
+        return v < 1 << (s - 1) ? v - (1 << s) + 1 : v;
+    }
+
+    /**
+     * Dequantizes and inverse-transforms one block into the plane, using the floating-point
+     * AAN algorithm (as in the IJG jidctflt.c).  The quantization table has the AAN scale
+     * factors folded in.
+     */
+    private void idct(int[] coef, float[] quant, byte[] out, int outOffset, int stride) {
+        float[] ws = mWorkspace;
+
+        // Columns.
+        for (int col = 0; col < 8; col++) {
+            if (coef[8 + col] == 0 && coef[16 + col] == 0 && coef[24 + col] == 0 &&
+                    coef[32 + col] == 0 && coef[40 + col] == 0 && coef[48 + col] == 0 &&
+                    coef[56 + col] == 0) {
+                float dc = coef[col] * quant[col];
+                for (int row = 0; row < 64; row += 8) {
+                    ws[row + col] = dc;
+                }
+                continue;
+            }
+            float tmp0 = coef[col] * quant[col];
+            float tmp1 = coef[16 + col] * quant[16 + col];
+            float tmp2 = coef[32 + col] * quant[32 + col];
+            float tmp3 = coef[48 + col] * quant[48 + col];
+
+            float tmp10 = tmp0 + tmp2;
+            float tmp11 = tmp0 - tmp2;
+            float tmp13 = tmp1 + tmp3;
+            float tmp12 = (tmp1 - tmp3) * 1.414213562f - tmp13;
+            tmp0 = tmp10 + tmp13;
+            tmp3 = tmp10 - tmp13;
+            tmp1 = tmp11 + tmp12;
+            tmp2 = tmp11 - tmp12;
+
+            float tmp4 = coef[8 + col] * quant[8 + col];
+            float tmp5 = coef[24 + col] * quant[24 + col];
+            float tmp6 = coef[40 + col] * quant[40 + col];
+            float tmp7 = coef[56 + col] * quant[56 + col];
+
+            float z13 = tmp6 + tmp5;
+            float z10 = tmp6 - tmp5;
+            float z11 = tmp4 + tmp7;
+            float z12 = tmp4 - tmp7;
+            tmp7 = z11 + z13;
+            tmp11 = (z11 - z13) * 1.414213562f;
+            float z5 = (z10 + z12) * 1.847759065f;
+            tmp10 = 1.082392200f * z12 - z5;
+            tmp12 = -2.613125930f * z10 + z5;
+            tmp6 = tmp12 - tmp7;
+            tmp5 = tmp11 - tmp6;
+            tmp4 = tmp10 + tmp5;
+
+            ws[col] = tmp0 + tmp7;
+            ws[56 + col] = tmp0 - tmp7;
+            ws[8 + col] = tmp1 + tmp6;
+            ws[48 + col] = tmp1 - tmp6;
+            ws[16 + col] = tmp2 + tmp5;
+            ws[40 + col] = tmp2 - tmp5;
+            ws[32 + col] = tmp3 + tmp4;
+            ws[24 + col] = tmp3 - tmp4;
+        }
+
+        // Rows, then descale by 8 and level-shift.
+        for (int row = 0; row < 64; row += 8) {
+            float tmp10 = ws[row] + ws[row + 4];
+            float tmp11 = ws[row] - ws[row + 4];
+            float tmp13 = ws[row + 2] + ws[row + 6];
+            float tmp12 = (ws[row + 2] - ws[row + 6]) * 1.414213562f - tmp13;
+            float tmp0 = tmp10 + tmp13;
+            float tmp3 = tmp10 - tmp13;
+            float tmp1 = tmp11 + tmp12;
+            float tmp2 = tmp11 - tmp12;
+
+            float z13 = ws[row + 5] + ws[row + 3];
+            float z10 = ws[row + 5] - ws[row + 3];
+            float z11 = ws[row + 1] + ws[row + 7];
+            float z12 = ws[row + 1] - ws[row + 7];
+            float tmp7 = z11 + z13;
+            tmp11 = (z11 - z13) * 1.414213562f;
+            float z5 = (z10 + z12) * 1.847759065f;
+            tmp10 = 1.082392200f * z12 - z5;
+            tmp12 = -2.613125930f * z10 + z5;
+            float tmp6 = tmp12 - tmp7;
+            float tmp5 = tmp11 - tmp6;
+            float tmp4 = tmp10 + tmp5;
+
+            int o = outOffset + (row >> 3) * stride;
+            out[o] = clamp(tmp0 + tmp7);
+            out[o + 7] = clamp(tmp0 - tmp7);
+            out[o + 1] = clamp(tmp1 + tmp6);
+            out[o + 6] = clamp(tmp1 - tmp6);
+            out[o + 2] = clamp(tmp2 + tmp5);
+            out[o + 5] = clamp(tmp2 - tmp5);
+            out[o + 4] = clamp(tmp3 + tmp4);
+            out[o + 3] = clamp(tmp3 - tmp4);
+        }
+    }
+
+    private static byte clamp(float value) {
+        int v = (int) Math.floor(value * 0.125f + 128.5f);
+        return (byte) (v < 0 ? 0 : v > 255 ? 255 : v);
+    }
+
+    /**
+     * Copies the decoded planes into the frame as I420.
+     */
+    private void writeFrame(Frame frame) {
+        frame.setGeometry(FrameFormat.I420, mWidth, mHeight);
+        ByteBuffer buf = frame.getBuffer();
+
+        Component luma = mComponents[0];
+        for (int y = 0; y < mHeight; y++) {
+            buf.put(luma.plane, y * luma.stride, mWidth);
+        }
+
+        int chromaWidth = FrameFormat.getChromaWidth(mWidth);
+        int chromaHeight = FrameFormat.getChromaHeight(mHeight);
+        if (mComponentCount == 1) {
+            for (int i = 2 * chromaWidth * chromaHeight; i > 0; i--) {
+                buf.put((byte) 128);
+            }
+        } else {
+            for (int i = 1; i < 3; i++) {
+                writeChroma(buf, mComponents[i], chromaWidth, chromaHeight);
+            }
+        }
+        buf.position(0);
+    }
+
+    /**
+     * Writes one 4:2:0 chroma plane, averaging the component's samples that cover each 2x2
+     * block of luma pixels.
+     */
+    private void writeChroma(ByteBuffer buf, Component c, int chromaWidth, int chromaHeight) {
+        // Column and row of the component sample under each of the block's two luma
+        // columns/rows.
+        if (mChromaX.length < chromaWidth * 2) {
+            mChromaX = new int[chromaWidth * 2];
+        }
+        if (mChromaY.length < chromaHeight * 2) {
+            mChromaY = new int[chromaHeight * 2];
+        }
+        for (int i = 0; i < chromaWidth * 2; i++) {
+            mChromaX[i] = Math.min(i, mWidth - 1) * c.h / mMaxH;
+        }
+        for (int i = 0; i < chromaHeight * 2; i++) {
+            mChromaY[i] = Math.min(i, mHeight - 1) * c.v / mMaxV;
+        }
+
+        byte[] plane = c.plane;
+        for (int cy = 0; cy < chromaHeight; cy++) {
+            int row0 = mChromaY[2 * cy] * c.stride;
+            int row1 = mChromaY[2 * cy + 1] * c.stride;
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                int x0 = mChromaX[2 * cx];
+                int x1 = mChromaX[2 * cx + 1];
+                int sum = (plane[row0 + x0] & 0xff) + (plane[row0 + x1] & 0xff) +
+                        (plane[row1 + x0] & 0xff) + (plane[row1 + x1] & 0xff);
+                buf.put((byte) ((sum + 2) >> 2));
+            }
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    private int readU8() {
+        if (mPos >= mEnd) {
+            throw new IllegalArgumentException("unexpected end of data");
+        }
+        return mData.get(mPos++) & 0xff;
+    }
+
+    private int readU16() {
+        return (readU8() << 8) | readU8();
+    }
+
+    /**
+     * Reads a segment length and checks it against the minimum for the segment.
+     */
+    private int readLength(int minimum) {
+        int length = readU16();
+        if (length < minimum || mPos - 2 + length > mEnd) {
+            throw new IllegalArgumentException("bad segment length " + length);
+        }
+        return length;
+    }
+
+    private void skipSegment() {
+        mPos += readLength(2) - 2;
+    }
+}
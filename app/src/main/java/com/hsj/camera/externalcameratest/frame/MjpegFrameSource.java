@@ -0,0 +1,295 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Frame source for cameras that send Motion-JPEG.
+ * <p>
+ * The capture side hands each compressed payload to submit(), which copies it and queues it
+ * for a fixed pool of decoder threads.  Frames decode in parallel, into buffers from a
+ * {@link FrameRing}, but are published in submission order: a frame that finishes early
+ * waits for its predecessors.  Decoded frames are I420 in full-range Y'CbCr, so the renderer
+ * should use {@link YuvColorMatrix#BT601_FULL}.
+ * <p>
+ * At most maxInFlight payloads are queued or decoding at once.  When all of them are taken,
+ * submit() drops the new payload instead of blocking the capture thread, which is the right
+ * call for live video that is falling behind.
+ * <p>
+ * Jobs, payload copies and output frames are all pooled; once the payload size and image
+ * geometry settle, nothing is allocated per frame.
+ */
+public class MjpegFrameSource implements FrameSource {
+    private final FrameRing mOutput;
+    private final Thread[] mWorkers;
+    private final int mMaxInFlight;
+
+    // Jobs not in use, and jobs waiting for a worker.
+    private final ArrayBlockingQueue<Job> mFreeJobs;
+    private final ArrayBlockingQueue<Job> mPending;
+
+    // Only written by the submitting thread.
+    private long mSubmitted;
+    private volatile long mRejected;
+
+    // ----- guarded by mEmitLock -----
+    private final Object mEmitLock = new Object();
+    // Finished jobs waiting for their turn, indexed by sequence % maxInFlight.
+    private final Job[] mFinished;
+    private long mNextEmit;
+    private final TimingStats mDecodeStats;
+    private final TimingStats mLatencyStats;
+    private int mPeakInFlight;
+
+    private volatile long mFailed;
+
+    /**
+     * One payload on its way through the pool.
+     */
+    private class Job implements Runnable {
+        byte[] data = new byte[0];
+        ByteBuffer wrapped = ByteBuffer.wrap(data);
+        long sequence;
+        long timestampNanos;
+        long submitNanos;
+        long decodeNanos;
+        Frame frame;
+        boolean ok;
+
+        void setPayload(ByteBuffer payload) {
+            int length = payload.remaining();
+            if (data.length < length) {
+                data = new byte[length];
+                wrapped = ByteBuffer.wrap(data);
+            }
+            int position = payload.position();
+            payload.get(data, 0, length);
+            payload.position(position);
+            wrapped.clear();
+            wrapped.limit(length);
+        }
+
+        @Override
+        public void run() {
+            JpegDecoder decoder = ((Worker) Thread.currentThread()).decoder;
+            long start = System.nanoTime();
+            ok = false;
+            try {
+                frame = mOutput.dequeueFree();
+                if (frame != null) {
+                    decoder.decode(wrapped, frame);
+                    ok = true;
+                }
+            } catch (RuntimeException e) {
+                // Corrupt or unsupported payload, or a decoder bug it set off; the frame is
+                // skipped.  Anything else would kill the worker.
+            } finally {
+                decodeNanos = System.nanoTime() - start;
+                // Always, or the frames after this one would wait for it forever.
+                finish(this);
+            }
+        }
+    }
+
+    /**
+     * Decoder thread.  Each has its own JpegDecoder, which keeps scratch state between
+     * frames.
+     */
+    private class Worker extends Thread {
+        final JpegDecoder decoder = new JpegDecoder();
+
+        Worker(int index) {
+            super("MjpegDecoder-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    mPending.take().run();
+                }
+            } catch (InterruptedException e) {
+                // release()
+            }
+        }
+    }
+
+    /**
+     * @param workerCount Number of decoder threads.  Decoding is CPU-bound, so more than the
+     *     number of cores doesn't help.
+     * @param maxInFlight Maximum number of payloads queued or decoding; at least workerCount.
+     * @param maxWidth Widest image the output buffers must hold.
+     * @param maxHeight Tallest image the output buffers must hold.
+     * @param statsWindow Number of frames summarized by each stats window.
+     */
+    public MjpegFrameSource(int workerCount, int maxInFlight, int maxWidth, int maxHeight,
+            int statsWindow) {
+        if (workerCount < 1 || maxInFlight < workerCount) {
+            throw new IllegalArgumentException("need 1 <= workerCount <= maxInFlight, got " +
+                    workerCount + ", " + maxInFlight);
+        }
+        mMaxInFlight = maxInFlight;
+        // Every in-flight job may hold a buffer, plus one waiting for the renderer and one
+        // being drawn.
+        mOutput = new FrameRing(maxInFlight + 2,
+                FrameFormat.I420.getFrameSize(maxWidth, maxHeight));
+        mFreeJobs = new ArrayBlockingQueue<>(maxInFlight);
+        mPending = new ArrayBlockingQueue<>(maxInFlight);
+        mFinished = new Job[maxInFlight];
+        for (int i = 0; i < maxInFlight; i++) {
+            mFreeJobs.add(new Job());
+        }
+        mDecodeStats = new TimingStats("MJPEG decode", statsWindow);
+        mLatencyStats = new TimingStats("MJPEG submit to publish", statsWindow);
+
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Worker(i);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Queues one JPEG image for decoding.  The bytes from position to limit are copied, so
+     * the caller may reuse the buffer as soon as this returns; its position is unchanged.
+     * Call from one thread (normally the capture thread).
+     *
+     * @return false if the pool was full and the payload was dropped.
+     */
+    public boolean submit(ByteBuffer jpeg, long timestampNanos) {
+        Job job = mFreeJobs.poll();
+        if (job == null) {
+            mRejected++;
+            return false;
+        }
+        job.setPayload(jpeg);
+        job.sequence = mSubmitted++;
+        job.timestampNanos = timestampNanos;
+        job.submitNanos = System.nanoTime();
+        // Can't block: there are never more jobs than queue slots.
+        mPending.add(job);
+        return true;
+    }
+
+    /**
+     * Called by a worker when a job is done.  Publishes it, and any finished successors that
+     * were waiting on it, in sequence order.
+     */
+    private void finish(Job job) {
+        synchronized (mEmitLock) {
+            int inFlight = mMaxInFlight - mFreeJobs.size();
+            if (inFlight > mPeakInFlight) {
+                mPeakInFlight = inFlight;
+            }
+            mFinished[(int) (job.sequence % mMaxInFlight)] = job;
+            while (true) {
+                int slot = (int) (mNextEmit % mMaxInFlight);
+                Job next = mFinished[slot];
+                if (next == null || next.sequence != mNextEmit) {
+                    break;
+                }
+                mFinished[slot] = null;
+                mNextEmit++;
+                publish(next);
+            }
+        }
+    }
+
+    private void publish(Job job) {
+        if (job.ok) {
+            mOutput.queueFilled(job.frame, job.timestampNanos);
+            mDecodeStats.add(job.decodeNanos);
+            mLatencyStats.add(System.nanoTime() - job.submitNanos);
+        } else {
+            if (job.frame != null) {
+                mOutput.cancelFrame(job.frame);
+            }
+            mFailed++;
+        }
+        job.frame = null;
+        mFreeJobs.add(job);
+    }
+
+    @Override
+    public Frame acquireFrame() {
+        return mOutput.acquireFrame();
+    }
+
+    @Override
+    public void releaseFrame(Frame frame) {
+        mOutput.releaseFrame(frame);
+    }
+
+    /**
+     * Returns the time spent decoding each frame.  (Decodes overlap, so throughput is
+     * roughly workerCount / average.)
+     */
+    public TimingStats getDecodeStats() {
+        return mDecodeStats;
+    }
+
+    /**
+     * Returns the time from submit() to the frame being available to the renderer,
+     * including queueing and waiting for earlier frames.
+     */
+    public TimingStats getLatencyStats() {
+        return mLatencyStats;
+    }
+
+    /**
+     * Returns the number of payloads submitted but not yet published.
+     */
+    public int getInFlightCount() {
+        return mMaxInFlight - mFreeJobs.size();
+    }
+
+    /**
+     * Returns the largest getInFlightCount() seen when a decode finished.  Close to
+     * maxInFlight means the workers aren't keeping up.
+     */
+    public int getPeakInFlightCount() {
+        synchronized (mEmitLock) {
+            return mPeakInFlight;
+        }
+    }
+
+    /**
+     * Returns the number of payloads dropped by submit() because the pool was full.
+     */
+    public long getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * Returns the number of payloads that failed to decode.
+     */
+    public long getFailedCount() {
+        return mFailed;
+    }
+
+    /**
+     * Returns the number of decoded frames replaced by a newer one before the renderer got
+     * to them.
+     */
+    public long getDroppedCount() {
+        return mOutput.getDroppedCount();
+    }
+
+    /**
+     * Stops the decoder threads.  Payloads still in flight are discarded.
+     */
+    public void release() {
+        for (Thread worker : mWorkers) {
+            worker.interrupt();
+        }
+        for (Thread worker : mWorkers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
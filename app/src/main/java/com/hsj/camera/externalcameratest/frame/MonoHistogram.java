@@ -0,0 +1,171 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Histogram of the raw values of a high-bit-depth monochrome frame, for auto-windowing
+ * ({@link MonoWindow#fit(MonoHistogram, float)}) and the operator display.
+ * <p>
+ * Built from the raw samples, not the displayed ones: an 8-bit histogram of a 16-bit frame
+ * whose signal sits in the bottom few hundred counts would put it all in one bin.  Values
+ * are binned to at most BINS bins, so 12-bit data gets a bin per value and 16-bit data one
+ * per 16 values.  Every step'th pixel of every step'th row is counted; a step of 8 counts
+ * about 35 thousand pixels of a 2048x1080 frame, plenty for percentiles.
+ * <p>
+ * A histogram can be refilled frame after frame with count(), which only allocates when
+ * the number of bins changes.  Not thread-safe; hand other threads a copy().
+ */
+public final class MonoHistogram {
+    /** Maximum number of bins. */
+    public static final int BINS = 4096;
+
+    private int[] mCounts = new int[0];
+    private int mBinShift;
+    private int mSampleCount;
+
+    /**
+     * Creates an empty histogram, for count() to fill.
+     */
+    public MonoHistogram() {
+    }
+
+    /**
+     * Counts the samples of a monochrome frame into a new histogram.
+     *
+     * @param step Distance between the pixels counted, in both directions; 1 counts all.
+     */
+    public static MonoHistogram compute(Frame frame, int step) {
+        return new MonoHistogram().count(frame, step);
+    }
+
+    /**
+     * Counts the samples of a monochrome frame into a new histogram.  The buffer's position
+     * isn't changed.
+     *
+     * @param step Distance between the pixels counted, in both directions; 1 counts all.
+     */
+    public static MonoHistogram compute(ByteBuffer data, FrameFormat format, int width,
+            int height, int step) {
+        return new MonoHistogram().count(data, format, width, height, step);
+    }
+
+    /**
+     * Replaces the counts with those of a monochrome frame.
+     *
+     * @param step Distance between the pixels counted, in both directions; 1 counts all.
+     * @return this histogram.
+     */
+    public MonoHistogram count(Frame frame, int step) {
+        return count(frame.getBuffer(), frame.getFormat(), frame.getWidth(), frame.getHeight(),
+                step);
+    }
+
+    /**
+     * Replaces the counts with those of a monochrome frame.  The buffer's position isn't
+     * changed.
+     *
+     * @param step Distance between the pixels counted, in both directions; 1 counts all.
+     * @return this histogram.
+     */
+    public MonoHistogram count(ByteBuffer data, FrameFormat format, int width, int height,
+            int step) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("step must be positive, got " + step);
+        }
+        if (data.capacity() < format.getFrameSize(width, height)) {
+            throw new IllegalArgumentException("buffer holds " + data.capacity() +
+                    " bytes, " + width + "x" + height + " " + format + " needs " +
+                    format.getFrameSize(width, height));
+        }
+        int bits = format.getMonoBits();
+        int binShift = Math.max(0, bits - Integer.numberOfTrailingZeros(BINS));
+        int bins = (1 << bits) >> binShift;
+        if (mCounts.length != bins) {
+            mCounts = new int[bins];
+        } else {
+            Arrays.fill(mCounts, 0);
+        }
+        int[] counts = mCounts;
+        int max = counts.length - 1;
+        int samples = 0;
+        for (int y = 0; y < height; y += step) {
+            int row = y * width * 2;
+            for (int x = 0; x < width; x += step) {
+                int i = row + 2 * x;
+                int raw = (data.get(i) & 0xff) | (data.get(i + 1) & 0xff) << 8;
+                // Stray bits above the format's depth count as the top value.
+                counts[Math.min(raw >> binShift, max)]++;
+                samples++;
+            }
+        }
+        mBinShift = binShift;
+        mSampleCount = samples;
+        return this;
+    }
+
+    /**
+     * Returns a histogram with the same counts, that count() on this one won't change.
+     */
+    public MonoHistogram copy() {
+        MonoHistogram copy = new MonoHistogram();
+        copy.mCounts = mCounts.clone();
+        copy.mBinShift = mBinShift;
+        copy.mSampleCount = mSampleCount;
+        return copy;
+    }
+
+    /**
+     * Returns the number of pixels counted.
+     */
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the number of raw values per bin, a power of two.
+     */
+    public int getBinWidth() {
+        return 1 << mBinShift;
+    }
+
+    /**
+     * Returns the count of each bin; bin i holds raw values i * getBinWidth() and up.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public int[] getCounts() {
+        return mCounts;
+    }
+
+    /**
+     * Returns the lowest raw value of the first bin by which at least the given fraction of
+     * the samples have been counted.
+     */
+    public int getPercentileLow(float fraction) {
+        return getPercentileBin(fraction) << mBinShift;
+    }
+
+    /**
+     * Returns the highest raw value of the first bin by which at least the given fraction of
+     * the samples have been counted.
+     */
+    public int getPercentileHigh(float fraction) {
+        return ((getPercentileBin(fraction) + 1) << mBinShift) - 1;
+    }
+
+    private int getPercentileBin(float fraction) {
+        if (!(fraction >= 0f && fraction <= 1f)) {
+            throw new IllegalArgumentException("fraction must be in [0, 1], got " + fraction);
+        }
+        long needed = Math.max(1, (long) Math.ceil((double) fraction * mSampleCount));
+        long seen = 0;
+        for (int bin = 0; bin < mCounts.length; bin++) {
+            seen += mCounts[bin];
+            if (seen >= needed) {
+                return bin;
+            }
+        }
+        return mCounts.length - 1;
+    }
+}
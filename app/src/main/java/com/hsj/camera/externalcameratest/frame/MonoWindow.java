@@ -0,0 +1,227 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.util.Locale;
+
+/**
+ * Maps high-bit-depth monochrome samples to display colors: a window of raw values is
+ * stretched over the display range, then a gamma curve and a false-color map are applied.
+ * <p>
+ * Raw values at or below getLow() map to the first color of the map, values at or above
+ * getHigh() to the last.  In window/level terms the level is the window's center and the
+ * width its extent.  The TEXTURE_MONO16 program does the mapping on the GPU, with the map
+ * as a 256-entry texture; {@link #apply(int)} is the CPU reference for what it draws.
+ * <p>
+ * Immutable.
+ */
+public final class MonoWindow {
+    /**
+     * False-color maps, as 256 RGB entries from the bottom of the window to the top.
+     */
+    public enum ColorMap {
+        /** Plain gray. */
+        GRAY,
+        /** Black through red and yellow to white. */
+        HOT,
+        /** Blue through cyan, yellow and red. */
+        JET,
+        /**
+         * Gray, with the bottom of the window in blue and the top in red, so clipped pixels
+         * stand out while setting exposure.
+         */
+        HILO;
+
+        /**
+         * Returns the map as 256 RGB triplets, 768 bytes.
+         * <p>
+         * To avoid allocations, this returns internal state.  The caller must not modify it.
+         */
+        public byte[] getTable() {
+            return TABLES[ordinal()];
+        }
+    }
+
+    private static final byte[][] TABLES = buildTables();
+
+    private final int mLow;
+    private final int mHigh;
+    private final float mGamma;
+    private final ColorMap mColorMap;
+
+    /**
+     * @param low Raw value shown as the bottom of the map.
+     * @param high Raw value shown as the top of the map; must be above low.
+     * @param gamma Display gamma; above 1 brightens the low end, as 2.2 would for linear
+     *     sensor data.
+     */
+    public MonoWindow(int low, int high, float gamma, ColorMap colorMap) {
+        if (low < 0 || high <= low || high > 0xffff) {
+            throw new IllegalArgumentException("bad window " + low + " to " + high);
+        }
+        if (!(gamma > 0f) || Float.isInfinite(gamma)) {
+            throw new IllegalArgumentException("gamma must be positive, got " + gamma);
+        }
+        if (colorMap == null) {
+            throw new IllegalArgumentException("null color map");
+        }
+        mLow = low;
+        mHigh = high;
+        mGamma = gamma;
+        mColorMap = colorMap;
+    }
+
+    /**
+     * Returns the window covering every value of a format, gray, with no gamma.
+     */
+    public static MonoWindow full(FrameFormat format) {
+        return new MonoWindow(0, (1 << format.getMonoBits()) - 1, 1f, ColorMap.GRAY);
+    }
+
+    /**
+     * Returns a window from a level (center) and width.
+     */
+    public static MonoWindow fromLevel(int level, int width, float gamma, ColorMap colorMap) {
+        int low = Math.max(0, level - width / 2);
+        return new MonoWindow(low, Math.min(0xffff, Math.max(low + 1, low + width)), gamma,
+                colorMap);
+    }
+
+    /**
+     * Returns the window that spans a histogram between two percentiles, keeping this
+     * window's gamma and map.  Clipping a small fraction at each end, e.g. 0.001, keeps a few
+     * hot or dead pixels from setting the range.
+     */
+    public MonoWindow fit(MonoHistogram histogram, float clipFraction) {
+        if (!(clipFraction >= 0f && clipFraction < 0.5f)) {
+            throw new IllegalArgumentException("clip fraction must be in [0, 0.5), got " +
+                    clipFraction);
+        }
+        int low = histogram.getPercentileLow(clipFraction);
+        int high = histogram.getPercentileHigh(1f - clipFraction);
+        high = Math.min(0xffff, Math.max(high, low + 1));
+        return low == mLow && high == mHigh ? this :
+                new MonoWindow(Math.min(low, high - 1), high, mGamma, mColorMap);
+    }
+
+    /**
+     * Returns this window with another gamma.
+     */
+    public MonoWindow withGamma(float gamma) {
+        return new MonoWindow(mLow, mHigh, gamma, mColorMap);
+    }
+
+    /**
+     * Returns this window with another false-color map.
+     */
+    public MonoWindow withColorMap(ColorMap colorMap) {
+        return new MonoWindow(mLow, mHigh, mGamma, colorMap);
+    }
+
+    public int getLow() {
+        return mLow;
+    }
+
+    public int getHigh() {
+        return mHigh;
+    }
+
+    public float getGamma() {
+        return mGamma;
+    }
+
+    public ColorMap getColorMap() {
+        return mColorMap;
+    }
+
+    /**
+     * Returns the position of a raw value in the map, 0 to 1, after the gamma curve.
+     */
+    public float map(int raw) {
+        float x = (float) (raw - mLow) / (mHigh - mLow);
+        x = x < 0f ? 0f : x > 1f ? 1f : x;
+        return mGamma == 1f ? x : (float) Math.pow(x, 1.0 / mGamma);
+    }
+
+    /**
+     * Maps a raw value to an opaque 0xAARRGGBB color, interpolating between the entries of
+     * the map as the GPU's linear filtering does.
+     */
+    public int apply(int raw) {
+        float position = map(raw) * 255f;
+        int i = Math.min((int) position, 254);
+        float f = position - i;
+        byte[] table = mColorMap.getTable();
+        int argb = 0xff000000;
+        for (int c = 0; c < 3; c++) {
+            float a = table[3 * i + c] & 0xff;
+            float b = table[3 * (i + 1) + c] & 0xff;
+            argb |= Math.round(a + (b - a) * f) << (16 - 8 * c);
+        }
+        return argb;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof MonoWindow)) {
+            return false;
+        }
+        MonoWindow other = (MonoWindow) o;
+        return mLow == other.mLow && mHigh == other.mHigh && mGamma == other.mGamma &&
+                mColorMap == other.mColorMap;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mLow * 31 + mHigh) * 31 + Float.floatToIntBits(mGamma)) * 31 +
+                mColorMap.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "window %d-%d, gamma %.2f, %s", mLow, mHigh, mGamma,
+                mColorMap);
+    }
+
+    private static byte[][] buildTables() {
+        ColorMap[] maps = ColorMap.values();
+        byte[][] tables = new byte[maps.length][256 * 3];
+        for (ColorMap map : maps) {
+            byte[] table = tables[map.ordinal()];
+            for (int i = 0; i < 256; i++) {
+                float x = i / 255f;
+                float r;
+                float g;
+                float b;
+                switch (map) {
+                    case HOT:
+                        r = 3f * x;
+                        g = 3f * x - 1f;
+                        b = 3f * x - 2f;
+                        break;
+                    case JET:
+                        r = 1.5f - Math.abs(4f * x - 3f);
+                        g = 1.5f - Math.abs(4f * x - 2f);
+                        b = 1.5f - Math.abs(4f * x - 1f);
+                        break;
+                    case HILO:
+                        r = i == 0 ? 0f : x;
+                        g = i == 0 || i == 255 ? 0f : x;
+                        b = i == 0 ? 1f : i == 255 ? 0f : x;
+                        break;
+                    default:
+                        r = x;
+                        g = x;
+                        b = x;
+                        break;
+                }
+                table[3 * i] = (byte) toByte(r);
+                table[3 * i + 1] = (byte) toByte(g);
+                table[3 * i + 2] = (byte) toByte(b);
+            }
+        }
+        return tables;
+    }
+
+    private static int toByte(float value) {
+        return Math.round((value < 0f ? 0f : value > 1f ? 1f : value) * 255f);
+    }
+}
@@ -0,0 +1,191 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw frames into a preallocated, memory-mapped ring file.
+ * <p>
+ * The file holds a fixed number of slots, each big enough for the largest expected frame.
+ * Frame N goes into slot N % slotCount, so the file always holds the most recent slotCount
+ * frames: a black box of the last few seconds of camera input.  Writing a frame is one copy
+ * into the mapped pages, with no write() calls and no allocation.  The kernel writes the
+ * pages back on its own schedule, and since they live in the page cache the recording
+ * survives the process dying; call force() to also survive the device losing power.
+ * <p>
+ * Layout, all little-endian:
+ * <pre>
+ *   file header (FILE_HEADER_SIZE bytes)
+ *     int magic, int version, int slotCount, int maxFrameBytes, long framesWritten
+ *   slotCount slots of getSlotSize(maxFrameBytes) bytes, each
+ *     long sequence (-1 while empty or being written), long timestampNanos,
+ *     int format (FrameFormat ordinal), int width, int height, int size,
+ *     frame data
+ * </pre>
+ * {@link RawFrameReplay} plays the file back.  Not thread-safe; call record() from one
+ * thread.
+ */
+public class RawFrameRecorder implements Closeable {
+    static final int MAGIC = 0x57415243;        // "CRAW" read as little-endian bytes
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 64;
+    static final int SLOT_HEADER_SIZE = 32;
+
+    // File header fields.
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_VERSION = 4;
+    static final int OFFSET_SLOT_COUNT = 8;
+    static final int OFFSET_MAX_FRAME_BYTES = 12;
+    static final int OFFSET_FRAMES_WRITTEN = 16;
+
+    // Slot header fields.
+    static final int OFFSET_SEQUENCE = 0;
+    static final int OFFSET_TIMESTAMP = 8;
+    static final int OFFSET_FORMAT = 16;
+    static final int OFFSET_WIDTH = 20;
+    static final int OFFSET_HEIGHT = 24;
+    static final int OFFSET_SIZE = 28;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mHeader;
+    private final MappedByteBuffer[] mSlots;
+    private final int mMaxFrameBytes;
+
+    private long mFramesWritten;
+    private long mOversizeFrames;
+    private boolean mClosed;
+
+    /**
+     * Creates (or overwrites) the file at its full size and maps it.
+     *
+     * @param slotCount Number of frames kept, e.g. frame rate times the seconds to keep.
+     * @param maxFrameBytes Largest frame to record; bigger ones are skipped.
+     */
+    public RawFrameRecorder(File file, int slotCount, int maxFrameBytes) throws IOException {
+        if (slotCount <= 0 || maxFrameBytes <= 0) {
+            throw new IllegalArgumentException("bad ring " + slotCount + " x " +
+                    maxFrameBytes);
+        }
+        mMaxFrameBytes = maxFrameBytes;
+        long slotSize = getSlotSize(maxFrameBytes);
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            // Reserve the whole ring now, so recording never has to grow the file.
+            mFile.setLength(0);
+            mFile.setLength(FILE_HEADER_SIZE + slotCount * slotSize);
+            FileChannel channel = mFile.getChannel();
+            mHeader = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE);
+            mHeader.order(ByteOrder.LITTLE_ENDIAN);
+            // One mapping per slot keeps each under the 2 GB limit of a single mapping,
+            // however long the ring is.
+            mSlots = new MappedByteBuffer[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                mSlots[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        FILE_HEADER_SIZE + i * slotSize, SLOT_HEADER_SIZE + maxFrameBytes);
+                mSlots[i].order(ByteOrder.LITTLE_ENDIAN);
+                mSlots[i].putLong(OFFSET_SEQUENCE, -1);
+            }
+        } catch (IOException ioe) {
+            mFile.close();
+            throw ioe;
+        }
+
+        mHeader.putInt(OFFSET_MAGIC, MAGIC);
+        mHeader.putInt(OFFSET_VERSION, VERSION);
+        mHeader.putInt(OFFSET_SLOT_COUNT, slotCount);
+        mHeader.putInt(OFFSET_MAX_FRAME_BYTES, maxFrameBytes);
+        mHeader.putLong(OFFSET_FRAMES_WRITTEN, 0);
+    }
+
+    /**
+     * Returns the file space one slot takes.  Slots are page-aligned.
+     */
+    static long getSlotSize(int maxFrameBytes) {
+        long size = SLOT_HEADER_SIZE + (long) maxFrameBytes;
+        return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * Copies the frame into the next slot, overwriting the oldest frame once the ring is
+     * full.  The frame's buffer is left as it was.
+     *
+     * @return false if the frame is bigger than the slots and wasn't recorded.
+     */
+    public boolean record(Frame frame) {
+        if (mClosed) {
+            throw new IllegalStateException("recorder is closed");
+        }
+        int size = frame.getSize();
+        if (size > mMaxFrameBytes) {
+            mOversizeFrames++;
+            return false;
+        }
+        MappedByteBuffer slot = mSlots[(int) (mFramesWritten % mSlots.length)];
+
+        // Mark the slot as being written, so a frame cut short by a crash is never replayed.
+        slot.putLong(OFFSET_SEQUENCE, -1);
+        ByteBuffer data = frame.getBuffer();
+        slot.position(SLOT_HEADER_SIZE);
+        data.limit(size).position(0);
+        slot.put(data);
+        data.position(0);
+        slot.putLong(OFFSET_TIMESTAMP, frame.getTimestampNanos());
+        slot.putInt(OFFSET_FORMAT, frame.getFormat().ordinal());
+        slot.putInt(OFFSET_WIDTH, frame.getWidth());
+        slot.putInt(OFFSET_HEIGHT, frame.getHeight());
+        slot.putInt(OFFSET_SIZE, size);
+        slot.putLong(OFFSET_SEQUENCE, mFramesWritten);
+
+        mFramesWritten++;
+        mHeader.putLong(OFFSET_FRAMES_WRITTEN, mFramesWritten);
+        return true;
+    }
+
+    /**
+     * Returns the number of frames recorded so far, including the ones since overwritten.
+     */
+    public long getRecordedCount() {
+        return mFramesWritten;
+    }
+
+    /**
+     * Returns the number of frames skipped because they didn't fit in a slot.
+     */
+    public long getOversizeCount() {
+        return mOversizeFrames;
+    }
+
+    /**
+     * Returns the number of frames the ring keeps.
+     */
+    public int getSlotCount() {
+        return mSlots.length;
+    }
+
+    /**
+     * Writes the recording through to storage.  Slow; not for every frame.
+     */
+    public void force() {
+        for (MappedByteBuffer slot : mSlots) {
+            slot.force();
+        }
+        mHeader.force();
+    }
+
+    /**
+     * Closes the file.  The pages already written still reach it.
+     */
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mFile.close();
+    }
+}
@@ -0,0 +1,236 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a file written by {@link RawFrameRecorder}, oldest frame first.
+ * <p>
+ * This is a deterministic stand-in for the camera, for benchmarking the renderer and
+ * encoder or reproducing a problem seen in the field.  The file is mapped read-only and each
+ * frame's buffer is a view of its slot, so nothing is copied until the consumer uploads it.
+ * <p>
+ * With {@link Pacing#NATIVE} frames are released on the recorded schedule: a frame becomes
+ * available once as much time has passed since the first acquireFrame() as passed between
+ * it and the first recorded frame.  If the consumer falls behind it gets the newest frame
+ * that's due, like it would from a live camera, and the ones skipped are counted.  With
+ * {@link Pacing#UNTHROTTLED} every acquireFrame() returns the next frame, so the consumer
+ * runs as fast as it can.  When looping, timestamps keep increasing from one pass to the
+ * next.
+ * <p>
+ * Frames are only valid until closed.  Not thread-safe; use from the consuming thread.
+ */
+public class RawFrameReplay implements FrameSource, Closeable {
+    /**
+     * How quickly frames are handed out.
+     */
+    public enum Pacing {
+        /** At the rate they were recorded. */
+        NATIVE,
+        /** As fast as they're asked for. */
+        UNTHROTTLED
+    }
+
+    private final RandomAccessFile mFile;
+    private final Pacing mPacing;
+    private final boolean mLoop;
+
+    // The recorded frames, oldest first, each backed by its slot's mapping.
+    private final Frame[] mFrames;
+    private final long[] mTimestamps;
+    private final long mDuration;
+
+    private int mNext;
+    private long mPass;
+    private long mSequence;
+    private boolean mStarted;
+    private long mStartNanos;
+    private long mSkipped;
+
+    /**
+     * Maps the recording.
+     *
+     * @param loop Start over after the last frame, instead of running dry.
+     * @throws IOException if the file can't be read or wasn't written by RawFrameRecorder.
+     */
+    public RawFrameReplay(File file, Pacing pacing, boolean loop) throws IOException {
+        mPacing = pacing;
+        mLoop = loop;
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = mFile.getChannel();
+            if (channel.size() < RawFrameRecorder.FILE_HEADER_SIZE) {
+                throw new IOException("too short for a raw frame recording");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    RawFrameRecorder.FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(RawFrameRecorder.OFFSET_MAGIC) != RawFrameRecorder.MAGIC ||
+                    header.getInt(RawFrameRecorder.OFFSET_VERSION) !=
+                            RawFrameRecorder.VERSION) {
+                throw new IOException("not a raw frame recording (version " +
+                        RawFrameRecorder.VERSION + ")");
+            }
+            int slotCount = header.getInt(RawFrameRecorder.OFFSET_SLOT_COUNT);
+            int maxFrameBytes = header.getInt(RawFrameRecorder.OFFSET_MAX_FRAME_BYTES);
+            long written = header.getLong(RawFrameRecorder.OFFSET_FRAMES_WRITTEN);
+            long slotSize = RawFrameRecorder.getSlotSize(maxFrameBytes);
+            if (slotCount <= 0 || maxFrameBytes <= 0 || written < 0 ||
+                    channel.size() < RawFrameRecorder.FILE_HEADER_SIZE +
+                            slotCount * slotSize) {
+                throw new IOException("recording is truncated");
+            }
+
+            // The ring holds frames written-slotCount .. written-1; the newest may be torn
+            // if the recorder died mid-frame.
+            long first = Math.max(0, written - slotCount);
+            Frame[] frames = new Frame[(int) (written - first)];
+            long[] timestamps = new long[frames.length];
+            int count = 0;
+            FrameFormat[] formats = FrameFormat.values();
+            for (long sequence = first; sequence < written; sequence++) {
+                long position = RawFrameRecorder.FILE_HEADER_SIZE +
+                        (sequence % slotCount) * slotSize;
+                MappedByteBuffer slot = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        RawFrameRecorder.SLOT_HEADER_SIZE + maxFrameBytes);
+                slot.order(ByteOrder.LITTLE_ENDIAN);
+                int format = slot.getInt(RawFrameRecorder.OFFSET_FORMAT);
+                if (slot.getLong(RawFrameRecorder.OFFSET_SEQUENCE) != sequence ||
+                        format < 0 || format >= formats.length) {
+                    continue;
+                }
+                int width = slot.getInt(RawFrameRecorder.OFFSET_WIDTH);
+                int height = slot.getInt(RawFrameRecorder.OFFSET_HEIGHT);
+                if (width <= 0 || height <= 0 ||
+                        formats[format].getFrameSize(width, height) > maxFrameBytes) {
+                    continue;
+                }
+                slot.position(RawFrameRecorder.SLOT_HEADER_SIZE);
+                Frame frame = new Frame(this, slot.slice());
+                frame.setGeometry(formats[format], width, height);
+                timestamps[count] = slot.getLong(RawFrameRecorder.OFFSET_TIMESTAMP);
+                frames[count++] = frame;
+            }
+            if (count == 0) {
+                throw new IOException("recording holds no frames");
+            }
+            mFrames = new Frame[count];
+            mTimestamps = new long[count];
+            System.arraycopy(frames, 0, mFrames, 0, count);
+            System.arraycopy(timestamps, 0, mTimestamps, 0, count);
+        } catch (IOException ioe) {
+            mFile.close();
+            throw ioe;
+        }
+
+        // A pass lasts one frame interval longer than first-to-last, so looping keeps the
+        // recorded cadence across the seam.
+        int last = mFrames.length - 1;
+        long span = mTimestamps[last] - mTimestamps[0];
+        mDuration = last == 0 ? 0 : span + span / last;
+    }
+
+    @Override
+    public Frame acquireFrame() {
+        return acquireFrame(System.nanoTime());
+    }
+
+    /**
+     * acquireFrame(), with the current time supplied by the caller.
+     */
+    Frame acquireFrame(long nowNanos) {
+        if (isFinished()) {
+            return null;
+        }
+        // A recording without a time span has nothing to pace.
+        if (mPacing == Pacing.NATIVE && mDuration > 0) {
+            if (!mStarted) {
+                mStartNanos = nowNanos;
+                mStarted = true;
+            }
+            if (!isDue(mNext, mPass, nowNanos)) {
+                return null;
+            }
+            // Catch up to the newest frame that's due.
+            while (true) {
+                int next = mNext + 1;
+                long pass = mPass;
+                if (next == mFrames.length) {
+                    if (!mLoop) {
+                        break;
+                    }
+                    next = 0;
+                    pass++;
+                }
+                if (!isDue(next, pass, nowNanos)) {
+                    break;
+                }
+                mNext = next;
+                mPass = pass;
+                mSkipped++;
+            }
+        }
+
+        Frame frame = mFrames[mNext];
+        if (frame.mState == Frame.STATE_ACQUIRED) {
+            // A one-frame recording whose frame the consumer still holds.
+            return null;
+        }
+        frame.stamp(mTimestamps[mNext] + mPass * mDuration, mSequence++);
+        frame.mState = Frame.STATE_ACQUIRED;
+        if (++mNext == mFrames.length) {
+            mNext = 0;
+            mPass++;
+        }
+        return frame;
+    }
+
+    private boolean isDue(int index, long pass, long nowNanos) {
+        long offset = mTimestamps[index] - mTimestamps[0] + pass * mDuration;
+        return nowNanos - mStartNanos >= offset;
+    }
+
+    @Override
+    public void releaseFrame(Frame frame) {
+        if (!frame.isOwnedBy(this)) {
+            throw new IllegalArgumentException("frame belongs to another source");
+        }
+        if (frame.mState != Frame.STATE_ACQUIRED) {
+            throw new IllegalStateException("frame in state " + frame.mState +
+                    ", expected " + Frame.STATE_ACQUIRED);
+        }
+        frame.mState = Frame.STATE_FREE;
+    }
+
+    /**
+     * Returns true once every frame has been handed out and the replay doesn't loop.
+     */
+    public boolean isFinished() {
+        return !mLoop && mPass > 0;
+    }
+
+    /**
+     * Returns the number of frames in the recording.
+     */
+    public int getFrameCount() {
+        return mFrames.length;
+    }
+
+    /**
+     * Returns the number of frames skipped under native pacing because the consumer fell
+     * behind.
+     */
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
@@ -0,0 +1,397 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draws synthetic camera frames, for load testing without a camera.
+ * <p>
+ * Every pattern changes from frame to frame, so nothing downstream can get away with less
+ * work than a live camera would cause.  Frames can be any size, in any {@link FrameFormat};
+ * YUV frames are BT.601 limited range ({@link YuvColorMatrix#BT601}).  The frame is split
+ * into bands of rows that are drawn in parallel on a fork/join pool, so the generation
+ * rate scales with the number of cores.  Tasks and scratch rows are reused;
+ * once the geometry settles, nothing is allocated per frame.
+ * <p>
+ * Not thread-safe; call generate() from one thread.
+ */
+public class TestPatternGenerator {
+    /**
+     * What to draw.
+     */
+    public enum Pattern {
+        /** Eight color bars scrolling to the left. */
+        BARS,
+        /** Red ramp across, green ramp down, blue cycling over time. */
+        GRADIENT,
+        /** Uniform random pixels, different every frame; defeats any compression or reuse. */
+        NOISE,
+        /**
+         * The timestamp as a strip of TIMESTAMP_BITS black/white cells across the top, over
+         * the gradient.  readTimestamp() recovers it, e.g. from a read-back output frame.
+         */
+        TIMESTAMP
+    }
+
+    /** Number of cells in the TIMESTAMP strip, most significant bit first. */
+    public static final int TIMESTAMP_BITS = 64;
+
+    private static final int[] BAR_COLORS = {
+            0xffffff, 0xffff00, 0x00ffff, 0x00ff00, 0xff00ff, 0xff0000, 0x0000ff, 0x000000 };
+    // How far the bars move per frame, in pixels.
+    private static final int BAR_SPEED = 4;
+    // Bands per pool thread; a few each evens out the load.
+    private static final int BANDS_PER_THREAD = 4;
+    // Duplicates of the frame buffers kept by each band; rings are rarely larger.
+    private static final int VIEW_CACHE_SIZE = 4;
+
+    private final ForkJoinPool mPool;
+    private final TimingStats mStats;
+
+    // Geometry the bands are laid out for.
+    private FrameFormat mFormat;
+    private int mWidth;
+    private int mHeight;
+    private BandTask[] mBands;
+    // Per column: the red ramp of GRADIENT, and the bars of BARS before scrolling.
+    private int[] mRamp;
+    private int[] mBars;
+    private final AllBandsTask mRoot = new AllBandsTask();
+
+    // The frame being generated.
+    private ByteBuffer mBuffer;
+    private Pattern mPattern;
+    private long mFrameIndex;
+    private long mTimestampNanos;
+
+    /**
+     * Generates on the common fork/join pool, which has a thread per core.
+     *
+     * @param statsWindow Number of frames summarized by each getGenerateStats() window.
+     */
+    public TestPatternGenerator(int statsWindow) {
+        this(ForkJoinPool.commonPool(), statsWindow);
+    }
+
+    /**
+     * @param pool Pool to draw on.
+     * @param statsWindow Number of frames summarized by each getGenerateStats() window.
+     */
+    public TestPatternGenerator(ForkJoinPool pool, int statsWindow) {
+        mPool = pool;
+        mStats = new TimingStats("test pattern", statsWindow);
+    }
+
+    /**
+     * Sets the frame's geometry and draws the pattern into it.
+     *
+     * @param frameIndex Position in the sequence; drives the motion.
+     * @param timestampNanos Value encoded by the TIMESTAMP pattern.
+     * @throws IllegalArgumentException if the frame doesn't fit in the buffer, or the
+     *     frame is narrower than TIMESTAMP_BITS for the TIMESTAMP pattern.
+     */
+    public void generate(Frame frame, Pattern pattern, FrameFormat format, int width,
+            int height, long frameIndex, long timestampNanos) {
+        long start = System.nanoTime();
+        if (pattern == Pattern.TIMESTAMP && width < TIMESTAMP_BITS) {
+            throw new IllegalArgumentException("TIMESTAMP needs at least " + TIMESTAMP_BITS +
+                    " columns, got " + width);
+        }
+        frame.setGeometry(format, width, height);
+        if (format != mFormat || width != mWidth || height != mHeight) {
+            layOutBands(format, width, height);
+        }
+
+        mBuffer = frame.getBuffer();
+        mPattern = pattern;
+        mFrameIndex = frameIndex;
+        mTimestampNanos = timestampNanos;
+        for (BandTask band : mBands) {
+            band.reinitialize();
+        }
+        mRoot.reinitialize();
+        mPool.invoke(mRoot);
+        mBuffer = null;
+        mStats.add(System.nanoTime() - start);
+    }
+
+    private void layOutBands(FrameFormat format, int width, int height) {
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        int bandCount = Math.min(mPool.getParallelism() * BANDS_PER_THREAD, (height + 1) / 2);
+        // An even number of rows per band keeps each 4:2:0 chroma row inside one band.
+        int rowsPerBand = ((height + bandCount - 1) / bandCount + 1) & ~1;
+        bandCount = (height + rowsPerBand - 1) / rowsPerBand;
+        mBands = new BandTask[bandCount];
+        for (int i = 0; i < bandCount; i++) {
+            mBands[i] = new BandTask(i * rowsPerBand, Math.min((i + 1) * rowsPerBand, height));
+        }
+
+        mRamp = new int[width];
+        mBars = new int[width];
+        int barWidth = Math.max(1, width / BAR_COLORS.length);
+        for (int x = 0; x < width; x++) {
+            mRamp[x] = (width > 1 ? x * 255 / (width - 1) : 0) << 16;
+            mBars[x] = BAR_COLORS[Math.min(x / barWidth, BAR_COLORS.length - 1)];
+        }
+    }
+
+    /**
+     * Returns the time generate() takes, in nanoseconds.
+     */
+    public TimingStats getGenerateStats() {
+        return mStats;
+    }
+
+    /**
+     * Recovers the timestamp drawn by the TIMESTAMP pattern from an RGB888 frame, by
+     * sampling the middle of each cell.  The cells are big enough to survive scaling and
+     * lossy compression, as long as the frame still covers the whole picture.
+     */
+    public static long readTimestamp(ByteBuffer rgb, int width, int height) {
+        int cellWidth = width / TIMESTAMP_BITS;
+        int y = getTimestampCellHeight(height) / 2;
+        long value = 0;
+        for (int bit = 0; bit < TIMESTAMP_BITS; bit++) {
+            int x = bit * cellWidth + cellWidth / 2;
+            int green = rgb.get((y * width + x) * 3 + 1) & 0xff;
+            value = value << 1 | (green >= 128 ? 1 : 0);
+        }
+        return value;
+    }
+
+    private static int getTimestampCellHeight(int height) {
+        return Math.max(2, height / 16);
+    }
+
+    /**
+     * Computes row y of the pattern as 0xRRGGBB values.
+     */
+    @SuppressWarnings("fallthrough")
+    private void drawRow(int y, int[] rgb) {
+        int width = mWidth;
+        switch (mPattern) {
+            case BARS: {
+                int shift = (int) ((mFrameIndex * BAR_SPEED) % width);
+                System.arraycopy(mBars, shift, rgb, 0, width - shift);
+                System.arraycopy(mBars, 0, rgb, width - shift, shift);
+                break;
+            }
+            case NOISE: {
+                int seed = (int) (mFrameIndex * 0xc2b2ae3dL) ^ y * 0x27d4eb2f;
+                for (int x = 0; x < width; x++) {
+                    // murmur3's finalizer: every input bit affects every output bit.
+                    int h = seed + x * 0x9e3779b1;
+                    h = (h ^ (h >>> 16)) * 0x85ebca6b;
+                    h = (h ^ (h >>> 13)) * 0xc2b2ae35;
+                    rgb[x] = (h ^ (h >>> 16)) & 0xffffff;
+                }
+                break;
+            }
+            case TIMESTAMP:
+                if (y < getTimestampCellHeight(mHeight)) {
+                    int cellWidth = width / TIMESTAMP_BITS;
+                    for (int x = 0; x < width; x++) {
+                        int bit = x / cellWidth;
+                        rgb[x] = bit >= TIMESTAMP_BITS ? 0x808080 :
+                                (mTimestampNanos >>> (TIMESTAMP_BITS - 1 - bit) & 1) != 0 ?
+                                        0xffffff : 0x000000;
+                    }
+                    break;
+                }
+                // fall through: gradient below the strip
+            case GRADIENT: {
+                int green = mHeight > 1 ? y * 255 / (mHeight - 1) : 0;
+                int blue = (int) (mFrameIndex * 2 & 0xff);
+                int base = green << 8 | blue;
+                for (int x = 0; x < width; x++) {
+                    rgb[x] = mRamp[x] | base;
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("unknown pattern " + mPattern);
+        }
+    }
+
+    private static int toY(int rgb) {
+        int r = rgb >> 16 & 0xff, g = rgb >> 8 & 0xff, b = rgb & 0xff;
+        return ((66 * r + 129 * g + 25 * b + 128) >> 8) + 16;
+    }
+
+    private static int toU(int rgb) {
+        int r = rgb >> 16 & 0xff, g = rgb >> 8 & 0xff, b = rgb & 0xff;
+        return ((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128;
+    }
+
+    private static int toV(int rgb) {
+        int r = rgb >> 16 & 0xff, g = rgb >> 8 & 0xff, b = rgb & 0xff;
+        return ((112 * r - 94 * g - 18 * b + 128) >> 8) + 128;
+    }
+
+    /**
+     * Forks every band and waits for all of them.
+     */
+    private class AllBandsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            invokeAll(mBands);
+        }
+    }
+
+    /**
+     * Draws rows [top, bottom).
+     */
+    private class BandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int top;
+        final int bottom;
+        final int[] rgb = new int[mWidth];
+        final byte[] row;
+        final byte[] chroma;
+
+        // The band writes through its own duplicates of the frame buffers, since relative
+        // bulk puts move the position.  Kept across frames, so a ring of buffers costs one
+        // duplicate each, once.
+        final ByteBuffer[] targets = new ByteBuffer[VIEW_CACHE_SIZE];
+        final ByteBuffer[] views = new ByteBuffer[VIEW_CACHE_SIZE];
+        int nextView;
+
+        BandTask(int top, int bottom) {
+            this.top = top;
+            this.bottom = bottom;
+            int rowBytes = mFormat.isYuv() ? FrameFormat.getChromaWidth(mWidth) * 4 :
+                    mWidth * mFormat.getBytesPerPixel();
+            row = new byte[rowBytes];
+            chroma = new byte[FrameFormat.getChromaWidth(mWidth) * 2];
+        }
+
+        @Override
+        protected void compute() {
+            ByteBuffer out = view(mBuffer);
+            for (int y = top; y < bottom; y++) {
+                drawRow(y, rgb);
+                pack(out, y);
+            }
+        }
+
+        private ByteBuffer view(ByteBuffer target) {
+            for (int i = 0; i < VIEW_CACHE_SIZE; i++) {
+                if (targets[i] == target) {
+                    return views[i];
+                }
+            }
+            int slot = nextView;
+            nextView = (nextView + 1) % VIEW_CACHE_SIZE;
+            targets[slot] = target;
+            views[slot] = target.duplicate();
+            return views[slot];
+        }
+
+        /**
+         * Converts the RGB row to the frame format and stores it.
+         */
+        private void pack(ByteBuffer out, int y) {
+            int width = mWidth;
+            int chromaWidth = FrameFormat.getChromaWidth(width);
+            out.clear();
+            switch (mFormat) {
+                case RGB888:
+                    for (int x = 0, i = 0; x < width; x++) {
+                        int c = rgb[x];
+                        row[i++] = (byte) (c >> 16);
+                        row[i++] = (byte) (c >> 8);
+                        row[i++] = (byte) c;
+                    }
+                    out.position(y * width * 3);
+                    out.put(row, 0, width * 3);
+                    break;
+                case YUYV:
+                    for (int cx = 0, i = 0; cx < chromaWidth; cx++) {
+                        int left = rgb[2 * cx];
+                        int right = rgb[Math.min(2 * cx + 1, width - 1)];
+                        row[i++] = (byte) toY(left);
+                        row[i++] = (byte) toU(left);
+                        row[i++] = (byte) toY(right);
+                        row[i++] = (byte) toV(left);
+                    }
+                    out.position(y * chromaWidth * 4);
+                    out.put(row, 0, chromaWidth * 4);
+                    break;
+                case NV12:
+                case I420: {
+                    for (int x = 0; x < width; x++) {
+                        row[x] = (byte) toY(rgb[x]);
+                    }
+                    out.position(y * width);
+                    out.put(row, 0, width);
+                    if ((y & 1) != 0) {
+                        break;
+                    }
+                    // Chroma comes from the top-left pixel of each 2x2 block.
+                    int chromaHeight = FrameFormat.getChromaHeight(mHeight);
+                    int chromaStart = width * mHeight;
+                    int cy = y / 2;
+                    if (mFormat == FrameFormat.NV12) {
+                        for (int cx = 0; cx < chromaWidth; cx++) {
+                            chroma[2 * cx] = (byte) toU(rgb[2 * cx]);
+                            chroma[2 * cx + 1] = (byte) toV(rgb[2 * cx]);
+                        }
+                        out.position(chromaStart + cy * chromaWidth * 2);
+                        out.put(chroma, 0, chromaWidth * 2);
+                    } else {
+                        for (int cx = 0; cx < chromaWidth; cx++) {
+                            chroma[cx] = (byte) toU(rgb[2 * cx]);
+                            chroma[chromaWidth + cx] = (byte) toV(rgb[2 * cx]);
+                        }
+                        out.position(chromaStart + cy * chromaWidth);
+                        out.put(chroma, 0, chromaWidth);
+                        out.position(chromaStart + (chromaHeight + cy) * chromaWidth);
+                        out.put(chroma, chromaWidth, chromaWidth);
+                    }
+                    break;
+                }
+                case MONO10:
+                case MONO12:
+                case MONO16: {
+                    // Luma scaled to the full 16 bits, then down to the format's depth.
+                    int shift = 16 - mFormat.getMonoBits();
+                    for (int x = 0, i = 0; x < width; x++) {
+                        int c = rgb[x];
+                        int luma = (77 * (c >> 16 & 0xff) + 150 * (c >> 8 & 0xff) +
+                                29 * (c & 0xff)) * 257 >> 8 >> shift;
+                        row[i++] = (byte) luma;
+                        row[i++] = (byte) (luma >> 8);
+                    }
+                    out.position(y * width * 2);
+                    out.put(row, 0, width * 2);
+                    break;
+                }
+                default: {
+                    // Bayer: keep the one channel each site samples.
+                    int redX = mFormat.getBayerRedX();
+                    int redY = mFormat.getBayerRedY();
+                    for (int x = 0; x < width; x++) {
+                        int shift;
+                        if ((x & 1) == redX && (y & 1) == redY) {
+                            shift = 16;
+                        } else if ((x & 1) != redX && (y & 1) != redY) {
+                            shift = 0;
+                        } else {
+                            shift = 8;
+                        }
+                        row[x] = (byte) (rgb[x] >> shift);
+                    }
+                    out.position(y * width);
+                    out.put(row, 0, width);
+                    break;
+                }
+            }
+        }
+    }
+}
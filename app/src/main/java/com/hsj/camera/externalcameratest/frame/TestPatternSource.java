@@ -0,0 +1,162 @@
+package com.hsj.camera.externalcameratest.frame;
+
+/**
+ * Frame source that stands in for the camera with generated test patterns.
+ * <p>
+ * A producer thread draws frames with a {@link TestPatternGenerator} into a
+ * {@link FrameRing} at a fixed rate, timestamped when drawing starts.  The schedule is kept
+ * against absolute deadlines, so it doesn't drift; a frame that takes longer than its interval
+ * is counted as late, and if the producer falls a whole interval behind it starts over from
+ * the current time rather than bursting to catch up.
+ */
+public class TestPatternSource implements FrameSource {
+    private static final String THREAD_NAME = "TestPatternSource";
+
+    private final FrameRing mRing;
+    private final TestPatternGenerator mGenerator;
+    private final FrameFormat mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mIntervalNanos;
+
+    private volatile TestPatternGenerator.Pattern mPattern = TestPatternGenerator.Pattern.BARS;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    // ----- written by the producer -----
+    private long mFrameIndex;
+    private volatile long mLateFrames;
+    private volatile long mSkippedFrames;
+
+    /**
+     * Allocates the buffers.  Call start() to begin producing.
+     *
+     * @param bufferCount Number of frames in the ring; see {@link FrameRing}.
+     */
+    public TestPatternSource(FrameFormat format, int width, int height, int frameRate,
+            int bufferCount) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("frame rate must be positive, got " + frameRate);
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mIntervalNanos = 1_000_000_000L / frameRate;
+        mRing = new FrameRing(bufferCount, format.getFrameSize(width, height));
+        mGenerator = new TestPatternGenerator(frameRate);
+    }
+
+    /**
+     * Selects the pattern.  May be called from any thread; applies from the next frame.
+     */
+    public void setPattern(TestPatternGenerator.Pattern pattern) {
+        mPattern = pattern;
+    }
+
+    /**
+     * Starts the producer thread.  Does nothing if it's already running.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this::produce, THREAD_NAME);
+        mThread.start();
+    }
+
+    /**
+     * Stops the producer thread and waits for it to exit.  Frames already queued can still
+     * be acquired.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    private void produce() {
+        long deadline = System.nanoTime();
+        while (mRunning) {
+            produceFrame(System.nanoTime());
+            deadline += mIntervalNanos;
+            long wait = deadline - System.nanoTime();
+            if (wait < 0) {
+                mLateFrames++;
+                if (wait < -mIntervalNanos) {
+                    deadline = System.nanoTime();
+                }
+                continue;
+            }
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Draws and queues one frame, if a buffer is free.  (Producer side; start() calls this
+     * on its own thread.)
+     *
+     * @return false if every buffer was busy and the frame was skipped.
+     */
+    public boolean produceFrame(long timestampNanos) {
+        Frame frame = mRing.dequeueFree();
+        if (frame == null) {
+            mSkippedFrames++;
+            return false;
+        }
+        mGenerator.generate(frame, mPattern, mFormat, mWidth, mHeight, mFrameIndex++,
+                timestampNanos);
+        mRing.queueFilled(frame, timestampNanos);
+        return true;
+    }
+
+    @Override
+    public Frame acquireFrame() {
+        return mRing.acquireFrame();
+    }
+
+    @Override
+    public void releaseFrame(Frame frame) {
+        mRing.releaseFrame(frame);
+    }
+
+    /**
+     * Returns the time spent drawing each frame.
+     */
+    public TimingStats getGenerateStats() {
+        return mGenerator.getGenerateStats();
+    }
+
+    /**
+     * Returns the number of frames that weren't ready by their deadline.
+     */
+    public long getLateFrameCount() {
+        return mLateFrames;
+    }
+
+    /**
+     * Returns the number of frames not drawn because the consumer held every buffer.
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Returns the number of frames replaced by a newer one before the consumer got to them.
+     */
+    public long getDroppedCount() {
+        return mRing.getDroppedCount();
+    }
+}
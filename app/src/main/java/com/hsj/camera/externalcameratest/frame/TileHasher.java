@@ -0,0 +1,246 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the parts of a frame that changed since the previous one.
+ * <p>
+ * The frame is divided into square tiles (the last row and column may be smaller), and each
+ * tile gets a 64-bit hash of its bytes.  A tile is dirty if its hash differs from the one
+ * the previous frame had there.  Everything is dirty after reset() or when the geometry
+ * changes, so the first frame is always uploaded whole.  Two different tiles hashing the same
+ * is possible in principle but, at 2^-64 per tile, not something a viewer will ever see.
+ * <p>
+ * Each row of tiles is hashed as a separate fork/join task, so a frame is spread across all
+ * the pool's threads.  A task walks its band of the frame row by row, which keeps the reads
+ * sequential.  The tasks and hash tables are reused, so once the geometry settles nothing
+ * is allocated per frame.
+ * <p>
+ * Only layouts that store whole pixels are supported ({@link FrameFormat#getBytesPerPixel()}).
+ * Not thread-safe; call from one thread, normally the render thread.
+ */
+public class TileHasher {
+    private static final long SEED = 0x2545f4914f6cdd1dL;
+    private static final long MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private final int mTileSize;
+    private final ForkJoinPool mPool;
+    private final TimingStats mHashStats;
+
+    // Geometry of the hashed frames.
+    private FrameFormat mFormat;
+    private int mWidth;
+    private int mHeight;
+    private int mBytesPerPixel;
+    private int mColumns;
+    private int mRows;
+
+    // Per tile, row-major.  Written by the tasks, each to its own row of tiles.
+    private long[] mHashes;
+    private boolean[] mDirty;
+    private boolean mValid;
+    private int mDirtyCount;
+
+    private TileRowTask[] mTasks;
+    private final AllRowsTask mRoot = new AllRowsTask();
+    private ByteBuffer mBuffer;
+
+    /**
+     * Hashes on the common fork/join pool, which has a thread per core.
+     *
+     * @param tileSize Width and height of the tiles, in pixels.
+     * @param statsWindow Number of frames summarized by each getHashStats() window.
+     */
+    public TileHasher(int tileSize, int statsWindow) {
+        this(tileSize, ForkJoinPool.commonPool(), statsWindow);
+    }
+
+    /**
+     * @param tileSize Width and height of the tiles, in pixels.
+     * @param pool Pool to run the hashing on.
+     * @param statsWindow Number of frames summarized by each getHashStats() window.
+     */
+    public TileHasher(int tileSize, ForkJoinPool pool, int statsWindow) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tile size must be positive, got " + tileSize);
+        }
+        mTileSize = tileSize;
+        mPool = pool;
+        mHashStats = new TimingStats("tile hash", statsWindow);
+    }
+
+    /**
+     * Hashes the frame and compares it with the previous one.  The frame's buffer is not
+     * modified or referenced afterwards.
+     *
+     * @return The number of dirty tiles.
+     */
+    public int update(Frame frame) {
+        long start = System.nanoTime();
+        if (frame.getFormat() != mFormat || frame.getWidth() != mWidth ||
+                frame.getHeight() != mHeight) {
+            setGeometry(frame.getFormat(), frame.getWidth(), frame.getHeight());
+        }
+
+        mBuffer = frame.getBuffer();
+        for (TileRowTask task : mTasks) {
+            task.reinitialize();
+        }
+        mRoot.reinitialize();
+        mPool.invoke(mRoot);
+        mBuffer = null;
+
+        mDirtyCount = 0;
+        for (TileRowTask task : mTasks) {
+            mDirtyCount += task.dirtyCount;
+        }
+        mValid = true;
+        mHashStats.add(System.nanoTime() - start);
+        return mDirtyCount;
+    }
+
+    private void setGeometry(FrameFormat format, int width, int height) {
+        mBytesPerPixel = format.getBytesPerPixel();
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mColumns = (width + mTileSize - 1) / mTileSize;
+        mRows = (height + mTileSize - 1) / mTileSize;
+        mHashes = new long[mColumns * mRows];
+        mDirty = new boolean[mColumns * mRows];
+        mTasks = new TileRowTask[mRows];
+        for (int row = 0; row < mRows; row++) {
+            mTasks[row] = new TileRowTask(row);
+        }
+        mValid = false;
+    }
+
+    /**
+     * Forgets the previous frame, so every tile of the next one is dirty.  Call when the
+     * destination lost its contents, e.g. because the texture storage was reallocated.
+     */
+    public void reset() {
+        mValid = false;
+    }
+
+    /**
+     * Hashes the tiles of one row of tiles and marks the changed ones.
+     *
+     * @return The number of dirty tiles in the row.
+     */
+    private int hashTileRow(ByteBuffer buf, int row, long[] hashes) {
+        int rowBytes = mWidth * mBytesPerPixel;
+        int tileBytes = mTileSize * mBytesPerPixel;
+        int top = row * mTileSize;
+        int bottom = Math.min(top + mTileSize, mHeight);
+
+        Arrays.fill(hashes, SEED);
+        for (int y = top; y < bottom; y++) {
+            int rowStart = y * rowBytes;
+            int rowEnd = rowStart + rowBytes;
+            for (int column = 0; column < mColumns; column++) {
+                int p = rowStart + column * tileBytes;
+                int end = Math.min(p + tileBytes, rowEnd);
+                long h = hashes[column];
+                for (; p + 8 <= end; p += 8) {
+                    h = mix(h, buf.getLong(p));
+                }
+                for (; p < end; p++) {
+                    h = mix(h, buf.get(p));
+                }
+                hashes[column] = h;
+            }
+        }
+
+        int dirtyCount = 0;
+        int index = row * mColumns;
+        for (int column = 0; column < mColumns; column++, index++) {
+            boolean dirty = !mValid || mHashes[index] != hashes[column];
+            mHashes[index] = hashes[column];
+            mDirty[index] = dirty;
+            if (dirty) {
+                dirtyCount++;
+            }
+        }
+        return dirtyCount;
+    }
+
+    private static long mix(long h, long value) {
+        return Long.rotateLeft(h ^ value, 27) * MULTIPLIER;
+    }
+
+    /**
+     * Returns true if the tile changed in the last frame passed to update().
+     */
+    public boolean isDirty(int column, int row) {
+        return mDirty[row * mColumns + column];
+    }
+
+    /**
+     * Returns the number of dirty tiles in the last frame passed to update().
+     */
+    public int getDirtyTileCount() {
+        return mDirtyCount;
+    }
+
+    /**
+     * Returns the tile width and height, in pixels.
+     */
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    /**
+     * Returns the number of tiles across the last frame passed to update().
+     */
+    public int getColumnCount() {
+        return mColumns;
+    }
+
+    /**
+     * Returns the number of tiles down the last frame passed to update().
+     */
+    public int getRowCount() {
+        return mRows;
+    }
+
+    /**
+     * Returns the time update() takes, in nanoseconds.
+     */
+    public TimingStats getHashStats() {
+        return mHashStats;
+    }
+
+    /**
+     * Forks one task per row of tiles and waits for all of them.
+     */
+    private class AllRowsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            invokeAll(mTasks);
+        }
+    }
+
+    private class TileRowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int row;
+        final long[] hashes = new long[mColumns];
+        int dirtyCount;
+
+        TileRowTask(int row) {
+            this.row = row;
+        }
+
+        @Override
+        protected void compute() {
+            // Absolute reads only, so the tasks can share the buffer.
+            dirtyCount = hashTileRow(mBuffer, row, hashes);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.util.Locale;
+
+/**
+ * Collects per-frame durations and summarizes them over fixed windows of frames.
+ * <p>
+ * Samples must come from a single thread (normally the render thread).  The summary of the
+ * last completed window may be read from any thread.
+ */
+public class TimingStats {
+    private final String mName;
+    private final int mWindow;
+
+    // ----- accessed by the sampling thread -----
+    private int mCount;
+    private long mSumNanos;
+    private long mMaxNanos;
+
+    // ----- summary of the last completed window -----
+    private volatile long mAverageNanos;
+    private volatile long mWindowMaxNanos;
+    private volatile long mWindows;
+
+    /**
+     * @param name Label used by toString().
+     * @param window Number of samples per summary, e.g. the frame rate for one-second windows.
+     */
+    public TimingStats(String name, int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        mName = name;
+        mWindow = window;
+    }
+
+    /**
+     * Adds one sample.
+     *
+     * @return true if this sample completed a window, i.e. a new summary is available.
+     */
+    public boolean add(long nanos) {
+        mSumNanos += nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+        if (++mCount < mWindow) {
+            return false;
+        }
+        mAverageNanos = mSumNanos / mCount;
+        mWindowMaxNanos = mMaxNanos;
+        mWindows++;
+        mCount = 0;
+        mSumNanos = 0;
+        mMaxNanos = 0;
+        return true;
+    }
+
+    /**
+     * Returns the mean of the last completed window, in nanoseconds.
+     */
+    public long getAverageNanos() {
+        return mAverageNanos;
+    }
+
+    /**
+     * Returns the largest sample of the last completed window, in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return mWindowMaxNanos;
+    }
+
+    /**
+     * Returns the number of windows completed so far.
+     */
+    public long getWindowCount() {
+        return mWindows;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: avg %.2f ms, max %.2f ms over %d frames",
+                mName, mAverageNanos / 1e6, mWindowMaxNanos / 1e6, mWindow);
+    }
+}
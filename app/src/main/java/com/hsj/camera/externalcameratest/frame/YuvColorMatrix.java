@@ -0,0 +1,56 @@
+package com.hsj.camera.externalcameratest.frame;
+
+/**
+ * Y'CbCr to RGB conversions for 8-bit data.
+ * <p>
+ * The same coefficients feed the GLSL conversion in Texture2dProgram and the reference
+ * {@link YuvConverter}, so the CPU result tells what the shader should produce.
+ */
+public enum YuvColorMatrix {
+    /** ITU-R BT.601, standard definition, limited range; what most USB cameras use. */
+    BT601(0.299f, 0.114f, false),
+    /** ITU-R BT.709, high definition, limited range. */
+    BT709(0.2126f, 0.0722f, false),
+    /** BT.601 coefficients over the full 0-255 range, as JPEG (JFIF) and so MJPEG use. */
+    BT601_FULL(0.299f, 0.114f, true);
+
+    // Offsets subtracted from normalized (Y, U, V) before multiplying.
+    private final float[] mOffset;
+    // 3x3, column-major (as glUniformMatrix3fv wants it): rgb = M * (yuv - offset).
+    private final float[] mMatrix;
+
+    YuvColorMatrix(float kr, float kb, boolean fullRange) {
+        float kg = 1f - kr - kb;
+        float yScale = fullRange ? 1f : 255f / 219f;
+        float cScale = fullRange ? 1f : 255f / 224f;
+        mOffset = new float[] { fullRange ? 0f : 16f / 255f, 128f / 255f, 128f / 255f };
+
+        float vToR = cScale * 2f * (1f - kr);
+        float uToB = cScale * 2f * (1f - kb);
+        float uToG = -cScale * 2f * (1f - kb) * kb / kg;
+        float vToG = -cScale * 2f * (1f - kr) * kr / kg;
+        mMatrix = new float[] {
+                yScale, yScale, yScale,     // Y column
+                0f,     uToG,   uToB,       // U column
+                vToR,   vToG,   0f          // V column
+        };
+    }
+
+    /**
+     * Returns the conversion matrix, 3x3 column-major.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public float[] getMatrix() {
+        return mMatrix;
+    }
+
+    /**
+     * Returns the offsets subtracted from normalized (Y, U, V) before applying the matrix.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
+    public float[] getOffset() {
+        return mOffset;
+    }
+}
@@ -0,0 +1,105 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure-Java Y'CbCr to RGB conversion.
+ * <p>
+ * This mirrors the fragment shaders in Texture2dProgram (same matrix, same chroma siting:
+ * each chroma sample covers a 2x2 block for 4:2:0 and a 2x1 pair for 4:2:2, no
+ * interpolation) so it can serve as the reference for their output, and as a software
+ * fallback.  Output is packed 0xAARRGGBB, one int per pixel.
+ */
+public class YuvConverter {
+    private final float[] mMatrix;
+    private final float[] mOffset;
+
+    public YuvConverter(YuvColorMatrix colorMatrix) {
+        mMatrix = colorMatrix.getMatrix();
+        mOffset = colorMatrix.getOffset();
+    }
+
+    /**
+     * Converts a whole frame.
+     *
+     * @param out Destination, at least width * height ints.
+     */
+    public void convert(ByteBuffer src, FrameFormat format, int width, int height, int[] out) {
+        for (int row = 0; row < height; row++) {
+            convertRow(src, format, width, height, row, out, row * width);
+        }
+    }
+
+    /**
+     * Converts one row of a frame.  Reads src with absolute gets, so its position is left
+     * alone and several threads may convert different rows at once.
+     *
+     * @param row Row to convert, from the top.
+     * @param out Destination, written from outOffset for width ints.
+     */
+    public void convertRow(ByteBuffer src, FrameFormat format, int width, int height, int row,
+            int[] out, int outOffset) {
+        int chromaWidth = FrameFormat.getChromaWidth(width);
+        int chromaRow = row / 2;
+        switch (format) {
+            case NV12: {
+                int yBase = row * width;
+                int uvBase = width * height + chromaRow * chromaWidth * 2;
+                for (int x = 0; x < width; x++) {
+                    int uv = uvBase + (x / 2) * 2;
+                    out[outOffset + x] = toArgb(src.get(yBase + x) & 0xff,
+                            src.get(uv) & 0xff, src.get(uv + 1) & 0xff);
+                }
+                break;
+            }
+            case I420: {
+                int yBase = row * width;
+                int chromaSize = chromaWidth * FrameFormat.getChromaHeight(height);
+                int uBase = width * height + chromaRow * chromaWidth;
+                int vBase = uBase + chromaSize;
+                for (int x = 0; x < width; x++) {
+                    out[outOffset + x] = toArgb(src.get(yBase + x) & 0xff,
+                            src.get(uBase + x / 2) & 0xff, src.get(vBase + x / 2) & 0xff);
+                }
+                break;
+            }
+            case YUYV: {
+                int base = row * chromaWidth * 4;
+                for (int x = 0; x < width; x++) {
+                    int pair = base + (x / 2) * 4;
+                    int y = src.get(pair + ((x & 1) == 0 ? 0 : 2)) & 0xff;
+                    out[outOffset + x] = toArgb(y, src.get(pair + 1) & 0xff,
+                            src.get(pair + 3) & 0xff);
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("not a YUV format: " + format);
+        }
+    }
+
+    /**
+     * Converts one 8-bit Y'CbCr sample to opaque 0xAARRGGBB.
+     */
+    public int toArgb(int y, int u, int v) {
+        float[] m = mMatrix;
+        float fy = y / 255f - mOffset[0];
+        float fu = u / 255f - mOffset[1];
+        float fv = v / 255f - mOffset[2];
+        int r = toByte(m[0] * fy + m[3] * fu + m[6] * fv);
+        int g = toByte(m[1] * fy + m[4] * fu + m[7] * fv);
+        int b = toByte(m[2] * fy + m[5] * fu + m[8] * fv);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    // Same clamp and rounding as writing a float color to an 8-bit framebuffer.
+    private static int toByte(float value) {
+        if (value <= 0f) {
+            return 0;
+        }
+        if (value >= 1f) {
+            return 255;
+        }
+        return (int) (value * 255f + 0.5f);
+    }
+}
@@ -0,0 +1,83 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+
+import com.hsj.camera.externalcameratest.frame.MonoWindow;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The 256x1 texture holding a {@link MonoWindow.ColorMap}, for
+ * {@link Texture2dProgram.ProgramType#TEXTURE_MONO16}.  Like {@link LutTexture}, it lives in
+ * the share group but must be bound in every context that draws with it.
+ */
+public class ColorMapTexture {
+    /** Texture unit the map is bound to; after the LUT's. */
+    public static final int COLOR_MAP_UNIT = LutTexture.LUT_UNIT + 1;
+
+    private final int[] mTexture = new int[1];
+    private boolean mTextureCreated;
+    private MonoWindow.ColorMap mColorMap;
+
+    /**
+     * Uploads a map, unless it's the one already uploaded.  Leaves GL_TEXTURE0 active.
+     *
+     * @return true if anything was uploaded.
+     */
+    public boolean upload(MonoWindow.ColorMap colorMap) {
+        if (colorMap == mColorMap) {
+            return false;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + COLOR_MAP_UNIT);
+        if (!mTextureCreated) {
+            GLES20.glGenTextures(1, mTexture, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+            // Linear: the program samples between entries, as MonoWindow.apply() does.
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            mTextureCreated = true;
+        } else {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, 256, 1, 0, GLES20.GL_RGB,
+                GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(colorMap.getTable()));
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GlUtil.checkGlError("color map upload");
+        mColorMap = colorMap;
+        return true;
+    }
+
+    /**
+     * Binds the texture to COLOR_MAP_UNIT in the current context.  Leaves GL_TEXTURE0
+     * active.
+     */
+    public void bind() {
+        if (!mTextureCreated) {
+            return;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + COLOR_MAP_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    /**
+     * Releases the texture.
+     *
+     * @param doEglCleanup If true, the texture is deleted; pass false if the EGL context is
+     *     being destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup && mTextureCreated) {
+            GLES20.glDeleteTextures(1, mTexture, 0);
+        }
+        mTextureCreated = false;
+        mColorMap = null;
+    }
+}
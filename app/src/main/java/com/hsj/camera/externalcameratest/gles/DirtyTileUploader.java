@@ -0,0 +1,190 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.TileHasher;
+import com.hsj.camera.externalcameratest.frame.TimingStats;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Uploads only the tiles of a frame that changed since the previous frame.
+ * <p>
+ * Meant for mostly static scenes (a microscope stage, a document camera), where re-sending
+ * the whole frame every time is wasted bandwidth.  Each frame is hashed by a
+ * {@link TileHasher}; runs of adjacent dirty tiles in a row of tiles are then copied with one
+ * glTexSubImage2D() each.  If nothing changed nothing is uploaded, and
+ * getLastDirtyTileCount() returns 0 so the caller can skip the redraw as well.
+ * <p>
+ * On GLES 3 the sub-rectangles are read straight out of the frame with GL_UNPACK_ROW_LENGTH.
+ * GLES 2 can't skip over the rest of a row, so each rectangle is first packed into a
+ * staging buffer.
+ */
+public class DirtyTileUploader implements TextureUploader {
+    private final TileHasher mHasher;
+    private final boolean mUseRowLength;
+    private final TimingStats mUploadStats;
+
+    // Tight copy of one sub-rectangle, for GLES 2.
+    private ByteBuffer mStaging;
+
+    // Texture storage we've allocated, or -1 if none.
+    private int mStorageTextureId = -1;
+    private int mStorageWidth;
+    private int mStorageHeight;
+    private FrameFormat mStorageFormat;
+
+    private int mLastDirtyTiles;
+    private int mLastRects;
+
+    /**
+     * @param hasher Hasher that decides which tiles to upload.  It should not be shared.
+     * @param glVersion Major GLES version of the context.
+     * @param statsWindow Number of frames summarized by each getUploadStats() window.
+     */
+    public DirtyTileUploader(TileHasher hasher, int glVersion, int statsWindow) {
+        mHasher = hasher;
+        mUseRowLength = glVersion >= 3;
+        mUploadStats = new TimingStats("dirty-tile upload", statsWindow);
+    }
+
+    @Override
+    public void upload(int textureId, Frame frame) {
+        long start = System.nanoTime();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int format = TexSubImageUploader.getGlFormat(frame.getFormat());
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (textureId != mStorageTextureId || width != mStorageWidth ||
+                height != mStorageHeight || frame.getFormat() != mStorageFormat) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                    GLES20.GL_UNSIGNED_BYTE, null);
+            mStorageTextureId = textureId;
+            mStorageWidth = width;
+            mStorageHeight = height;
+            mStorageFormat = frame.getFormat();
+            // The new storage is undefined, so every tile has to be sent.
+            mHasher.reset();
+        }
+
+        mLastDirtyTiles = mHasher.update(frame);
+        mLastRects = 0;
+        int columns = mHasher.getColumnCount();
+        int rows = mHasher.getRowCount();
+        if (mLastDirtyTiles == columns * rows) {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format,
+                    GLES20.GL_UNSIGNED_BYTE, frame.getBuffer());
+            mLastRects = 1;
+        } else if (mLastDirtyTiles != 0) {
+            int tileSize = mHasher.getTileSize();
+            for (int row = 0; row < rows; row++) {
+                int column = 0;
+                while (column < columns) {
+                    if (!mHasher.isDirty(column, row)) {
+                        column++;
+                        continue;
+                    }
+                    int first = column;
+                    while (column < columns && mHasher.isDirty(column, row)) {
+                        column++;
+                    }
+                    int x = first * tileSize;
+                    int y = row * tileSize;
+                    uploadRect(frame, format, x, y, Math.min(column * tileSize, width) - x,
+                            Math.min(y + tileSize, height) - y);
+                }
+            }
+            if (mUseRowLength) {
+                GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, 0);
+            }
+        }
+        mUploadStats.add(System.nanoTime() - start);
+    }
+
+    private void uploadRect(Frame frame, int format, int x, int y, int width, int height) {
+        ByteBuffer data = frame.getBuffer();
+        int bytesPerPixel = frame.getFormat().getBytesPerPixel();
+        int stride = frame.getWidth() * bytesPerPixel;
+        int offset = y * stride + x * bytesPerPixel;
+        if (mUseRowLength) {
+            GLES20.glPixelStorei(GLES30.GL_UNPACK_ROW_LENGTH, frame.getWidth());
+            // The bindings pass the pointer at the buffer's position.
+            data.position(offset);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, x, y, width, height, format,
+                    GLES20.GL_UNSIGNED_BYTE, data);
+            data.position(0);
+        } else {
+            int rowBytes = width * bytesPerPixel;
+            int size = rowBytes * height;
+            if (mStaging == null || mStaging.capacity() < size) {
+                // Grows to at most one full row of tiles.
+                mStaging = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            }
+            mStaging.clear();
+            int limit = data.limit();
+            for (int row = 0; row < height; row++) {
+                int rowStart = offset + row * stride;
+                data.limit(rowStart + rowBytes);
+                data.position(rowStart);
+                mStaging.put(data);
+            }
+            data.limit(limit);
+            data.position(0);
+            mStaging.flip();
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, x, y, width, height, format,
+                    GLES20.GL_UNSIGNED_BYTE, mStaging);
+        }
+        mLastRects++;
+    }
+
+    /**
+     * Returns the number of tiles the last upload() sent.  0 means the texture already held
+     * the frame's contents.
+     */
+    public int getLastDirtyTileCount() {
+        return mLastDirtyTiles;
+    }
+
+    /**
+     * Returns the number of glTexSubImage2D() calls the last upload() made.
+     */
+    public int getLastRectCount() {
+        return mLastRects;
+    }
+
+    /**
+     * Returns the hasher, whose stats tell how much of the upload time went to hashing.
+     */
+    public TileHasher getHasher() {
+        return mHasher;
+    }
+
+    @Override
+    public void invalidate() {
+        mStorageTextureId = -1;
+    }
+
+    @Override
+    public TimingStats getUploadStats() {
+        return mUploadStats;
+    }
+
+    @Override
+    public TimingStats getStallStats() {
+        // Hashing and the copies from client memory all happen on the calling thread.
+        return mUploadStats;
+    }
+
+    @Override
+    public void release(boolean doEglCleanup) {
+        // Storage belongs to the texture, which the caller owns.
+        invalidate();
+        mStaging = null;
+    }
+}
@@ -71,21 +71,21 @@ public class Drawable2d {
      * A "full" square, extending from -1 to +1 in both dimensions.  When the model/view/projection
      * matrix is identity, this will exactly cover the viewport.
      * <p>
-     * The texture coordinates are Y-inverted relative to RECTANGLE.  (This seems to work out
-     * right with external textures from SurfaceTexture.)
+     * The texture coordinates put the first row of the texture at the top, which is how
+     * frames are uploaded.
      */
-    private static final float[] FULL_RECTANGLE_COORDS = { // TODO: Edited for landscape. Fix it for portrait camera or find a better solution
-        1.0f,  -1.0f,   // 0 bottom left
-        1.0f,  1.0f,    // 1 bottom right
-        -1.0f, -1.0f,   // 2 top left
-        -1.0f, 1.0f    // 3 top right
+    private static final float[] FULL_RECTANGLE_COORDS = {
+        -1.0f, -1.0f,   // 0 bottom left
+        1.0f, -1.0f,    // 1 bottom right
+        -1.0f, 1.0f,    // 2 top left
+        1.0f, 1.0f      // 3 top right
     };
 
     private static final float[] FULL_RECTANGLE_TEX_COORDS = {
-        0.0f, 0.0f,     // 0 bottom left
-        1.0f, 0.0f,     // 1 bottom right
-        0.0f, 1.0f,     // 2 top left
-        1.0f, 1.0f      // 3 top right
+        0.0f, 1.0f,     // 0 bottom left
+        1.0f, 1.0f,     // 1 bottom right
+        0.0f, 0.0f,     // 2 top left
+        1.0f, 0.0f      // 3 top right
     };
 
     private static final FloatBuffer FULL_RECTANGLE_BUF =
@@ -190,6 +190,13 @@ public class Drawable2d {
         return mCoordsPerVertex;
     }
 
+    /**
+     * Returns the shape this was prepared from.
+     */
+    public Prefab getPrefab() {
+        return mPrefab;
+    }
+
     @NonNull
     @Override
     public String toString() {
@@ -0,0 +1,184 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.SparseIntArray;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The vertices of every {@link Drawable2d} prefab in one static vertex buffer object, so
+ * drawing one issues no vertex data transfer.
+ * <p>
+ * Each vertex is (x, y, s, t), interleaved; a prefab is a range of the buffer, drawn from
+ * getFirstVertex().  The buffer is filled once and belongs to the share group, so every
+ * context that shares with the one that created it can draw from it.
+ * <p>
+ * On GLES 3 the attribute setup is also kept, in vertex array objects.  Those can't be
+ * shared, so each context gets its own, one per pair of attribute locations it has been
+ * bound with.  Call releaseContext() before destroying a context.
+ * <p>
+ * Not thread-safe; use from the render thread.
+ */
+public class DrawableBuffers {
+    private static final int SIZEOF_FLOAT = 4;
+    private static final int FLOATS_PER_VERTEX = 4;
+    private static final int STRIDE = FLOATS_PER_VERTEX * SIZEOF_FLOAT;
+    private static final int TEX_COORD_OFFSET = 2 * SIZEOF_FLOAT;
+
+    private final boolean mUseVertexArrays;
+    private final int[] mFirstVertex = new int[Drawable2d.Prefab.values().length];
+    private int mBuffer;
+
+    // Vertex array objects per context, keyed by getVertexArrayKey().
+    private final Map<EGLContext, SparseIntArray> mVertexArrays = new HashMap<>();
+
+    /**
+     * Creates and fills the buffer in the current EGL context.
+     *
+     * @param glVersion GLES version of the context; vertex array objects need 3.
+     */
+    public DrawableBuffers(int glVersion) {
+        mUseVertexArrays = glVersion >= 3;
+
+        int vertexCount = 0;
+        Drawable2d[] drawables = new Drawable2d[mFirstVertex.length];
+        for (Drawable2d.Prefab prefab : Drawable2d.Prefab.values()) {
+            Drawable2d drawable = new Drawable2d(prefab);
+            if (drawable.getCoordsPerVertex() != 2) {
+                throw new IllegalStateException(prefab + " isn't 2D");
+            }
+            drawables[prefab.ordinal()] = drawable;
+            mFirstVertex[prefab.ordinal()] = vertexCount;
+            vertexCount += drawable.getVertexCount();
+        }
+        float[] data = new float[vertexCount * FLOATS_PER_VERTEX];
+        int i = 0;
+        for (Drawable2d drawable : drawables) {
+            FloatBuffer position = drawable.getVertexArray();
+            FloatBuffer texCoord = drawable.getTexCoordArray();
+            for (int v = 0; v < drawable.getVertexCount(); v++) {
+                data[i++] = position.get(2 * v);
+                data[i++] = position.get(2 * v + 1);
+                data[i++] = texCoord.get(2 * v);
+                data[i++] = texCoord.get(2 * v + 1);
+            }
+        }
+
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mBuffer = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.length * SIZEOF_FLOAT,
+                GlUtil.createFloatBuffer(data), GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GlUtil.checkGlError("DrawableBuffers");
+    }
+
+    /**
+     * Returns the index of the prefab's first vertex, for glDrawArrays().
+     */
+    public int getFirstVertex(Drawable2d.Prefab prefab) {
+        return mFirstVertex[prefab.ordinal()];
+    }
+
+    /**
+     * Points the attributes at the buffer, in the current context.  Pass -1 for an attribute
+     * the program doesn't have.  Call unbind() after drawing.
+     */
+    public void bind(int positionLoc, int texCoordLoc) {
+        if (!mUseVertexArrays) {
+            setPointers(positionLoc, texCoordLoc);
+            return;
+        }
+        EGLContext context = EGL14.eglGetCurrentContext();
+        SparseIntArray vertexArrays = mVertexArrays.get(context);
+        if (vertexArrays == null) {
+            vertexArrays = new SparseIntArray();
+            mVertexArrays.put(context, vertexArrays);
+        }
+        int key = getVertexArrayKey(positionLoc, texCoordLoc);
+        int vertexArray = vertexArrays.get(key);
+        if (vertexArray != 0) {
+            GLES30.glBindVertexArray(vertexArray);
+            return;
+        }
+        int[] names = new int[1];
+        GLES30.glGenVertexArrays(1, names, 0);
+        vertexArrays.put(key, names[0]);
+        GLES30.glBindVertexArray(names[0]);
+        setPointers(positionLoc, texCoordLoc);
+    }
+
+    private void setPointers(int positionLoc, int texCoordLoc) {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        if (positionLoc >= 0) {
+            GLES20.glEnableVertexAttribArray(positionLoc);
+            GLES20.glVertexAttribPointer(positionLoc, 2, GLES20.GL_FLOAT, false, STRIDE, 0);
+        }
+        if (texCoordLoc >= 0) {
+            GLES20.glEnableVertexAttribArray(texCoordLoc);
+            GLES20.glVertexAttribPointer(texCoordLoc, 2, GLES20.GL_FLOAT, false, STRIDE,
+                    TEX_COORD_OFFSET);
+        }
+    }
+
+    /**
+     * Restores the default vertex state, so code that draws from client arrays keeps working.
+     */
+    public void unbind(int positionLoc, int texCoordLoc) {
+        if (mUseVertexArrays) {
+            GLES30.glBindVertexArray(0);
+        } else {
+            if (positionLoc >= 0) {
+                GLES20.glDisableVertexAttribArray(positionLoc);
+            }
+            if (texCoordLoc >= 0) {
+                GLES20.glDisableVertexAttribArray(texCoordLoc);
+            }
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    private static int getVertexArrayKey(int positionLoc, int texCoordLoc) {
+        return positionLoc << 16 | texCoordLoc & 0xffff;
+    }
+
+    /**
+     * Forgets the vertex array objects of a context, deleting them if it's current.  Call
+     * before destroying a context that has drawn from the buffer, so a context created later
+     * with the same handle doesn't get them; the buffer itself stays.
+     */
+    public void releaseContext(EGLContext context) {
+        SparseIntArray vertexArrays = mVertexArrays.remove(context);
+        if (vertexArrays == null || !context.equals(EGL14.eglGetCurrentContext())) {
+            return;     // destroying the context deletes them
+        }
+        int[] names = new int[vertexArrays.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = vertexArrays.valueAt(i);
+        }
+        GLES30.glDeleteVertexArrays(names.length, names, 0);
+    }
+
+    /**
+     * Releases the buffer and forgets every context's vertex array objects.
+     * <p>
+     * Pass false when the share group is being destroyed, with or without a context
+     * current.  Otherwise the context that created the buffer must be current; vertex array
+     * objects of other contexts that weren't released with releaseContext() are leaked until
+     * their context is destroyed.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            releaseContext(EGL14.eglGetCurrentContext());
+            GLES20.glDeleteBuffers(1, new int[] { mBuffer }, 0);
+        }
+        mBuffer = 0;
+        mVertexArrays.clear();
+    }
+}
@@ -0,0 +1,397 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A linear chain of filters, fused into one fragment shader so the whole chain costs one
+ * pass instead of one framebuffer round trip per filter.
+ * <p>
+ * Each {@link FilterStage} becomes a GLSL function of the texture coordinate that calls the
+ * previous stage's function, down to the texture fetch; main() calls the last one.  Point
+ * stages cost nothing extra beyond their arithmetic.  A neighborhood stage calls the
+ * previous stage once per tap, so everything before it is evaluated that many times: a 3x3
+ * blur after a 3x3 sharpen fetches 9 x 5 = 45 texels per pixel.  getTapCount() says what a
+ * chain costs.
+ * <p>
+ * Kernels are baked into the source, so a shader needs no uniforms besides uTexelSize (the
+ * size of one texel in texture coordinates) and the samplers of stages that look things up
+ * in textures (the flat field and color tables), and is fully described by the chain's
+ * signature.  Programs are cached by their sources; see {@link ProgramCache}.
+ * <p>
+ * Immutable, and free of GL calls, so chains can be built on any thread.
+ */
+public final class FilterChain {
+    private static final String SAMPLE_PREFIX = "sample";
+
+    private final FilterStage[] mStages;
+    private final String mSignature;
+    private final String mFragmentShader;
+    private final int mTapCount;
+
+    /**
+     * Creates a chain that applies the stages in order.  No stages draws the frame as is.
+     */
+    public FilterChain(FilterStage... stages) {
+        mStages = stages.clone();
+        StringBuilder signature = new StringBuilder();
+        int taps = 1;
+        for (FilterStage stage : mStages) {
+            if (stage == null) {
+                throw new IllegalArgumentException("null stage");
+            }
+            if (!stage.isNeighborhood() && stage.getTapCount() != 1) {
+                throw new IllegalArgumentException(stage.getSignature() +
+                        ": a point stage has one tap, not " + stage.getTapCount());
+            }
+            if (signature.length() > 0) {
+                signature.append(" | ");
+            }
+            signature.append(stage.getSignature());
+            taps *= stage.getTapCount();
+        }
+        mSignature = signature.toString();
+        mTapCount = taps;
+        mFragmentShader = generate(mStages);
+    }
+
+    private static String generate(FilterStage[] stages) {
+        StringBuilder sb = new StringBuilder();
+        // Texel offsets need more than mediump's 10 bits at camera resolutions.
+        sb.append("#ifdef GL_FRAGMENT_PRECISION_HIGH\n")
+                .append("precision highp float;\n")
+                .append("#else\n")
+                .append("precision mediump float;\n")
+                .append("#endif\n")
+                .append("varying vec2 vTextureCoord;\n")
+                .append("uniform sampler2D sTexture;\n")
+                .append("uniform vec2 uTexelSize;\n");
+        Set<String> declarations = new LinkedHashSet<>();
+        for (FilterStage stage : stages) {
+            if (declarations.add(stage.getDeclarations())) {
+                sb.append(stage.getDeclarations());
+            }
+        }
+        sb.append("vec4 stage0(vec2 uv) {\n")
+                .append("    return texture2D(sTexture, uv);\n")
+                .append("}\n");
+        for (int i = 1; i <= stages.length; i++) {
+            FilterStage stage = stages[i - 1];
+            String sample = SAMPLE_PREFIX + i;
+            if (stage.isNeighborhood()) {
+                sb.append("#define ").append(sample).append("(offset) stage").append(i - 1)
+                        .append("(uv + (offset) * uTexelSize)\n");
+            }
+            sb.append("// ").append(stage.getSignature().replace('\n', ' ')).append('\n')
+                    .append("vec4 stage").append(i).append("(vec2 uv) {\n");
+            if (stage.isNeighborhood()) {
+                sb.append("    vec4 color;\n");
+            } else {
+                sb.append("    vec4 color = stage").append(i - 1).append("(uv);\n");
+            }
+            sb.append(stage.getSource(sample))
+                    .append("    return color;\n")
+                    .append("}\n");
+        }
+        sb.append("void main() {\n")
+                .append("    gl_FragColor = stage").append(stages.length)
+                .append("(vTextureCoord);\n")
+                .append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Returns this chain with a stage put in front, e.g. {@link #flatField()}.
+     */
+    public FilterChain withFirstStage(FilterStage stage) {
+        FilterStage[] stages = new FilterStage[mStages.length + 1];
+        stages[0] = stage;
+        System.arraycopy(mStages, 0, stages, 1, mStages.length);
+        return new FilterChain(stages);
+    }
+
+    /**
+     * Returns the stage signatures, in order; equal signatures mean equal shaders.
+     */
+    public String getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * Returns the fused fragment shader.  It goes with the vertex shader of
+     * {@link Texture2dProgram.ProgramType#TEXTURE_2D_FUSED}.
+     */
+    public String getFragmentShader() {
+        return mFragmentShader;
+    }
+
+    /**
+     * Returns the number of texels fetched per output pixel.
+     */
+    public int getTapCount() {
+        return mTapCount;
+    }
+
+    /**
+     * Returns the number of stages.
+     */
+    public int getStageCount() {
+        return mStages.length;
+    }
+
+    /**
+     * Returns a stage.
+     */
+    public FilterStage getStage(int index) {
+        return mStages[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterChain && mSignature.equals(((FilterChain) o).mSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return mSignature.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "[FilterChain: " + mSignature + ", " + mTapCount + " taps]";
+    }
+
+    /**
+     * Luma as gray, with the weights of the TEXTURE_2D_BW program.
+     */
+    public static FilterStage grayscale() {
+        return point("grayscale",
+                "    float y = dot(color.rgb, vec3(0.3, 0.59, 0.11));\n" +
+                "    color = vec4(y, y, y, 1.0);\n");
+    }
+
+    /**
+     * Inverts the color channels.
+     */
+    public static FilterStage negative() {
+        return point("negative", "    color = vec4(1.0 - color.rgb, color.a);\n");
+    }
+
+    /**
+     * Flat-field and dark-frame correction: (color - dark) * gain, with the dark and gain of
+     * the pixel from the textures of a {@link FlatFieldTextureCache}, which must be bound.
+     * Put it first, where the color is still the frame's own; the textures line up with the
+     * frame's pixels.  {@link com.hsj.camera.externalcameratest.frame.FlatField} is the CPU
+     * reference.
+     */
+    public static FilterStage flatField() {
+        return new SnippetStage("flatField", false, 1,
+                "    color.rgb = (color.rgb - texture2D(" + FlatFieldTextureCache.DARK_SAMPLER +
+                        ", uv).rgb) * texture2D(" + FlatFieldTextureCache.GAIN_SAMPLER +
+                        ", uv).rgb;\n",
+                "uniform sampler2D " + FlatFieldTextureCache.DARK_SAMPLER + ";\n" +
+                        "uniform sampler2D " + FlatFieldTextureCache.GAIN_SAMPLER + ";\n");
+    }
+
+    /**
+     * Color grading through the table in a {@link LutTexture}, which must be bound, as the
+     * TEXTURE_2D_LUT program does it.  The table's lattice size is baked in; changing tables
+     * of the same size needs no new program.
+     */
+    public static FilterStage colorLut(int lutSize) {
+        if (lutSize < 2) {
+            throw new IllegalArgumentException("bad lattice size " + lutSize);
+        }
+        String n = toGlsl(lutSize);
+        String source = String.format(Locale.US,
+                "    vec3 lattice = clamp(color.rgb, 0.0, 1.0) * (%1$s - 1.0);\n" +
+                "    float slice = min(floor(lattice.b), %1$s - 2.0);\n" +
+                "    vec2 cell = (lattice.rg + 0.5) / vec2(%1$s * %1$s, %1$s);\n" +
+                "    vec3 lo = texture2D(uLut, cell + vec2(slice / %1$s, 0.0)).rgb;\n" +
+                "    vec3 hi = texture2D(uLut, cell + vec2((slice + 1.0) / %1$s, 0.0)).rgb;\n" +
+                "    color.rgb = mix(lo, hi, lattice.b - slice);\n", n);
+        return new SnippetStage("colorLut" + lutSize, false, 1, source,
+                "uniform sampler2D uLut;\n");
+    }
+
+    /**
+     * A square convolution kernel, centered on the pixel, plus a constant added to the sum.
+     * Taps with zero weight are left out.
+     *
+     * @param kernel size x size weights, row by row, top row first.
+     * @param size Width of the kernel; must be odd.
+     */
+    public static FilterStage convolution(float[] kernel, int size, float colorAdjust) {
+        return convolution(kernel, size, size, colorAdjust);
+    }
+
+    /**
+     * A rectangular convolution kernel, centered on the pixel, plus a constant added to the
+     * sum; e.g. one row for a horizontal pass of a separable filter.  Taps with zero weight
+     * are left out.
+     *
+     * @param kernel width x height weights, row by row, top row first.
+     * @param width Width of the kernel; must be odd.
+     * @param height Height of the kernel; must be odd.
+     */
+    public static FilterStage convolution(float[] kernel, int width, int height,
+            float colorAdjust) {
+        if (width <= 0 || width % 2 == 0 || height <= 0 || height % 2 == 0 ||
+                kernel.length != width * height) {
+            throw new IllegalArgumentException("need odd sizes and width*height weights, got " +
+                    kernel.length + " for " + width + "x" + height);
+        }
+        int count = 0;
+        for (float weight : kernel) {
+            if (weight != 0f) {
+                count++;
+            }
+        }
+        float[] weights = new float[count];
+        float[] offsets = new float[2 * count];
+        int tap = 0;
+        for (int i = 0; i < kernel.length; i++) {
+            if (kernel[i] == 0f) {
+                continue;
+            }
+            weights[tap] = kernel[i];
+            offsets[2 * tap] = i % width - width / 2;
+            offsets[2 * tap + 1] = i / width - height / 2;
+            tap++;
+        }
+        return taps("convolution" + width + "x" + height, weights, offsets, colorAdjust);
+    }
+
+    /**
+     * The half-and-half demo of the TEXTURE_2D_FILT program, around a neighborhood stage:
+     * the stage's output below the diagonal, its input as is above it, and a red line
+     * between.  Lets a kernel filter look the same fused into a chain as drawn on its own.
+     */
+    public static FilterStage diagonalSplit(FilterStage stage) {
+        if (!stage.isNeighborhood()) {
+            throw new IllegalArgumentException(stage.getSignature() +
+                    " isn't a neighborhood stage");
+        }
+        // The inner snippet gets our sample function, filled in with the rest.
+        String source = "    if (uv.x < uv.y - 0.005) {\n" +
+                stage.getSource("%1$s") +
+                "    } else if (uv.x > uv.y + 0.005) {\n" +
+                "        color = %1$s(vec2(0.0, 0.0));\n" +
+                "    } else {\n" +
+                "        color = vec4(1.0, 0.0, 0.0, 0.0);\n" +
+                "    }\n";
+        return new SnippetStage("diagonalSplit(" + stage.getSignature() + ")", true,
+                stage.getTapCount() + 1, source, stage.getDeclarations());
+    }
+
+    /**
+     * A weighted sum of samples at arbitrary offsets, plus a constant.  Fractional offsets
+     * sample between texels, which lets one bilinear fetch stand in for two taps; see
+     * {@link GaussianKernel}.
+     *
+     * @param name Names the kind of stage in the signature.
+     * @param weights One weight per tap.
+     * @param offsets Offset of each tap in texels, as (x, y) pairs.
+     */
+    public static FilterStage taps(String name, float[] weights, float[] offsets,
+            float colorAdjust) {
+        if (weights.length == 0 || offsets.length != 2 * weights.length) {
+            throw new IllegalArgumentException("need an (x, y) offset per weight, got " +
+                    offsets.length + " offsets for " + weights.length + " weights");
+        }
+        StringBuilder signature = new StringBuilder(name).append('(');
+        StringBuilder source = new StringBuilder("    color = vec4(")
+                .append(toGlsl(colorAdjust)).append(");\n");
+        for (int i = 0; i < weights.length; i++) {
+            String x = toGlsl(offsets[2 * i]);
+            String y = toGlsl(offsets[2 * i + 1]);
+            String weight = toGlsl(weights[i]);
+            signature.append(i == 0 ? "" : ",").append(weight).append('@').append(x)
+                    .append(',').append(y);
+            source.append("    color += ").append(weight).append(" * %1$s(vec2(")
+                    .append(x).append(", ").append(y).append("));\n");
+        }
+        signature.append(';').append(colorAdjust).append(')');
+        return new SnippetStage(signature.toString(), true, weights.length, source.toString(),
+                "");
+    }
+
+    /**
+     * A custom point stage.
+     *
+     * @param name Unique name for the snippet; part of the signature.
+     * @param source GLSL statements that read and rewrite {@code vec4 color}.
+     */
+    public static FilterStage point(String name, String source) {
+        return new SnippetStage(name, false, 1, source, "");
+    }
+
+    /**
+     * A custom neighborhood stage.
+     *
+     * @param name Unique name for the snippet; part of the signature.
+     * @param tapCount Number of samples the snippet takes.
+     * @param source GLSL statements that assign {@code vec4 color}, with {@code %1$s} where
+     *     the sample function's name goes, e.g. {@code color = %1$s(vec2(0.0, -1.0));}.
+     */
+    public static FilterStage neighborhood(String name, int tapCount, String source) {
+        if (tapCount <= 0) {
+            throw new IllegalArgumentException("tap count must be positive, got " + tapCount);
+        }
+        return new SnippetStage(name, true, tapCount, source, "");
+    }
+
+    /**
+     * Formats a float as a GLSL float literal.
+     */
+    static String toGlsl(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            throw new IllegalArgumentException("no GLSL literal for " + value);
+        }
+        // Float.toString always has a '.', and its exponent form is valid GLSL.
+        return Float.toString(value);
+    }
+
+    private static final class SnippetStage implements FilterStage {
+        private final String mSignature;
+        private final boolean mNeighborhood;
+        private final int mTapCount;
+        private final String mSource;
+        private final String mDeclarations;
+
+        SnippetStage(String signature, boolean neighborhood, int tapCount, String source,
+                String declarations) {
+            mSignature = signature;
+            mNeighborhood = neighborhood;
+            mTapCount = tapCount;
+            mSource = source;
+            mDeclarations = declarations;
+        }
+
+        @Override
+        public boolean isNeighborhood() {
+            return mNeighborhood;
+        }
+
+        @Override
+        public int getTapCount() {
+            return mTapCount;
+        }
+
+        @Override
+        public String getSignature() {
+            return mSignature;
+        }
+
+        @Override
+        public String getSource(String sample) {
+            return mNeighborhood ? String.format(Locale.US, mSource, sample) : mSource;
+        }
+
+        @Override
+        public String getDeclarations() {
+            return mDeclarations;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.hsj.camera.externalcameratest.gles;
+
+/**
+ * A sequence of render passes, each drawing the previous pass's output (the frame, for the
+ * first) through a {@link FilterChain} into a texture of its own.  Drawn by
+ * {@link FilterPipelineRenderer}.
+ * <p>
+ * Splitting a filter into passes is what makes big kernels affordable: a separable kernel
+ * becomes a horizontal and a vertical pass (see {@link GaussianKernel}), and passes can run
+ * at a fraction of the frame's resolution, e.g. blur a half-size copy and let the final
+ * draw scale it back up.  A single fused chain can't do either, because every tap of a
+ * stage re-evaluates the stages before it.
+ * <p>
+ * Immutable, and free of GL calls.
+ */
+public final class FilterPipeline {
+    /**
+     * One pass: a chain drawn at a fraction of the frame size.
+     */
+    public static final class Pass {
+        private final FilterChain mChain;
+        private final float mScale;
+
+        /**
+         * @param chain What the pass draws.  uTexelSize is the texel size of its input.
+         * @param scale Output size relative to the frame, in (0, 1].
+         */
+        public Pass(FilterChain chain, float scale) {
+            if (chain == null) {
+                throw new IllegalArgumentException("null chain");
+            }
+            if (!(scale > 0f && scale <= 1f)) {
+                throw new IllegalArgumentException("scale must be in (0, 1], got " + scale);
+            }
+            mChain = chain;
+            mScale = scale;
+        }
+
+        public FilterChain getChain() {
+            return mChain;
+        }
+
+        public float getScale() {
+            return mScale;
+        }
+    }
+
+    private final Pass[] mPasses;
+    private final String mSignature;
+
+    /**
+     * Creates a pipeline that draws the passes in order.  Needs at least one.
+     */
+    public FilterPipeline(Pass... passes) {
+        if (passes.length == 0) {
+            throw new IllegalArgumentException("no passes");
+        }
+        mPasses = passes.clone();
+        StringBuilder signature = new StringBuilder();
+        for (Pass pass : mPasses) {
+            if (pass == null) {
+                throw new IllegalArgumentException("null pass");
+            }
+            signature.append(signature.length() > 0 ? " ; " : "").append(pass.mScale)
+                    .append(": ").append(pass.mChain.getSignature());
+        }
+        mSignature = signature.toString();
+    }
+
+    /**
+     * A Gaussian blur in two separable passes.
+     *
+     * @param taps Kernel width, in texels at the given scale; must be odd.
+     * @param sigma Standard deviation, in texels at the given scale.
+     * @param scale Resolution of the passes relative to the frame.  At 0.5, a 15-tap kernel
+     *     covers 30 frame pixels for a quarter of the fetches.
+     */
+    public static FilterPipeline gaussianBlur(int taps, float sigma, float scale) {
+        return new FilterPipeline(
+                new Pass(new FilterChain(GaussianKernel.getPass(taps, sigma, true)), scale),
+                new Pass(new FilterChain(GaussianKernel.getPass(taps, sigma, false)), scale));
+    }
+
+    /**
+     * Returns this pipeline with a stage put in front of the first pass's chain, where it
+     * sees the frame itself; e.g. {@link FilterChain#flatField()}.
+     */
+    public FilterPipeline withFirstStage(FilterStage stage) {
+        Pass[] passes = mPasses.clone();
+        passes[0] = new Pass(passes[0].getChain().withFirstStage(stage), passes[0].getScale());
+        return new FilterPipeline(passes);
+    }
+
+    public int getPassCount() {
+        return mPasses.length;
+    }
+
+    public Pass getPass(int index) {
+        return mPasses[index];
+    }
+
+    /**
+     * Returns the scales and chain signatures of the passes; equal signatures mean equal
+     * output.
+     */
+    public String getSignature() {
+        return mSignature;
+    }
+
+    /**
+     * Returns the size of a pass's output along one axis, for a frame of the given size.
+     */
+    public static int getScaledSize(int size, float scale) {
+        return Math.max(1, Math.round(size * scale));
+    }
+
+    /**
+     * Returns the number of texels fetched to filter a frame of the given size: the cost
+     * that matters for the frame budget.
+     */
+    public long getFetchCount(int width, int height) {
+        long fetches = 0;
+        for (Pass pass : mPasses) {
+            fetches += (long) getScaledSize(width, pass.mScale) *
+                    getScaledSize(height, pass.mScale) * pass.mChain.getTapCount();
+        }
+        return fetches;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FilterPipeline && mSignature.equals(((FilterPipeline) o).mSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return mSignature.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "[FilterPipeline: " + mSignature + "]";
+    }
+}
@@ -0,0 +1,192 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+
+/**
+ * Draws a {@link FilterPipeline}: each pass renders its input into a framebuffer from a
+ * {@link FramebufferPool}, and the next pass samples that.  The result is a texture the
+ * outputs draw like a frame, so the filter runs once per frame however many outputs there
+ * are.
+ * <p>
+ * Pass outputs keep the frame's orientation (row 0 at t = 0), and are sampled with linear
+ * filtering, which the separable passes of {@link GaussianKernel} rely on.  The frame
+ * texture's minification filter is switched to linear for the first pass and back.
+ * <p>
+ * Programs come from the {@link ProgramCache} and are built in the background; until they
+ * all are, render() returns 0 and the frame should be drawn unfiltered.  They're pinned in
+ * the cache while their pipeline is selected.
+ * <p>
+ * Framebuffers belong to the context they were created in, so use this from one context:
+ * the one that uploads frames.  Not thread-safe.
+ */
+public class FilterPipelineRenderer {
+    // Flips t, so drawing a frame-oriented texture into a framebuffer, whose row 0 is at the
+    // bottom of the viewport, keeps it frame-oriented.
+    private static final float[] FLIP_T = {
+            1f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 1f, 0f, 1f
+    };
+
+    private final ProgramCache mProgramCache;
+    private final FramebufferPool mPool = new FramebufferPool();
+    private final DrawableBuffers mBuffers;
+    private final Drawable2d mRect = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private final int[] mViewport = new int[4];
+
+    private FilterPipeline mPipeline;
+    private Texture2dProgram[] mPrograms;     // per pass; null until built
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private boolean mTrimPending;
+
+    // Output of the last render(), held until the next one has replaced it, so drawing it
+    // in another context never races with a pass writing it.
+    private FramebufferPool.Framebuffer mOutput;
+
+    /**
+     * Prepares the renderer in the current EGL context.
+     *
+     * @param programCache Where the pass programs come from; must outlive the renderer.
+     */
+    public FilterPipelineRenderer(ProgramCache programCache) {
+        mProgramCache = programCache;
+        mBuffers = new DrawableBuffers(GlUtil.getGlMajorVersion());
+    }
+
+    /**
+     * Selects the pipeline to draw, or none.  Its programs are requested on the next
+     * render().
+     */
+    public void setPipeline(FilterPipeline pipeline) {
+        if (pipeline == null ? mPipeline == null : pipeline.equals(mPipeline)) {
+            return;
+        }
+        unpinPrograms();
+        mPipeline = pipeline;
+        mPrograms = pipeline != null ? new Texture2dProgram[pipeline.getPassCount()] : null;
+        // The pass sizes may have changed.
+        mTrimPending = true;
+    }
+
+    public FilterPipeline getPipeline() {
+        return mPipeline;
+    }
+
+    private boolean prepare() {
+        boolean ready = true;
+        for (int i = 0; i < mPrograms.length; i++) {
+            if (mPrograms[i] == null) {
+                Texture2dProgram.ProgramType type = Texture2dProgram.ProgramType.TEXTURE_2D_FUSED;
+                mPrograms[i] = mProgramCache.getIfReady(type,
+                        Texture2dProgram.getVertexShader(type),
+                        mPipeline.getPass(i).getChain().getFragmentShader());
+                if (mPrograms[i] != null) {
+                    mProgramCache.pin(mPrograms[i]);
+                } else {
+                    ready = false;
+                }
+            }
+        }
+        return ready;
+    }
+
+    private void unpinPrograms() {
+        if (mPrograms == null) {
+            return;
+        }
+        for (Texture2dProgram program : mPrograms) {
+            if (program != null) {
+                mProgramCache.unpin(program);
+            }
+        }
+    }
+
+    /**
+     * Filters a frame.  Leaves the default framebuffer bound and restores the viewport.
+     *
+     * @param textureId GL_TEXTURE_2D holding the frame, upright.
+     * @return the texture holding the result, valid until the next call; or 0 if there's
+     *     no pipeline or its programs aren't ready.
+     */
+    public int render(int textureId, int width, int height) {
+        if (mPipeline == null || !prepare()) {
+            return 0;
+        }
+        if (width != mFrameWidth || height != mFrameHeight) {
+            mFrameWidth = width;
+            mFrameHeight = height;
+            mTrimPending = true;
+        }
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+        setMinFilter(textureId, GLES20.GL_LINEAR);
+
+        FramebufferPool.Framebuffer input = null;
+        int inputTexture = textureId;
+        int inputWidth = width;
+        int inputHeight = height;
+        for (int i = 0; i < mPrograms.length; i++) {
+            float scale = mPipeline.getPass(i).getScale();
+            FramebufferPool.Framebuffer output = mPool.acquire(
+                    FilterPipeline.getScaledSize(width, scale),
+                    FilterPipeline.getScaledSize(height, scale));
+            output.bind();
+            Texture2dProgram program = mPrograms[i];
+            program.setTexSize(inputWidth, inputHeight);
+            program.preDraw(inputTexture);
+            program.draw(GlUtil.IDENTITY_MATRIX, FLIP_T, mBuffers, mRect);
+            if (input != null) {
+                mPool.recycle(input);
+            }
+            input = output;
+            inputTexture = output.getTextureId();
+            inputWidth = output.getWidth();
+            inputHeight = output.getHeight();
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        // GenTexture()'s setting; frames are drawn scaled down with it.
+        setMinFilter(textureId, GLES20.GL_NEAREST);
+        if (mOutput != null) {
+            mPool.recycle(mOutput);
+        }
+        mOutput = input;
+        if (mTrimPending) {
+            // Whatever is free now is left over from another size or pipeline.
+            mPool.trim();
+            mTrimPending = false;
+        }
+        GlUtil.checkGlError("FilterPipelineRenderer");
+        return mOutput.getTextureId();
+    }
+
+    private static void setMinFilter(int textureId, int filter) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+    }
+
+    /**
+     * Returns the number of framebuffers allocated for the passes.
+     */
+    public int getFramebufferCount() {
+        return mPool.getAllocatedCount();
+    }
+
+    /**
+     * Releases the framebuffers and the vertex buffer.  The programs belong to the cache.
+     * <p>
+     * Pass false when the context is being destroyed; otherwise it must be current.
+     */
+    public void release(boolean doEglCleanup) {
+        if (mOutput != null) {
+            mPool.recycle(mOutput);
+            mOutput = null;
+        }
+        mPool.release(doEglCleanup);
+        mBuffers.release(doEglCleanup);
+        unpinPrograms();
+        mPrograms = mPipeline != null ? new Texture2dProgram[mPipeline.getPassCount()] : null;
+    }
+}
@@ -0,0 +1,51 @@
+package com.hsj.camera.externalcameratest.gles;
+
+/**
+ * One step of a {@link FilterChain}: a GLSL snippet that turns its input into its output.
+ * <p>
+ * A point stage only looks at the pixel being drawn.  Its snippet reads and rewrites
+ * {@code vec4 color}, which holds the previous stage's output for that pixel.
+ * <p>
+ * A neighborhood stage also looks at the pixels around it.  Its snippet must assign
+ * {@code color}, and it gets a pixel of the previous stage's output by calling the sample
+ * function with the offset in texels, e.g. {@code sample(vec2(-1.0, 0.0))} for the left
+ * neighbor.  Each call evaluates the stages before it again, so taps multiply down the
+ * chain; keep neighborhood stages few and small.
+ * <p>
+ * A stage that samples textures of its own, like the flat-field stage, declares their
+ * samplers in getDeclarations(); the caller binds the textures.
+ * <p>
+ * Stages are immutable.  The snippet must only depend on the signature.
+ */
+public interface FilterStage {
+    /**
+     * Returns true if the stage reads pixels other than the one being drawn.
+     */
+    boolean isNeighborhood();
+
+    /**
+     * Returns the number of times the snippet calls the sample function; 1 for point stages.
+     */
+    int getTapCount();
+
+    /**
+     * Returns text that identifies the generated code.  Two stages with the same signature
+     * must produce the same snippet.
+     */
+    String getSignature();
+
+    /**
+     * Returns the GLSL statements.
+     *
+     * @param sample Name of the sample function; only used by neighborhood stages.
+     */
+    String getSource(String sample);
+
+    /**
+     * Returns GLSL declarations the snippet needs at global scope, such as samplers, or an
+     * empty string.  Stages that declare the same text share one declaration.
+     */
+    default String getDeclarations() {
+        return "";
+    }
+}
@@ -0,0 +1,208 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.hsj.camera.externalcameratest.frame.CameraMode;
+import com.hsj.camera.externalcameratest.frame.FlatField;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@link FlatField} calibrations of recently used {@link CameraMode}s and their dark
+ * and gain textures, so switching back to a mode binds its textures instead of computing or
+ * uploading anything.  When the cache is full, the least recently used mode is dropped,
+ * textures and all; a {@link com.hsj.camera.externalcameratest.frame.FlatFieldStore} can
+ * bring it back.
+ * <p>
+ * put() and get() make no GL calls.  A calibration's textures are created by upload() and
+ * survive until it's dropped or release() is called; the calibrations survive release(), so
+ * a new EGL context only needs upload() again.
+ * <p>
+ * The textures are half-float, one texel per frame pixel (RGB16F for RGB frames, R16F for
+ * monochrome), which keeps dark levels of 16-bit data and gains near 1 to about 0.05%.
+ * Float textures need GLES 3.  Like {@link LutTexture}, they live in the share group but
+ * must be bound in every context that draws with them.
+ */
+public class FlatFieldTextureCache {
+    /** Texture unit of the dark levels; after the color map's. */
+    public static final int DARK_UNIT = ColorMapTexture.COLOR_MAP_UNIT + 1;
+    /** Texture unit of the gains. */
+    public static final int GAIN_UNIT = DARK_UNIT + 1;
+    /** Modes kept by default; a 2048x1080 RGB mode takes 26 MB. */
+    public static final int DEFAULT_CAPACITY = 4;
+
+    // Sampler names in the shaders that apply the correction.
+    static final String DARK_SAMPLER = "uFlatDark";
+    static final String GAIN_SAMPLER = "uFlatGain";
+
+    private static class Entry {
+        final FlatField field;
+        final int[] textures = new int[2];      // dark, gain; 0 until uploaded
+
+        Entry(FlatField field) {
+            this.field = field;
+        }
+    }
+
+    private final int mCapacity;
+    // Access order: iteration starts at the least recently used.
+    private final LinkedHashMap<CameraMode, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private int mUploadCount;
+
+    public FlatFieldTextureCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, got " + capacity);
+        }
+        mCapacity = capacity;
+    }
+
+    /**
+     * Returns the calibration cached for a mode, or null, and marks it recently used.
+     */
+    public FlatField get(CameraMode mode) {
+        Entry entry = mEntries.get(mode);
+        return entry != null ? entry.field : null;
+    }
+
+    /**
+     * Makes a calibration the one for its mode, replacing any other, and evicts the least
+     * recently used mode if the cache is full.  Textures of replaced or evicted calibrations
+     * are deleted, so call it with the context current if any were uploaded.
+     */
+    public void put(FlatField field) {
+        CameraMode mode = field.getMode();
+        Entry entry = mEntries.get(mode);
+        if (entry != null && entry.field == field) {
+            return;
+        }
+        if (entry != null) {
+            mEntries.remove(mode);
+            delete(entry);
+        }
+        mEntries.put(mode, new Entry(field));
+        Iterator<Map.Entry<CameraMode, Entry>> it = mEntries.entrySet().iterator();
+        while (mEntries.size() > mCapacity && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            delete(eldest);
+        }
+    }
+
+    /**
+     * Creates the textures of a mode's calibration, unless they exist.  Needs GLES 3.
+     * Leaves GL_TEXTURE0 active.
+     *
+     * @return true if anything was uploaded.
+     */
+    public boolean upload(CameraMode mode) {
+        Entry entry = mEntries.get(mode);
+        if (entry == null || entry.textures[0] != 0) {
+            return false;
+        }
+        GLES20.glGenTextures(2, entry.textures, 0);
+        upload(entry.textures[0], mode, entry.field.getDark());
+        upload(entry.textures[1], mode, entry.field.getGain());
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GlUtil.checkGlError("flat field upload");
+        mUploadCount++;
+        return true;
+    }
+
+    /**
+     * Binds a mode's textures to DARK_UNIT and GAIN_UNIT in the current context, and marks
+     * it recently used.  Leaves GL_TEXTURE0 active.
+     *
+     * @return false if the mode isn't cached or uploaded.
+     */
+    public boolean bind(CameraMode mode) {
+        Entry entry = mEntries.get(mode);
+        if (entry == null || entry.textures[0] == 0) {
+            return false;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + DARK_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, entry.textures[0]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + GAIN_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, entry.textures[1]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        return true;
+    }
+
+    /**
+     * Drops a mode's calibration and its textures.
+     */
+    public void remove(CameraMode mode) {
+        Entry entry = mEntries.remove(mode);
+        if (entry != null) {
+            delete(entry);
+        }
+    }
+
+    /**
+     * Returns the number of modes cached.
+     */
+    public int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the number of calibrations uploaded so far; switching between cached modes
+     * doesn't add to it.
+     */
+    public int getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * Releases the textures; the calibrations stay, for upload() in the next context.
+     *
+     * @param doEglCleanup If true, the textures are deleted; pass false if the EGL context
+     *     is being destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        for (Entry entry : mEntries.values()) {
+            if (doEglCleanup) {
+                delete(entry);
+            }
+            entry.textures[0] = 0;
+            entry.textures[1] = 0;
+        }
+    }
+
+    private static void upload(int texture, CameraMode mode, float[] values) {
+        boolean rgb = mode.getChannelCount() == 3;
+        FloatBuffer data = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer();
+        data.put(values).flip();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + DARK_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        // As the frame texture, so the correction lines up however the frame is scaled.
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        // Floats are converted to half floats on upload.
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, rgb ? GLES30.GL_RGB16F : GLES30.GL_R16F,
+                mode.getWidth(), mode.getHeight(), 0, rgb ? GLES20.GL_RGB : GLES30.GL_RED,
+                GLES20.GL_FLOAT, data);
+    }
+
+    private static void delete(Entry entry) {
+        if (entry.textures[0] != 0) {
+            GLES20.glDeleteTextures(2, entry.textures, 0);
+            entry.textures[0] = 0;
+            entry.textures[1] = 0;
+        }
+    }
+}
@@ -76,6 +76,21 @@ public class FlatShadedProgram {
         mProgramHandle = -1;
     }
 
+    /**
+     * Draws a prefab shape from its buffer object.
+     */
+    public void draw(float[] mvpMatrix, float[] color, DrawableBuffers buffers,
+            Drawable2d drawable) {
+        GLES20.glUseProgram(mProgramHandle);
+        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        GLES20.glUniform4fv(muColorLoc, 1, color, 0);
+        buffers.bind(maPositionLoc, -1);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,
+                buffers.getFirstVertex(drawable.getPrefab()), drawable.getVertexCount());
+        buffers.unbind(maPositionLoc, -1);
+        GLES20.glUseProgram(0);
+    }
+
     /**
      * Issues the draw call.  Does the full setup on every call.
      *
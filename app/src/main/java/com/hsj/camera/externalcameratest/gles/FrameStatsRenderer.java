@@ -0,0 +1,261 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.hsj.camera.externalcameratest.frame.FrameStats;
+import com.hsj.camera.externalcameratest.frame.TimingStats;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Measures frames on the GPU for {@link FrameStats}, without reading back whole frames or
+ * waiting for the GPU.
+ * <p>
+ * Each frame is drawn, converted to RGB by its program, into a small framebuffer (256
+ * pixels wide by default), sampling a grid of its pixels.  On GLES 3 the grid is read into
+ * one of a few rotating pixel pack buffers, which only queues a copy, and a fence marks when
+ * the copy is done.  Later calls poll the fences without waiting and turn the newest
+ * finished grid into stats, normally a frame or two after the frame was drawn.  If every
+ * buffer is still in flight the frame isn't measured.  GLES 2 has no pack buffers, so there
+ * the grid is read back directly, which waits for the draw.
+ * <p>
+ * The latest stats can be read from any thread with getLatest().  Everything else must be
+ * called from one context, the one that uploads frames.  No GL calls are made until the
+ * first measure().
+ */
+public class FrameStatsRenderer {
+    /** Default width of the sample grid; the height follows the frame's aspect ratio. */
+    public static final int DEFAULT_SAMPLE_WIDTH = 256;
+    // Grids in flight; the GPU may be this many frames behind before one is skipped.
+    private static final int READBACK_BUFFER_COUNT = 3;
+
+    private final int mSampleWidth;
+    private final TimingStats mMeasureStats;
+    private final FramebufferPool mPool = new FramebufferPool();
+    private final Drawable2d mRect = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private final int[] mViewport = new int[4];
+    private DrawableBuffers mBuffers;       // null until the first measure()
+    private int mGlVersion;
+    private FramebufferPool.Framebuffer mTarget;
+
+    // GLES 3: pack buffers in rotation, and the fence, size and time of the grid in each.
+    private final int[] mPackBuffers = new int[READBACK_BUFFER_COUNT];
+    private final long[] mFences = new long[READBACK_BUFFER_COUNT];
+    private final int[] mWidths = new int[READBACK_BUFFER_COUNT];
+    private final int[] mHeights = new int[READBACK_BUFFER_COUNT];
+    private final long[] mTimestamps = new long[READBACK_BUFFER_COUNT];
+    private int mPackBufferSize;            // size of each buffer's data store, or 0
+    private int mNextBuffer;
+    private int mPendingCount;
+    private long mSkippedCount;
+
+    // GLES 2: where the grid is read to.
+    private ByteBuffer mClientBuffer;
+
+    private volatile FrameStats mLatest;
+
+    /**
+     * @param sampleWidth Width of the sample grid; narrower frames are sampled whole.
+     * @param statsWindow Number of frames summarized by each getMeasureStats() window.
+     */
+    public FrameStatsRenderer(int sampleWidth, int statsWindow) {
+        if (sampleWidth <= 0) {
+            throw new IllegalArgumentException("sample width must be positive, got " +
+                    sampleWidth);
+        }
+        mSampleWidth = sampleWidth;
+        mMeasureStats = new TimingStats("frame stats", statsWindow);
+    }
+
+    /**
+     * Returns the stats of the most recently measured frame, or null if none has been yet.
+     * May be called from any thread.
+     */
+    public FrameStats getLatest() {
+        return mLatest;
+    }
+
+    /**
+     * Returns the time measure() takes on the calling thread: the draw, queueing the read,
+     * and turning a finished grid into stats.  It never includes waiting for the GPU on
+     * GLES 3.
+     */
+    public TimingStats getMeasureStats() {
+        return mMeasureStats;
+    }
+
+    /**
+     * Returns how many frames weren't measured because the GPU was behind.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    /**
+     * Queues the measurement of a frame, and publishes the stats of an earlier one if its
+     * grid has arrived.  Leaves the default framebuffer bound and restores the viewport.
+     *
+     * @param program Program that draws the frame's format unfiltered, with any extra
+     *     textures it samples (e.g. chroma planes) already bound.
+     * @param textureId The frame.
+     */
+    public void measure(Texture2dProgram program, int textureId, int frameWidth,
+            int frameHeight) {
+        long start = System.nanoTime();
+        if (mBuffers == null) {
+            mGlVersion = GlUtil.getGlMajorVersion();
+            mBuffers = new DrawableBuffers(mGlVersion);
+        }
+        if (mGlVersion >= 3) {
+            poll();
+            if (mPendingCount == READBACK_BUFFER_COUNT) {
+                mSkippedCount++;
+                return;
+            }
+        }
+
+        int width = Math.min(mSampleWidth, frameWidth);
+        int height = Math.max(1, Math.round((float) frameHeight * width / frameWidth));
+        if (mTarget == null || mTarget.getWidth() != width || mTarget.getHeight() != height) {
+            if (mTarget != null) {
+                mPool.recycle(mTarget);
+                mPool.trim();
+            }
+            mTarget = mPool.acquire(width, height);
+        }
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+        mTarget.bind();
+        // Each grid texel takes the frame pixel under its center; frame textures are
+        // minified GL_NEAREST.  Row order doesn't matter to a histogram.
+        program.preDraw(textureId);
+        program.draw(GlUtil.IDENTITY_MATRIX, GlUtil.IDENTITY_MATRIX, mBuffers, mRect);
+
+        if (mGlVersion >= 3) {
+            int size = width * height * 4;
+            if (mPackBufferSize < size) {
+                createPackBuffers(size);
+            }
+            int buffer = mNextBuffer;
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffers[buffer]);
+            // With a buffer bound the last argument is an offset into it; this only queues
+            // the copy.
+            GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    0);
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            mFences[buffer] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+            mWidths[buffer] = width;
+            mHeights[buffer] = height;
+            mTimestamps[buffer] = start;
+            mNextBuffer = (buffer + 1) % READBACK_BUFFER_COUNT;
+            mPendingCount++;
+        } else {
+            int size = width * height * 4;
+            if (mClientBuffer == null || mClientBuffer.capacity() < size) {
+                mClientBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            }
+            mClientBuffer.clear();
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    mClientBuffer);
+            mLatest = FrameStats.compute(mClientBuffer, width, height, start);
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        GlUtil.checkGlError("FrameStatsRenderer");
+        mMeasureStats.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Retires the grids that have arrived, oldest first, and publishes the newest.  Never
+     * waits.
+     */
+    private void poll() {
+        int newest = -1;
+        while (mPendingCount > 0) {
+            int buffer = (mNextBuffer - mPendingCount + READBACK_BUFFER_COUNT) %
+                    READBACK_BUFFER_COUNT;
+            // Flushing makes sure the fence is on its way to the GPU, or it may never signal.
+            int status = GLES30.glClientWaitSync(mFences[buffer],
+                    GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                break;
+            }
+            GLES30.glDeleteSync(mFences[buffer]);
+            mFences[buffer] = 0;
+            mPendingCount--;
+            if (status != GLES30.GL_WAIT_FAILED) {
+                newest = buffer;
+            }
+        }
+        if (newest < 0) {
+            return;
+        }
+        int width = mWidths[newest];
+        int height = mHeights[newest];
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffers[newest]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                0, width * height * 4, GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            mLatest = FrameStats.compute(mapped, width, height, mTimestamps[newest]);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("FrameStatsRenderer readback");
+    }
+
+    private void createPackBuffers(int size) {
+        if (mPackBufferSize != 0) {
+            deletePackBuffers();
+        }
+        GLES20.glGenBuffers(READBACK_BUFFER_COUNT, mPackBuffers, 0);
+        for (int buffer : mPackBuffers) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, buffer);
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null,
+                    GLES30.GL_STREAM_READ);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GlUtil.checkGlError("createPackBuffers");
+        mPackBufferSize = size;
+    }
+
+    private void deletePackBuffers() {
+        // Grids in flight go with their buffers.
+        for (int i = 0; i < READBACK_BUFFER_COUNT; i++) {
+            if (mFences[i] != 0) {
+                GLES30.glDeleteSync(mFences[i]);
+                mFences[i] = 0;
+            }
+        }
+        GLES20.glDeleteBuffers(READBACK_BUFFER_COUNT, mPackBuffers, 0);
+        mPendingCount = 0;
+        mPackBufferSize = 0;
+    }
+
+    /**
+     * Releases the GL objects; the next measure() creates them again.  getLatest() keeps
+     * the last stats.
+     * <p>
+     * Pass false when the context is being destroyed; otherwise it must be current.
+     */
+    public void release(boolean doEglCleanup) {
+        if (mTarget != null) {
+            mPool.recycle(mTarget);
+            mTarget = null;
+        }
+        mPool.release(doEglCleanup);
+        if (mBuffers != null) {
+            mBuffers.release(doEglCleanup);
+            mBuffers = null;
+        }
+        if (doEglCleanup && mPackBufferSize != 0) {
+            deletePackBuffers();
+        }
+        mPackBufferSize = 0;
+        mPendingCount = 0;
+        mNextBuffer = 0;
+        Arrays.fill(mFences, 0);
+    }
+}
@@ -0,0 +1,157 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Reuses framebuffer objects, each rendering into an RGBA texture of its own, so render
+ * passes don't allocate texture storage every frame.
+ * <p>
+ * Textures are shared with the share group, but framebuffer objects aren't: use the pool
+ * from one context.  A framebuffer goes back to the pool with recycle(), after the commands
+ * that read it have been issued; commands run in order within the context, so the next
+ * user's writes land after those reads.
+ * <p>
+ * Not thread-safe; use from the render thread.
+ */
+public class FramebufferPool {
+    private static final String TAG = GlUtil.TAG;
+
+    /**
+     * A framebuffer object and its color texture.
+     */
+    public static final class Framebuffer {
+        private final int mFramebuffer;
+        private final int mTexture;
+        private final int mWidth;
+        private final int mHeight;
+
+        private Framebuffer(int framebuffer, int texture, int width, int height) {
+            mFramebuffer = framebuffer;
+            mTexture = texture;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        /**
+         * Directs drawing into the texture.  Also sets the viewport.
+         */
+        public void bind() {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+        }
+
+        public int getTextureId() {
+            return mTexture;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    private final ArrayList<Framebuffer> mFree = new ArrayList<>();
+    private int mAllocatedCount;
+
+    /**
+     * Returns a framebuffer of the given size, reusing a free one if there is one.  Its
+     * contents are undefined.
+     */
+    public Framebuffer acquire(int width, int height) {
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            Framebuffer fb = mFree.get(i);
+            if (fb.mWidth == width && fb.mHeight == height) {
+                return mFree.remove(i);
+            }
+        }
+        return create(width, height);
+    }
+
+    private Framebuffer create(int width, int height) {
+        int[] names = new int[1];
+        GLES20.glGenTextures(1, names, 0);
+        int texture = names[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        // Linear both ways: later passes sample between texels, and scaled passes resample.
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        GLES20.glGenFramebuffers(1, names, 0);
+        int framebuffer = names[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, texture, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            GLES20.glDeleteFramebuffers(1, new int[] { framebuffer }, 0);
+            GLES20.glDeleteTextures(1, new int[] { texture }, 0);
+            throw new RuntimeException("framebuffer " + width + "x" + height +
+                    " incomplete: 0x" + Integer.toHexString(status));
+        }
+        GlUtil.checkGlError("FramebufferPool");
+        mAllocatedCount++;
+        Log.d(TAG, "created framebuffer " + width + "x" + height + " (" + mAllocatedCount +
+                " allocated)");
+        return new Framebuffer(framebuffer, texture, width, height);
+    }
+
+    /**
+     * Returns a framebuffer to the pool.
+     */
+    public void recycle(Framebuffer fb) {
+        mFree.add(fb);
+    }
+
+    /**
+     * Deletes the free framebuffers, e.g. after the frame size or the passes change.  The
+     * context the pool is used from must be current.
+     */
+    public void trim() {
+        for (Framebuffer fb : mFree) {
+            delete(fb);
+        }
+        mFree.clear();
+    }
+
+    private void delete(Framebuffer fb) {
+        GLES20.glDeleteFramebuffers(1, new int[] { fb.mFramebuffer }, 0);
+        GLES20.glDeleteTextures(1, new int[] { fb.mTexture }, 0);
+        mAllocatedCount--;
+    }
+
+    /**
+     * Returns the number of framebuffers that exist, free or not.
+     */
+    public int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+
+    /**
+     * Forgets the free framebuffers, deleting them if doEglCleanup is set; the context the
+     * pool is used from must then be current.  Framebuffers still out aren't the pool's to
+     * delete.  Pass false when the context is being destroyed.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            trim();
+        }
+        mFree.clear();
+        mAllocatedCount = 0;
+    }
+}
@@ -16,13 +16,17 @@
 
 package com.hsj.camera.externalcameratest.gles;
 
+import android.opengl.EGLContext;
+
 /**
  * This class essentially represents a viewport-sized sprite that will be rendered with
  * a texture, usually from an external source like the camera or video decoder.
  */
 public class FullFrameRect {
     private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
+    private final DrawableBuffers mBuffers;
     private Texture2dProgram mProgram;
+    private boolean mOwnsProgram;
 
     /**
      * Prepares the object.
@@ -31,7 +35,20 @@ public class FullFrameRect {
      *     the program when no longer needed.
      */
     public FullFrameRect(Texture2dProgram program) {
+        this(program, true);
+    }
+
+    /**
+     * Prepares the object, and the vertex buffer it draws from in the current EGL context.
+     *
+     * @param program The program to use.
+     * @param ownsProgram Whether FullFrameRect takes ownership.  Pass false for a program
+     *     that's owned elsewhere, e.g. by a {@link ProgramCache}.
+     */
+    public FullFrameRect(Texture2dProgram program, boolean ownsProgram) {
         mProgram = program;
+        mOwnsProgram = ownsProgram;
+        mBuffers = new DrawableBuffers(GlUtil.getGlMajorVersion());
     }
 
     /**
@@ -44,11 +61,20 @@ public class FullFrameRect {
      */
     public void release(boolean doEglCleanup) {
         if (mProgram != null) {
-            if (doEglCleanup) {
+            if (doEglCleanup && mOwnsProgram) {
                 mProgram.release();
             }
             mProgram = null;
         }
+        mBuffers.release(doEglCleanup);
+    }
+
+    /**
+     * Forgets what's specific to an EGL context.  Call before destroying a context that has
+     * drawn frames, other than the one current when the constructor was called.
+     */
+    public void releaseContext(EGLContext context) {
+        mBuffers.releaseContext(context);
     }
 
     /**
@@ -64,8 +90,23 @@ public class FullFrameRect {
      * The appropriate EGL context must be current.
      */
     public void changeProgram(Texture2dProgram program) {
-        mProgram.release();
+        if (mOwnsProgram) {
+            mProgram.release();
+        }
         mProgram = program;
+        mOwnsProgram = true;
+    }
+
+    /**
+     * Switches to a program owned elsewhere, e.g. by a {@link ProgramCache}.  Neither it nor
+     * the previous program is released, unless the previous one was owned by this object.
+     */
+    public void changeSharedProgram(Texture2dProgram program) {
+        if (mOwnsProgram) {
+            mProgram.release();
+        }
+        mProgram = program;
+        mOwnsProgram = false;
     }
 
     /**
@@ -75,8 +116,11 @@ public class FullFrameRect {
         return mProgram.GenTexture();
     }
 
-    public void preDrawFrame(){
-        mProgram.preDraw();
+    /**
+     * Clears the viewport and selects the program and the texture for drawFrame().
+     */
+    public void preDrawFrame(int textureId){
+        mProgram.preDraw(textureId);
     }
 
     /**
@@ -84,10 +128,6 @@ public class FullFrameRect {
      */
     public void drawFrame(int textureId, float[] texMatrix) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
-                mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
-                mRectDrawable.getVertexStride(),
-                texMatrix, mRectDrawable.getTexCoordArray(),
-                mRectDrawable.getTexCoordStride());
+        mProgram.draw(GlUtil.IDENTITY_MATRIX, texMatrix, mBuffers, mRectDrawable);
     }
 }
@@ -0,0 +1,92 @@
+package com.hsj.camera.externalcameratest.gles;
+
+/**
+ * One-dimensional Gaussian weights, for blurring in two separable passes: a horizontal pass,
+ * then a vertical one over its output, costs 2n fetches per pixel instead of n*n.
+ * <p>
+ * The passes also use linear sampling: with bilinear filtering, one fetch between two
+ * adjacent texels returns their weighted average, so each pair of taps on a side of the
+ * center costs one fetch.  A 15-tap kernel takes 9 fetches per pass, for 18 per pixel where
+ * the 2D kernel would take 225.  This needs the input texture to have GL_LINEAR filtering,
+ * as {@link FilterPipelineRenderer} arranges.
+ */
+public final class GaussianKernel {
+    private GaussianKernel() {
+    }
+
+    /**
+     * Returns the normalized weights of a kernel.
+     *
+     * @param taps Number of taps; must be odd.
+     * @param sigma Standard deviation in texels; with taps = 6 * sigma + 1 almost nothing is
+     *     cut off.
+     */
+    public static float[] getWeights(int taps, float sigma) {
+        if (taps <= 0 || taps % 2 == 0) {
+            throw new IllegalArgumentException("taps must be odd, got " + taps);
+        }
+        if (!(sigma > 0f)) {
+            throw new IllegalArgumentException("sigma must be positive, got " + sigma);
+        }
+        int radius = taps / 2;
+        double[] values = new double[taps];
+        double sum = 0;
+        for (int i = 0; i < taps; i++) {
+            double x = i - radius;
+            values[i] = Math.exp(-x * x / (2.0 * sigma * sigma));
+            sum += values[i];
+        }
+        float[] weights = new float[taps];
+        for (int i = 0; i < taps; i++) {
+            weights[i] = (float) (values[i] / sum);
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the kernel as one pass of a separable blur, with adjacent taps merged into
+     * bilinear fetches.
+     *
+     * @param horizontal True for the pass along rows, false for the one along columns.
+     */
+    public static FilterStage getPass(int taps, float sigma, boolean horizontal) {
+        float[][] merged = mergeTaps(getWeights(taps, sigma));
+        float[] weights = merged[0];
+        float[] offsets = new float[2 * weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            offsets[2 * i + (horizontal ? 0 : 1)] = merged[1][i];
+        }
+        return FilterChain.taps("gaussian" + (horizontal ? "H" : "V"), weights, offsets, 0f);
+    }
+
+    /**
+     * Merges the taps of a symmetric kernel pairwise into bilinear fetches.
+     *
+     * @return the weights of the fetches, and their offsets in texels: the center first, then
+     *     the pairs from the center out, left (or up) then right (or down).
+     */
+    static float[][] mergeTaps(float[] weights) {
+        int radius = weights.length / 2;
+        int fetches = 1 + 2 * ((radius + 1) / 2);
+        float[] mergedWeights = new float[fetches];
+        float[] offsets = new float[fetches];
+        mergedWeights[0] = weights[radius];
+        int fetch = 1;
+        for (int i = 1; i <= radius; i += 2) {
+            float weight = weights[radius + i];
+            float offset = i;
+            if (i < radius) {
+                // Between texels i and i + 1, nearer the heavier one.
+                float next = weights[radius + i + 1];
+                offset = (i * weight + (i + 1) * next) / (weight + next);
+                weight += next;
+            }
+            for (int side = -1; side <= 1; side += 2) {
+                mergedWeights[fetch] = weight;
+                offsets[fetch] = side * offset;
+                fetch++;
+            }
+        }
+        return new float[][] { mergedWeights, offsets };
+    }
+}
@@ -211,6 +211,20 @@ public class GlUtil {
         return fb;
     }
 
+    /**
+     * Returns the major GLES version of the current context (2 or 3), parsed from the
+     * GL_VERSION string ("OpenGL ES 3.2 ...").
+     */
+    public static int getGlMajorVersion() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        final String prefix = "OpenGL ES ";
+        if (version != null && version.startsWith(prefix) && version.length() > prefix.length()
+                && Character.isDigit(version.charAt(prefix.length()))) {
+            return version.charAt(prefix.length()) - '0';
+        }
+        return 2;
+    }
+
     /**
      * Writes GL version info to the log.
      */
@@ -0,0 +1,98 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+
+import com.hsj.camera.externalcameratest.frame.ColorLut;
+
+/**
+ * The texture holding a {@link ColorLut}'s atlas, for
+ * {@link Texture2dProgram.ProgramType#TEXTURE_2D_LUT}.
+ * <p>
+ * Changing looks re-uploads the table, 33 * 33 * 33 texels, which is far cheaper than
+ * switching to (or building) another program.  The texture lives in the share group, but
+ * bindings are per-context: bind() it in every context that draws with it.
+ */
+public class LutTexture {
+    /** Texture unit the LUT is bound to; after the YUV chroma units. */
+    public static final int LUT_UNIT = YuvUploader.CHROMA_UNIT_2 + 1;
+
+    private final int[] mTexture = new int[1];
+    private boolean mTextureCreated;
+    private ColorLut mLut;
+    private int mStorageSize;
+
+    /**
+     * Uploads a table, unless it's the one already uploaded.  Leaves GL_TEXTURE0 active.
+     *
+     * @return true if anything was uploaded.
+     */
+    public boolean upload(ColorLut lut) {
+        if (lut == mLut) {
+            return false;
+        }
+        if (!mTextureCreated) {
+            GLES20.glGenTextures(1, mTexture, 0);
+            mTextureCreated = true;
+            mStorageSize = 0;
+        }
+        int size = lut.getSize();
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + LUT_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (size != mStorageSize) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, lut.getAtlasWidth(), size,
+                    0, GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, lut.toAtlas());
+            // Linear filtering interpolates red and green; the slices never bleed into each
+            // other, since the shader samples no nearer than half a texel to a slice's edge.
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            mStorageSize = size;
+        } else {
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, lut.getAtlasWidth(), size,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, lut.toAtlas());
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GlUtil.checkGlError("LUT upload");
+        mLut = lut;
+        return true;
+    }
+
+    /**
+     * Returns the table last uploaded, or null.
+     */
+    public ColorLut getLut() {
+        return mLut;
+    }
+
+    /**
+     * Binds the texture to LUT_UNIT in the current context.  Leaves GL_TEXTURE0 active.
+     */
+    public void bind() {
+        if (!mTextureCreated) {
+            return;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + LUT_UNIT);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture[0]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    /**
+     * Releases the texture.
+     *
+     * @param doEglCleanup If true, the texture is deleted; pass false if the EGL context is
+     *     being destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup && mTextureCreated) {
+            GLES20.glDeleteTextures(1, mTexture, 0);
+        }
+        mTextureCreated = false;
+        mLut = null;
+    }
+}
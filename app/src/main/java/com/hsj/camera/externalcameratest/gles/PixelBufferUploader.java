@@ -0,0 +1,145 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.TimingStats;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Asynchronous texture upload through a rotating set of pixel unpack buffers (GLES 3).
+ * <p>
+ * A client-memory glTexSubImage2D() can't return until the driver has copied the whole
+ * frame, so the render thread stalls for the full transfer.  Here each frame is written into
+ * a mapped pixel buffer object and the texture is updated from that buffer, which only
+ * queues a GPU-side copy.  With N buffers in rotation the CPU fills buffer k+1 while the
+ * GPU is still copying from buffer k; mapping only blocks if the GPU is N frames behind.
+ * <p>
+ * The time spent waiting in glMapBufferRange() is reported by getStallStats().
+ */
+public class PixelBufferUploader implements TextureUploader {
+    private final int[] mBuffers;
+    private final TimingStats mUploadStats;
+    private final TimingStats mStallStats;
+
+    private int mBufferSize;        // size of each buffer's data store, or 0 if not created
+    private int mNextBuffer;
+
+    // Texture storage we've allocated, or -1 if none.
+    private int mStorageTextureId = -1;
+    private int mStorageWidth;
+    private int mStorageHeight;
+    private FrameFormat mStorageFormat;
+
+    /**
+     * Prepares the uploader.  Does no GL operations; the buffers are created on the first
+     * upload.
+     *
+     * @param bufferCount Number of buffers to rotate through, normally 2 or 3.
+     * @param statsWindow Number of frames summarized by each stats window.
+     */
+    public PixelBufferUploader(int bufferCount, int statsWindow) {
+        if (bufferCount < 2) {
+            throw new IllegalArgumentException("need at least two buffers, got " + bufferCount);
+        }
+        mBuffers = new int[bufferCount];
+        mUploadStats = new TimingStats("PBO upload", statsWindow);
+        mStallStats = new TimingStats("PBO map stall", statsWindow);
+    }
+
+    @Override
+    public void upload(int textureId, Frame frame) {
+        long start = System.nanoTime();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int size = frame.getSize();
+        int format = TexSubImageUploader.getGlFormat(frame.getFormat());
+
+        if (mBufferSize < size) {
+            createBuffers(size);
+        }
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (textureId != mStorageTextureId || width != mStorageWidth ||
+                height != mStorageHeight || frame.getFormat() != mStorageFormat) {
+            // Storage is defined from client memory, so make sure no buffer is bound.
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                    GLES20.GL_UNSIGNED_BYTE, null);
+            mStorageTextureId = textureId;
+            mStorageWidth = width;
+            mStorageHeight = height;
+            mStorageFormat = frame.getFormat();
+        }
+
+        // Fill the next buffer.  Invalidating lets the driver hand us fresh memory instead of
+        // waiting, if the GPU still hasn't finished reading the previous contents.
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mBuffers[mNextBuffer]);
+        long mapStart = System.nanoTime();
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_UNPACK_BUFFER,
+                0, size, GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        mStallStats.add(System.nanoTime() - mapStart);
+        if (mapped == null) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+            GlUtil.checkGlError("glMapBufferRange");
+            throw new RuntimeException("glMapBufferRange returned null");
+        }
+        ByteBuffer data = frame.getBuffer();
+        mapped.put(data);
+        data.position(0);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+
+        // With a buffer bound the pixel pointer is an offset into it, so this just queues the
+        // copy.  The Java bindings have no offset overload; a null Buffer passes offset zero.
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format,
+                GLES20.GL_UNSIGNED_BYTE, null);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+
+        mNextBuffer = (mNextBuffer + 1) % mBuffers.length;
+        mUploadStats.add(System.nanoTime() - start);
+    }
+
+    private void createBuffers(int size) {
+        if (mBufferSize != 0) {
+            GLES20.glDeleteBuffers(mBuffers.length, mBuffers, 0);
+        }
+        GLES20.glGenBuffers(mBuffers.length, mBuffers, 0);
+        for (int buffer : mBuffers) {
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, buffer);
+            GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null,
+                    GLES30.GL_STREAM_DRAW);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        GlUtil.checkGlError("createBuffers");
+        mBufferSize = size;
+        mNextBuffer = 0;
+    }
+
+    @Override
+    public void invalidate() {
+        mStorageTextureId = -1;
+    }
+
+    @Override
+    public TimingStats getUploadStats() {
+        return mUploadStats;
+    }
+
+    @Override
+    public TimingStats getStallStats() {
+        return mStallStats;
+    }
+
+    @Override
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup && mBufferSize != 0) {
+            GLES20.glDeleteBuffers(mBuffers.length, mBuffers, 0);
+        }
+        mBufferSize = 0;
+        invalidate();
+    }
+}
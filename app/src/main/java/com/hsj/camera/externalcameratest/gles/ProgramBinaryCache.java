@@ -0,0 +1,211 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Saves linked program binaries to disk and loads them with glProgramBinary(), so a new
+ * process or EGL context doesn't compile every shader from source again.  Needs GLES 3.
+ * <p>
+ * Each program gets a file named after a hash of the driver (vendor, renderer and version
+ * strings) and both shader sources, so a driver update or a shader change misses instead
+ * of loading a stale binary.  The file holds the binary format, the binary and a CRC of it.
+ * The driver may still refuse a binary (formats are only valid for the driver that wrote
+ * them, and some drivers reject their own after an update without changing the version
+ * string); load() then deletes the file and returns 0, and the caller compiles from source
+ * and saves the result.
+ * <p>
+ * Use an app-private directory that the system may clear, like Context.getCodeCacheDir().
+ * The GLES 3 context that owns the programs must be current.  Thread-safe, so a
+ * {@link ProgramCompiler} thread and the render thread can share one.
+ */
+public class ProgramBinaryCache {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final int MAGIC = 0x50424e31;    // "PBN1"
+    private static final String SUFFIX = ".bin";
+
+    private final File mDir;
+    private String mDriver;
+
+    private int mLoadedCount;
+    private int mSavedCount;
+    private int mRejectedCount;
+
+    /**
+     * @param dir Directory for the binaries; created if it doesn't exist.
+     */
+    public ProgramBinaryCache(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Creates a program from the saved binary for these sources.
+     *
+     * @return the linked program, or 0 if there's no usable binary.
+     */
+    public synchronized int load(String vertexShader, String fragmentShader) {
+        File file = getFile(vertexShader, fragmentShader);
+        if (!file.exists()) {
+            return 0;
+        }
+        int format;
+        byte[] binary;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("bad magic");
+            }
+            format = in.readInt();
+            int length = in.readInt();
+            long crc = in.readLong();
+            if (length <= 0 || length != file.length() - 20) {
+                throw new IOException("bad length " + length);
+            }
+            binary = new byte[length];
+            in.readFully(binary);
+            if (getCrc(binary) != crc) {
+                throw new IOException("bad checksum");
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "discarding program binary " + file.getName() + ": " + ioe.getMessage());
+            reject(file);
+            return 0;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+        buf.put(binary).flip();
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, format, buf, binary.length);
+        int[] status = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+        if (status[0] != GLES20.GL_TRUE) {
+            // An unknown format raises GL_INVALID_ENUM; don't leave it for the next check.
+            while (GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+                // drain
+            }
+            Log.w(TAG, "driver refused program binary " + file.getName());
+            GLES20.glDeleteProgram(program);
+            reject(file);
+            return 0;
+        }
+        mLoadedCount++;
+        return program;
+    }
+
+    /**
+     * Saves the binary of a program linked from these sources, replacing any saved before.
+     * Failures are logged and otherwise ignored; the program just gets compiled next time.
+     */
+    public synchronized void save(int program, String vertexShader, String fragmentShader) {
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        if (values[0] <= 0) {
+            return;     // not linked, or the driver has no binary formats
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(values[0]).order(ByteOrder.nativeOrder());
+        int[] length = new int[1];
+        int[] format = new int[1];
+        GLES30.glGetProgramBinary(program, values[0], length, 0, format, 0, buf);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || length[0] <= 0) {
+            return;
+        }
+        byte[] binary = new byte[length[0]];
+        buf.get(binary);
+
+        File file = getFile(vertexShader, fragmentShader);
+        File temp = new File(mDir, file.getName() + ".tmp");
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "can't create " + mDir);
+            return;
+        }
+        // Written aside and renamed, so a crash can't leave a truncated binary behind.
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(format[0]);
+            out.writeInt(binary.length);
+            out.writeLong(getCrc(binary));
+            out.write(binary);
+        } catch (IOException ioe) {
+            Log.w(TAG, "can't save program binary: " + ioe.getMessage());
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        mSavedCount++;
+    }
+
+    private void reject(File file) {
+        file.delete();
+        mRejectedCount++;
+    }
+
+    private File getFile(String vertexShader, String fragmentShader) {
+        if (mDriver == null) {
+            mDriver = GLES20.glGetString(GLES20.GL_VENDOR) + '\n' +
+                    GLES20.glGetString(GLES20.GL_RENDERER) + '\n' +
+                    GLES20.glGetString(GLES20.GL_VERSION);
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException(nsae);
+        }
+        // Separators keep "ab"+"c" from matching "a"+"bc".
+        digest.update(mDriver.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(vertexShader.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(fragmentShader.getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(Character.forDigit(b >> 4 & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(mDir, name.append(SUFFIX).toString());
+    }
+
+    private static long getCrc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the number of programs created from saved binaries.
+     */
+    public synchronized int getLoadedCount() {
+        return mLoadedCount;
+    }
+
+    /**
+     * Returns the number of binaries saved.
+     */
+    public synchronized int getSavedCount() {
+        return mSavedCount;
+    }
+
+    /**
+     * Returns the number of saved binaries that were corrupt or refused by the driver.
+     */
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+}
@@ -0,0 +1,337 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps Texture2dPrograms compiled for the life of an EGL share group, so switching filters
+ * is a lookup instead of a compile and link on the render thread.
+ * <p>
+ * Programs are keyed by type and shader source, so a type built from different sources gets
+ * its own entry.  get() compiles on a miss; precompile() queues programs that are likely to
+ * be needed, and compilePending() builds them a few at a time when the caller has time to
+ * spare, e.g. on vsyncs without a new frame.
+ * <p>
+ * The cache owns its programs: they're released with the cache, never by whoever draws with
+ * them.  Because a program is shared by every user of its type, per-draw state (filter
+ * kernel, texture size, color conversion) must be set again after switching to it.
+ * <p>
+ * The fixed types are a handful of programs, kept for the life of the cache.  Fused
+ * (TEXTURE_2D_FUSED) programs are one per distinct {@link FilterChain}, so there's no
+ * telling how many there will be.  Past MAX_FUSED_PROGRAMS, the least recently requested
+ * ones are released, but never while pinned: whoever keeps drawing with a program pins it,
+ * and unpins it when done.
+ * <p>
+ * With a {@link ProgramBinaryCache}, a miss first tries the binary saved by an earlier run,
+ * and programs compiled from source are saved for the next one.
+ * <p>
+ * With a {@link ProgramCompiler}, precompile() and getIfReady() build programs on the
+ * compiler's thread instead, and the caller keeps drawing with what it has until they're
+ * ready.  get() still compiles on the spot if it must.
+ * <p>
+ * Not thread-safe; use from the thread that has the share group's context current.
+ */
+public class ProgramCache {
+    private static final String TAG = GlUtil.TAG;
+
+    /** Fused programs kept when not pinned; a pipeline's passes plus a few chains. */
+    public static final int MAX_FUSED_PROGRAMS = 8;
+
+    // Access order: iteration starts at the least recently requested.
+    private final LinkedHashMap<Key, Texture2dProgram> mPrograms =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private int mFusedCount;
+    // Programs in use, and how many holders each has.
+    private final Map<Texture2dProgram, Integer> mPins = new IdentityHashMap<>();
+    private final ArrayDeque<Key> mPending = new ArrayDeque<>();
+    private final ProgramBinaryCache mBinaries;
+    private final ProgramCompiler mCompiler;
+    // Requested from the compiler and not collected yet, and those it failed to build.
+    private final Set<Key> mRequested = new HashSet<>();
+    private final Set<Key> mFailed = new HashSet<>();
+
+    /**
+     * Creates a cache that compiles every program from source.
+     */
+    public ProgramCache() {
+        this(null, null);
+    }
+
+    /**
+     * @param binaries Where to load and save linked programs, or null to always compile
+     *     from source.
+     * @param compiler Started compiler for building programs in the background, or null to
+     *     build them on the caller's thread.  The cache takes ownership, and quits it when
+     *     released.
+     */
+    public ProgramCache(ProgramBinaryCache binaries, ProgramCompiler compiler) {
+        mBinaries = binaries;
+        mCompiler = compiler;
+    }
+
+    /**
+     * Returns the type's program, compiling it now if it isn't cached yet.
+     */
+    public Texture2dProgram get(Texture2dProgram.ProgramType type) {
+        return get(type, Texture2dProgram.getVertexShader(type),
+                Texture2dProgram.getFragmentShader(type));
+    }
+
+    /**
+     * Returns the program built from the given sources, compiling it now if it isn't cached
+     * yet.
+     */
+    public Texture2dProgram get(Texture2dProgram.ProgramType type, String vertexShader,
+            String fragmentShader) {
+        Key key = new Key(type, vertexShader, fragmentShader);
+        collect();
+        Texture2dProgram program = mPrograms.get(key);
+        if (program == null) {
+            // If the compiler is building it too, its copy is dropped when collected.
+            program = compile(key);
+        }
+        return program;
+    }
+
+    /**
+     * Returns the type's program if it's ready.  Otherwise has the compiler build it and
+     * returns null; ask again later.  Without a compiler, or if the compiler failed to build
+     * it, this is get().
+     */
+    public Texture2dProgram getIfReady(Texture2dProgram.ProgramType type) {
+        return getIfReady(type, Texture2dProgram.getVertexShader(type),
+                Texture2dProgram.getFragmentShader(type));
+    }
+
+    /**
+     * Returns the program built from the given sources if it's ready; see
+     * getIfReady(ProgramType).
+     */
+    public Texture2dProgram getIfReady(Texture2dProgram.ProgramType type, String vertexShader,
+            String fragmentShader) {
+        Key key = new Key(type, vertexShader, fragmentShader);
+        collect();
+        Texture2dProgram program = mPrograms.get(key);
+        if (program != null) {
+            return program;
+        }
+        if (mCompiler == null || mFailed.contains(key)) {
+            return compile(key);
+        }
+        request(key);
+        return null;
+    }
+
+    /**
+     * Queues the types' programs to be built: by the compiler if there is one, otherwise by
+     * compilePending().  Types already cached or queued are ignored.
+     */
+    public void precompile(Texture2dProgram.ProgramType... types) {
+        for (Texture2dProgram.ProgramType type : types) {
+            Key key = new Key(type, Texture2dProgram.getVertexShader(type),
+                    Texture2dProgram.getFragmentShader(type));
+            if (mPrograms.containsKey(key)) {
+                continue;
+            }
+            if (mCompiler != null) {
+                request(key);
+            } else if (!mPending.contains(key)) {
+                mPending.add(key);
+            }
+        }
+    }
+
+    /**
+     * Takes in the programs the compiler has finished, then compiles up to maxCount of the
+     * programs queued without one.
+     *
+     * @return true if more remain queued or in the compiler.
+     */
+    public boolean compilePending(int maxCount) {
+        collect();
+        for (int i = 0; i < maxCount && !mPending.isEmpty(); i++) {
+            Key key = mPending.poll();
+            if (!mPrograms.containsKey(key)) {
+                compile(key);
+            }
+        }
+        return !mPending.isEmpty() || !mRequested.isEmpty();
+    }
+
+    /**
+     * Keeps a program from being released while the caller draws with it.  Pins are
+     * counted; each needs an unpin().
+     */
+    public void pin(Texture2dProgram program) {
+        Integer count = mPins.get(program);
+        mPins.put(program, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Drops a pin taken with pin().  Programs the cache has already forgotten, e.g. because
+     * it was released, are ignored.
+     */
+    public void unpin(Texture2dProgram program) {
+        Integer count = mPins.get(program);
+        if (count == null) {
+            return;
+        }
+        if (count == 1) {
+            mPins.remove(program);
+            trim(null);
+        } else {
+            mPins.put(program, count - 1);
+        }
+    }
+
+    private void request(Key key) {
+        if (!mFailed.contains(key) && mRequested.add(key)) {
+            mCompiler.request(key);
+        }
+    }
+
+    private void collect() {
+        if (mCompiler == null) {
+            return;
+        }
+        ProgramCompiler.Result result;
+        while ((result = mCompiler.pollReady()) != null) {
+            mRequested.remove(result.mKey);
+            if (result.mProgram == null) {
+                mFailed.add(result.mKey);
+            } else if (mPrograms.containsKey(result.mKey)) {
+                result.mProgram.release();      // compiled here in the meantime
+            } else {
+                put(result.mKey, result.mProgram);
+            }
+        }
+    }
+
+    private Texture2dProgram compile(Key key) {
+        Texture2dProgram program = build(key, mBinaries);
+        put(key, program);
+        return program;
+    }
+
+    private void put(Key key, Texture2dProgram program) {
+        mPrograms.put(key, program);
+        if (key.mType == Texture2dProgram.ProgramType.TEXTURE_2D_FUSED) {
+            mFusedCount++;
+            // The caller is about to get it, and can't have pinned it yet.
+            trim(key);
+        }
+    }
+
+    /**
+     * Releases the least recently requested fused programs that aren't pinned, other than
+     * keep's, until no more than MAX_FUSED_PROGRAMS are left, or none can go.
+     */
+    private void trim(Key keep) {
+        Iterator<Map.Entry<Key, Texture2dProgram>> it = mPrograms.entrySet().iterator();
+        while (mFusedCount > MAX_FUSED_PROGRAMS && it.hasNext()) {
+            Map.Entry<Key, Texture2dProgram> entry = it.next();
+            if (entry.getKey().mType != Texture2dProgram.ProgramType.TEXTURE_2D_FUSED ||
+                    entry.getKey().equals(keep) || mPins.containsKey(entry.getValue())) {
+                continue;
+            }
+            it.remove();
+            mFusedCount--;
+            Log.d(TAG, "evicting fused program " + entry.getValue().getProgramHandle());
+            entry.getValue().release();
+        }
+    }
+
+    /**
+     * Builds the key's program in the current context, from a saved binary if possible.
+     */
+    static Texture2dProgram build(Key key, ProgramBinaryCache binaries) {
+        long start = System.nanoTime();
+        int handle = binaries != null ? binaries.load(key.mVertexShader, key.mFragmentShader)
+                : 0;
+        Texture2dProgram program;
+        if (handle != 0) {
+            program = new Texture2dProgram(key.mType, handle);
+        } else {
+            program = new Texture2dProgram(key.mType, key.mVertexShader, key.mFragmentShader);
+            if (binaries != null) {
+                binaries.save(program.getProgramHandle(), key.mVertexShader,
+                        key.mFragmentShader);
+            }
+        }
+        Log.d(TAG, (handle != 0 ? "loaded " : "compiled ") + key.mType + " in " +
+                (System.nanoTime() - start) / 1000 + "us on " + Thread.currentThread().getName());
+        return program;
+    }
+
+    /**
+     * Returns the number of programs compiled and cached.
+     */
+    public int size() {
+        return mPrograms.size();
+    }
+
+    /**
+     * Quits the compiler, if any, and forgets every program and everything queued.
+     * <p>
+     * Pass false when the context is being (or has been) destroyed: the programs go with it,
+     * and no context needs to be current.  Otherwise the context that compiled them must be
+     * current, and they're deleted.
+     */
+    public void release(boolean doEglCleanup) {
+        if (mCompiler != null) {
+            mCompiler.quit();
+            if (doEglCleanup) {
+                collect();
+            }
+        }
+        if (doEglCleanup) {
+            for (Texture2dProgram program : mPrograms.values()) {
+                program.release();
+            }
+        }
+        mPrograms.clear();
+        mFusedCount = 0;
+        mPins.clear();
+        mPending.clear();
+        mRequested.clear();
+        mFailed.clear();
+    }
+
+    /**
+     * Identifies a program by its type and sources.
+     */
+    static final class Key {
+        final Texture2dProgram.ProgramType mType;
+        final String mVertexShader;
+        final String mFragmentShader;
+
+        Key(Texture2dProgram.ProgramType type, String vertexShader, String fragmentShader) {
+            mType = type;
+            mVertexShader = vertexShader;
+            mFragmentShader = fragmentShader;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mType == other.mType && mVertexShader.equals(other.mVertexShader) &&
+                    mFragmentShader.equals(other.mFragmentShader);
+        }
+
+        @Override
+        public int hashCode() {
+            return (mType.hashCode() * 31 + mVertexShader.hashCode()) * 31 +
+                    mFragmentShader.hashCode();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Builds programs for a {@link ProgramCache} on a thread of its own, so the render thread
+ * doesn't stall on a compile and link.
+ * <p>
+ * The thread has an offscreen context that shares with the renderer's, so the programs it
+ * builds can be used there.  The render thread must not use a program before the commands
+ * that built it have completed: on GLES 3 the compiler inserts a fence after each program,
+ * and pollReady() only hands out programs whose fence has signaled.  On GLES 2 it calls
+ * glFinish() before handing the program over.
+ * <p>
+ * request() and pollReady() are called from the render thread; the cache does that.
+ */
+public class ProgramCompiler {
+    private static final String TAG = GlUtil.TAG;
+    private static final String THREAD_NAME = "ProgramCompiler";
+
+    /**
+     * A program built by the compiler thread.
+     */
+    static final class Result {
+        final ProgramCache.Key mKey;
+        final Texture2dProgram mProgram;      // null if the build failed
+        final long mFence;
+
+        Result(ProgramCache.Key key, Texture2dProgram program, long fence) {
+            mKey = key;
+            mProgram = program;
+            mFence = fence;
+        }
+    }
+
+    private final EGLContext mSharedContext;
+    private final ProgramBinaryCache mBinaries;
+    private final LinkedBlockingQueue<ProgramCache.Key> mRequests = new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<Result> mResults = new ConcurrentLinkedQueue<>();
+
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    /**
+     * Prepares the compiler.  Call start() to create its context and thread.
+     *
+     * @param sharedContext The renderer's context.
+     * @param binaries Where to load and save linked programs, or null to always compile
+     *     from source.  Must only be used on GLES 3.
+     */
+    public ProgramCompiler(EGLContext sharedContext, ProgramBinaryCache binaries) {
+        mSharedContext = sharedContext;
+        mBinaries = binaries;
+    }
+
+    /**
+     * Starts the compiler thread.  Does nothing if it's already running.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this::run, THREAD_NAME);
+        mThread.start();
+    }
+
+    /**
+     * Stops the compiler thread and waits for it to release its context.  Programs already
+     * built can still be taken with pollReady(); requests not started are dropped.
+     */
+    public synchronized void quit() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        mRequests.clear();
+    }
+
+    private void run() {
+        EglCore eglCore = new EglCore(mSharedContext, EglCore.FLAG_TRY_GLES3);
+        OffscreenSurface surface = new OffscreenSurface(eglCore, 1, 1);
+        try {
+            surface.makeCurrent();
+            boolean gles3 = eglCore.getGlVersion() >= 3;
+            while (mRunning) {
+                ProgramCache.Key key;
+                try {
+                    key = mRequests.take();
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                Texture2dProgram program;
+                try {
+                    program = ProgramCache.build(key, mBinaries);
+                } catch (RuntimeException re) {
+                    Log.w(TAG, "background build of " + key.mType + " failed", re);
+                    mResults.add(new Result(key, null, 0));
+                    continue;
+                }
+                long fence = 0;
+                if (gles3) {
+                    fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                    // The fence must reach the GPU before the render thread can see it signal.
+                    GLES20.glFlush();
+                } else {
+                    GLES20.glFinish();
+                }
+                mResults.add(new Result(key, program, fence));
+            }
+        } finally {
+            surface.release();
+            eglCore.release();
+        }
+    }
+
+    /**
+     * Queues a program to be built.  (Render thread.)
+     */
+    void request(ProgramCache.Key key) {
+        mRequests.add(key);
+    }
+
+    /**
+     * Returns the next finished program, or null if there's none or it isn't safe to use
+     * yet.  Programs come back in the order they were requested.  (Render thread, with a
+     * context of the share group current.)
+     */
+    Result pollReady() {
+        Result result = mResults.peek();
+        if (result == null) {
+            return null;
+        }
+        if (result.mFence != 0) {
+            int status = GLES30.glClientWaitSync(result.mFence, 0, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                return null;
+            }
+            GLES30.glDeleteSync(result.mFence);
+        }
+        return mResults.poll();
+    }
+}
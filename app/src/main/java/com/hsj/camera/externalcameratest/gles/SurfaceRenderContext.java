@@ -13,6 +13,7 @@ public class SurfaceRenderContext {
     public static final int EGL_RECORDABLE_ANDROID = 0x3142;
 
     private final int width, height;
+    private final int glVersion;
 
     private final EGLDisplay eglDisplay;
     private final EGLContext eglContext;
@@ -33,13 +34,17 @@ public class SurfaceRenderContext {
 
         if(sharedContext == null)
             sharedContext = EGL14.EGL_NO_CONTEXT;
-        eglContext = EGL14.eglCreateContext(eglDisplay, eglConfig, sharedContext,
-                new int[]{
-                        EGL14.EGL_CONTEXT_CLIENT_VERSION, 3,
-                        EGL14.EGL_NONE
-                }, 0);
-        if(eglContext == EGL14.EGL_NO_CONTEXT)
+        // Ask for GLES 3, fall back to GLES 2 if the device doesn't have it.
+        EGLContext context = createContext(eglConfig, sharedContext, 3);
+        int glVersion = 3;
+        if(context == EGL14.EGL_NO_CONTEXT) {
+            context = createContext(eglConfig, sharedContext, 2);
+            glVersion = 2;
+        }
+        if(context == EGL14.EGL_NO_CONTEXT)
             throw new RuntimeException("EGL14.EGL_NO_CONTEXT");
+        eglContext = context;
+        this.glVersion = glVersion;
 
         if(surface != null) {
             eglSurface = EGL14.eglCreateWindowSurface(eglDisplay, eglConfig, surface, new int[]{
@@ -59,6 +64,15 @@ public class SurfaceRenderContext {
         EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext);
     }
 
+    private EGLContext createContext(EGLConfig config, EGLContext sharedContext, int version) {
+        EGLContext context = EGL14.eglCreateContext(eglDisplay, config, sharedContext,
+                new int[]{
+                        EGL14.EGL_CONTEXT_CLIENT_VERSION, version,
+                        EGL14.EGL_NONE
+                }, 0);
+        return context == null ? EGL14.EGL_NO_CONTEXT : context;
+    }
+
     private EGLConfig chooseConfig(EGLDisplay display, boolean renderable) {
         int[] attributes;
         if(renderable) {
@@ -101,6 +115,13 @@ public class SurfaceRenderContext {
         return eglContext;
     }
 
+    /**
+     * Returns the GLES version the context was created with (2 or 3).
+     */
+    public int getGlVersion() {
+        return glVersion;
+    }
+
     public void destroy() {
         EGL14.eglMakeCurrent(eglDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
                 EGL14.EGL_NO_CONTEXT);
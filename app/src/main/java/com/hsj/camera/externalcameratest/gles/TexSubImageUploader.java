@@ -0,0 +1,103 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.TimingStats;
+
+/**
+ * Streams frames into a texture whose storage is allocated once.
+ * <p>
+ * Calling glTexImage2D() every frame makes the driver respecify (and often reallocate) the
+ * texture each time.  Here the storage is defined with a null glTexImage2D() only when the
+ * texture or the frame geometry changes, and each frame is then copied in with
+ * glTexSubImage2D().
+ */
+public class TexSubImageUploader implements TextureUploader {
+    private final TimingStats mUploadStats;
+
+    // Texture storage we've allocated, or -1 if none.
+    private int mStorageTextureId = -1;
+    private int mStorageWidth;
+    private int mStorageHeight;
+    private FrameFormat mStorageFormat;
+
+    /**
+     * @param statsWindow Number of frames summarized by each getUploadStats() window.
+     */
+    public TexSubImageUploader(int statsWindow) {
+        mUploadStats = new TimingStats("glTexSubImage2D", statsWindow);
+    }
+
+    @Override
+    public void upload(int textureId, Frame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int format = getGlFormat(frame.getFormat());
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        // Rows of RGB data aren't 4-byte aligned in general.
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (textureId != mStorageTextureId || width != mStorageWidth ||
+                height != mStorageHeight || frame.getFormat() != mStorageFormat) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0, format,
+                    GLES20.GL_UNSIGNED_BYTE, null);
+            mStorageTextureId = textureId;
+            mStorageWidth = width;
+            mStorageHeight = height;
+            mStorageFormat = frame.getFormat();
+        }
+
+        long start = System.nanoTime();
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, format,
+                GLES20.GL_UNSIGNED_BYTE, frame.getBuffer());
+        mUploadStats.add(System.nanoTime() - start);
+    }
+
+    @Override
+    public void invalidate() {
+        mStorageTextureId = -1;
+    }
+
+    @Override
+    public TimingStats getUploadStats() {
+        return mUploadStats;
+    }
+
+    @Override
+    public TimingStats getStallStats() {
+        // The copy from client memory completes before glTexSubImage2D returns.
+        return mUploadStats;
+    }
+
+    @Override
+    public void release(boolean doEglCleanup) {
+        // Storage belongs to the texture, which the caller owns.
+        invalidate();
+    }
+
+    /**
+     * Returns the glTexImage2D() format/internalformat for frames of the given layout.
+     */
+    static int getGlFormat(FrameFormat format) {
+        switch (format) {
+            case RGB888:
+                return GLES20.GL_RGB;
+            case BAYER_RGGB:
+            case BAYER_BGGR:
+            case BAYER_GRBG:
+            case BAYER_GBRG:
+                // One sample per pixel; the program demosaics.
+                return GLES20.GL_LUMINANCE;
+            case MONO10:
+            case MONO12:
+            case MONO16:
+                // GLES 2 has no 16-bit formats: the low byte lands in luminance and the high
+                // byte in alpha, and the program puts them back together.
+                return GLES20.GL_LUMINANCE_ALPHA;
+            default:
+                throw new IllegalArgumentException("No texture format for " + format);
+        }
+    }
+}
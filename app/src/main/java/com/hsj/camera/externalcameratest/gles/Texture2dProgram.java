@@ -20,9 +20,14 @@ import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import com.hsj.camera.externalcameratest.frame.BayerDemosaic;
+import com.hsj.camera.externalcameratest.frame.ColorLut;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.MonoWindow;
+import com.hsj.camera.externalcameratest.frame.YuvColorMatrix;
+
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import javax.microedition.khronos.opengles.GL10;
 
@@ -31,10 +36,17 @@ import javax.microedition.khronos.opengles.GL10;
  */
 public class Texture2dProgram {
     private static final String TAG = GlUtil.TAG;
-    private static final int FLOAT_BYTE_LENGTH = 4;
 
     public enum ProgramType {
-        TEXTURE_2D, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT, TEXTURE_EXT_NEG, TEXTURE_EXT_BW_NEG, TOUPCAM_DEF, TEXTURE_TOUPCAM_NEGATIVE
+        TEXTURE_2D, TEXTURE_EXT, TEXTURE_EXT_BW, TEXTURE_EXT_FILT, TEXTURE_EXT_NEG, TEXTURE_EXT_BW_NEG, TOUPCAM_DEF, TEXTURE_TOUPCAM_NEGATIVE,
+        TEXTURE_NV12, TEXTURE_I420, TEXTURE_YUYV, TEXTURE_BAYER, TEXTURE_MONO16,
+        // TEXTURE_MONO16 after a FlatField correction, from a FlatFieldTextureCache.
+        TEXTURE_MONO16_FLAT,
+        TEXTURE_2D_BW, TEXTURE_2D_FILT, TEXTURE_2D_NEG, TEXTURE_2D_BW_NEG,
+        // A FilterChain's shader; it has no fixed source, so build it from the chain's.
+        TEXTURE_2D_FUSED,
+        // Any point filter, as a ColorLut in a LutTexture.
+        TEXTURE_2D_LUT
     }
 
     // Simple vertex shader, used for all programs.
@@ -148,15 +160,183 @@ public class Texture2dProgram {
             "    gl_FragColor = sum;\n" +
             "}\n";
 
+    // The filters above, for frames uploaded into a GL_TEXTURE_2D.
+    private static final String FRAGMENT_SHADER_2D_BW = toTexture2d(FRAGMENT_SHADER_EXT_BW);
+    private static final String FRAGMENT_SHADER_2D_NEGATIVE =
+            toTexture2d(FRAGMENT_SHADER_EXT_NEGATIVE);
+    private static final String FRAGMENT_SHADER_2D_BW_NEG =
+            toTexture2d(FRAGMENT_SHADER_EXT_BW_NEG);
+    private static final String FRAGMENT_SHADER_2D_FILT = toTexture2d(FRAGMENT_SHADER_EXT_FILT);
+
+    // Fragment shader that looks colors up in a ColorLut atlas (see ColorLut.toAtlas()): two
+    // fetches from the blue slices on either side of the color, each interpolating red and
+    // green, mixed along blue.  Atlas coordinates need more than mediump's 10 bits.
+    // ColorLut.apply() is the CPU reference.
+    private static final String FRAGMENT_SHADER_2D_LUT =
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "varying vec2 vTextureCoord;\n" +
+            "uniform sampler2D sTexture;\n" +
+            "uniform sampler2D uLut;\n" +
+            "uniform float uLutSize;\n" +
+            "void main() {\n" +
+            "    vec4 color = texture2D(sTexture, vTextureCoord);\n" +
+            "    vec3 lattice = clamp(color.rgb, 0.0, 1.0) * (uLutSize - 1.0);\n" +
+            "    float slice = min(floor(lattice.b), uLutSize - 2.0);\n" +
+            "    vec2 uv = (lattice.rg + 0.5) / vec2(uLutSize * uLutSize, uLutSize);\n" +
+            "    vec3 lo = texture2D(uLut, uv + vec2(slice / uLutSize, 0.0)).rgb;\n" +
+            "    vec3 hi = texture2D(uLut, uv + vec2((slice + 1.0) / uLutSize, 0.0)).rgb;\n" +
+            "    gl_FragColor = vec4(mix(lo, hi, lattice.b - slice), color.a);\n" +
+            "}\n";
+
+    // Fragment shaders that convert Y'CbCr planes (see YuvUploader) to RGB.  The matrix and
+    // offsets come from YuvColorMatrix, so BT.601/BT.709 is a uniform change, not a recompile.
+    // YuvConverter is the CPU reference for their output.
+    private static final String FRAGMENT_SHADER_YUV_HEADER =
+            "varying vec2 TexCoordOut;\n" +
+            "uniform sampler2D texture1;\n" +
+            "uniform sampler2D uChroma1;\n" +
+            "uniform sampler2D uChroma2;\n" +
+            "uniform mat3 uYuvMatrix;\n" +
+            "uniform vec3 uYuvOffset;\n" +
+            "uniform float uTexWidth;\n" +
+            "vec4 yuvToRgb(vec3 yuv) {\n" +
+            "    return vec4(clamp(uYuvMatrix * (yuv - uYuvOffset), 0.0, 1.0), 1.0);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_NV12 =
+            "precision mediump float;\n" +
+            FRAGMENT_SHADER_YUV_HEADER +
+            "void main() {\n" +
+            "    float y = texture2D(texture1, TexCoordOut).r;\n" +
+            "    vec2 uv = texture2D(uChroma1, TexCoordOut).ra;\n" +
+            "    gl_FragColor = yuvToRgb(vec3(y, uv));\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER_I420 =
+            "precision mediump float;\n" +
+            FRAGMENT_SHADER_YUV_HEADER +
+            "void main() {\n" +
+            "    float y = texture2D(texture1, TexCoordOut).r;\n" +
+            "    float u = texture2D(uChroma1, TexCoordOut).r;\n" +
+            "    float v = texture2D(uChroma2, TexCoordOut).r;\n" +
+            "    gl_FragColor = yuvToRgb(vec3(y, u, v));\n" +
+            "}\n";
+
+    // Each texel of the half-width RGBA texture is (Y0, U, Y1, V); pick the luma sample by
+    // the parity of the output pixel's column.
+    private static final String FRAGMENT_SHADER_YUYV =
+            "precision highp float;\n" +
+            FRAGMENT_SHADER_YUV_HEADER +
+            "void main() {\n" +
+            "    vec4 texel = texture2D(texture1, TexCoordOut);\n" +
+            "    float odd = mod(floor(TexCoordOut.x * uTexWidth), 2.0);\n" +
+            "    gl_FragColor = yuvToRgb(vec3(mix(texel.r, texel.b, odd), texel.g, texel.a));\n" +
+            "}\n";
+
+    // Demosaics an 8-bit Bayer mosaic uploaded as GL_LUMINANCE.  Works on whole texels
+    // (pixel coordinates, so it needs highp), mirroring at the borders so neighbors keep
+    // their color.  BayerDemosaic is the CPU reference and documents the two modes.
+    private static final String FRAGMENT_SHADER_BAYER =
+            "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "varying vec2 TexCoordOut;\n" +
+            "uniform sampler2D texture1;\n" +
+            "uniform vec2 uTexSize;\n" +
+            "uniform vec2 uRedOffset;\n" +
+            "uniform float uEdgeAware;\n" +
+            "float fetch(vec2 p) {\n" +
+            "    vec2 last = uTexSize - 1.0;\n" +
+            "    p = max(last - abs(last - abs(p)), 0.0);\n" +
+            "    return texture2D(texture1, (p + 0.5) / uTexSize).r;\n" +
+            "}\n" +
+            "void main() {\n" +
+            "    vec2 p = min(floor(TexCoordOut * uTexSize), uTexSize - 1.0);\n" +
+            "    vec2 site = mod(p + uRedOffset, 2.0);\n" +
+            "    float c = fetch(p);\n" +
+            "    float l = fetch(p + vec2(-1.0, 0.0));\n" +
+            "    float r = fetch(p + vec2(1.0, 0.0));\n" +
+            "    float u = fetch(p + vec2(0.0, -1.0));\n" +
+            "    float d = fetch(p + vec2(0.0, 1.0));\n" +
+            "    float horiz = (l + r) * 0.5;\n" +
+            "    float vert = (u + d) * 0.5;\n" +
+            "    vec3 rgb;\n" +
+            "    if (site.x == site.y) {\n" +
+            "        float cross = (l + r + u + d) * 0.25;\n" +
+            "        float diag = (fetch(p + vec2(-1.0, -1.0)) + fetch(p + vec2(1.0, -1.0)) +\n" +
+            "                fetch(p + vec2(-1.0, 1.0)) + fetch(p + vec2(1.0, 1.0))) * 0.25;\n" +
+            "        float g = cross;\n" +
+            "        if (uEdgeAware > 0.5) {\n" +
+            "            float lapH = 2.0 * c - fetch(p + vec2(-2.0, 0.0)) - fetch(p + vec2(2.0, 0.0));\n" +
+            "            float lapV = 2.0 * c - fetch(p + vec2(0.0, -2.0)) - fetch(p + vec2(0.0, 2.0));\n" +
+            "            float gradH = abs(l - r) + abs(lapH);\n" +
+            "            float gradV = abs(u - d) + abs(lapV);\n" +
+            "            if (gradH < gradV) g = horiz + lapH * 0.25;\n" +
+            "            else if (gradV < gradH) g = vert + lapV * 0.25;\n" +
+            "            else g = cross + (lapH + lapV) * 0.125;\n" +
+            "        }\n" +
+            "        rgb = site.x == 0.0 ? vec3(c, g, diag) : vec3(diag, g, c);\n" +
+            "    } else {\n" +
+            "        rgb = site.y == 0.0 ? vec3(horiz, c, vert) : vec3(vert, c, horiz);\n" +
+            "    }\n" +
+            "    gl_FragColor = vec4(clamp(rgb, 0.0, 1.0), 1.0);\n" +
+            "}\n";
+
+    // Maps 10- to 16-bit monochrome, uploaded as GL_LUMINANCE_ALPHA (low byte, high byte),
+    // through a window, a gamma curve and a false-color map (see ColorMapTexture).  The bytes
+    // can't be blended apart from each other, so it fetches whole texels, at their centers.
+    // Raw values need highp's 24 bits.  MonoWindow is the CPU reference.  The _FLAT variant
+    // corrects the raw value first, with dark levels in units of the 16-bit word's full
+    // scale.
+    private static final String FRAGMENT_SHADER_MONO16 = getMonoShader(false);
+    private static final String FRAGMENT_SHADER_MONO16_FLAT = getMonoShader(true);
+
+    private static String getMonoShader(boolean flatField) {
+        return "#ifdef GL_FRAGMENT_PRECISION_HIGH\n" +
+            "precision highp float;\n" +
+            "#else\n" +
+            "precision mediump float;\n" +
+            "#endif\n" +
+            "varying vec2 TexCoordOut;\n" +
+            "uniform sampler2D texture1;\n" +
+            "uniform sampler2D uColorMap;\n" +
+            "uniform vec2 uTexSize;\n" +
+            "uniform vec2 uWindow;\n" +
+            "uniform float uInvGamma;\n" +
+            (flatField ?
+            "uniform sampler2D " + FlatFieldTextureCache.DARK_SAMPLER + ";\n" +
+            "uniform sampler2D " + FlatFieldTextureCache.GAIN_SAMPLER + ";\n" : "") +
+            "void main() {\n" +
+            "    vec2 p = (min(floor(TexCoordOut * uTexSize), uTexSize - 1.0) + 0.5) / uTexSize;\n" +
+            "    vec2 bytes = texture2D(texture1, p).ra;\n" +
+            "    float raw = dot(floor(bytes * 255.0 + 0.5), vec2(1.0, 256.0));\n" +
+            (flatField ?
+            "    raw = (raw - texture2D(" + FlatFieldTextureCache.DARK_SAMPLER +
+                    ", p).r * 65535.0) * texture2D(" + FlatFieldTextureCache.GAIN_SAMPLER +
+                    ", p).r;\n" : "") +
+            "    float x = pow(clamp((raw - uWindow.x) * uWindow.y, 0.0, 1.0), uInvGamma);\n" +
+            "    gl_FragColor = vec4(texture2D(uColorMap,\n" +
+            "            vec2(x * (255.0 / 256.0) + 0.5 / 256.0, 0.5)).rgb, 1.0);\n" +
+            "}\n";
+    }
+
     private final ProgramType mProgramType;
 
-    // Handles to the GL program and various components of it.
+    // Handles to the GL program and various components of it, looked up once after linking.
+    // The ones a program doesn't have are -1, which glUniform*() ignores.
     private int mProgramHandle;
-    /*private final int muMVPMatrixLoc;
+    private final int muMVPMatrixLoc;
     private final int muTexMatrixLoc;
-    private int muKernelLoc;
+    private final int muKernelLoc;
     private final int muTexOffsetLoc;
-    private final int muColorAdjustLoc;*/
+    private final int muColorAdjustLoc;
+    private final int muTexelSizeLoc;
     private final int maPositionLoc;
     private final int maTextureCoordLoc;
 
@@ -165,10 +345,41 @@ public class Texture2dProgram {
     private final float[] mKernel = new float[KERNEL_SIZE];
     private float[] mTexOffset;
     private float mColorAdjust;
-    private int mCurrentTextureId;
-    private final float[] mVertices = {-1.f, -1.f, 0.f, 0.f, 1.f, 1.f, -1.f, 0.f, 1.f, 1.f, -1.f, 1.f, 0.f, 0.f, 0.f, 1.f, 1.f, 0.f, 1.f, 0.f};
-    private FloatBuffer mVertexBuffer;
-    private String mVertexShader =
+    private float mTexWidth;
+    private float mTexHeight;
+
+    // Uniform values are part of the program, so they're only sent when they change: the
+    // matrices when they differ from the last ones drawn with, the rest when a setter marks
+    // them dirty.
+    private final float[] mMVPMatrix = new float[16];
+    private final float[] mTexMatrix = new float[16];
+    private boolean mMatricesSent;
+    private boolean mFilterDirty = true;
+    private boolean mConversionDirty = true;
+
+    // Y'CbCr conversion, only used by the YUV program types.
+    private int muYuvMatrixLoc = -1;
+    private int muYuvOffsetLoc = -1;
+    private int muTexWidthLoc = -1;
+    private YuvColorMatrix mYuvMatrix = YuvColorMatrix.BT601;
+
+    // Demosaicing, only used by TEXTURE_BAYER; the mono types use the texture size too.
+    private int muTexSizeLoc = -1;
+    private int muRedOffsetLoc = -1;
+    private int muEdgeAwareLoc = -1;
+    private final float[] mRedOffset = new float[2];
+    private BayerDemosaic.Mode mDemosaicMode = BayerDemosaic.Mode.BILINEAR;
+
+    // Window, gamma and color map, only used by the TEXTURE_MONO16 types.
+    private int muWindowLoc = -1;
+    private int muInvGammaLoc = -1;
+    private final float[] mWindow = { 0f, 1f / 0xffff };
+    private float mInvGamma = 1f;
+
+    // Color lookup, only used by TEXTURE_2D_LUT.
+    private int muLutSizeLoc = -1;
+    private int mLutSize = ColorLut.DEFAULT_SIZE;
+    private static final String VERTEX_SHADER_TOUPCAM =
             "attribute vec4 position; " +
             "attribute vec2 TexCoordIn; " +
             "varying vec2 TexCoordOut;" +
@@ -177,7 +388,7 @@ public class Texture2dProgram {
             "	TexCoordOut = TexCoordIn;" +
             "}";
 
-    private String mFragmentShader =
+    private static final String FRAGMENT_SHADER_TOUPCAM =
             "uniform bool bDrawWindow; " +
             "precision mediump float; varying vec2 TexCoordOut;" +
             "uniform vec4 vColor; " +
@@ -186,7 +397,7 @@ public class Texture2dProgram {
             "	else gl_FragColor = texture2D(texture1, TexCoordOut); " +
             "}";
 
-    private String mFragmentShaderNegative =
+    private static final String FRAGMENT_SHADER_TOUPCAM_NEGATIVE =
             "#extension GL_OES_EGL_image_external : require\n"
             + "uniform bool bDrawWindow;\n"
             + "precision mediump float;\n"
@@ -204,7 +415,16 @@ public class Texture2dProgram {
             + "  }\n"
             + "}\n";
 
-    private int createProgram(String mVertexShader, String fragmentShader) {
+    private static int createProgram(ProgramType programType, String vertexShader,
+            String fragmentShader) {
+        if (programType == ProgramType.TOUPCAM_DEF ||
+                programType == ProgramType.TEXTURE_TOUPCAM_NEGATIVE) {
+            return createProgram(vertexShader, fragmentShader);
+        }
+        return GlUtil.createProgram(vertexShader, fragmentShader);
+    }
+
+    private static int createProgram(String mVertexShader, String fragmentShader) {
         final int program = GLES20.glCreateProgram();
         final int vShader = getShader(GLES20.GL_VERTEX_SHADER, mVertexShader);
         final int fShader = getShader(GLES20.GL_FRAGMENT_SHADER, fragmentShader);
@@ -215,7 +435,7 @@ public class Texture2dProgram {
         return program;
     }
 
-    private int getShader(int type, String shaderSource) {
+    private static int getShader(int type, String shaderSource) {
         final int shader = GLES20.glCreateShader(type);
         GLES20.glShaderSource(shader, shaderSource);
         GLES20.glCompileShader(shader);
@@ -224,78 +444,224 @@ public class Texture2dProgram {
         return shader;
     }
 
-    public int getTextureId(){
-        return mCurrentTextureId;
-    }
-
     /**
      * Prepares the program in the current EGL context.
      */
     public Texture2dProgram(ProgramType programType) {
+        this(programType, getVertexShader(programType), getFragmentShader(programType));
+    }
+
+    /**
+     * Prepares a program of the given type from other sources, in the current EGL context.
+     * The sources must declare the attributes and uniforms that the type's own shaders do.
+     */
+    public Texture2dProgram(ProgramType programType, String vertexShader,
+            String fragmentShader) {
+        this(programType, createProgram(programType, vertexShader, fragmentShader));
+    }
+
+    /**
+     * Wraps a program of the given type that's already linked in the current EGL context,
+     * e.g. one loaded by {@link ProgramBinaryCache}.  Texture2dProgram takes ownership.
+     */
+    public Texture2dProgram(ProgramType programType, int programHandle) {
         mProgramType = programType;
+        mTextureTarget = getTextureTarget(programType);
+        mProgramHandle = programHandle;
+        if (mProgramHandle == 0) {
+            throw new RuntimeException("Unable to create program");
+        }
+        Log.d(TAG, "Created program " + mProgramHandle + " (" + programType + ")");
+
+        // get locations of attributes and uniforms
+
+        // The Grafika shaders and ours name their inputs differently.
+        maPositionLoc = getAttribLocation("aPosition", "position");
+        maTextureCoordLoc = getAttribLocation("aTextureCoord", "TexCoordIn");
+        muMVPMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uMVPMatrix");
+        muTexMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexMatrix");
+        muKernelLoc = GLES20.glGetUniformLocation(mProgramHandle, "uKernel");
+        muTexOffsetLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexOffset");
+        muColorAdjustLoc = GLES20.glGetUniformLocation(mProgramHandle, "uColorAdjust");
+        muTexelSizeLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexelSize");
+        if (programType == ProgramType.TEXTURE_EXT_FILT ||
+                programType == ProgramType.TEXTURE_2D_FILT) {
+            GlUtil.checkLocation(muKernelLoc, "uKernel");
+            GlUtil.checkLocation(muTexOffsetLoc, "uTexOffset");
+            GlUtil.checkLocation(muColorAdjustLoc, "uColorAdjust");
+        }
+        // bDrawWindow and the samplers of the single-texture programs stay at their initial
+        // value of zero.
+        if (isYuv()) {
+            muYuvMatrixLoc = GLES20.glGetUniformLocation(mProgramHandle, "uYuvMatrix");
+            GlUtil.checkLocation(muYuvMatrixLoc, "uYuvMatrix");
+            muYuvOffsetLoc = GLES20.glGetUniformLocation(mProgramHandle, "uYuvOffset");
+            GlUtil.checkLocation(muYuvOffsetLoc, "uYuvOffset");
+            muTexWidthLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexWidth");
+
+            // Sampler units never change, so set them once.  (Unused samplers are optimized
+            // out and report -1, which glUniform ignores.)
+            GLES20.glUseProgram(mProgramHandle);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle, "texture1"), 0);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle, "uChroma1"),
+                    YuvUploader.CHROMA_UNIT_1);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle, "uChroma2"),
+                    YuvUploader.CHROMA_UNIT_2);
+        }
+        boolean mono = programType == ProgramType.TEXTURE_MONO16 ||
+                programType == ProgramType.TEXTURE_MONO16_FLAT;
+        if (programType == ProgramType.TEXTURE_BAYER || mono) {
+            muTexSizeLoc = GLES20.glGetUniformLocation(mProgramHandle, "uTexSize");
+            GlUtil.checkLocation(muTexSizeLoc, "uTexSize");
+        }
+        if (programType == ProgramType.TEXTURE_BAYER) {
+            muRedOffsetLoc = GLES20.glGetUniformLocation(mProgramHandle, "uRedOffset");
+            GlUtil.checkLocation(muRedOffsetLoc, "uRedOffset");
+            muEdgeAwareLoc = GLES20.glGetUniformLocation(mProgramHandle, "uEdgeAware");
+            GlUtil.checkLocation(muEdgeAwareLoc, "uEdgeAware");
+        }
+        if (mono) {
+            muWindowLoc = GLES20.glGetUniformLocation(mProgramHandle, "uWindow");
+            GlUtil.checkLocation(muWindowLoc, "uWindow");
+            muInvGammaLoc = GLES20.glGetUniformLocation(mProgramHandle, "uInvGamma");
+            GlUtil.checkLocation(muInvGammaLoc, "uInvGamma");
+            GLES20.glUseProgram(mProgramHandle);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle, "uColorMap"),
+                    ColorMapTexture.COLOR_MAP_UNIT);
+        }
+        if (programType == ProgramType.TEXTURE_2D_LUT) {
+            muLutSizeLoc = GLES20.glGetUniformLocation(mProgramHandle, "uLutSize");
+            GlUtil.checkLocation(muLutSizeLoc, "uLutSize");
+            GLES20.glUseProgram(mProgramHandle);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle, "uLut"),
+                    LutTexture.LUT_UNIT);
+        }
+        if (programType == ProgramType.TEXTURE_MONO16_FLAT ||
+                programType == ProgramType.TEXTURE_2D_FUSED) {
+            // Fused chains may have a flat-field or color table stage; samplers they don't
+            // have report -1, which glUniform ignores.
+            GLES20.glUseProgram(mProgramHandle);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle,
+                    FlatFieldTextureCache.DARK_SAMPLER), FlatFieldTextureCache.DARK_UNIT);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle,
+                    FlatFieldTextureCache.GAIN_SAMPLER), FlatFieldTextureCache.GAIN_UNIT);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle, "uLut"),
+                    LutTexture.LUT_UNIT);
+        }
+        GLES20.glDisable(GL10.GL_CULL_FACE);
+    }
+
+    private int getAttribLocation(String name, String altName) {
+        int location = GLES20.glGetAttribLocation(mProgramHandle, name);
+        if (location < 0) {
+            location = GLES20.glGetAttribLocation(mProgramHandle, altName);
+        }
+        return location;
+    }
+
+    /**
+     * Turns a shader that samples an external texture into one that samples a 2D texture.
+     */
+    private static String toTexture2d(String externalShader) {
+        return externalShader.replace("#extension GL_OES_EGL_image_external : require\n", "")
+                .replace("samplerExternalOES", "sampler2D");
+    }
+
+    /**
+     * Returns the vertex shader source used by programs of the given type.
+     */
+    public static String getVertexShader(ProgramType programType) {
+        switch (programType) {
+            case TOUPCAM_DEF:
+            case TEXTURE_TOUPCAM_NEGATIVE:
+            case TEXTURE_NV12:
+            case TEXTURE_I420:
+            case TEXTURE_YUYV:
+            case TEXTURE_BAYER:
+            case TEXTURE_MONO16:
+            case TEXTURE_MONO16_FLAT:
+                return VERTEX_SHADER_TOUPCAM;
+            default:
+                return VERTEX_SHADER;
+        }
+    }
 
+    /**
+     * Returns the fragment shader source used by programs of the given type.
+     */
+    public static String getFragmentShader(ProgramType programType) {
         switch (programType) {
             case TOUPCAM_DEF:
-                mTextureTarget = GLES20.GL_TEXTURE_2D;
-                mProgramHandle = createProgram(mVertexShader, mFragmentShader);
-                break;
+                return FRAGMENT_SHADER_TOUPCAM;
             case TEXTURE_TOUPCAM_NEGATIVE:
-                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = createProgram(mVertexShader, mFragmentShaderNegative);
-                break;
+                return FRAGMENT_SHADER_TOUPCAM_NEGATIVE;
             case TEXTURE_2D:
-                mTextureTarget = GLES20.GL_TEXTURE_2D;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_2D);
-                break;
+                return FRAGMENT_SHADER_2D;
             case TEXTURE_EXT:
-                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT);
-                break;
+                return FRAGMENT_SHADER_EXT;
             case TEXTURE_EXT_BW:
-                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BW);
-                break;
+                return FRAGMENT_SHADER_EXT_BW;
             case TEXTURE_EXT_NEG:
-                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_NEGATIVE);
-                break;
+                return FRAGMENT_SHADER_EXT_NEGATIVE;
             case TEXTURE_EXT_BW_NEG:
-                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_BW_NEG);
-                break;
+                return FRAGMENT_SHADER_EXT_BW_NEG;
             case TEXTURE_EXT_FILT:
-                mTextureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
-                mProgramHandle = GlUtil.createProgram(VERTEX_SHADER, FRAGMENT_SHADER_EXT_FILT);
-                break;
+                return FRAGMENT_SHADER_EXT_FILT;
+            case TEXTURE_NV12:
+                return FRAGMENT_SHADER_NV12;
+            case TEXTURE_I420:
+                return FRAGMENT_SHADER_I420;
+            case TEXTURE_YUYV:
+                return FRAGMENT_SHADER_YUYV;
+            case TEXTURE_BAYER:
+                return FRAGMENT_SHADER_BAYER;
+            case TEXTURE_MONO16:
+                return FRAGMENT_SHADER_MONO16;
+            case TEXTURE_MONO16_FLAT:
+                return FRAGMENT_SHADER_MONO16_FLAT;
+            case TEXTURE_2D_BW:
+                return FRAGMENT_SHADER_2D_BW;
+            case TEXTURE_2D_FILT:
+                return FRAGMENT_SHADER_2D_FILT;
+            case TEXTURE_2D_NEG:
+                return FRAGMENT_SHADER_2D_NEGATIVE;
+            case TEXTURE_2D_BW_NEG:
+                return FRAGMENT_SHADER_2D_BW_NEG;
+            case TEXTURE_2D_LUT:
+                return FRAGMENT_SHADER_2D_LUT;
             default:
                 throw new RuntimeException("Unhandled type " + programType);
         }
-        if (mProgramHandle == 0) {
-            throw new RuntimeException("Unable to create program");
-        }
-        Log.d(TAG, "Created program " + mProgramHandle + " (" + programType + ")");
-
-        // get locations of attributes and uniforms
+    }
 
-        maPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "position");
-        maTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "TexCoordIn");
-        GLES20.glDisable(GL10.GL_CULL_FACE);
-        mVertexBuffer = ByteBuffer.allocateDirect(mVertices.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        mVertexBuffer.put(mVertices);
-        mVertexBuffer.position(0);
-        GenTexture();
+    private static int getTextureTarget(ProgramType programType) {
+        switch (programType) {
+            case TEXTURE_TOUPCAM_NEGATIVE:
+            case TEXTURE_EXT:
+            case TEXTURE_EXT_BW:
+            case TEXTURE_EXT_NEG:
+            case TEXTURE_EXT_BW_NEG:
+            case TEXTURE_EXT_FILT:
+                return GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+            default:
+                return GLES20.GL_TEXTURE_2D;
+        }
     }
 
+    /**
+     * Creates a texture for frames, in the current EGL context: nearest texels when scaled
+     * down, interpolated when scaled up, clamped at the edges.  The caller owns it; programs
+     * don't keep textures of their own.
+     */
     public int GenTexture() {
-        int[] textures = new int[2];
-        GLES20.glGenTextures(2, textures, 0);
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
         GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
         GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
         GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-        mCurrentTextureId = textures[0];
-        return mCurrentTextureId;
+        return textures[0];
     }
 
     /**
@@ -322,6 +688,58 @@ public class Texture2dProgram {
         return mProgramHandle;
     }
 
+    /**
+     * Returns true if this program converts Y'CbCr planes uploaded by YuvUploader.
+     */
+    public boolean isYuv() {
+        return mProgramType == ProgramType.TEXTURE_NV12 || mProgramType == ProgramType.TEXTURE_I420
+                || mProgramType == ProgramType.TEXTURE_YUYV;
+    }
+
+    /**
+     * Selects the Y'CbCr to RGB conversion used by the YUV program types.
+     */
+    public void setYuvMatrix(YuvColorMatrix matrix) {
+        mYuvMatrix = matrix;
+        mConversionDirty = true;
+    }
+
+    /**
+     * Sets the arrangement of the mosaic demosaiced by TEXTURE_BAYER.
+     */
+    public void setBayerPattern(FrameFormat format) {
+        mRedOffset[0] = format.getBayerRedX();
+        mRedOffset[1] = format.getBayerRedY();
+        mConversionDirty = true;
+    }
+
+    /**
+     * Selects how TEXTURE_BAYER interpolates the missing green samples.
+     */
+    public void setDemosaicMode(BayerDemosaic.Mode mode) {
+        mDemosaicMode = mode;
+        mConversionDirty = true;
+    }
+
+    /**
+     * Sets the window, gamma and color map that TEXTURE_MONO16 maps raw values through.  The
+     * map itself is the texture bound to ColorMapTexture.COLOR_MAP_UNIT.
+     */
+    public void setMonoWindow(MonoWindow window) {
+        mWindow[0] = window.getLow();
+        mWindow[1] = 1f / (window.getHigh() - window.getLow());
+        mInvGamma = 1f / window.getGamma();
+        mConversionDirty = true;
+    }
+
+    /**
+     * Sets the lattice size of the ColorLut that TEXTURE_2D_LUT looks colors up in.
+     */
+    public void setLutSize(int size) {
+        mLutSize = size;
+        mConversionDirty = true;
+    }
+
     /**
      * Configures the convolution filter values.
      *
@@ -334,6 +752,7 @@ public class Texture2dProgram {
         }
         System.arraycopy(values, 0, mKernel, 0, KERNEL_SIZE);
         mColorAdjust = colorAdj;
+        mFilterDirty = true;
         //Log.d(TAG, "filt kernel: " + Arrays.toString(mKernel) + ", adj=" + colorAdj);
     }
 
@@ -341,6 +760,11 @@ public class Texture2dProgram {
      * Sets the size of the texture.  This is used to find adjacent texels when filtering.
      */
     public void setTexSize(int width, int height) {
+        if (mTexOffset != null && width == mTexWidth && height == mTexHeight) {
+            return;     // render passes set it every frame
+        }
+        mTexWidth = width;
+        mTexHeight = height;
         float rw = 1.0f / width;
         float rh = 1.0f / height;
 
@@ -350,29 +774,95 @@ public class Texture2dProgram {
             -rw, 0f,    0f, 0f,     rw, 0f,
             -rw, rh,    0f, rh,     rw, rh
         };
+        mFilterDirty = true;
+        mConversionDirty = true;
         //Log.d(TAG, "filt size: " + width + "x" + height + ": " + Arrays.toString(mTexOffset));
     }
 
-    public void preDraw(){
+    /**
+     * Clears the viewport, selects the program and binds the texture to be drawn.
+     */
+    public void preDraw(int textureId){
         GLES20.glClearColor(0.1490196f, 0.1490196f, 0.1490196f, 0.f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
         GLES20.glUseProgram(mProgramHandle);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE_2D);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mCurrentTextureId);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
     }
 
+    /**
+     * Draws a prefab shape from its buffer object.  Call preDraw() first.
+     */
+    public void draw(float[] mvpMatrix, float[] texMatrix, DrawableBuffers buffers,
+            Drawable2d drawable) {
+        setUniforms(mvpMatrix, texMatrix);
+        buffers.bind(maPositionLoc, maTextureCoordLoc);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,
+                buffers.getFirstVertex(drawable.getPrefab()), drawable.getVertexCount());
+        buffers.unbind(maPositionLoc, maTextureCoordLoc);
+    }
+
+    /**
+     * Draws from client-side arrays.  Call preDraw() first.
+     */
     public void draw(float[] mvpMatrix, FloatBuffer vertexBuffer, int firstVertex,
             int vertexCount, int coordsPerVertex, int vertexStride,
             float[] texMatrix, FloatBuffer texBuffer, int texStride) {
-        GLES20.glUniform1i(GLES20.glGetUniformLocation(mProgramHandle, "bDrawWindow"), 0);
-        mVertexBuffer.position(0);
-        mVertexBuffer.put(mVertices);
-        mVertexBuffer.position(0);
-        GLES20.glVertexAttribPointer(maPositionLoc, 3, GLES20.GL_FLOAT, false, 5 * FLOAT_BYTE_LENGTH, mVertexBuffer);
-        mVertexBuffer.position(3);
-        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, 5 * FLOAT_BYTE_LENGTH, mVertexBuffer);
+        setUniforms(mvpMatrix, texMatrix);
         GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex, GLES20.GL_FLOAT, false,
+                vertexStride, vertexBuffer);
         GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2, GLES20.GL_FLOAT, false, texStride,
+                texBuffer);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+    }
+
+    private void setUniforms(float[] mvpMatrix, float[] texMatrix) {
+        // The program is current (see preDraw()), so glUniform*() sets its uniforms.
+        if (!mMatricesSent || !Arrays.equals(mMVPMatrix, mvpMatrix) ||
+                !Arrays.equals(mTexMatrix, texMatrix)) {
+            System.arraycopy(mvpMatrix, 0, mMVPMatrix, 0, mMVPMatrix.length);
+            System.arraycopy(texMatrix, 0, mTexMatrix, 0, mTexMatrix.length);
+            GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mMVPMatrix, 0);
+            GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, mTexMatrix, 0);
+            mMatricesSent = true;
+        }
+        if (mFilterDirty && mTexOffset != null) {
+            if (muKernelLoc >= 0) {
+                GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
+                GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
+                GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            }
+            if (muTexelSizeLoc >= 0) {
+                GLES20.glUniform2f(muTexelSizeLoc, 1f / mTexWidth, 1f / mTexHeight);
+            }
+            mFilterDirty = false;
+        }
+        if (mConversionDirty) {
+            if (muYuvMatrixLoc >= 0) {
+                GLES20.glUniformMatrix3fv(muYuvMatrixLoc, 1, false, mYuvMatrix.getMatrix(), 0);
+                GLES20.glUniform3fv(muYuvOffsetLoc, 1, mYuvMatrix.getOffset(), 0);
+                GLES20.glUniform1f(muTexWidthLoc, mTexWidth);
+            }
+            if (muTexSizeLoc >= 0) {
+                GLES20.glUniform2f(muTexSizeLoc, mTexWidth, mTexHeight);
+            }
+            if (muRedOffsetLoc >= 0) {
+                GLES20.glUniform2fv(muRedOffsetLoc, 1, mRedOffset, 0);
+                GLES20.glUniform1f(muEdgeAwareLoc,
+                        mDemosaicMode == BayerDemosaic.Mode.EDGE_AWARE ? 1f : 0f);
+            }
+            if (muWindowLoc >= 0) {
+                GLES20.glUniform2fv(muWindowLoc, 1, mWindow, 0);
+                GLES20.glUniform1f(muInvGammaLoc, mInvGamma);
+            }
+            if (muLutSizeLoc >= 0) {
+                GLES20.glUniform1f(muLutSizeLoc, mLutSize);
+            }
+            mConversionDirty = false;
+        }
     }
 }
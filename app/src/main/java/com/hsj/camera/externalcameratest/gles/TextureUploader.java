@@ -0,0 +1,44 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.TimingStats;
+
+/**
+ * Moves frame data from client memory into a GL texture.
+ * <p>
+ * Implementations keep GL state (texture storage, buffer objects) tied to the EGL context
+ * that was current on the first upload, so all calls must be made with that context (or
+ * one sharing with it) current.
+ */
+public interface TextureUploader {
+    /**
+     * Uploads the frame into the texture.  The frame's buffer is no longer referenced when
+     * this returns, so the frame may be released to its source right away.
+     */
+    void upload(int textureId, Frame frame);
+
+    /**
+     * Forces the texture storage to be reallocated on the next upload, e.g. because the
+     * incoming frame size is about to change.
+     */
+    void invalidate();
+
+    /**
+     * Returns the time spent issuing uploads.
+     */
+    TimingStats getUploadStats();
+
+    /**
+     * Returns the time the calling thread spent blocked waiting for the transfer.  For a
+     * synchronous upload that's the whole call.
+     */
+    TimingStats getStallStats();
+
+    /**
+     * Releases GL resources.
+     * <p>
+     * If we're about to destroy the EGL context, there's no value in having the caller make
+     * it current just to do this cleanup, so pass false to skip any GL calls.
+     */
+    void release(boolean doEglCleanup);
+}
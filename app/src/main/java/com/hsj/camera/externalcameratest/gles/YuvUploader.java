@@ -0,0 +1,198 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import android.opengl.GLES20;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.TimingStats;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Uploads Y'CbCr frames as separate plane textures, for conversion in the fragment shader.
+ * <p>
+ * The luma plane (or, for YUYV, the packed data) goes into the caller's texture; the chroma
+ * planes go into textures owned by this class, which must be bound with bindChromaTextures()
+ * before drawing.  Layouts:
+ * <ul>
+ * <li>NV12: Y as GL_LUMINANCE, interleaved UV as a half-size GL_LUMINANCE_ALPHA texture.
+ * <li>I420: Y, U and V as three GL_LUMINANCE textures.
+ * <li>YUYV: a half-width GL_RGBA texture, one texel (Y0, U, Y1, V) per pixel pair.
+ * </ul>
+ * Chroma is sampled GL_NEAREST, so each chroma sample covers its whole 2x2 (or 2x1) block,
+ * matching {@link com.hsj.camera.externalcameratest.frame.YuvConverter}.  Luma keeps the
+ * filters the caller's texture has for any frame (see {@link Texture2dProgram#GenTexture()}),
+ * except for YUYV, which needs GL_NEAREST until restoreFilters() is called.  Storage is
+ * allocated when the geometry changes and streamed with glTexSubImage2D(), as in
+ * {@link TexSubImageUploader}.
+ */
+public class YuvUploader implements TextureUploader {
+    /** Texture unit of the first chroma plane (U, or interleaved UV). */
+    public static final int CHROMA_UNIT_1 = 1;
+    /** Texture unit of the second chroma plane (V, I420 only). */
+    public static final int CHROMA_UNIT_2 = 2;
+
+    private final TimingStats mUploadStats;
+    private final int[] mChromaTextures = new int[2];
+    private boolean mChromaTexturesCreated;
+
+    // Texture storage we've allocated, or -1 if none.
+    private int mStorageTextureId = -1;
+    private int mStorageWidth;
+    private int mStorageHeight;
+    private FrameFormat mStorageFormat;
+
+    // Caller's texture set to GL_NEAREST for YUYV, or -1 if none.
+    private int mNearestTextureId = -1;
+
+    /**
+     * @param statsWindow Number of frames summarized by each getUploadStats() window.
+     */
+    public YuvUploader(int statsWindow) {
+        mUploadStats = new TimingStats("YUV glTexSubImage2D", statsWindow);
+    }
+
+    @Override
+    public void upload(int textureId, Frame frame) {
+        FrameFormat format = frame.getFormat();
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int chromaWidth = FrameFormat.getChromaWidth(width);
+        int chromaHeight = FrameFormat.getChromaHeight(height);
+
+        if (!mChromaTexturesCreated) {
+            GLES20.glGenTextures(2, mChromaTextures, 0);
+            mChromaTexturesCreated = true;
+            mStorageTextureId = -1;
+        }
+        boolean allocate = textureId != mStorageTextureId || width != mStorageWidth ||
+                height != mStorageHeight || format != mStorageFormat;
+        if (format != FrameFormat.YUYV) {
+            restoreFilters();
+        }
+
+        long start = System.nanoTime();
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        ByteBuffer data = frame.getBuffer();
+        switch (format) {
+            case NV12:
+                uploadPlane(textureId, GLES20.GL_LUMINANCE, width, height, 0, data, 0,
+                        allocate);
+                uploadPlane(mChromaTextures[0], GLES20.GL_LUMINANCE_ALPHA, chromaWidth,
+                        chromaHeight, GLES20.GL_NEAREST, data, width * height, allocate);
+                break;
+            case I420:
+                uploadPlane(textureId, GLES20.GL_LUMINANCE, width, height, 0, data, 0,
+                        allocate);
+                uploadPlane(mChromaTextures[0], GLES20.GL_LUMINANCE, chromaWidth, chromaHeight,
+                        GLES20.GL_NEAREST, data, width * height, allocate);
+                uploadPlane(mChromaTextures[1], GLES20.GL_LUMINANCE, chromaWidth, chromaHeight,
+                        GLES20.GL_NEAREST, data, width * height + chromaWidth * chromaHeight,
+                        allocate);
+                break;
+            case YUYV:
+                // Neighboring texels hold different pixels' data; don't blend them.
+                uploadPlane(textureId, GLES20.GL_RGBA, chromaWidth, height, GLES20.GL_NEAREST,
+                        data, 0, allocate);
+                mNearestTextureId = textureId;
+                break;
+            default:
+                throw new IllegalArgumentException("not a YUV format: " + format);
+        }
+        data.position(0);
+        mUploadStats.add(System.nanoTime() - start);
+
+        if (allocate) {
+            mStorageTextureId = textureId;
+            mStorageWidth = width;
+            mStorageHeight = height;
+            mStorageFormat = format;
+        }
+    }
+
+    /**
+     * Uploads one plane.  On allocation, sets the given filter, unless it's 0 (the texture's
+     * own filters are kept then).
+     */
+    private static void uploadPlane(int textureId, int glFormat, int width, int height,
+            int filter, ByteBuffer data, int offset, boolean allocate) {
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        if (allocate) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, glFormat, width, height, 0, glFormat,
+                    GLES20.GL_UNSIGNED_BYTE, null);
+        }
+        if (allocate && filter != 0) {
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    filter);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    filter);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                    GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                    GLES20.GL_CLAMP_TO_EDGE);
+        }
+        // The bindings read from the buffer's position.
+        data.position(offset);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height, glFormat,
+                GLES20.GL_UNSIGNED_BYTE, data);
+    }
+
+    /**
+     * Puts back the filters that {@link Texture2dProgram#GenTexture()} gives the caller's
+     * texture, if a YUYV upload changed them.  Call when frames stop being YUV, and before
+     * deleting the texture.
+     */
+    public void restoreFilters() {
+        if (mNearestTextureId < 0) {
+            return;
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mNearestTextureId);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_LINEAR);
+        mNearestTextureId = -1;
+    }
+
+    /**
+     * Binds the chroma plane textures to CHROMA_UNIT_1 and CHROMA_UNIT_2.  Texture bindings
+     * are per-context, so this must be done in every context that draws the frame.  Leaves
+     * GL_TEXTURE0 active.
+     */
+    public void bindChromaTextures() {
+        if (!mChromaTexturesCreated) {
+            return;
+        }
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + CHROMA_UNIT_1);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mChromaTextures[0]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + CHROMA_UNIT_2);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mChromaTextures[1]);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+
+    @Override
+    public void invalidate() {
+        mStorageTextureId = -1;
+    }
+
+    @Override
+    public TimingStats getUploadStats() {
+        return mUploadStats;
+    }
+
+    @Override
+    public TimingStats getStallStats() {
+        // The copies from client memory complete before glTexSubImage2D returns.
+        return mUploadStats;
+    }
+
+    @Override
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup && mChromaTexturesCreated) {
+            GLES20.glDeleteTextures(2, mChromaTextures, 0);
+        }
+        mChromaTexturesCreated = false;
+        mNearestTextureId = -1;
+        invalidate();
+    }
+}
@@ -0,0 +1,226 @@
+package com.hsj.camera.externalcameratest.uvc;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Replays UVC payloads from a Linux usbmon packet capture.
+ * <p>
+ * Reads classic pcap files as written by {@code tcpdump -i usbmonN -w file} or Wireshark,
+ * with link type DLT_USB_LINUX_MMAPPED (220) or DLT_USB_LINUX (189).  Completed IN
+ * transfers on the video streaming endpoint are split into payloads (one per isochronous
+ * packet, one per bulk transfer) and fed to a {@link UvcFrameAssembler}, with the capture
+ * timestamp as the arrival time.  This lets the parsing and reassembly run against real
+ * camera traffic on a desktop JVM.
+ * <p>
+ * Isochronous descriptors are only present in the mmapped format; DLT_USB_LINUX captures
+ * can only replay bulk streams.
+ */
+public class UvcCaptureReader implements Closeable {
+    /** pcap link type of the 64-byte usbmon header, with isochronous descriptors. */
+    public static final int LINKTYPE_USB_LINUX_MMAPPED = 220;
+    /** pcap link type of the older 48-byte usbmon header. */
+    public static final int LINKTYPE_USB_LINUX = 189;
+
+    private static final int PCAP_MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+
+    private static final int XFER_ISO = 0;
+    private static final int ISO_DESCRIPTOR_SIZE = 16;
+
+    private final ReadableByteChannel mChannel;
+    private final int mEndpoint;
+    private final int mLinkType;
+    private final int mUsbHeaderSize;
+    private final boolean mNanos;
+    private final ByteOrder mOrder;
+
+    private final ByteBuffer mRecordHeader = ByteBuffer.allocate(16);
+    private ByteBuffer mRecord = ByteBuffer.allocate(64 * 1024);
+
+    private long mPayloadCount;
+    private long mDroppedPackets;
+
+    /**
+     * Reads the pcap file header.
+     *
+     * @param endpoint Address of the streaming endpoint, including the direction bit
+     *     (e.g. 0x81).
+     * @throws IOException if the stream isn't a usbmon pcap capture.
+     */
+    public UvcCaptureReader(ReadableByteChannel channel, int endpoint) throws IOException {
+        mChannel = channel;
+        mEndpoint = endpoint;
+
+        ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header);
+        int magic = header.getInt(0);
+        if (magic == PCAP_MAGIC_MICROS || magic == PCAP_MAGIC_NANOS) {
+            mOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == PCAP_MAGIC_MICROS ||
+                Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+            mOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("not a pcap file (magic " + Integer.toHexString(magic) + ")");
+        }
+        header.order(mOrder);
+        mNanos = header.getInt(0) == PCAP_MAGIC_NANOS;
+        mLinkType = header.getInt(20);
+        if (mLinkType == LINKTYPE_USB_LINUX_MMAPPED) {
+            mUsbHeaderSize = 64;
+        } else if (mLinkType == LINKTYPE_USB_LINUX) {
+            mUsbHeaderSize = 48;
+        } else {
+            throw new IOException("not a usbmon capture (link type " + mLinkType + ")");
+        }
+        mRecordHeader.order(mOrder);
+        // usbmon writes its header in host order, which is also the order libpcap uses.
+        mRecord.order(mOrder);
+    }
+
+    /**
+     * Reads the next capture record and feeds its payloads, if it holds any for the
+     * endpoint, to the assembler.
+     *
+     * @return The number of payloads fed (often 0: submissions, other endpoints...), or -1
+     *     at the end of the capture.
+     */
+    public int feed(UvcFrameAssembler assembler) throws IOException {
+        mRecordHeader.clear();
+        if (!readFully(mRecordHeader, true)) {
+            return -1;
+        }
+        long seconds = mRecordHeader.getInt(0) & 0xffffffffL;
+        long fraction = mRecordHeader.getInt(4) & 0xffffffffL;
+        int capturedLength = mRecordHeader.getInt(8);
+        long nanos = seconds * 1_000_000_000L + (mNanos ? fraction : fraction * 1000);
+
+        if (capturedLength < 0) {
+            throw new IOException("bad record length " + capturedLength);
+        }
+        if (mRecord.capacity() < capturedLength) {
+            mRecord = ByteBuffer.allocate(capturedLength).order(mOrder);
+        }
+        mRecord.clear();
+        mRecord.limit(capturedLength);
+        readFully(mRecord);
+        if (capturedLength < mUsbHeaderSize) {
+            return 0;
+        }
+
+        int type = mRecord.get(8) & 0xff;
+        int xferType = mRecord.get(9) & 0xff;
+        int endpoint = mRecord.get(10) & 0xff;
+        int status = mRecord.getInt(28);
+        if (type != 'C' || endpoint != mEndpoint) {
+            return 0;
+        }
+
+        if (xferType != XFER_ISO) {
+            if (status != 0 || capturedLength == mUsbHeaderSize) {
+                return 0;
+            }
+            return feedPayload(assembler, mUsbHeaderSize, capturedLength - mUsbHeaderSize,
+                    nanos);
+        }
+
+        if (mLinkType != LINKTYPE_USB_LINUX_MMAPPED) {
+            throw new IOException("isochronous replay needs a DLT_USB_LINUX_MMAPPED capture");
+        }
+        int descriptorCount = mRecord.getInt(60);
+        if (descriptorCount < 0) {
+            throw new IOException("bad isochronous descriptor count " + descriptorCount);
+        }
+        // Long, so a huge count or offset can't wrap around into range.
+        long dataStart = mUsbHeaderSize + (long) descriptorCount * ISO_DESCRIPTOR_SIZE;
+        int fed = 0;
+        for (int i = 0; i < descriptorCount; i++) {
+            int d = mUsbHeaderSize + i * ISO_DESCRIPTOR_SIZE;
+            if (d + ISO_DESCRIPTOR_SIZE > capturedLength) {
+                break;
+            }
+            int packetStatus = mRecord.getInt(d);
+            int offset = mRecord.getInt(d + 4);
+            int length = mRecord.getInt(d + 8);
+            if (offset < 0 || length < 0) {
+                throw new IOException("bad isochronous descriptor " + i + " (offset " + offset +
+                        ", length " + length + ")");
+            }
+            if (length == 0) {
+                continue;
+            }
+            if (packetStatus != 0 || dataStart + offset + length > capturedLength) {
+                // Lost on the bus, or cut off by the snapshot length.
+                mDroppedPackets++;
+                continue;
+            }
+            fed += feedPayload(assembler, (int) dataStart + offset, length, nanos);
+        }
+        return fed;
+    }
+
+    private int feedPayload(UvcFrameAssembler assembler, int offset, int length, long nanos) {
+        mRecord.limit(offset + length);
+        mRecord.position(offset);
+        assembler.onPayload(mRecord, nanos);
+        mPayloadCount++;
+        return 1;
+    }
+
+    /**
+     * Feeds the whole capture to the assembler.
+     *
+     * @return The number of payloads fed.
+     */
+    public long feedAll(UvcFrameAssembler assembler) throws IOException {
+        long total = 0;
+        int fed;
+        while ((fed = feed(assembler)) >= 0) {
+            total += fed;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of payloads fed so far.
+     */
+    public long getPayloadCount() {
+        return mPayloadCount;
+    }
+
+    /**
+     * Returns the number of isochronous packets skipped because of an error status or
+     * truncation.
+     */
+    public long getDroppedPacketCount() {
+        return mDroppedPackets;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private void readFully(ByteBuffer buf) throws IOException {
+        readFully(buf, false);
+    }
+
+    /**
+     * @return false if the channel was already at its end and eofOk is set.
+     */
+    private boolean readFully(ByteBuffer buf, boolean eofOk) throws IOException {
+        while (buf.hasRemaining()) {
+            if (mChannel.read(buf) < 0) {
+                if (eofOk && buf.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("capture ends mid-record");
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,269 @@
+package com.hsj.camera.externalcameratest.uvc;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.FrameRing;
+import com.hsj.camera.externalcameratest.frame.MjpegFrameSource;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles video frames from UVC payloads.
+ * <p>
+ * Feed it the payloads of the streaming endpoint in order, one isochronous packet or bulk
+ * transfer at a time.  A frame starts with the first payload after the frame ID (FID)
+ * toggles and ends with a payload that has EOF set, or, for devices that never set EOF, with
+ * the next toggle.  The frame in progress when the first payload arrives is skipped, since
+ * its start was missed.  Payload data is copied once, straight from the packet into the
+ * frame's pooled buffer.
+ * <p>
+ * Uncompressed frames go into a {@link FrameRing} and are only published if they arrive
+ * whole: exactly the negotiated size, and no payload flagged with ERR.  Anything else is
+ * counted and its buffer recycled.  MJPEG frames, whose size varies, collect in one reusable
+ * buffer and are handed to a {@link MjpegFrameSource} for decoding.
+ * <p>
+ * Not thread-safe; call from the thread that reads the endpoint.
+ */
+public class UvcFrameAssembler {
+    private final UvcPayloadHeader mHeader = new UvcPayloadHeader();
+
+    // Uncompressed output.
+    private final FrameRing mRing;
+    private final FrameFormat mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private Frame mFrame;
+
+    // MJPEG output.
+    private final MjpegFrameSource mMjpeg;
+    private final ByteBuffer mJpegBuffer;
+
+    // Current frame.
+    private int mLastFid = -1;
+    private boolean mInFrame;
+    private boolean mFrameBad;
+    private long mFrameTimestampNanos;
+    private long mFramePts;
+
+    // Clock information from the most recent header that carried it.
+    private long mLastPts;
+    private long mLastScrStc;
+    private int mLastScrSof;
+
+    private long mCompleteFrames;
+    private long mErrorFrames;
+    private long mSizeMismatchFrames;
+    private long mSkippedFrames;
+    private long mInvalidPackets;
+
+    /**
+     * Assembles uncompressed frames of the negotiated format into the ring's buffers.
+     */
+    public UvcFrameAssembler(FrameRing ring, FrameFormat format, int width, int height) {
+        mRing = ring;
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mMjpeg = null;
+        mJpegBuffer = null;
+    }
+
+    /**
+     * Assembles MJPEG frames and submits them to the decoder pool.
+     *
+     * @param maxFrameBytes Largest compressed frame expected (dwMaxVideoFrameSize).
+     */
+    public UvcFrameAssembler(MjpegFrameSource mjpeg, int maxFrameBytes) {
+        mRing = null;
+        mFormat = null;
+        mWidth = 0;
+        mHeight = 0;
+        mMjpeg = mjpeg;
+        mJpegBuffer = ByteBuffer.allocate(maxFrameBytes);
+    }
+
+    /**
+     * Processes one payload, from the buffer's position to its limit.  The buffer's position
+     * and limit are left alone.
+     *
+     * @param hostNanos Arrival time; the first payload's time becomes the frame timestamp.
+     */
+    public void onPayload(ByteBuffer packet, long hostNanos) {
+        if (!mHeader.parse(packet)) {
+            mInvalidPackets++;
+            return;
+        }
+        if (mHeader.hasPts()) {
+            mLastPts = mHeader.getPts();
+        }
+        if (mHeader.hasScr()) {
+            mLastScrStc = mHeader.getScrStc();
+            mLastScrSof = mHeader.getScrSof();
+        }
+
+        int fid = mHeader.getFrameId();
+        if (mLastFid < 0) {
+            // Joined mid-stream; the current frame is already partly gone.
+            mLastFid = fid;
+            return;
+        }
+        if (fid != mLastFid) {
+            if (mInFrame) {
+                // The device doesn't set EOF, or we lost the payload that had it.
+                endFrame();
+            }
+            mLastFid = fid;
+            startFrame(hostNanos);
+            if (!mInFrame) {
+                // No buffer for it; drop its payloads until the next toggle.
+                return;
+            }
+        } else if (!mInFrame) {
+            // Still the frame we finished (or dropped); wait for the next toggle.
+            return;
+        }
+
+        if (mHeader.isError()) {
+            mFrameBad = true;
+        }
+        int dataLength = packet.remaining() - mHeader.getHeaderLength();
+        if (dataLength > 0 && !mFrameBad) {
+            append(packet, dataLength);
+        }
+        if (mHeader.isEndOfFrame()) {
+            endFrame();
+        }
+    }
+
+    private void startFrame(long hostNanos) {
+        mInFrame = true;
+        mFrameBad = false;
+        mFrameTimestampNanos = hostNanos;
+        mFramePts = mHeader.hasPts() ? mHeader.getPts() : 0;
+        if (mMjpeg != null) {
+            mJpegBuffer.clear();
+            return;
+        }
+        mFrame = mRing.dequeueFree();
+        if (mFrame == null) {
+            // The renderer holds every buffer; drop this frame.
+            mSkippedFrames++;
+            mInFrame = false;
+            return;
+        }
+        mFrame.setGeometry(mFormat, mWidth, mHeight);
+    }
+
+    private void append(ByteBuffer packet, int dataLength) {
+        ByteBuffer dest = mMjpeg != null ? mJpegBuffer : mFrame.getBuffer();
+        if (dataLength > dest.remaining()) {
+            // More data than the frame can hold; the frame boundaries were lost.
+            mFrameBad = true;
+            return;
+        }
+        int position = packet.position();
+        packet.position(position + mHeader.getHeaderLength());
+        dest.put(packet);
+        packet.position(position);
+    }
+
+    private void endFrame() {
+        mInFrame = false;
+        if (mMjpeg != null) {
+            if (mFrameBad) {
+                mErrorFrames++;
+            } else if (mJpegBuffer.position() == 0) {
+                mSizeMismatchFrames++;
+            } else {
+                mJpegBuffer.flip();
+                // Dropped payloads are counted by the decoder pool.
+                mMjpeg.submit(mJpegBuffer, mFrameTimestampNanos);
+                mCompleteFrames++;
+            }
+            return;
+        }
+
+        Frame frame = mFrame;
+        mFrame = null;
+        if (frame == null) {
+            return;     // skipped in startFrame()
+        }
+        if (mFrameBad) {
+            mErrorFrames++;
+            mRing.cancelFrame(frame);
+        } else if (frame.getBuffer().hasRemaining()) {
+            mSizeMismatchFrames++;
+            mRing.cancelFrame(frame);
+        } else {
+            mRing.queueFilled(frame, mFrameTimestampNanos);
+            mCompleteFrames++;
+        }
+    }
+
+    /**
+     * Returns the PTS of the first payload of the frame in progress or last completed, or
+     * 0 if it had none.
+     */
+    public long getFramePts() {
+        return mFramePts;
+    }
+
+    /**
+     * Returns the most recent PTS seen, in device clock ticks.
+     */
+    public long getLastPts() {
+        return mLastPts;
+    }
+
+    /**
+     * Returns the source time clock of the most recent SCR seen, in device clock ticks.
+     * Together with getLastScrSof() this relates the device clock to the USB frame counter.
+     */
+    public long getLastScrStc() {
+        return mLastScrStc;
+    }
+
+    /**
+     * Returns the USB start-of-frame counter of the most recent SCR seen.
+     */
+    public int getLastScrSof() {
+        return mLastScrSof;
+    }
+
+    /**
+     * Returns the number of frames published (or submitted for decoding).
+     */
+    public long getCompleteFrameCount() {
+        return mCompleteFrames;
+    }
+
+    /**
+     * Returns the number of frames dropped because a payload had ERR set or overflowed the
+     * frame.
+     */
+    public long getErrorFrameCount() {
+        return mErrorFrames;
+    }
+
+    /**
+     * Returns the number of frames dropped because they ended short of the negotiated size
+     * (uncompressed) or empty (MJPEG).
+     */
+    public long getSizeMismatchFrameCount() {
+        return mSizeMismatchFrames;
+    }
+
+    /**
+     * Returns the number of frames dropped because no buffer was free.
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrames;
+    }
+
+    /**
+     * Returns the number of payloads whose header couldn't be parsed.
+     */
+    public long getInvalidPacketCount() {
+        return mInvalidPackets;
+    }
+}
@@ -0,0 +1,129 @@
+package com.hsj.camera.externalcameratest.uvc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The header at the start of every UVC video payload (USB Video Class 1.5, section 2.4.3.3).
+ * <p>
+ * One instance is reused for every packet: parse() overwrites the fields, so nothing is
+ * allocated per packet.
+ */
+public class UvcPayloadHeader {
+    /** Frame ID; toggles at the start of every video frame. */
+    public static final int BIT_FID = 0x01;
+    /** End of frame; set on the last payload of a frame. */
+    public static final int BIT_EOF = 0x02;
+    /** A 32-bit presentation time stamp follows. */
+    public static final int BIT_PTS = 0x04;
+    /** A 48-bit source clock reference follows. */
+    public static final int BIT_SCR = 0x08;
+    /** Still image. */
+    public static final int BIT_STI = 0x20;
+    /** The device reported an error in this payload's frame. */
+    public static final int BIT_ERR = 0x40;
+    /** End of header. */
+    public static final int BIT_EOH = 0x80;
+
+    private int mHeaderLength;
+    private int mFlags;
+    private long mPts;
+    private long mScrStc;
+    private int mScrSof;
+
+    /**
+     * Parses the header at the packet's position.  The buffer's position is left alone.
+     *
+     * @return false if the packet is too short or the header is inconsistent; the fields
+     *     are then undefined.
+     */
+    public boolean parse(ByteBuffer packet) {
+        int start = packet.position();
+        int available = packet.remaining();
+        if (available < 2) {
+            return false;
+        }
+        mHeaderLength = packet.get(start) & 0xff;
+        mFlags = packet.get(start + 1) & 0xff;
+        int needed = 2 + (hasPts() ? 4 : 0) + (hasScr() ? 6 : 0);
+        if (mHeaderLength < needed || mHeaderLength > available) {
+            return false;
+        }
+
+        // Multi-byte fields are little-endian, whatever the buffer's order.
+        int pos = start + 2;
+        mPts = 0;
+        if (hasPts()) {
+            mPts = readU32(packet, pos);
+            pos += 4;
+        }
+        mScrStc = 0;
+        mScrSof = 0;
+        if (hasScr()) {
+            mScrStc = readU32(packet, pos);
+            mScrSof = ((packet.get(pos + 4) & 0xff) | (packet.get(pos + 5) & 0xff) << 8) & 0x7ff;
+        }
+        return true;
+    }
+
+    private static long readU32(ByteBuffer buf, int pos) {
+        return (buf.get(pos) & 0xffL) | (buf.get(pos + 1) & 0xffL) << 8 |
+                (buf.get(pos + 2) & 0xffL) << 16 | (buf.get(pos + 3) & 0xffL) << 24;
+    }
+
+    /**
+     * Returns the header length in bytes, including the length and flags bytes.  The
+     * payload data starts this far into the packet.
+     */
+    public int getHeaderLength() {
+        return mHeaderLength;
+    }
+
+    /**
+     * Returns the raw bmHeaderInfo byte.
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getFrameId() {
+        return mFlags & BIT_FID;
+    }
+
+    public boolean isEndOfFrame() {
+        return (mFlags & BIT_EOF) != 0;
+    }
+
+    public boolean isError() {
+        return (mFlags & BIT_ERR) != 0;
+    }
+
+    public boolean hasPts() {
+        return (mFlags & BIT_PTS) != 0;
+    }
+
+    public boolean hasScr() {
+        return (mFlags & BIT_SCR) != 0;
+    }
+
+    /**
+     * Returns the presentation time stamp, in device clock ticks (dwClockFrequency), or 0
+     * if the header has none.
+     */
+    public long getPts() {
+        return mPts;
+    }
+
+    /**
+     * Returns the source time clock part of the SCR, in device clock ticks.
+     */
+    public long getScrStc() {
+        return mScrStc;
+    }
+
+    /**
+     * Returns the 11-bit USB start-of-frame counter part of the SCR.
+     */
+    public int getScrSof() {
+        return mScrSof;
+    }
+}
@@ -0,0 +1,266 @@
+package com.hsj.camera.externalcameratest;
+
+import com.hsj.camera.externalcameratest.frame.CpuFilterRenderer;
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.FrameRing;
+import com.hsj.camera.externalcameratest.frame.TestPatternGenerator;
+import com.hsj.camera.externalcameratest.frame.TileHasher;
+import com.hsj.camera.externalcameratest.uvc.UvcFrameAssembler;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/**
+ * Throughput benchmarks of the CPU-side frame paths.  They time things rather than check
+ * them, so they're kept out of the unit tests, whose runs they would slow down and whose
+ * results would depend on the machine's load.  Run them by hand, with the unit tests'
+ * classpath:
+ * <pre>
+ *   java -cp ... com.hsj.camera.externalcameratest.Benchmarks [name ...]
+ * </pre>
+ * No names runs them all.
+ */
+public class Benchmarks {
+    private static final Map<String, Runnable> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        BENCHMARKS.put("uvc", Benchmarks::uvcReassembly);
+        BENCHMARKS.put("tiles", Benchmarks::tileHashing);
+        BENCHMARKS.put("patterns", Benchmarks::testPatterns);
+        BENCHMARKS.put("cpufilter", Benchmarks::cpuFilters);
+    }
+
+    public static void main(String[] args) {
+        String[] names = args.length > 0 ? args : BENCHMARKS.keySet().toArray(new String[0]);
+        for (String name : names) {
+            Runnable benchmark = BENCHMARKS.get(name);
+            if (benchmark == null) {
+                throw new IllegalArgumentException("unknown benchmark " + name + "; have " +
+                        BENCHMARKS.keySet());
+            }
+            benchmark.run();
+        }
+    }
+
+    /**
+     * Reassembles 2048x1080 YUYV frames, 133 MB/s at 30 fps, from 3 KB high-bandwidth
+     * isochronous packets.
+     */
+    private static void uvcReassembly() {
+        int width = 2048;
+        int height = 1080;
+        int frameSize = FrameFormat.YUYV.getFrameSize(width, height);
+        int payloadData = 3072 - 12;
+        FrameRing ring = new FrameRing(3, frameSize);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FrameFormat.YUYV, width,
+                height);
+
+        ByteBuffer[] packets = new ByteBuffer[2];
+        for (int fid = 0; fid < 2; fid++) {
+            packets[fid] = ByteBuffer.allocateDirect(12 + payloadData);
+            packets[fid].put(0, (byte) 12);
+            packets[fid].put(1, (byte) (0x80 | 0x0c | fid));
+        }
+        ByteBuffer last = ByteBuffer.allocateDirect(12 + frameSize % payloadData);
+        int frames = 60;
+        int fullPackets = frameSize / payloadData;
+
+        long start = System.nanoTime();
+        for (int f = 0; f <= frames; f++) {
+            int fid = f & 1;
+            for (int p = 0; p < fullPackets; p++) {
+                assembler.onPayload(packets[fid], f);
+            }
+            last.put(0, (byte) 12);
+            last.put(1, (byte) (0x80 | 0x0c | 0x02 | fid));
+            assembler.onPayload(last, f);
+            Frame frame = ring.acquireFrame();
+            if (frame != null) {
+                ring.releaseFrame(frame);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // The first frame is the one we "joined" mid-way.
+        check(assembler.getCompleteFrameCount() == frames, "frames were lost");
+        double fps = frames * 1e9 / elapsed;
+        report("UVC reassembly: %.0f fps, %.0f MB/s at %dx%d YUYV", fps,
+                fps * frameSize / 1e6, width, height);
+    }
+
+    /**
+     * Hashes 2048x1080 RGB frames of three synthetic scenes into 64x64 tiles.
+     */
+    private static void tileHashing() {
+        int width = 2048;
+        int height = 1080;
+        int tile = 64;
+        int frames = 30;
+        Frame frame = newFrame(FrameFormat.RGB888, width, height);
+        fillNoise(frame, 4);
+        int tiles = (width / tile) * ((height + tile - 1) / tile);
+
+        forEachPool(pool -> {
+            // Static: nothing moves.  The first frames warm up the JIT.
+            TileHasher hasher = new TileHasher(tile, pool, frames);
+            for (int i = 0; i < frames; i++) {
+                hasher.update(frame);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                check(hasher.update(frame) == 0, "static frame has dirty tiles");
+            }
+            reportTiles("static", pool, start, frames, 0, tiles);
+
+            // A 100x100 object crossing the frame, dirtying at most 3x3 tiles.
+            int dirty = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                drawSquare(frame, width, 40 * i, 500, 100, i);
+                int count = hasher.update(frame);
+                check(count <= 9, "object dirtied " + count + " tiles");
+                dirty += count;
+            }
+            reportTiles("moving object", pool, start, frames, dirty, tiles);
+
+            // Everything changes: the worst case, hashing for nothing.
+            start = System.nanoTime();
+            for (int i = 0; i < frames; i++) {
+                touchTiles(frame, tile);
+                check(hasher.update(frame) == tiles, "changed tiles were missed");
+            }
+            reportTiles("full change", pool, start, frames, -1, tiles);
+        });
+    }
+
+    private static void reportTiles(String scene, ForkJoinPool pool, long start, int frames,
+            int dirtyTiles, int tiles) {
+        double ms = (System.nanoTime() - start) / 1e6 / frames;
+        report("tile hash 2048x1080 RGB, %-13s %d thread(s): %.2f ms/frame%s", scene,
+                pool.getParallelism(), ms, dirtyTiles < 0 ? "" :
+                        String.format(Locale.US, ", %.1f%% dirty",
+                                100.0 * dirtyTiles / frames / tiles));
+    }
+
+    /**
+     * Flips a bit in the first byte of every tile of an RGB frame.  Cheaper than refilling
+     * the frame, so the benchmark mostly measures the hashing.
+     */
+    private static void touchTiles(Frame frame, int tile) {
+        ByteBuffer buf = frame.getBuffer();
+        int rowBytes = frame.getWidth() * 3;
+        for (int y = 0; y < frame.getHeight(); y += tile) {
+            for (int x = 0; x < rowBytes; x += tile * 3) {
+                int index = y * rowBytes + x;
+                buf.put(index, (byte) (buf.get(index) ^ 1));
+            }
+        }
+    }
+
+    private static void drawSquare(Frame frame, int width, int left, int top, int size,
+            int color) {
+        ByteBuffer buf = frame.getBuffer();
+        for (int y = top; y < top + size; y++) {
+            for (int x = left; x < left + size; x++) {
+                buf.put((y * width + x) * 3, (byte) color);
+            }
+        }
+    }
+
+    /**
+     * Generates every test pattern at 4K RGB.
+     */
+    private static void testPatterns() {
+        int width = 3840;
+        int height = 2160;
+        int frames = 10;
+        Frame frame = newFrame(FrameFormat.RGB888, width, height);
+        forEachPool(pool -> {
+            for (TestPatternGenerator.Pattern pattern : TestPatternGenerator.Pattern.values()) {
+                TestPatternGenerator generator = new TestPatternGenerator(pool, frames);
+                for (int i = 0; i < 2 * frames; i++) {
+                    generator.generate(frame, pattern, FrameFormat.RGB888, width, height, i, i);
+                }
+                // The second window is past the warm-up.
+                double ms = generator.getGenerateStats().getAverageNanos() / 1e6;
+                report("test pattern 4K RGB %-9s %d thread(s): %.1f ms/frame (%.0f fps)",
+                        pattern, pool.getParallelism(), ms, 1000 / ms);
+            }
+        });
+    }
+
+    /**
+     * Runs every CPU filter over 2048x1080 RGB frames; the convolution with a 3x3 blur.
+     */
+    private static void cpuFilters() {
+        int width = 2048;
+        int height = 1080;
+        int frames = 5;
+        Frame frame = newFrame(FrameFormat.RGB888, width, height);
+        fillNoise(frame, 5);
+        int[] out = new int[width * height];
+        float[] blur = {
+                1f / 16f, 2f / 16f, 1f / 16f,
+                2f / 16f, 4f / 16f, 2f / 16f,
+                1f / 16f, 2f / 16f, 1f / 16f };
+        forEachPool(pool -> {
+            for (CpuFilterRenderer.Filter filter : CpuFilterRenderer.Filter.values()) {
+                CpuFilterRenderer renderer = new CpuFilterRenderer(pool, frames);
+                renderer.setKernel(blur, 0f);
+                for (int i = 0; i < 2 * frames; i++) {
+                    renderer.render(frame, filter, out);
+                }
+                // The second window is past the warm-up.
+                double ms = renderer.getRenderStats().getAverageNanos() / 1e6;
+                report("cpu filter 2048x1080 %-18s %d thread(s): %.1f ms/frame (%.0f MP/s)",
+                        filter, pool.getParallelism(), ms, width * height / 1000.0 / ms);
+            }
+        });
+    }
+
+    /**
+     * Runs a benchmark on one thread, then on all cores.
+     */
+    private static void forEachPool(Consumer<ForkJoinPool> benchmark) {
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool all = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            benchmark.accept(single);
+            benchmark.accept(all);
+        } finally {
+            single.shutdown();
+            all.shutdown();
+        }
+    }
+
+    private static Frame newFrame(FrameFormat format, int width, int height) {
+        // Rings take two buffers at least; one is enough here.
+        Frame frame = new FrameRing(2, format.getFrameSize(width, height)).dequeueFree();
+        frame.setGeometry(format, width, height);
+        return frame;
+    }
+
+    private static void fillNoise(Frame frame, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer buf = frame.getBuffer();
+        for (int i = 0; i < frame.getSize(); i++) {
+            buf.put(i, (byte) random.nextInt());
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private static void report(String format, Object... args) {
+        System.out.println(String.format(Locale.US, format, args));
+    }
+}
@@ -0,0 +1,160 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BayerDemosaicTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+
+    private static final FrameFormat[] PATTERNS = {
+            FrameFormat.BAYER_RGGB, FrameFormat.BAYER_BGGR,
+            FrameFormat.BAYER_GRBG, FrameFormat.BAYER_GBRG
+    };
+
+    /** Scene color at a pixel, 0xRRGGBB. */
+    private interface Scene {
+        int colorAt(int x, int y);
+    }
+
+    @Test
+    public void redSitesMatchPatternNames() {
+        assertEquals(0, FrameFormat.BAYER_RGGB.getBayerRedX());
+        assertEquals(0, FrameFormat.BAYER_RGGB.getBayerRedY());
+        assertEquals(1, FrameFormat.BAYER_BGGR.getBayerRedX());
+        assertEquals(1, FrameFormat.BAYER_BGGR.getBayerRedY());
+        assertEquals(1, FrameFormat.BAYER_GRBG.getBayerRedX());
+        assertEquals(0, FrameFormat.BAYER_GRBG.getBayerRedY());
+        assertEquals(0, FrameFormat.BAYER_GBRG.getBayerRedX());
+        assertEquals(1, FrameFormat.BAYER_GBRG.getBayerRedY());
+        assertEquals(WIDTH * HEIGHT, FrameFormat.BAYER_GBRG.getFrameSize(WIDTH, HEIGHT));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void redSiteOfNonBayerFormat() {
+        FrameFormat.NV12.getBayerRedX();
+    }
+
+    @Test
+    public void flatColorIsReconstructedExactly() {
+        Scene flat = (x, y) -> 0xc86432;
+        for (FrameFormat format : PATTERNS) {
+            for (BayerDemosaic.Mode mode : BayerDemosaic.Mode.values()) {
+                int[] out = demosaic(mosaic(flat, format), format, mode);
+                for (int pixel : out) {
+                    assertEquals(format + " " + mode, 0xffc86432, pixel);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bilinearIsExactOnLinearRamps() {
+        // Linear in x and y, so averages of neighbors equal the center value -- except at
+        // the mirrored borders, where the ramp folds back.
+        Scene ramp = (x, y) -> {
+            int v = 20 + 10 * x + 5 * y;
+            return (v << 16) | ((v + 1) << 8) | (v + 2);
+        };
+        for (FrameFormat format : PATTERNS) {
+            int[] out = demosaic(mosaic(ramp, format), format, BayerDemosaic.Mode.BILINEAR);
+            for (int y = 1; y < HEIGHT - 1; y++) {
+                for (int x = 1; x < WIDTH - 1; x++) {
+                    assertEquals(format + " at " + x + "," + y,
+                            0xff000000 | ramp.colorAt(x, y), out[y * WIDTH + x]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void edgeAwareAvoidsZipper() {
+        // Gray scene with a sharp vertical edge: bilinear mixes across it at red and blue
+        // sites, edge-aware interpolates along it.
+        Scene edge = (x, y) -> x < WIDTH / 2 ? 0x323232 : 0xc8c8c8;
+        for (FrameFormat format : PATTERNS) {
+            ByteBuffer raw = mosaic(edge, format);
+            long bilinear = greenError(edge,
+                    demosaic(raw, format, BayerDemosaic.Mode.BILINEAR));
+            long edgeAware = greenError(edge,
+                    demosaic(raw, format, BayerDemosaic.Mode.EDGE_AWARE));
+            assertTrue(format + ": bilinear " + bilinear, bilinear > 0);
+            assertEquals(format.toString(), 0, edgeAware);
+        }
+    }
+
+    @Test
+    public void tinyFramesStayInBounds() {
+        // Too small to mirror off both edges; gray comes out gray however it's read.
+        int[][] sizes = { {1, 1}, {1, 5}, {2, 5}, {5, 1}, {5, 2}, {2, 2} };
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            ByteBuffer raw = ByteBuffer.allocate(width * height);
+            for (int i = 0; i < width * height; i++) {
+                raw.put(i, (byte) 0x80);
+            }
+            for (BayerDemosaic.Mode mode : BayerDemosaic.Mode.values()) {
+                int[] out = new int[width * height];
+                new BayerDemosaic(mode).demosaic(raw, FrameFormat.BAYER_RGGB, width, height, out);
+                for (int pixel : out) {
+                    assertEquals(width + "x" + height + " " + mode, 0xff808080, pixel);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void demosaicLeavesPositionAlone() {
+        ByteBuffer raw = mosaic((x, y) -> 0, FrameFormat.BAYER_RGGB);
+        raw.position(5);
+        new BayerDemosaic(BayerDemosaic.Mode.EDGE_AWARE).demosaic(raw, FrameFormat.BAYER_RGGB,
+                WIDTH, HEIGHT, new int[WIDTH * HEIGHT]);
+        assertEquals(5, raw.position());
+    }
+
+    /**
+     * Samples the scene through the color filter array.
+     */
+    private static ByteBuffer mosaic(Scene scene, FrameFormat format) {
+        byte[] data = new byte[format.getFrameSize(WIDTH, HEIGHT)];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int siteX = (x + format.getBayerRedX()) & 1;
+                int siteY = (y + format.getBayerRedY()) & 1;
+                int shift;
+                if (siteX == 0 && siteY == 0) {
+                    shift = 16;
+                } else if (siteX == 1 && siteY == 1) {
+                    shift = 0;
+                } else {
+                    shift = 8;
+                }
+                data[y * WIDTH + x] = (byte) (scene.colorAt(x, y) >> shift);
+            }
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static int[] demosaic(ByteBuffer raw, FrameFormat format, BayerDemosaic.Mode mode) {
+        int[] out = new int[WIDTH * HEIGHT];
+        new BayerDemosaic(mode).demosaic(raw, format, WIDTH, HEIGHT, out);
+        return out;
+    }
+
+    private static long greenError(Scene scene, int[] out) {
+        long error = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = (scene.colorAt(x, y) >> 8) & 0xff;
+                int actual = (out[y * WIDTH + x] >> 8) & 0xff;
+                error += Math.abs(expected - actual);
+            }
+        }
+        return error;
+    }
+}
@@ -0,0 +1,173 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class ColorLutTest {
+    @Test
+    public void bakedPointFiltersMatchTheShaders() {
+        ColorLut grayscale = ColorLut.bake(ColorLut.DEFAULT_SIZE, ColorLut.GRAYSCALE);
+        ColorLut negative = ColorLut.bake(ColorLut.DEFAULT_SIZE, ColorLut.NEGATIVE);
+        ColorLut both = ColorLut.bake(ColorLut.DEFAULT_SIZE, ColorLut.GRAYSCALE,
+                ColorLut.NEGATIVE);
+        Random random = new Random(1);
+        for (int i = 0; i < 10000; i++) {
+            int argb = 0xff000000 | random.nextInt(0x1000000);
+            // Trilinear interpolation reproduces these exactly, since they're linear.
+            assertClose(CpuFilterRenderer.filterPixel(CpuFilterRenderer.Filter.GRAYSCALE, argb),
+                    grayscale.apply(argb));
+            assertClose(CpuFilterRenderer.filterPixel(CpuFilterRenderer.Filter.NEGATIVE, argb),
+                    negative.apply(argb));
+            assertClose(CpuFilterRenderer.filterPixel(
+                    CpuFilterRenderer.Filter.GRAYSCALE_NEGATIVE, argb), both.apply(argb));
+        }
+    }
+
+    @Test
+    public void identityChangesNothing() {
+        ColorLut identity = ColorLut.identity(17);
+        for (int argb : new int[] { 0xff000000, 0xffffffff, 0x80123456, 0xff7f8081 }) {
+            assertEquals(argb, identity.apply(argb));
+        }
+    }
+
+    @Test
+    public void interpolatesBetweenLatticePoints() {
+        // A curve isn't reproduced exactly; a 33^3 lattice gets within a couple of levels.
+        ColorLut.Transform gamma = new ColorLut.Transform() {
+            @Override
+            public void apply(float[] rgb) {
+                for (int c = 0; c < 3; c++) {
+                    rgb[c] = (float) Math.pow(rgb[c], 1 / 2.2);
+                }
+            }
+        };
+        ColorLut lut = ColorLut.bake(ColorLut.DEFAULT_SIZE, gamma);
+        float[] rgb = new float[3];
+        float[] out = new float[3];
+        for (int v = 32; v < 256; v++) {
+            rgb[0] = v / 255f;
+            rgb[1] = v / 255f;
+            rgb[2] = v / 255f;
+            lut.lookup(rgb, out);
+            assertEquals("level " + v, Math.pow(v / 255.0, 1 / 2.2), out[0], 2.5 / 255);
+        }
+    }
+
+    @Test
+    public void atlasSamplingMatchesLookup() {
+        // Emulates the TEXTURE_2D_LUT shader, with bilinear filtering of the atlas.
+        ColorLut lut = ColorLut.bake(9, new ColorLut.Transform() {
+            @Override
+            public void apply(float[] rgb) {
+                float r = rgb[0];
+                rgb[0] = rgb[1] * rgb[2];
+                rgb[1] = r * r;
+                rgb[2] = 1f - rgb[2] * 0.5f;
+            }
+        });
+        ByteBuffer atlas = lut.toAtlas();
+        int width = lut.getAtlasWidth();
+        int size = lut.getSize();
+        assertEquals(width * size * 3, atlas.remaining());
+        Random random = new Random(2);
+        float[] rgb = new float[3];
+        float[] expected = new float[3];
+        for (int i = 0; i < 2000; i++) {
+            for (int c = 0; c < 3; c++) {
+                rgb[c] = random.nextFloat();
+            }
+            lut.lookup(rgb, expected);
+            float n = size;
+            float b = rgb[2] * (n - 1);
+            float slice = Math.min((float) Math.floor(b), n - 2);
+            float u = (rgb[0] * (n - 1) + 0.5f) / (n * n);
+            float v = (rgb[1] * (n - 1) + 0.5f) / n;
+            for (int c = 0; c < 3; c++) {
+                float lo = sample(atlas, width, size, u + slice / n, v, c);
+                float hi = sample(atlas, width, size, u + (slice + 1) / n, v, c);
+                assertEquals(expected[c], lo + (hi - lo) * (b - slice), 1f / 255f);
+            }
+        }
+    }
+
+    private static float sample(ByteBuffer atlas, int width, int height, float u, float v,
+            int channel) {
+        float x = u * width - 0.5f;
+        float y = v * height - 0.5f;
+        int x0 = (int) Math.floor(x);
+        int y0 = (int) Math.floor(y);
+        float fx = x - x0;
+        float fy = y - y0;
+        float top = texel(atlas, width, height, x0, y0, channel) * (1 - fx) +
+                texel(atlas, width, height, x0 + 1, y0, channel) * fx;
+        float bottom = texel(atlas, width, height, x0, y0 + 1, channel) * (1 - fx) +
+                texel(atlas, width, height, x0 + 1, y0 + 1, channel) * fx;
+        return top * (1 - fy) + bottom * fy;
+    }
+
+    private static float texel(ByteBuffer atlas, int width, int height, int x, int y,
+            int channel) {
+        x = Math.min(Math.max(x, 0), width - 1);
+        y = Math.min(Math.max(y, 0), height - 1);
+        return (atlas.get((y * width + x) * 3 + channel) & 0xff) / 255f;
+    }
+
+    @Test
+    public void parsesCubeFiles() throws IOException {
+        StringBuilder cube = new StringBuilder()
+                .append("# made by hand\n")
+                .append("TITLE \"swap red and blue\"\n")
+                .append("LUT_3D_SIZE 2\n")
+                .append("\n");
+        for (int b = 0; b < 2; b++) {
+            for (int g = 0; g < 2; g++) {
+                for (int r = 0; r < 2; r++) {
+                    cube.append(b).append(".0 ").append(g).append(' ').append(r).append("\n");
+                }
+            }
+        }
+        ColorLut lut = ColorLut.parseCube(new StringReader(cube.toString()));
+        assertEquals("swap red and blue", lut.getTitle());
+        assertEquals(2, lut.getSize());
+        assertEquals(0xff563412, lut.apply(0xff123456));
+    }
+
+    @Test
+    public void resamplesOtherDomains() throws IOException {
+        // Over [0, 2], 0 to 2 maps to 0 to 1: the lookup is of half the input.
+        String cube = "LUT_3D_SIZE 2\nDOMAIN_MIN 0 0 0\nDOMAIN_MAX 2 2 2\n" +
+                "0 0 0\n1 0 0\n0 1 0\n1 1 0\n0 0 1\n1 0 1\n0 1 1\n1 1 1\n";
+        ColorLut lut = ColorLut.parseCube(new StringReader(cube));
+        float[] rgb = { 0.25f, 1f, 0f };
+        lut.lookup(rgb, rgb);
+        assertEquals(0.125f, rgb[0], 1e-6f);
+        assertEquals(0.5f, rgb[1], 1e-6f);
+        assertEquals(0f, rgb[2], 1e-6f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortCubeFiles() throws IOException {
+        ColorLut.parseCube(new StringReader("LUT_3D_SIZE 2\n0 0 0\n1 0 0\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects1dTables() throws IOException {
+        ColorLut.parseCube(new StringReader("LUT_1D_SIZE 2\n0 0 0\n1 1 1\n"));
+    }
+
+    private static void assertClose(int expected, int actual) {
+        for (int shift = 0; shift < 24; shift += 8) {
+            int difference = Math.abs((expected >> shift & 0xff) - (actual >> shift & 0xff));
+            assertTrue(Integer.toHexString(expected) + " vs " + Integer.toHexString(actual),
+                    difference <= 1);
+        }
+    }
+}
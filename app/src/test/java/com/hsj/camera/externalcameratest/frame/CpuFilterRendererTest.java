@@ -0,0 +1,145 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class CpuFilterRendererTest {
+    private static final float[] IDENTITY = { 0f, 0f, 0f, 0f, 1f, 0f, 0f, 0f, 0f };
+    private static final float[] BLUR = {
+            1f / 16f, 2f / 16f, 1f / 16f,
+            2f / 16f, 4f / 16f, 2f / 16f,
+            1f / 16f, 2f / 16f, 1f / 16f };
+    private static final float[] EMBOSS = { 2f, 0f, 0f, 0f, -1f, 0f, 0f, 0f, -1f };
+
+    @Test
+    public void pointFiltersMatchTheShaders() {
+        assertEquals(0xff000000 | 77 << 16 | 77 << 8 | 77,
+                CpuFilterRenderer.filterPixel(CpuFilterRenderer.Filter.GRAYSCALE, 0xffff0000));
+        assertEquals(0xffffffff,
+                CpuFilterRenderer.filterPixel(CpuFilterRenderer.Filter.GRAYSCALE, 0xffffffff));
+        assertEquals(0xff00ff0f,
+                CpuFilterRenderer.filterPixel(CpuFilterRenderer.Filter.NEGATIVE, 0xffff00f0));
+        assertEquals(0xff000000 | 179 << 16 | 179 << 8 | 179, CpuFilterRenderer.filterPixel(
+                CpuFilterRenderer.Filter.GRAYSCALE_NEGATIVE, 0xffff0000));
+    }
+
+    @Test
+    public void identityKernelChangesNothing() {
+        int width = 37;
+        int height = 11;
+        ByteBuffer rgb = randomRgb(width, height, 1);
+        CpuFilterRenderer renderer = new CpuFilterRenderer(4);
+        renderer.setKernel(IDENTITY, 0f);
+        int[] filtered = new int[width * height];
+        renderer.render(rgb, FrameFormat.RGB888, width, height,
+                CpuFilterRenderer.Filter.CONVOLUTION, filtered);
+        int[] plain = new int[width * height];
+        renderer.render(rgb, FrameFormat.RGB888, width, height, CpuFilterRenderer.Filter.NONE,
+                plain);
+        assertArrayEquals(plain, filtered);
+        assertEquals(0xff000000 | (rgb.get(0) & 0xff) << 16 | (rgb.get(1) & 0xff) << 8 |
+                (rgb.get(2) & 0xff), plain[0]);
+    }
+
+    @Test
+    public void convolutionClampsAtTheEdges() {
+        int width = 23;
+        int height = 9;
+        ByteBuffer rgb = randomRgb(width, height, 2);
+        for (float[] kernel : new float[][] { BLUR, EMBOSS }) {
+            float adjust = kernel == EMBOSS ? 0.5f : 0f;
+            CpuFilterRenderer renderer = new CpuFilterRenderer(4);
+            renderer.setKernel(kernel, adjust);
+            int[] out = new int[width * height];
+            renderer.render(rgb, FrameFormat.RGB888, width, height,
+                    CpuFilterRenderer.Filter.CONVOLUTION, out);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    for (int channel = 0; channel < 3; channel++) {
+                        double sum = adjust;
+                        for (int k = 0; k < 9; k++) {
+                            int sx = Math.min(Math.max(x + k % 3 - 1, 0), width - 1);
+                            int sy = Math.min(Math.max(y + k / 3 - 1, 0), height - 1);
+                            sum += kernel[k] * (rgb.get((sy * width + sx) * 3 + channel) & 0xff)
+                                    / 255.0;
+                        }
+                        int expected = (int) Math.round(Math.min(Math.max(sum, 0), 1) * 255);
+                        int actual = out[y * width + x] >> (16 - 8 * channel) & 0xff;
+                        assertTrue("(" + x + ", " + y + ") channel " + channel + ": expected " +
+                                expected + " got " + actual, Math.abs(expected - actual) <= 1);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void convertsLikeTheReferenceConverters() {
+        int width = 45;
+        int height = 31;
+        CpuFilterRenderer renderer = new CpuFilterRenderer(4);
+        renderer.setYuvMatrix(YuvColorMatrix.BT709);
+        renderer.setDemosaicMode(BayerDemosaic.Mode.EDGE_AWARE);
+        for (FrameFormat format : new FrameFormat[] {
+                FrameFormat.NV12, FrameFormat.YUYV, FrameFormat.BAYER_GRBG }) {
+            Frame frame = new Frame(null, format.getFrameSize(width, height));
+            new TestPatternGenerator(4).generate(frame, TestPatternGenerator.Pattern.NOISE,
+                    format, width, height, 5, 0);
+            int[] expected = new int[width * height];
+            if (format.isYuv()) {
+                new YuvConverter(YuvColorMatrix.BT709).convert(frame.getBuffer(), format, width,
+                        height, expected);
+            } else {
+                new BayerDemosaic(BayerDemosaic.Mode.EDGE_AWARE).demosaic(frame.getBuffer(),
+                        format, width, height, expected);
+            }
+            int[] actual = new int[width * height];
+            renderer.render(frame, CpuFilterRenderer.Filter.NONE, actual);
+            assertArrayEquals(format.toString(), expected, actual);
+        }
+    }
+
+    @Test
+    public void parallelOutputMatchesSerial() {
+        int width = 333;
+        int height = 77;
+        ByteBuffer rgb = randomRgb(width, height, 3);
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool many = new ForkJoinPool(8);
+        try {
+            CpuFilterRenderer a = new CpuFilterRenderer(single, 4);
+            CpuFilterRenderer b = new CpuFilterRenderer(many, 4);
+            a.setKernel(EMBOSS, 0.5f);
+            b.setKernel(EMBOSS, 0.5f);
+            for (CpuFilterRenderer.Filter filter : CpuFilterRenderer.Filter.values()) {
+                int[] serial = new int[width * height];
+                int[] parallel = new int[width * height];
+                a.render(rgb, FrameFormat.RGB888, width, height, filter, serial);
+                b.render(rgb, FrameFormat.RGB888, width, height, filter, parallel);
+                assertArrayEquals(filter.toString(), serial, parallel);
+            }
+        } finally {
+            single.shutdown();
+            many.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortOutput() {
+        new CpuFilterRenderer(4).render(randomRgb(8, 8, 4), FrameFormat.RGB888, 8, 8,
+                CpuFilterRenderer.Filter.NONE, new int[63]);
+    }
+
+    private static ByteBuffer randomRgb(int width, int height, long seed) {
+        byte[] bytes = new byte[width * height * 3];
+        new Random(seed).nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}
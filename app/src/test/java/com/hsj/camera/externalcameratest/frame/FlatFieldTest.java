@@ -0,0 +1,233 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class FlatFieldTest {
+    private static final CameraMode RGB = new CameraMode(FrameFormat.RGB888, 4, 2, 10000);
+    private static final CameraMode MONO = new CameraMode(FrameFormat.MONO12, 4, 2, 10000);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void modesDifferByExposure() {
+        CameraMode other = new CameraMode(FrameFormat.RGB888, 4, 2, 20000);
+        assertFalse(RGB.equals(other));
+        assertEquals(RGB, new CameraMode(FrameFormat.RGB888, 4, 2, 10000));
+        assertEquals(RGB.hashCode(), new CameraMode(FrameFormat.RGB888, 4, 2, 10000).hashCode());
+        assertEquals("RGB888_4x2_10000us", RGB.toString());
+        assertFalse(new CameraMode(FrameFormat.NV12, 4, 2, 0).isCalibratable());
+    }
+
+    @Test
+    public void averagerTakesTheMean() {
+        FrameAverager averager = new FrameAverager(MONO, 2);
+        assertFalse(averager.add(monoFrame(1000, 3000)));
+        assertTrue(averager.add(monoFrame(2000, 0xffff)));
+        float[] mean = averager.getMean();
+        assertEquals(8, mean.length);
+        assertEquals(1500f / 65535f, mean[0], 1e-7f);
+        assertEquals((3000f + 65535f) / 2f / 65535f, mean[1], 1e-7f);
+        try {
+            averager.add(monoFrame(0, 0));
+            fail("added past the frame count");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void averagerReadsWholeCopies() {
+        // A copy, as calibrations hand over, with its position left anywhere.
+        ByteBuffer copy = ByteBuffer.allocate(FrameFormat.RGB888.getFrameSize(4, 2) + 6);
+        for (int i = 0; i < 24; i++) {
+            copy.put(i, (byte) (i * 10));
+        }
+        copy.position(20);
+        FrameAverager averager = new FrameAverager(RGB, 1);
+        assertTrue(averager.add(copy));
+        assertEquals(20, copy.position());
+        float[] mean = averager.getMean();
+        assertEquals(0f, mean[0], 0f);
+        assertEquals(50f / 255f, mean[5], 1e-7f);
+        assertEquals(230f / 255f, mean[23], 1e-7f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void averagerRejectsOtherModes() {
+        new FrameAverager(RGB, 4).add(monoFrame(0, 0));
+    }
+
+    @Test
+    public void gainsEvenOutTheFlat() {
+        // Vignetted flat: the corners get half the light of the center.
+        float[] dark = new float[8];
+        float[] flat = new float[8];
+        for (int i = 0; i < 8; i++) {
+            dark[i] = 0.1f;
+            flat[i] = i % 4 == 0 || i % 4 == 3 ? 0.3f : 0.5f;
+        }
+        FlatField field = new FlatField(MONO, dark, flat);
+        // Mean response 0.3; corners 0.2, center 0.4.
+        assertEquals(1.5f, field.getGain()[0], 1e-5f);
+        assertEquals(0.75f, field.getGain()[1], 1e-5f);
+        assertEquals(0.3f, field.apply(0, 0.3f), 1e-5f);
+        assertEquals(0.3f, field.apply(1, 0.5f), 1e-5f);
+        assertEquals(0f, field.apply(2, 0.1f), 1e-6f);
+    }
+
+    @Test
+    public void channelsKeepTheirBalance() {
+        float[] flat = new float[24];
+        for (int i = 0; i < 24; i++) {
+            // Red twice as bright as green and blue.
+            flat[i] = i % 3 == 0 ? 0.8f : 0.4f;
+        }
+        FlatField field = new FlatField(RGB, null, flat);
+        for (float gain : field.getGain()) {
+            assertEquals(1f, gain, 1e-6f);
+        }
+        assertArrayEquals(new float[24], field.getDark(), 0f);
+    }
+
+    @Test
+    public void deadPixelsAreCapped() {
+        float[] flat = new float[8];
+        Arrays.fill(flat, 0.5f);
+        flat[3] = 0f;
+        FlatField field = new FlatField(MONO, null, flat);
+        assertEquals(FlatField.MAX_GAIN, field.getGain()[3], 0f);
+    }
+
+    @Test
+    public void withReplacesOneReference() {
+        float[] dark = new float[8];
+        Arrays.fill(dark, 0.05f);
+        FlatField darkOnly = new FlatField(MONO, dark, null);
+        assertEquals(1f, darkOnly.getGain()[0], 0f);
+        assertEquals(0.15f, darkOnly.apply(0, 0.2f), 1e-6f);
+
+        float[] flat = new float[8];
+        Arrays.fill(flat, 0.5f);
+        FlatField both = darkOnly.with(FlatField.Reference.FLAT, flat);
+        assertSame(dark, both.getReference(FlatField.Reference.DARK));
+        assertSame(flat, both.getReference(FlatField.Reference.FLAT));
+        assertNull(darkOnly.getReference(FlatField.Reference.FLAT));
+    }
+
+    @Test
+    public void rejectsBadReferences() {
+        try {
+            new FlatField(MONO, null, null);
+            fail("no references");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new FlatField(MONO, new float[7], null);
+            fail("wrong size");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            float[] dark = new float[8];
+            Arrays.fill(dark, 0.5f);
+            new FlatField(MONO, dark, new float[8]);
+            fail("flat darker than the dark frame");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void storeRoundTrip() throws IOException {
+        FlatFieldStore store = new FlatFieldStore(new File(mFolder.getRoot(), "calibrations"));
+        assertNull(store.load(RGB));
+        float[] dark = new float[24];
+        float[] flat = new float[24];
+        for (int i = 0; i < 24; i++) {
+            dark[i] = i / 1000f;
+            flat[i] = 0.5f + i / 100f;
+        }
+        store.save(new FlatField(RGB, dark, flat));
+        store.save(new FlatField(MONO, null, new float[] {1, 1, 1, 1, 1, 1, 1, 0.5f}));
+
+        FlatField loaded = store.load(RGB);
+        assertNotNull(loaded);
+        assertEquals(RGB, loaded.getMode());
+        assertArrayEquals(dark, loaded.getReference(FlatField.Reference.DARK), 0f);
+        assertArrayEquals(flat, loaded.getReference(FlatField.Reference.FLAT), 0f);
+        loaded = store.load(MONO);
+        assertNull(loaded.getReference(FlatField.Reference.DARK));
+        assertEquals(0.5f, loaded.getReference(FlatField.Reference.FLAT)[7], 0f);
+        assertNull(store.load(new CameraMode(FrameFormat.RGB888, 4, 2, 0)));
+
+        store.delete(MONO);
+        assertNull(store.load(MONO));
+    }
+
+    @Test
+    public void damagedFilesAreDiscarded() throws IOException {
+        FlatFieldStore store = new FlatFieldStore(mFolder.getRoot());
+        store.save(new FlatField(MONO, new float[8], null));
+        File file = store.getFile(MONO);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(30);
+            raf.write(0x7f);
+        }
+        try {
+            store.load(MONO);
+            fail("loaded a damaged file");
+        } catch (IOException expected) {
+        }
+        assertFalse(file.exists());
+        assertNull(store.load(MONO));
+    }
+
+    @Test
+    public void cpuRendererCorrectsMonoBeforeTheWindow() {
+        float[] dark = new float[8];
+        Arrays.fill(dark, 1000f / 65535f);
+        CpuFilterRenderer renderer = new CpuFilterRenderer(1);
+        renderer.setMonoWindow(new MonoWindow(0, 2000, 1f, MonoWindow.ColorMap.GRAY));
+        renderer.setFlatField(new FlatField(MONO, dark, null));
+        int[] out = new int[8];
+        renderer.render(monoFrame(1000, 3000), CpuFilterRenderer.Filter.NONE, out);
+        assertEquals(0xff000000, out[0]);
+        assertEquals(0xffffffff, out[1]);
+
+        // Other sizes aren't corrected.
+        int[] wide = new int[16];
+        Frame frame = new Frame(null, FrameFormat.MONO12.getFrameSize(8, 2));
+        frame.setGeometry(FrameFormat.MONO12, 8, 2);
+        frame.getBuffer().put(0, (byte) (1000 & 0xff)).put(1, (byte) (1000 >> 8));
+        renderer.render(frame, CpuFilterRenderer.Filter.NONE, wide);
+        assertEquals(0xff808080, wide[0]);
+    }
+
+    /**
+     * Returns a MONO12 frame of the MONO mode, with a at even pixels and b at odd ones.
+     */
+    private static Frame monoFrame(int a, int b) {
+        Frame frame = new Frame(null, FrameFormat.MONO12.getFrameSize(4, 2));
+        frame.setGeometry(FrameFormat.MONO12, 4, 2);
+        for (int i = 0; i < 8; i++) {
+            int value = i % 2 == 0 ? a : b;
+            frame.getBuffer().put(2 * i, (byte) value).put(2 * i + 1, (byte) (value >> 8));
+        }
+        return frame;
+    }
+}
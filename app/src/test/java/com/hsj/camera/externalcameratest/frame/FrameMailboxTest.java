@@ -0,0 +1,137 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class FrameMailboxTest {
+    private static final int STRESS_FRAMES = 500000;
+
+    @Test
+    public void singleSlotKeepsNewest() {
+        FrameMailbox mailbox = new FrameMailbox(1);
+        Frame[] frames = newFrames(3);
+
+        assertNull(mailbox.post(frames[0]));
+        assertSame(frames[0], mailbox.post(frames[1]));
+        assertSame(frames[1], mailbox.post(frames[2]));
+        assertEquals(2, mailbox.getDroppedCount());
+
+        assertSame(frames[2], mailbox.take());
+        assertNull(mailbox.take());
+    }
+
+    @Test
+    public void queueDropsOldestWhenFull() {
+        FrameMailbox mailbox = new FrameMailbox(3);
+        Frame[] frames = newFrames(5);
+
+        for (int i = 0; i < 3; i++) {
+            assertNull(mailbox.post(frames[i]));
+        }
+        assertEquals(3, mailbox.size());
+        assertSame(frames[0], mailbox.post(frames[3]));
+        assertSame(frames[1], mailbox.post(frames[4]));
+
+        assertSame(frames[2], mailbox.take());
+        assertSame(frames[3], mailbox.take());
+        assertSame(frames[4], mailbox.take());
+        assertNull(mailbox.take());
+        assertEquals(2, mailbox.getDroppedCount());
+    }
+
+    @Test
+    public void singleSlotUnderConcurrentStress() throws Exception {
+        stress(new FrameRing(3, 8));
+    }
+
+    @Test
+    public void queueUnderConcurrentStress() throws Exception {
+        stress(new FrameRing(6, 8, 4));
+    }
+
+    /**
+     * Runs a producer and a consumer thread flat out.  Every frame must be either delivered
+     * or dropped exactly once, and the consumer must never see a frame older than one it has
+     * already seen.
+     */
+    private static void stress(final FrameRing ring) throws Exception {
+        final AtomicLong produced = new AtomicLong();
+        final long[] consumerResult = new long[2];     // delivered, out-of-order count
+        final Throwable[] failure = new Throwable[1];
+
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long sequence = 0;
+                while (sequence < STRESS_FRAMES) {
+                    Frame frame = ring.dequeueFree();
+                    if (frame == null) {
+                        Thread.yield();     // consumer is holding everything
+                        continue;
+                    }
+                    frame.setGeometry(FrameFormat.RGB888, 1, 1);
+                    frame.getBuffer().put(0, (byte) sequence);
+                    ring.queueFilled(frame, sequence);
+                    sequence++;
+                }
+                produced.set(sequence);
+            }
+        });
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long last = -1;
+                    long delivered = 0;
+                    long outOfOrder = 0;
+                    while (true) {
+                        Frame frame = ring.acquireFrame();
+                        if (frame == null) {
+                            if (produced.get() != 0 && ring.getQueuedCount() == 0) {
+                                break;
+                            }
+                            continue;
+                        }
+                        long sequence = frame.getTimestampNanos();
+                        if (sequence <= last
+                                || frame.getBuffer().get(0) != (byte) sequence) {
+                            outOfOrder++;
+                        }
+                        last = sequence;
+                        delivered++;
+                        ring.releaseFrame(frame);
+                    }
+                    consumerResult[0] = delivered;
+                    consumerResult[1] = outOfOrder;
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+        assertEquals(0, consumerResult[1]);
+        assertTrue(consumerResult[0] > 0);
+        assertEquals(STRESS_FRAMES, consumerResult[0] + ring.getDroppedCount());
+    }
+
+    private static Frame[] newFrames(int count) {
+        Frame[] frames = new Frame[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = new Frame(null, 1);
+        }
+        return frames;
+    }
+}
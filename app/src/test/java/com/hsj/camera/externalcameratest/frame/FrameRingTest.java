@@ -0,0 +1,135 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class FrameRingTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 32;
+
+    @Test
+    public void framesArriveInOrder() {
+        FrameRing ring = new FrameRing(3, FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT), 3);
+        for (int i = 0; i < 3; i++) {
+            Frame frame = ring.dequeueFree();
+            fill(frame, i);
+            ring.queueFilled(frame, 1000 + i);
+        }
+        assertNull("all buffers are queued", ring.dequeueFree());
+
+        for (int i = 0; i < 3; i++) {
+            Frame frame = ring.acquireFrame();
+            assertEquals(i, frame.getSequence());
+            assertEquals(1000 + i, frame.getTimestampNanos());
+            assertEquals(0, frame.getBuffer().position());
+            assertEquals(i, frame.getBuffer().get(0));
+            ring.releaseFrame(frame);
+        }
+        assertNull(ring.acquireFrame());
+    }
+
+    @Test
+    public void latestFrameWins() {
+        FrameRing ring = new FrameRing(3, FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT));
+        for (int i = 0; i < 10; i++) {
+            Frame frame = ring.dequeueFree();
+            assertNotNull("stale frames are recycled", frame);
+            fill(frame, i);
+            ring.queueFilled(frame, i);
+        }
+        assertEquals(1, ring.getQueuedCount());
+        assertEquals(9, ring.getDroppedCount());
+
+        Frame frame = ring.acquireFrame();
+        assertEquals(9, frame.getSequence());
+        ring.releaseFrame(frame);
+        assertNull(ring.acquireFrame());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseIsRejected() {
+        FrameRing ring = new FrameRing(2, 16);
+        ring.queueFilled(ring.dequeueFree(), 0);
+        Frame frame = ring.acquireFrame();
+        ring.releaseFrame(frame);
+        ring.releaseFrame(frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignFrameIsRejected() {
+        FrameRing ring = new FrameRing(2, 16);
+        FrameRing other = new FrameRing(2, 16);
+        ring.releaseFrame(other.dequeueFree());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oversizedGeometryIsRejected() {
+        FrameRing ring = new FrameRing(2, 16);
+        ring.dequeueFree().setGeometry(FrameFormat.RGB888, 4, 4);
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        assertNoSteadyStateAllocation(new FrameRing(3,
+                FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT)));
+        assertNoSteadyStateAllocation(new FrameRing(4,
+                FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT), 2));
+    }
+
+    private static void assertNoSteadyStateAllocation(FrameRing ring) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;     // allocation counters not available on this JVM
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long thread = Thread.currentThread().getId();
+
+        runProducerConsumer(ring, 10000);      // warm up, let the JIT settle
+        long before = threads.getThreadAllocatedBytes(thread);
+        long sum = runProducerConsumer(ring, 100000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertTrue(sum != 0);
+        // A single allocation per frame would be at least 1.6 MB over 100000 frames; allow
+        // a little slack for the measurement itself.
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    /**
+     * Synthetic producer and consumer on one thread: the consumer only runs every other
+     * frame, so the ring has to drop or queue.  The consumer reads one byte from each frame.
+     */
+    private static long runProducerConsumer(FrameRing ring, int frames) {
+        long sum = 0;
+        for (int i = 0; i < frames; i++) {
+            Frame frame = ring.dequeueFree();
+            assertNotNull(frame);
+            fill(frame, i);
+            ring.queueFilled(frame, i);
+            if ((i & 1) != 0) {
+                Frame out = ring.acquireFrame();
+                sum += out.getBuffer().get(out.getSize() - 1) + out.getSequence();
+                ring.releaseFrame(out);
+            }
+        }
+        Frame out;
+        while ((out = ring.acquireFrame()) != null) {
+            ring.releaseFrame(out);
+        }
+        return sum;
+    }
+
+    private static void fill(Frame frame, int value) {
+        frame.setGeometry(FrameFormat.RGB888, WIDTH, HEIGHT);
+        for (int i = 0; i < frame.getSize(); i++) {
+            frame.getBuffer().put(i, (byte) value);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class FrameStatsTest {
+    @Test
+    public void countsEveryChannel() {
+        ByteBuffer rgba = ByteBuffer.allocate(4 * 4);
+        putPixel(rgba, 255, 0, 0);
+        putPixel(rgba, 0, 255, 0);
+        putPixel(rgba, 0, 0, 255);
+        putPixel(rgba, 255, 255, 255);
+        rgba.flip();
+        FrameStats stats = FrameStats.compute(rgba, 2, 2, 7L);
+        assertEquals(4, stats.getSampleCount());
+        assertEquals(7L, stats.getTimestampNanos());
+        assertEquals(2, stats.getHistogram(FrameStats.Channel.RED)[255]);
+        assertEquals(2, stats.getHistogram(FrameStats.Channel.RED)[0]);
+        assertEquals(127.5f, stats.getMean(FrameStats.Channel.GREEN), 0f);
+        // BT.601 luma of pure red, green, blue and white.
+        int[] luma = stats.getHistogram(FrameStats.Channel.LUMA);
+        assertEquals(1, luma[77]);
+        assertEquals(1, luma[149]);
+        assertEquals(1, luma[29]);
+        assertEquals(1, luma[255]);
+        assertEquals(29, stats.getMin(FrameStats.Channel.LUMA));
+        assertEquals(255, stats.getMax(FrameStats.Channel.LUMA));
+        assertEquals(0, rgba.position());
+    }
+
+    @Test
+    public void matchesAPerPixelReference() {
+        int width = 64;
+        int height = 36;
+        byte[] bytes = new byte[width * height * 4];
+        new Random(3).nextBytes(bytes);
+        FrameStats stats = FrameStats.compute(ByteBuffer.wrap(bytes), width, height, 0L);
+        int[] red = new int[FrameStats.BINS];
+        long sum = 0;
+        int min = 255;
+        int max = 0;
+        for (int i = 0; i < bytes.length; i += 4) {
+            int r = bytes[i] & 0xff;
+            red[r]++;
+            sum += r;
+            min = Math.min(min, r);
+            max = Math.max(max, r);
+        }
+        assertArrayEquals(red, stats.getHistogram(FrameStats.Channel.RED));
+        assertEquals((float) sum / (width * height), stats.getMean(FrameStats.Channel.RED),
+                1e-3f);
+        assertEquals(min, stats.getMin(FrameStats.Channel.RED));
+        assertEquals(max, stats.getMax(FrameStats.Channel.RED));
+    }
+
+    @Test
+    public void percentilesIgnoreOutliers() {
+        // 98 mid-gray pixels, one black and one white.
+        ByteBuffer rgba = ByteBuffer.allocate(100 * 4);
+        putPixel(rgba, 0, 0, 0);
+        for (int i = 0; i < 98; i++) {
+            putPixel(rgba, 128, 128, 128);
+        }
+        putPixel(rgba, 255, 255, 255);
+        rgba.flip();
+        FrameStats stats = FrameStats.compute(rgba, 10, 10, 0L);
+        assertEquals(0, stats.getMin(FrameStats.Channel.LUMA));
+        assertEquals(128, stats.getPercentile(FrameStats.Channel.LUMA, 0.02f));
+        assertEquals(128, stats.getPercentile(FrameStats.Channel.LUMA, 0.98f));
+        assertEquals(255, stats.getPercentile(FrameStats.Channel.LUMA, 1f));
+        assertEquals(0, stats.getPercentile(FrameStats.Channel.LUMA, 0f));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsShortBuffers() {
+        FrameStats.compute(ByteBuffer.allocate(15), 2, 2, 0L);
+    }
+
+    private static void putPixel(ByteBuffer rgba, int r, int g, int b) {
+        rgba.put((byte) r).put((byte) g).put((byte) b).put((byte) 255);
+    }
+}
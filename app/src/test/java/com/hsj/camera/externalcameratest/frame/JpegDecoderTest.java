@@ -0,0 +1,316 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+public class JpegDecoderTest {
+    private static final String JPEG_METADATA = "javax_imageio_jpeg_image_1.0";
+
+    @Test
+    public void colorImageMatchesReferenceDecoder() throws IOException {
+        checkAgainstImageIo(encode(testImage(64, 48), false, 0));
+    }
+
+    @Test
+    public void oddSizeImage() throws IOException {
+        checkAgainstImageIo(encode(testImage(37, 29), false, 0));
+    }
+
+    @Test
+    public void horizontalSubsamplingAndRestarts() throws IOException {
+        // 4:2:2 with a restart marker every three MCUs, like many UVC cameras send.
+        checkAgainstImageIo(encode(testImage(80, 40), true, 3));
+    }
+
+    @Test
+    public void grayscaleGetsNeutralChroma() throws IOException {
+        BufferedImage image = new BufferedImage(24, 16, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 24; x++) {
+                int v = 40 + 6 * x + 3 * y;
+                image.getRaster().setSample(x, y, 0, v);
+            }
+        }
+        byte[] jpeg = encode(image, false, 0);
+        Frame frame = decode(jpeg, 24, 16);
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jpeg));
+        ByteBuffer buf = frame.getBuffer();
+        for (int y = 0; y < 16; y++) {
+            for (int x = 0; x < 24; x++) {
+                int expected = reference.getRaster().getSample(x, y, 0);
+                assertNear("Y at " + x + "," + y, expected, buf.get(y * 24 + x) & 0xff, 2);
+            }
+        }
+        for (int i = 24 * 16; i < FrameFormat.I420.getFrameSize(24, 16); i++) {
+            assertEquals(128, buf.get(i) & 0xff);
+        }
+    }
+
+    @Test
+    public void missingHuffmanTablesUseStandardOnes() throws IOException {
+        // ImageIO writes the Annex K tables, so stripping them must not change anything.
+        byte[] jpeg = encode(testImage(32, 32), false, 0);
+        byte[] stripped = stripHuffmanTables(jpeg);
+        assertTrue("DHT removed", stripped.length < jpeg.length);
+
+        Frame withTables = decode(jpeg, 32, 32);
+        Frame withoutTables = decode(stripped, 32, 32);
+        assertEquals(withTables.getBuffer(), withoutTables.getBuffer());
+    }
+
+    @Test
+    public void leavesSourcePositionAlone() throws IOException {
+        byte[] jpeg = encode(testImage(16, 16), false, 0);
+        ByteBuffer src = ByteBuffer.allocate(jpeg.length + 10);
+        src.position(10);
+        src.put(jpeg);
+        src.position(10);
+        Frame frame = newFrame(16, 16);
+        new JpegDecoder().decode(src, frame);
+        assertEquals(10, src.position());
+        assertEquals(FrameFormat.I420, frame.getFormat());
+        assertEquals(16, frame.getWidth());
+    }
+
+    @Test
+    public void malformedDataIsRejected() throws IOException {
+        byte[] jpeg = encode(testImage(16, 16), false, 0);
+        expectRejected(Arrays.copyOf(jpeg, 20));
+        expectRejected(new byte[] { 1, 2, 3, 4 });
+
+        // Mark it progressive.
+        byte[] progressive = jpeg.clone();
+        for (int i = 0; i < progressive.length - 1; i++) {
+            if ((progressive[i] & 0xff) == 0xff && (progressive[i + 1] & 0xff) == 0xc0) {
+                progressive[i + 1] = (byte) 0xc2;
+                break;
+            }
+        }
+        expectRejected(progressive);
+    }
+
+    @Test
+    public void imageLargerThanFrameIsRejected() throws IOException {
+        FrameRing ring = new FrameRing(2, FrameFormat.I420.getFrameSize(8, 8));
+        try {
+            new JpegDecoder().decode(ByteBuffer.wrap(encode(testImage(16, 16), false, 0)),
+                    ring.dequeueFree());
+            fail("decoded into a frame that's too small");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void overfullHuffmanTableIsRejected() throws IOException {
+        expectRejected(overfillHuffmanTable(encode(testImage(16, 16), false, 0)));
+    }
+
+    /**
+     * Decodes with both decoders and compares the luma and chroma planes.  Luma is exact up
+     * to rounding (the Y row of the inverse transform has no chroma terms); chroma differs
+     * more because ImageIO upsamples with a filter.
+     */
+    private static void checkAgainstImageIo(byte[] jpeg) throws IOException {
+        BufferedImage reference = ImageIO.read(new ByteArrayInputStream(jpeg));
+        int width = reference.getWidth();
+        int height = reference.getHeight();
+        Frame frame = decode(jpeg, width, height);
+        ByteBuffer buf = frame.getBuffer();
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = reference.getRGB(x, y);
+                assertNear("Y at " + x + "," + y, luma(rgb), buf.get(y * width + x) & 0xff, 2);
+            }
+        }
+
+        int chromaWidth = FrameFormat.getChromaWidth(width);
+        int chromaHeight = FrameFormat.getChromaHeight(height);
+        int uBase = width * height;
+        int vBase = uBase + chromaWidth * chromaHeight;
+        for (int cy = 0; cy < chromaHeight; cy++) {
+            for (int cx = 0; cx < chromaWidth; cx++) {
+                int rgb = reference.getRGB(Math.min(2 * cx, width - 1),
+                        Math.min(2 * cy, height - 1));
+                int u = buf.get(uBase + cy * chromaWidth + cx) & 0xff;
+                int v = buf.get(vBase + cy * chromaWidth + cx) & 0xff;
+                assertNear("U at " + cx + "," + cy, cb(rgb), u, 8);
+                assertNear("V at " + cx + "," + cy, cr(rgb), v, 8);
+            }
+        }
+    }
+
+    private static Frame decode(byte[] jpeg, int width, int height) {
+        Frame frame = newFrame(width, height);
+        JpegDecoder decoder = new JpegDecoder();
+        decoder.decode(ByteBuffer.wrap(jpeg), frame);
+        assertEquals(width, decoder.getWidth());
+        assertEquals(height, decoder.getHeight());
+        assertEquals(width, frame.getWidth());
+        assertEquals(height, frame.getHeight());
+        assertEquals(0, frame.getBuffer().position());
+        return frame;
+    }
+
+    private static Frame newFrame(int width, int height) {
+        return new FrameRing(2, FrameFormat.I420.getFrameSize(width, height)).dequeueFree();
+    }
+
+    private static void expectRejected(byte[] data) {
+        try {
+            new JpegDecoder().decode(ByteBuffer.wrap(data), newFrame(16, 16));
+            fail("accepted malformed data");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Smooth, unsaturated colors, so neither decoder clamps and the chroma filters agree.
+     */
+    static BufferedImage testImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 60 + 120 * x / width;
+                int g = 80 + 100 * y / height;
+                int b = 160 - 80 * (x + y) / (width + height);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Encodes with ImageIO at high quality.
+     *
+     * @param subsample422 Use 2x1 luma sampling instead of ImageIO's default 2x2.
+     * @param restartInterval MCUs between restart markers, or 0 for none.
+     */
+    static byte[] encode(BufferedImage image, boolean subsample422, int restartInterval)
+            throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.95f);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(
+                new ImageTypeSpecifier(image), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA);
+        if (subsample422) {
+            IIOMetadataNode luma =
+                    (IIOMetadataNode) root.getElementsByTagName("componentSpec").item(0);
+            luma.setAttribute("HsamplingFactor", "2");
+            luma.setAttribute("VsamplingFactor", "1");
+        }
+        if (restartInterval > 0) {
+            IIOMetadataNode markers =
+                    (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", Integer.toString(restartInterval));
+            markers.insertBefore(dri, markers.getFirstChild());
+        }
+        metadata.setFromTree(JPEG_METADATA, root);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Removes the DHT segments, as MJPEG cameras do.
+     */
+    private static byte[] stripHuffmanTables(byte[] jpeg) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        int pos = 2;
+        while (true) {
+            int marker = jpeg[pos + 1] & 0xff;
+            if (marker == 0xda) {
+                out.write(jpeg, pos, jpeg.length - pos);
+                return out.toByteArray();
+            }
+            int length = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            if (marker != 0xc4) {
+                out.write(jpeg, pos, length + 2);
+            }
+            pos += length + 2;
+        }
+    }
+
+    /**
+     * Rewrites the first DHT segment to claim three 1-bit codes, more than fit, keeping the
+     * total code count so the rest of the segment still parses.
+     */
+    static byte[] overfillHuffmanTable(byte[] jpeg) {
+        byte[] data = jpeg.clone();
+        int pos = 2;
+        while ((data[pos + 1] & 0xff) != 0xc4) {
+            pos += (((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff)) + 2;
+        }
+        int bits = pos + 5;     // after the marker, length and table class/index
+        int delta = 3 - data[bits];
+        for (int i = 1; i < 16; i++) {
+            if (data[bits + i] >= delta) {
+                data[bits + i] -= delta;
+                data[bits] = 3;
+                return data;
+            }
+        }
+        throw new AssertionError("no code count to take from");
+    }
+
+    // JFIF conversions.
+    private static int luma(int rgb) {
+        return (int) Math.round(0.299 * red(rgb) + 0.587 * green(rgb) + 0.114 * blue(rgb));
+    }
+
+    private static int cb(int rgb) {
+        return (int) Math.round(128 - 0.168736 * red(rgb) - 0.331264 * green(rgb) +
+                0.5 * blue(rgb));
+    }
+
+    private static int cr(int rgb) {
+        return (int) Math.round(128 + 0.5 * red(rgb) - 0.418688 * green(rgb) -
+                0.081312 * blue(rgb));
+    }
+
+    private static int red(int rgb) {
+        return (rgb >> 16) & 0xff;
+    }
+
+    private static int green(int rgb) {
+        return (rgb >> 8) & 0xff;
+    }
+
+    private static int blue(int rgb) {
+        return rgb & 0xff;
+    }
+
+    private static void assertNear(String what, int expected, int actual, int tolerance) {
+        assertTrue(what + ": expected " + expected + ", got " + actual,
+                Math.abs(expected - actual) <= tolerance);
+    }
+}
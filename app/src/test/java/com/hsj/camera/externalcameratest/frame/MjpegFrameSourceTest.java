@@ -0,0 +1,139 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class MjpegFrameSourceTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 32;
+    private static final int FRAME_COUNT = 40;
+
+    @Test
+    public void framesArePublishedInOrder() throws Exception {
+        // Each frame is a flat gray whose level encodes its index.
+        ByteBuffer[] payloads = new ByteBuffer[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            payloads[i] = ByteBuffer.wrap(JpegDecoderTest.encode(gray(level(i)), false, 0));
+        }
+
+        MjpegFrameSource source = new MjpegFrameSource(4, 6, WIDTH, HEIGHT, 10);
+        try {
+            int next = 0;
+            long lastTimestamp = -1;
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (lastTimestamp < FRAME_COUNT - 1) {
+                assertTrue("timed out", System.nanoTime() < deadline);
+                if (next < FRAME_COUNT && source.submit(payloads[next], next)) {
+                    assertEquals("payload position untouched", 0, payloads[next].position());
+                    next++;
+                }
+                Frame frame = source.acquireFrame();
+                if (frame == null) {
+                    Thread.yield();
+                    continue;
+                }
+                // Frames may be dropped (latest wins) but never reordered.
+                assertTrue(frame.getTimestampNanos() > lastTimestamp);
+                lastTimestamp = frame.getTimestampNanos();
+                assertEquals(FrameFormat.I420, frame.getFormat());
+                assertEquals(WIDTH, frame.getWidth());
+                int y = frame.getBuffer().get(WIDTH * HEIGHT / 2) & 0xff;
+                assertTrue("frame " + lastTimestamp + " has level " + y,
+                        Math.abs(level((int) lastTimestamp) - y) <= 1);
+                source.releaseFrame(frame);
+            }
+            assertEquals(0, source.getFailedCount());
+            assertTrue(source.getPeakInFlightCount() <= 6);
+            assertEquals("no frames stuck in flight", 0, waitForIdle(source));
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void corruptPayloadDoesNotStallLaterFrames() throws Exception {
+        MjpegFrameSource source = new MjpegFrameSource(2, 4, WIDTH, HEIGHT, 10);
+        try {
+            assertTrue(source.submit(ByteBuffer.wrap(new byte[] { (byte) 0xff, (byte) 0xd8, 0 }),
+                    0));
+            assertTrue(source.submit(ByteBuffer.wrap(
+                    JpegDecoderTest.encode(gray(100), false, 0)), 1));
+            Frame frame = null;
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (frame == null && System.nanoTime() < deadline) {
+                frame = source.acquireFrame();
+                Thread.yield();
+            }
+            assertEquals(1, frame.getTimestampNanos());
+            source.releaseFrame(frame);
+            assertEquals(1, source.getFailedCount());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void overfullHuffmanTableDoesNotKillTheWorkers() throws Exception {
+        // One worker, so a dead worker would leave nothing to decode the later frames.
+        MjpegFrameSource source = new MjpegFrameSource(1, 2, WIDTH, HEIGHT, 10);
+        try {
+            byte[] good = JpegDecoderTest.encode(gray(100), false, 0);
+            assertTrue(source.submit(ByteBuffer.wrap(
+                    JpegDecoderTest.overfillHuffmanTable(good)), 0));
+            for (int i = 1; i <= 4; i++) {
+                assertEquals(0, waitForIdle(source));
+                assertTrue(source.submit(ByteBuffer.wrap(good), i));
+                Frame frame = null;
+                long deadline = System.nanoTime() + 5_000_000_000L;
+                while (frame == null && System.nanoTime() < deadline) {
+                    frame = source.acquireFrame();
+                    Thread.yield();
+                }
+                assertEquals(i, frame.getTimestampNanos());
+                source.releaseFrame(frame);
+            }
+            assertEquals(1, source.getFailedCount());
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test
+    public void fullPoolRejectsPayloads() throws IOException {
+        MjpegFrameSource source = new MjpegFrameSource(1, 1, WIDTH, HEIGHT, 10);
+        source.release();   // Nothing will be decoded, so the only slot stays taken.
+        ByteBuffer jpeg = ByteBuffer.wrap(JpegDecoderTest.encode(gray(50), false, 0));
+        assertTrue(source.submit(jpeg, 0));
+        assertFalse(source.submit(jpeg, 1));
+        assertEquals(1, source.getRejectedCount());
+        assertEquals(1, source.getInFlightCount());
+    }
+
+    private static int level(int index) {
+        return 20 + 5 * index;
+    }
+
+    private static BufferedImage gray(int level) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, level * 0x010101);
+            }
+        }
+        return image;
+    }
+
+    private static int waitForIdle(MjpegFrameSource source) throws InterruptedException {
+        for (int i = 0; i < 100 && source.getInFlightCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        return source.getInFlightCount();
+    }
+}
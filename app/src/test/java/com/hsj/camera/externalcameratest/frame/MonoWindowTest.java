@@ -0,0 +1,133 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class MonoWindowTest {
+    @Test
+    public void stretchesTheWindow() {
+        MonoWindow window = new MonoWindow(100, 355, 1f, MonoWindow.ColorMap.GRAY);
+        assertEquals(0xff000000, window.apply(100));
+        assertEquals(0xff000000, window.apply(50));
+        assertEquals(0xffffffff, window.apply(355));
+        assertEquals(0xffffffff, window.apply(0xffff));
+        assertEquals(0xff808080, window.apply(228));
+    }
+
+    @Test
+    public void gammaBrightensTheLowEnd() {
+        MonoWindow window = new MonoWindow(0, 1000, 2f, MonoWindow.ColorMap.GRAY);
+        assertEquals(0.5f, window.map(250), 1e-6f);
+        assertEquals(0.25f, window.withGamma(1f).map(250), 0f);
+    }
+
+    @Test
+    public void hiLoMarksClippedPixels() {
+        MonoWindow window = new MonoWindow(1000, 3000, 1f, MonoWindow.ColorMap.HILO);
+        assertEquals(0xff0000ff, window.apply(900));
+        assertEquals(0xffff0000, window.apply(3000));
+        int mid = window.apply(2000);
+        assertEquals(mid & 0xff, mid >> 8 & 0xff);
+        assertEquals(mid & 0xff, mid >> 16 & 0xff);
+    }
+
+    @Test
+    public void levelIsTheCenter() {
+        MonoWindow window = MonoWindow.fromLevel(2000, 1000, 1f, MonoWindow.ColorMap.JET);
+        assertEquals(1500, window.getLow());
+        assertEquals(2500, window.getHigh());
+        assertEquals(4095, MonoWindow.full(FrameFormat.MONO12).getHigh());
+    }
+
+    @Test
+    public void histogramBinsTheRawValues() {
+        ByteBuffer data = frame(4, 1, 0, 16, 31, 0xffff);
+        MonoHistogram histogram = MonoHistogram.compute(data, FrameFormat.MONO16, 4, 1, 1);
+        assertEquals(16, histogram.getBinWidth());
+        assertEquals(MonoHistogram.BINS, histogram.getCounts().length);
+        assertEquals(1, histogram.getCounts()[0]);
+        assertEquals(2, histogram.getCounts()[1]);
+        assertEquals(1, histogram.getCounts()[4095]);
+        assertEquals(16, histogram.getPercentileLow(0.5f));
+        assertEquals(31, histogram.getPercentileHigh(0.5f));
+        assertEquals(0, data.position());
+
+        // Stray high bits count as the top value.
+        histogram = MonoHistogram.compute(frame(2, 1, 5, 0x0fff), FrameFormat.MONO10, 2, 1, 1);
+        assertEquals(1, histogram.getBinWidth());
+        assertEquals(1024, histogram.getCounts().length);
+        assertEquals(1, histogram.getCounts()[1023]);
+    }
+
+    @Test
+    public void histogramIsRefilledInPlace() {
+        MonoHistogram histogram = new MonoHistogram();
+        histogram.count(frame(2, 1, 5, 7), FrameFormat.MONO12, 2, 1, 1);
+        int[] counts = histogram.getCounts();
+        MonoHistogram copy = histogram.copy();
+
+        histogram.count(frame(2, 1, 9, 9), FrameFormat.MONO12, 2, 1, 1);
+        assertSame(counts, histogram.getCounts());
+        assertEquals(0, counts[5]);
+        assertEquals(2, counts[9]);
+        assertEquals(2, histogram.getSampleCount());
+        assertEquals(1, copy.getCounts()[5]);
+        assertEquals(0, copy.getCounts()[9]);
+
+        // Another depth, another number of bins.
+        histogram.count(frame(2, 1, 5, 7), FrameFormat.MONO10, 2, 1, 1);
+        assertEquals(1024, histogram.getCounts().length);
+    }
+
+    @Test
+    public void fitClipsOutliers() {
+        int width = 100;
+        int height = 100;
+        int[] values = new int[width * height];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 500 + i % 1001;
+        }
+        values[0] = 0;          // dead pixels
+        values[2] = 0;
+        values[1] = 4095;       // hot pixel
+        MonoHistogram histogram = MonoHistogram.compute(frame(width, height, values),
+                FrameFormat.MONO12, width, height, 1);
+        MonoWindow full = MonoWindow.full(FrameFormat.MONO12).withGamma(1.5f);
+        MonoWindow fitted = full.fit(histogram, 0.001f);
+        assertEquals(500, fitted.getLow());
+        assertEquals(1500, fitted.getHigh());
+        assertEquals(1.5f, fitted.getGamma(), 0f);
+        assertSame(fitted, fitted.fit(histogram, 0.001f));
+        assertEquals(0, full.fit(histogram, 0f).getLow());
+        assertEquals(4095, full.fit(histogram, 0f).getHigh());
+    }
+
+    @Test
+    public void cpuRendererAppliesTheWindow() {
+        ByteBuffer data = frame(2, 1, 1000, 3000);
+        CpuFilterRenderer renderer = new CpuFilterRenderer(1);
+        int[] out = new int[2];
+        renderer.render(data, FrameFormat.MONO12, 2, 1, CpuFilterRenderer.Filter.NONE, out);
+        MonoWindow full = MonoWindow.full(FrameFormat.MONO12);
+        assertEquals(full.apply(1000), out[0]);
+        assertEquals(full.apply(3000), out[1]);
+        renderer.setMonoWindow(new MonoWindow(1000, 3000, 1f, MonoWindow.ColorMap.HOT));
+        renderer.render(data, FrameFormat.MONO12, 2, 1, CpuFilterRenderer.Filter.NONE, out);
+        assertEquals(0xff000000, out[0]);
+        assertEquals(0xffffffff, out[1]);
+    }
+
+    private static ByteBuffer frame(int width, int height, int... values) {
+        ByteBuffer data = ByteBuffer.allocate(width * height * 2);
+        for (int value : values) {
+            data.put((byte) value);
+            data.put((byte) (value >> 8));
+        }
+        data.clear();
+        return data;
+    }
+}
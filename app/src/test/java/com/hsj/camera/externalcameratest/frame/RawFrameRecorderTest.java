@@ -0,0 +1,199 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class RawFrameRecorderTest {
+    private static final int WIDTH = 24;
+    private static final int HEIGHT = 10;
+    private static final long INTERVAL = 33_333_333L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void keepsTheNewestFrames() throws IOException {
+        File file = mFolder.newFile();
+        record(file, 4, 7);
+
+        RawFrameReplay replay = new RawFrameReplay(file, RawFrameReplay.Pacing.UNTHROTTLED,
+                false);
+        assertEquals(4, replay.getFrameCount());
+        for (int i = 3; i < 7; i++) {
+            Frame frame = replay.acquireFrame();
+            assertNotNull(frame);
+            assertEquals(FrameFormat.RGB888, frame.getFormat());
+            assertEquals(WIDTH, frame.getWidth());
+            assertEquals(HEIGHT, frame.getHeight());
+            assertEquals(i * INTERVAL, frame.getTimestampNanos());
+            assertEquals(i - 3, frame.getSequence());
+            checkPattern(frame, i);
+            replay.releaseFrame(frame);
+        }
+        assertNull(replay.acquireFrame());
+        assertTrue(replay.isFinished());
+        replay.close();
+    }
+
+    @Test
+    public void shortRecordingAndMixedFormats() throws IOException {
+        File file = mFolder.newFile();
+        RawFrameRecorder recorder = new RawFrameRecorder(file, 8,
+                FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT));
+        Frame frame = newFrame(FrameFormat.BAYER_GRBG, WIDTH, HEIGHT, 1);
+        assertTrue(recorder.record(frame));
+        frame = newFrame(FrameFormat.I420, 8, 6, 2);
+        assertTrue(recorder.record(frame));
+        assertFalse("too big", recorder.record(newFrame(FrameFormat.RGB888, WIDTH, 20, 3)));
+        assertEquals(1, recorder.getOversizeCount());
+        recorder.close();
+
+        RawFrameReplay replay = new RawFrameReplay(file, RawFrameReplay.Pacing.UNTHROTTLED,
+                false);
+        assertEquals(2, replay.getFrameCount());
+        Frame first = replay.acquireFrame();
+        assertEquals(FrameFormat.BAYER_GRBG, first.getFormat());
+        checkPattern(first, 1);
+        replay.releaseFrame(first);
+        Frame second = replay.acquireFrame();
+        assertEquals(FrameFormat.I420, second.getFormat());
+        assertEquals(8, second.getWidth());
+        checkPattern(second, 2);
+        replay.releaseFrame(second);
+        replay.close();
+    }
+
+    @Test
+    public void tornFrameIsSkipped() throws IOException {
+        File file = mFolder.newFile();
+        record(file, 4, 3);
+        // Simulate a crash while frame 2 was being written.
+        long slot = RawFrameRecorder.FILE_HEADER_SIZE + 2 * RawFrameRecorder.getSlotSize(
+                FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(slot + RawFrameRecorder.OFFSET_SEQUENCE);
+            raf.write(new byte[] { -1, -1, -1, -1, -1, -1, -1, -1 });
+        }
+
+        RawFrameReplay replay = new RawFrameReplay(file, RawFrameReplay.Pacing.UNTHROTTLED,
+                false);
+        assertEquals(2, replay.getFrameCount());
+        replay.close();
+    }
+
+    @Test
+    public void nativePacingFollowsTimestamps() throws IOException {
+        File file = mFolder.newFile();
+        record(file, 4, 4);
+        RawFrameReplay replay = new RawFrameReplay(file, RawFrameReplay.Pacing.NATIVE, true);
+
+        long start = 1000;
+        Frame frame = replay.acquireFrame(start);
+        assertEquals(0, frame.getTimestampNanos());
+        replay.releaseFrame(frame);
+        assertNull("not due yet", replay.acquireFrame(start + INTERVAL - 1));
+        frame = replay.acquireFrame(start + INTERVAL);
+        assertEquals(INTERVAL, frame.getTimestampNanos());
+        replay.releaseFrame(frame);
+
+        // Fall behind: frame 2 is skipped in favor of frame 3.
+        frame = replay.acquireFrame(start + 3 * INTERVAL + 5);
+        assertEquals(3 * INTERVAL, frame.getTimestampNanos());
+        assertEquals(1, replay.getSkippedCount());
+        replay.releaseFrame(frame);
+
+        // The loop continues at the recorded cadence, with increasing timestamps.
+        assertNull(replay.acquireFrame(start + 4 * INTERVAL - 1));
+        frame = replay.acquireFrame(start + 4 * INTERVAL);
+        assertEquals(4 * INTERVAL, frame.getTimestampNanos());
+        checkPattern(frame, 0);
+        replay.releaseFrame(frame);
+        assertFalse(replay.isFinished());
+        replay.close();
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = mFolder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(new byte[128]);
+        }
+        try {
+            new RawFrameReplay(file, RawFrameReplay.Pacing.UNTHROTTLED, false);
+            fail("accepted a file without the magic number");
+        } catch (IOException expected) {
+        }
+
+        // A recorder that never recorded anything.
+        new RawFrameRecorder(file, 2, 16).close();
+        try {
+            new RawFrameReplay(file, RawFrameReplay.Pacing.UNTHROTTLED, false);
+            fail("accepted an empty recording");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseIsRejected() throws IOException {
+        File file = mFolder.newFile();
+        record(file, 2, 2);
+        RawFrameReplay replay = new RawFrameReplay(file, RawFrameReplay.Pacing.UNTHROTTLED,
+                true);
+        Frame frame = replay.acquireFrame();
+        replay.releaseFrame(frame);
+        replay.releaseFrame(frame);
+    }
+
+    /**
+     * Records count RGB frames, one every INTERVAL, into a ring of slots frames.
+     */
+    private static void record(File file, int slots, int count) throws IOException {
+        RawFrameRecorder recorder = new RawFrameRecorder(file, slots,
+                FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT));
+        FrameRing ring = new FrameRing(2, FrameFormat.RGB888.getFrameSize(WIDTH, HEIGHT));
+        for (int i = 0; i < count; i++) {
+            Frame frame = ring.dequeueFree();
+            frame.setGeometry(FrameFormat.RGB888, WIDTH, HEIGHT);
+            fillPattern(frame, i);
+            ring.queueFilled(frame, i * INTERVAL);
+            frame = ring.acquireFrame();
+            assertTrue(recorder.record(frame));
+            assertEquals("recording leaves the frame alone", 0, frame.getBuffer().position());
+            ring.releaseFrame(frame);
+        }
+        assertEquals(count, recorder.getRecordedCount());
+        recorder.close();
+    }
+
+    private static Frame newFrame(FrameFormat format, int width, int height, int seed) {
+        Frame frame = new Frame(null, format.getFrameSize(width, height));
+        frame.setGeometry(format, width, height);
+        fillPattern(frame, seed);
+        return frame;
+    }
+
+    private static void fillPattern(Frame frame, int seed) {
+        for (int i = 0; i < frame.getSize(); i++) {
+            frame.getBuffer().put(i, (byte) (i * 3 + seed));
+        }
+    }
+
+    private static void checkPattern(Frame frame, int seed) {
+        assertEquals(frame.getSize(), frame.getBuffer().remaining());
+        for (int i = 0; i < frame.getSize(); i++) {
+            assertEquals((byte) (i * 3 + seed), frame.getBuffer().get(i));
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+public class TestPatternGeneratorTest {
+    @Test
+    public void timestampSurvivesTheRoundTrip() {
+        for (int[] size : new int[][] { { 64, 2 }, { 1000, 37 }, { 1920, 1080 } }) {
+            Frame frame = newFrame(FrameFormat.RGB888, size[0], size[1]);
+            TestPatternGenerator generator = new TestPatternGenerator(4);
+            for (long timestamp : new long[] { 0, 1, 123_456_789_012L, -1, Long.MIN_VALUE }) {
+                generator.generate(frame, TestPatternGenerator.Pattern.TIMESTAMP,
+                        FrameFormat.RGB888, size[0], size[1], 0, timestamp);
+                assertEquals(timestamp, TestPatternGenerator.readTimestamp(frame.getBuffer(),
+                        size[0], size[1]));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void timestampNeedsACellPerBit() {
+        new TestPatternGenerator(4).generate(newFrame(FrameFormat.RGB888, 63, 8),
+                TestPatternGenerator.Pattern.TIMESTAMP, FrameFormat.RGB888, 63, 8, 0, 0);
+    }
+
+    @Test
+    public void yuvMatchesRgb() {
+        // Odd sizes exercise the rounded-up chroma planes.
+        int width = 45;
+        int height = 31;
+        int[] expected = render(FrameFormat.RGB888, width, height);
+        for (FrameFormat format : new FrameFormat[] {
+                FrameFormat.NV12, FrameFormat.I420, FrameFormat.YUYV }) {
+            Frame frame = newFrame(format, width, height);
+            new TestPatternGenerator(4).generate(frame, TestPatternGenerator.Pattern.GRADIENT,
+                    format, width, height, 7, 0);
+            int[] actual = new int[width * height];
+            new YuvConverter(YuvColorMatrix.BT601).convert(frame.getBuffer(), format, width,
+                    height, actual);
+            for (int i = 0; i < actual.length; i++) {
+                // Chroma is shared between neighbors, and the ramps are gentle.
+                assertClose(format + " pixel " + i, expected[i], actual[i], 12);
+            }
+        }
+    }
+
+    @Test
+    public void bayerKeepsOneChannelPerSite() {
+        int width = 16;
+        int height = 6;
+        int[] expected = render(FrameFormat.RGB888, width, height);
+        Frame frame = newFrame(FrameFormat.BAYER_GBRG, width, height);
+        new TestPatternGenerator(4).generate(frame, TestPatternGenerator.Pattern.GRADIENT,
+                FrameFormat.BAYER_GBRG, width, height, 7, 0);
+        ByteBuffer buf = frame.getBuffer();
+        // G B / R G
+        assertEquals(expected[0] >> 8 & 0xff, buf.get(0) & 0xff);
+        assertEquals(expected[1] & 0xff, buf.get(1) & 0xff);
+        assertEquals(expected[width] >> 16 & 0xff, buf.get(width) & 0xff);
+        assertEquals(expected[width + 1] >> 8 & 0xff, buf.get(width + 1) & 0xff);
+    }
+
+    @Test
+    public void parallelOutputMatchesSerial() {
+        int width = 333;
+        int height = 77;
+        ForkJoinPool single = new ForkJoinPool(1);
+        ForkJoinPool many = new ForkJoinPool(8);
+        try {
+            for (TestPatternGenerator.Pattern pattern : TestPatternGenerator.Pattern.values()) {
+                for (FrameFormat format : FrameFormat.values()) {
+                    Frame a = newFrame(format, width, height);
+                    Frame b = newFrame(format, width, height);
+                    new TestPatternGenerator(single, 4).generate(a, pattern, format, width,
+                            height, 3, 99);
+                    new TestPatternGenerator(many, 4).generate(b, pattern, format, width,
+                            height, 3, 99);
+                    assertEquals(pattern + " " + format, a.getBuffer(), b.getBuffer());
+                }
+            }
+        } finally {
+            single.shutdown();
+            many.shutdown();
+        }
+    }
+
+    @Test
+    public void everyPatternMoves() {
+        int width = 128;
+        int height = 64;
+        TestPatternGenerator generator = new TestPatternGenerator(4);
+        for (TestPatternGenerator.Pattern pattern : TestPatternGenerator.Pattern.values()) {
+            Frame a = newFrame(FrameFormat.RGB888, width, height);
+            Frame b = newFrame(FrameFormat.RGB888, width, height);
+            generator.generate(a, pattern, FrameFormat.RGB888, width, height, 10, 1000);
+            generator.generate(b, pattern, FrameFormat.RGB888, width, height, 11, 1033);
+            assertFalse(pattern.toString(), a.getBuffer().equals(b.getBuffer()));
+        }
+    }
+
+    @Test
+    public void sourceDeliversFrames() throws InterruptedException {
+        TestPatternSource source = new TestPatternSource(FrameFormat.RGB888, 64, 16, 1000, 3);
+        source.setPattern(TestPatternGenerator.Pattern.TIMESTAMP);
+        assertTrue(source.produceFrame(42));
+        Frame frame = source.acquireFrame();
+        assertEquals(42, frame.getTimestampNanos());
+        assertEquals(42, TestPatternGenerator.readTimestamp(frame.getBuffer(), 64, 16));
+        source.releaseFrame(frame);
+        assertNull(source.acquireFrame());
+
+        // The producer thread, at 1000 fps.
+        source.start();
+        Frame latest = null;
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (latest == null || latest.getSequence() < 10) {
+            if (latest != null) {
+                source.releaseFrame(latest);
+            }
+            assertTrue("producer stalled", System.nanoTime() < deadline);
+            Thread.sleep(1);
+            latest = source.acquireFrame();
+        }
+        source.releaseFrame(latest);
+        source.stop();
+        assertNotNull(source.getGenerateStats());
+    }
+
+    private static int[] render(FrameFormat format, int width, int height) {
+        Frame frame = newFrame(format, width, height);
+        new TestPatternGenerator(4).generate(frame, TestPatternGenerator.Pattern.GRADIENT,
+                format, width, height, 7, 0);
+        ByteBuffer buf = frame.getBuffer();
+        int[] rgb = new int[width * height];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = (buf.get(3 * i) & 0xff) << 16 | (buf.get(3 * i + 1) & 0xff) << 8 |
+                    (buf.get(3 * i + 2) & 0xff);
+        }
+        return rgb;
+    }
+
+    private static void assertClose(String message, int expected, int actual, int tolerance) {
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int e = expected >> shift & 0xff;
+            int a = actual >> shift & 0xff;
+            assertTrue(message + ": expected " + Integer.toHexString(expected) + " got " +
+                    Integer.toHexString(actual), Math.abs(e - a) <= tolerance);
+        }
+    }
+
+    private static Frame newFrame(FrameFormat format, int width, int height) {
+        return new Frame(null, format.getFrameSize(width, height));
+    }
+}
@@ -0,0 +1,91 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class TileHasherTest {
+    private static final int TILE = 16;
+
+    @Test
+    public void staticFrameHasNoDirtyTiles() {
+        // 50x20 leaves a partial last column and row.
+        Frame frame = newFrame(FrameFormat.RGB888, 50, 20);
+        fillNoise(frame, 1);
+        TileHasher hasher = new TileHasher(TILE, 4);
+
+        assertEquals("first frame is all dirty", 4 * 2, hasher.update(frame));
+        assertEquals(4, hasher.getColumnCount());
+        assertEquals(2, hasher.getRowCount());
+        assertEquals(0, hasher.update(frame));
+        for (int row = 0; row < 2; row++) {
+            for (int column = 0; column < 4; column++) {
+                assertFalse(hasher.isDirty(column, row));
+            }
+        }
+    }
+
+    @Test
+    public void changedPixelsMarkTheirTiles() {
+        Frame frame = newFrame(FrameFormat.RGB888, 50, 20);
+        fillNoise(frame, 2);
+        TileHasher hasher = new TileHasher(TILE, 4);
+        hasher.update(frame);
+
+        // One byte of pixel (17, 3) and the last pixel of the frame, in the partial tile.
+        poke(frame, (3 * 50 + 17) * 3 + 2);
+        poke(frame, frame.getSize() - 1);
+        assertEquals(2, hasher.update(frame));
+        assertTrue(hasher.isDirty(1, 0));
+        assertTrue(hasher.isDirty(3, 1));
+        assertEquals(2, hasher.getDirtyTileCount());
+
+        assertEquals(0, hasher.update(frame));
+    }
+
+    @Test
+    public void resetAndGeometryChangeDirtyEverything() {
+        Frame frame = newFrame(FrameFormat.BAYER_RGGB, 64, 32);
+        fillNoise(frame, 3);
+        TileHasher hasher = new TileHasher(TILE, 4);
+        hasher.update(frame);
+        hasher.reset();
+        assertEquals(8, hasher.update(frame));
+
+        // Same bytes, different layout.
+        frame.setGeometry(FrameFormat.BAYER_RGGB, 32, 64);
+        fillNoise(frame, 3);
+        assertEquals(8, hasher.update(frame));
+        assertEquals(2, hasher.getColumnCount());
+        assertEquals(0, hasher.update(frame));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void planarFormatsAreRejected() {
+        new TileHasher(TILE, 4).update(newFrame(FrameFormat.NV12, 32, 32));
+    }
+
+    private static void poke(Frame frame, int index) {
+        ByteBuffer buf = frame.getBuffer();
+        buf.put(index, (byte) (buf.get(index) ^ 1));
+    }
+
+    private static void fillNoise(Frame frame, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer buf = frame.getBuffer();
+        for (int i = 0; i < frame.getSize(); i++) {
+            buf.put(i, (byte) random.nextInt());
+        }
+    }
+
+    private static Frame newFrame(FrameFormat format, int width, int height) {
+        Frame frame = new Frame(null, format.getFrameSize(width, height));
+        frame.setGeometry(format, width, height);
+        return frame;
+    }
+}
@@ -0,0 +1,123 @@
+package com.hsj.camera.externalcameratest.frame;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class YuvConverterTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    @Test
+    public void videoRangeExtremes() {
+        YuvConverter converter = new YuvConverter(YuvColorMatrix.BT601);
+        assertEquals(BLACK, converter.toArgb(16, 128, 128));
+        assertEquals(WHITE, converter.toArgb(235, 128, 128));
+        // Footroom and headroom clamp.
+        assertEquals(BLACK, converter.toArgb(0, 128, 128));
+        assertEquals(WHITE, converter.toArgb(255, 128, 128));
+    }
+
+    @Test
+    public void primariesDependOnMatrix() {
+        // Studio-range encodings of pure red under each standard.
+        assertColor(0xffff0000, new YuvConverter(YuvColorMatrix.BT601).toArgb(81, 90, 240));
+        assertColor(0xffff0000, new YuvConverter(YuvColorMatrix.BT709).toArgb(63, 102, 240));
+        // BT.601 green (145, 54, 34) and blue (41, 240, 110).
+        YuvConverter bt601 = new YuvConverter(YuvColorMatrix.BT601);
+        assertColor(0xff00ff00, bt601.toArgb(145, 54, 34));
+        assertColor(0xff0000ff, bt601.toArgb(41, 240, 110));
+    }
+
+    @Test
+    public void planarLayoutsAgree() {
+        // Left pixel pair black, right pair BT.601 red, in every layout.
+        int[] expected = new int[WIDTH * HEIGHT];
+        int[] actual = new int[WIDTH * HEIGHT];
+        YuvConverter converter = new YuvConverter(YuvColorMatrix.BT601);
+
+        converter.convert(nv12(), FrameFormat.NV12, WIDTH, HEIGHT, expected);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = expected[y * WIDTH + x];
+                if (x < 2) {
+                    assertEquals(BLACK, pixel);
+                } else {
+                    assertColor(0xffff0000, pixel);
+                }
+            }
+        }
+
+        converter.convert(i420(), FrameFormat.I420, WIDTH, HEIGHT, actual);
+        assertArrayEquals(expected, actual);
+        converter.convert(yuyv(), FrameFormat.YUYV, WIDTH, HEIGHT, actual);
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void yuyvPicksLumaByColumn() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] { 16, (byte) 128, (byte) 235, (byte) 128 });
+        int[] out = new int[2];
+        new YuvConverter(YuvColorMatrix.BT709).convert(buf, FrameFormat.YUYV, 2, 1, out);
+        assertEquals(BLACK, out[0]);
+        assertEquals(WHITE, out[1]);
+    }
+
+    @Test
+    public void convertLeavesPositionAlone() {
+        ByteBuffer buf = nv12();
+        buf.position(3);
+        new YuvConverter(YuvColorMatrix.BT601).convert(buf, FrameFormat.NV12, WIDTH, HEIGHT,
+                new int[WIDTH * HEIGHT]);
+        assertEquals(3, buf.position());
+    }
+
+    @Test
+    public void frameSizesMatchLayouts() {
+        assertEquals(nv12().capacity(), FrameFormat.NV12.getFrameSize(WIDTH, HEIGHT));
+        assertEquals(i420().capacity(), FrameFormat.I420.getFrameSize(WIDTH, HEIGHT));
+        assertEquals(yuyv().capacity(), FrameFormat.YUYV.getFrameSize(WIDTH, HEIGHT));
+        // Odd sizes round the chroma planes up.
+        assertEquals(9 + 2 * 4, FrameFormat.I420.getFrameSize(3, 3));
+        assertEquals(3 * 4 * 3, FrameFormat.YUYV.getFrameSize(5, 3));
+        assertTrue(FrameFormat.NV12.isYuv());
+    }
+
+    private static ByteBuffer nv12() {
+        return ByteBuffer.wrap(new byte[] {
+                16, 16, 81, 81,
+                16, 16, 81, 81,
+                (byte) 128, (byte) 128, 90, (byte) 240 });
+    }
+
+    private static ByteBuffer i420() {
+        return ByteBuffer.wrap(new byte[] {
+                16, 16, 81, 81,
+                16, 16, 81, 81,
+                (byte) 128, 90,
+                (byte) 128, (byte) 240 });
+    }
+
+    private static ByteBuffer yuyv() {
+        return ByteBuffer.wrap(new byte[] {
+                16, (byte) 128, 16, (byte) 128, 81, 90, 81, (byte) 240,
+                16, (byte) 128, 16, (byte) 128, 81, 90, 81, (byte) 240 });
+    }
+
+    // 8-bit encodings of the primaries are rounded, so allow a couple of codes per channel.
+    private static void assertColor(int expected, int actual) {
+        for (int shift = 0; shift <= 24; shift += 8) {
+            int e = (expected >> shift) & 0xff;
+            int a = (actual >> shift) & 0xff;
+            assertTrue(String.format("expected %08x, got %08x", expected, actual),
+                    Math.abs(e - a) <= 2);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FilterChainTest {
+    private static final float[] SHARPEN = {
+            0f, -1f, 0f,
+            -1f, 5f, -1f,
+            0f, -1f, 0f };
+
+    @Test
+    public void emptyChainPassesThrough() {
+        FilterChain chain = new FilterChain();
+        assertEquals("", chain.getSignature());
+        assertEquals(1, chain.getTapCount());
+        assertTrue(chain.getFragmentShader().contains("gl_FragColor = stage0(vTextureCoord);"));
+    }
+
+    @Test
+    public void equalChainsHaveEqualSignaturesAndShaders() {
+        FilterChain a = new FilterChain(FilterChain.convolution(SHARPEN, 3, 0f),
+                FilterChain.grayscale());
+        FilterChain b = new FilterChain(FilterChain.convolution(SHARPEN.clone(), 3, 0f),
+                FilterChain.grayscale());
+        assertEquals(a.getSignature(), b.getSignature());
+        assertEquals(a.getFragmentShader(), b.getFragmentShader());
+        assertEquals(a, b);
+    }
+
+    @Test
+    public void orderAndWeightsChangeTheSignature() {
+        FilterChain sharpenThenGray = new FilterChain(FilterChain.convolution(SHARPEN, 3, 0f),
+                FilterChain.grayscale());
+        FilterChain grayThenSharpen = new FilterChain(FilterChain.grayscale(),
+                FilterChain.convolution(SHARPEN, 3, 0f));
+        float[] other = SHARPEN.clone();
+        other[4] = 6f;
+        FilterChain otherWeights = new FilterChain(FilterChain.convolution(other, 3, 0f),
+                FilterChain.grayscale());
+        FilterChain otherAdjust = new FilterChain(FilterChain.convolution(SHARPEN, 3, 0.5f),
+                FilterChain.grayscale());
+        assertNotEquals(sharpenThenGray.getSignature(), grayThenSharpen.getSignature());
+        assertNotEquals(sharpenThenGray.getSignature(), otherWeights.getSignature());
+        assertNotEquals(sharpenThenGray.getSignature(), otherAdjust.getSignature());
+        assertNotEquals(sharpenThenGray.getFragmentShader(), grayThenSharpen.getFragmentShader());
+    }
+
+    @Test
+    public void eachStageCallsThePreviousOne() {
+        String shader = new FilterChain(FilterChain.grayscale(),
+                FilterChain.convolution(SHARPEN, 3, 0f), FilterChain.negative())
+                .getFragmentShader();
+        assertTrue(shader.contains("vec4 color = stage0(uv);"));
+        assertTrue(shader.contains("#define sample2(offset) stage1(uv + (offset) * uTexelSize)"));
+        assertTrue(shader.contains("sample2(vec2(-1.0, 0.0))"));
+        assertTrue(shader.contains("vec4 color = stage2(uv);"));
+        assertTrue(shader.contains("gl_FragColor = stage3(vTextureCoord);"));
+    }
+
+    @Test
+    public void zeroWeightsAreLeftOut() {
+        FilterStage sharpen = FilterChain.convolution(SHARPEN, 3, 0f);
+        assertEquals(5, sharpen.getTapCount());
+        String source = sharpen.getSource("s");
+        assertFalse(source.contains("s(vec2(-1.0, -1.0))"));
+        assertTrue(source.contains("5.0 * s(vec2(0.0, 0.0))"));
+    }
+
+    @Test
+    public void diagonalSplitKeepsTheFilterDemo() {
+        FilterStage split = FilterChain.diagonalSplit(FilterChain.convolution(SHARPEN, 3, 0f));
+        assertTrue(split.isNeighborhood());
+        assertEquals(6, split.getTapCount());
+        assertTrue(split.getSignature().startsWith("diagonalSplit(convolution3x3("));
+        String source = split.getSource("s");
+        assertTrue(source.contains("if (uv.x < uv.y - 0.005) {"));
+        assertTrue(source.contains("5.0 * s(vec2(0.0, 0.0))"));
+        assertTrue(source.contains("color = s(vec2(0.0, 0.0));"));
+        // Fused behind the flat-field correction, as the renderer does.
+        String shader = new FilterChain(split).withFirstStage(FilterChain.flatField())
+                .getFragmentShader();
+        assertTrue(shader.contains("color = sample2(vec2(0.0, 0.0));"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void diagonalSplitNeedsANeighborhood() {
+        FilterChain.diagonalSplit(FilterChain.grayscale());
+    }
+
+    @Test
+    public void tapsMultiplyDownTheChain() {
+        float[] blur = new float[25];
+        java.util.Arrays.fill(blur, 1f / 25f);
+        FilterChain chain = new FilterChain(FilterChain.convolution(SHARPEN, 3, 0f),
+                FilterChain.grayscale(), FilterChain.convolution(blur, 5, 0f));
+        assertEquals(5 * 25, chain.getTapCount());
+        assertEquals(3, chain.getStageCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNaNWeights() {
+        float[] kernel = SHARPEN.clone();
+        kernel[0] = Float.NaN;
+        FilterChain.convolution(kernel, 3, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEvenKernels() {
+        FilterChain.convolution(new float[4], 2, 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPointStagesWithTaps() {
+        new FilterChain(new FilterStage() {
+            @Override
+            public boolean isNeighborhood() {
+                return false;
+            }
+
+            @Override
+            public int getTapCount() {
+                return 2;
+            }
+
+            @Override
+            public String getSignature() {
+                return "bogus";
+            }
+
+            @Override
+            public String getSource(String sample) {
+                return "";
+            }
+        });
+    }
+
+    @Test
+    public void samplersAreDeclaredOnce() {
+        FilterChain chain = new FilterChain(FilterChain.flatField(), FilterChain.colorLut(17))
+                .withFirstStage(FilterChain.flatField());
+        String shader = chain.getFragmentShader();
+        assertEquals(shader.indexOf("uniform sampler2D uFlatDark;"),
+                shader.lastIndexOf("uniform sampler2D uFlatDark;"));
+        assertTrue(shader.contains("uniform sampler2D uLut;"));
+        assertTrue(shader.contains("min(floor(lattice.b), 17.0 - 2.0)"));
+        assertEquals("flatField | flatField | colorLut17", chain.getSignature());
+    }
+
+    @Test
+    public void firstStageSeesTheFrame() {
+        FilterChain chain = new FilterChain(FilterChain.convolution(SHARPEN, 3, 0f))
+                .withFirstStage(FilterChain.flatField());
+        String shader = chain.getFragmentShader();
+        assertTrue(shader.contains("#define sample2(offset) stage1(uv + (offset) * uTexelSize)"));
+        assertEquals(5, chain.getTapCount());
+        assertNotEquals(new FilterChain(FilterChain.convolution(SHARPEN, 3, 0f)), chain);
+    }
+}
@@ -0,0 +1,70 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FilterPipelineTest {
+    private static final int WIDTH = 2048;
+    private static final int HEIGHT = 1080;
+
+    @Test
+    public void separableBlurFetchesFarLessThanTheFullKernel() {
+        FilterPipeline separable = FilterPipeline.gaussianBlur(15, 2.5f, 1f);
+        float[] full = new float[15 * 15];
+        float[] row = GaussianKernel.getWeights(15, 2.5f);
+        for (int y = 0; y < 15; y++) {
+            for (int x = 0; x < 15; x++) {
+                full[y * 15 + x] = row[x] * row[y];
+            }
+        }
+        FilterPipeline single = new FilterPipeline(new FilterPipeline.Pass(
+                new FilterChain(FilterChain.convolution(full, 15, 0f)), 1f));
+        assertEquals(2L * 9 * WIDTH * HEIGHT, separable.getFetchCount(WIDTH, HEIGHT));
+        assertEquals(225L * WIDTH * HEIGHT, single.getFetchCount(WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void reducedPassesScaleTheCost() {
+        FilterPipeline half = FilterPipeline.gaussianBlur(15, 2.5f, 0.5f);
+        assertEquals(2L * 9 * (WIDTH / 2) * (HEIGHT / 2), half.getFetchCount(WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void scaledSizesRoundAndStayPositive() {
+        assertEquals(1024, FilterPipeline.getScaledSize(2048, 0.5f));
+        assertEquals(360, FilterPipeline.getScaledSize(1080, 1f / 3f));
+        assertEquals(1, FilterPipeline.getScaledSize(1, 0.25f));
+    }
+
+    @Test
+    public void signatureCoversScalesAndChains() {
+        assertEquals(FilterPipeline.gaussianBlur(15, 2.5f, 0.5f),
+                FilterPipeline.gaussianBlur(15, 2.5f, 0.5f));
+        assertNotEquals(FilterPipeline.gaussianBlur(15, 2.5f, 0.5f).getSignature(),
+                FilterPipeline.gaussianBlur(15, 2.5f, 1f).getSignature());
+        assertNotEquals(FilterPipeline.gaussianBlur(15, 2.5f, 1f).getSignature(),
+                FilterPipeline.gaussianBlur(15, 3f, 1f).getSignature());
+    }
+
+    @Test
+    public void passesSampleAlongTheirAxis() {
+        FilterPipeline blur = FilterPipeline.gaussianBlur(3, 1f, 1f);
+        String horizontal = blur.getPass(0).getChain().getFragmentShader();
+        String vertical = blur.getPass(1).getChain().getFragmentShader();
+        assertTrue(horizontal.contains("sample1(vec2(-1.0, 0.0))"));
+        assertTrue(vertical.contains("sample1(vec2(0.0, -1.0))"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUpscaling() {
+        new FilterPipeline.Pass(new FilterChain(), 2f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAPass() {
+        new FilterPipeline();
+    }
+}
@@ -0,0 +1,68 @@
+package com.hsj.camera.externalcameratest.gles;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class GaussianKernelTest {
+    @Test
+    public void weightsAreNormalizedAndSymmetric() {
+        float[] weights = GaussianKernel.getWeights(15, 2.5f);
+        float sum = 0f;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            assertEquals(weights[i], weights[weights.length - 1 - i], 0f);
+        }
+        assertEquals(1f, sum, 1e-5f);
+        assertTrue(weights[7] > weights[6]);
+    }
+
+    @Test
+    public void fifteenTapsTakeNineFetches() {
+        FilterStage pass = GaussianKernel.getPass(15, 2.5f, true);
+        assertEquals(9, pass.getTapCount());
+        assertTrue(pass.isNeighborhood());
+    }
+
+    @Test
+    public void mergedFetchesMatchTheFullKernel() {
+        // A bilinear fetch at x + f returns s[x] * (1 - f) + s[x + 1] * f.
+        Random random = new Random(7);
+        float[] signal = new float[64];
+        for (int i = 0; i < signal.length; i++) {
+            signal[i] = random.nextFloat();
+        }
+        for (int taps = 1; taps <= 17; taps += 2) {
+            float[] weights = GaussianKernel.getWeights(taps, taps / 6f + 0.5f);
+            float[][] merged = GaussianKernel.mergeTaps(weights);
+            int radius = taps / 2;
+            for (int x = radius; x < signal.length - radius - 1; x++) {
+                float expected = 0f;
+                for (int k = -radius; k <= radius; k++) {
+                    expected += weights[radius + k] * signal[x + k];
+                }
+                float actual = 0f;
+                for (int i = 0; i < merged[0].length; i++) {
+                    float position = x + merged[1][i];
+                    int left = (int) Math.floor(position);
+                    float f = position - left;
+                    actual += merged[0][i] * (signal[left] * (1f - f) + signal[left + 1] * f);
+                }
+                assertEquals("taps=" + taps + " x=" + x, expected, actual, 1e-5f);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEvenTaps() {
+        GaussianKernel.getWeights(14, 2f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroSigma() {
+        GaussianKernel.getWeights(15, 0f);
+    }
+}
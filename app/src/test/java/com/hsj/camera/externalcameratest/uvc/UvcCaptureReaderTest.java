@@ -0,0 +1,232 @@
+package com.hsj.camera.externalcameratest.uvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.FrameRing;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+
+public class UvcCaptureReaderTest {
+    private static final int ENDPOINT = 0x81;
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 4;
+    private static final int FRAME_SIZE = FrameFormat.YUYV.getFrameSize(WIDTH, HEIGHT);
+    private static final int PACKET_DATA = 30;
+
+    @Test
+    public void replaysIsochronousCapture() throws IOException {
+        CaptureWriter capture = new CaptureWriter(UvcCaptureReader.LINKTYPE_USB_LINUX_MMAPPED);
+        // Noise that must be skipped: a submission and traffic on another endpoint.
+        capture.record('S', 0, ENDPOINT, 0, new byte[0][], 1);
+        capture.record('C', 3, 0x82, 0, new byte[][] { new byte[40] }, 2);
+        // Frame 0 is a tail we joined late; frames 1..3 are whole.
+        for (int f = 0; f < 4; f++) {
+            capture.record('C', 0, ENDPOINT, 0, framePayloads(f), 1000 + f);
+        }
+        // A packet lost on the bus in frame 4.
+        capture.lostPacket = 2;
+        capture.record('C', 0, ENDPOINT, 0, framePayloads(4), 2000);
+
+        FrameRing ring = new FrameRing(4, FRAME_SIZE, 4);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FrameFormat.YUYV, WIDTH,
+                HEIGHT);
+        UvcCaptureReader reader = capture.open();
+        reader.feedAll(assembler);
+        reader.close();
+
+        assertEquals(1, reader.getDroppedPacketCount());
+        assertEquals(3, assembler.getCompleteFrameCount());
+        assertEquals(1, assembler.getSizeMismatchFrameCount());
+        for (int f = 1; f < 4; f++) {
+            Frame frame = ring.acquireFrame();
+            // Capture timestamps are whole seconds plus microseconds.
+            assertEquals((1000 + f) * 1_000_000_000L + 250_000, frame.getTimestampNanos());
+            assertEquals((byte) f, frame.getBuffer().get(0));
+            assertEquals((byte) (f + FRAME_SIZE - 1), frame.getBuffer().get(FRAME_SIZE - 1));
+            ring.releaseFrame(frame);
+        }
+    }
+
+    @Test
+    public void replaysBulkCapture() throws IOException {
+        CaptureWriter capture = new CaptureWriter(UvcCaptureReader.LINKTYPE_USB_LINUX);
+        for (int f = 0; f < 3; f++) {
+            // One bulk transfer per frame.
+            byte[] data = new byte[FRAME_SIZE];
+            for (int i = 0; i < FRAME_SIZE; i++) {
+                data[i] = (byte) (f + i);
+            }
+            byte[] transfer = new byte[2 + FRAME_SIZE];
+            transfer[0] = 2;
+            transfer[1] = (byte) (UvcPayloadHeader.BIT_EOH | UvcPayloadHeader.BIT_EOF | (f & 1));
+            System.arraycopy(data, 0, transfer, 2, FRAME_SIZE);
+            capture.record('C', 3, ENDPOINT, 0, new byte[][] { transfer }, f);
+        }
+
+        FrameRing ring = new FrameRing(4, FRAME_SIZE, 4);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FrameFormat.YUYV, WIDTH,
+                HEIGHT);
+        UvcCaptureReader reader = capture.open();
+        assertEquals(3, reader.feedAll(assembler));
+        assertEquals(2, assembler.getCompleteFrameCount());
+    }
+
+    @Test
+    public void rejectsCorruptDescriptors() throws IOException {
+        // Descriptor count, first descriptor's offset, first descriptor's length.
+        int[] fields = { 60, 68, 72 };
+        for (int field : fields) {
+            try {
+                corruptCapture(field, -1).feedAll(newAssembler());
+                fail("accepted a negative field at " + field);
+            } catch (IOException expected) {
+            }
+        }
+
+        // A count too big to be real reads the packet data as descriptors.  Whatever they
+        // hold, the offsets mustn't wrap around into range.
+        try {
+            corruptCapture(60, Integer.MAX_VALUE).feedAll(newAssembler());
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsOtherCaptures() throws IOException {
+        try {
+            new UvcCaptureReader(Channels.newChannel(new ByteArrayInputStream(new byte[24])),
+                    ENDPOINT);
+            fail("accepted a file without pcap magic");
+        } catch (IOException expected) {
+        }
+        try {
+            new CaptureWriter(1).open();     // Ethernet
+            fail("accepted a non-USB capture");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Returns a reader of a one-record isochronous capture, with the int at the given offset
+     * of the usbmon header and descriptors overwritten.
+     */
+    private static UvcCaptureReader corruptCapture(int offset, int value) throws IOException {
+        CaptureWriter capture = new CaptureWriter(UvcCaptureReader.LINKTYPE_USB_LINUX_MMAPPED);
+        capture.record('C', 0, ENDPOINT, 0, framePayloads(0), 1);
+        byte[] bytes = capture.toByteArray();
+        // After the file and record headers.
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(24 + 16 + offset, value);
+        return new UvcCaptureReader(Channels.newChannel(new ByteArrayInputStream(bytes)),
+                ENDPOINT);
+    }
+
+    private static UvcFrameAssembler newAssembler() {
+        return new UvcFrameAssembler(new FrameRing(2, FRAME_SIZE), FrameFormat.YUYV, WIDTH,
+                HEIGHT);
+    }
+
+    /**
+     * Splits frame f into 2-byte-header payloads.  Byte i of the frame holds f + i.
+     */
+    private static byte[][] framePayloads(int f) {
+        int count = (FRAME_SIZE + PACKET_DATA - 1) / PACKET_DATA;
+        byte[][] payloads = new byte[count][];
+        for (int p = 0; p < count; p++) {
+            int offset = p * PACKET_DATA;
+            int length = Math.min(PACKET_DATA, FRAME_SIZE - offset);
+            byte[] payload = new byte[2 + length];
+            payload[0] = 2;
+            payload[1] = (byte) (UvcPayloadHeader.BIT_EOH | (f & 1) |
+                    (p == count - 1 ? UvcPayloadHeader.BIT_EOF : 0));
+            for (int i = 0; i < length; i++) {
+                payload[2 + i] = (byte) (f + offset + i);
+            }
+            payloads[p] = payload;
+        }
+        return payloads;
+    }
+
+    /**
+     * Writes a little-endian usbmon pcap in memory, the way libpcap lays it out.
+     */
+    private static class CaptureWriter {
+        private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+        private final int mLinkType;
+        int lostPacket = -1;
+
+        CaptureWriter(int linkType) {
+            mLinkType = linkType;
+            ByteBuffer header = le(24);
+            header.putInt(0xa1b2c3d4).putShort((short) 2).putShort((short) 4).putInt(0)
+                    .putInt(0).putInt(262144).putInt(linkType);
+            mOut.write(header.array(), 0, 24);
+        }
+
+        /**
+         * Adds one URB event.  For isochronous transfers (xferType 0) each payload becomes
+         * one packet descriptor; otherwise the single payload is the transfer data.
+         */
+        void record(char type, int xferType, int endpoint, int status, byte[][] payloads,
+                long seconds) {
+            boolean iso = xferType == 0;
+            int usbHeader = mLinkType == UvcCaptureReader.LINKTYPE_USB_LINUX_MMAPPED ? 64 : 48;
+            int dataLength = 0;
+            for (byte[] payload : payloads) {
+                dataLength += payload.length;
+            }
+            int descriptors = iso ? payloads.length : 0;
+            int length = usbHeader + descriptors * 16 + dataLength;
+
+            ByteBuffer rec = le(16 + length);
+            rec.putInt((int) seconds).putInt(250).putInt(length).putInt(length);
+            int base = rec.position();
+            rec.put(base + 8, (byte) type);
+            rec.put(base + 9, (byte) xferType);
+            rec.put(base + 10, (byte) endpoint);
+            rec.putInt(base + 28, status);
+            rec.putInt(base + 32, dataLength);
+            rec.putInt(base + 36, dataLength);
+            if (usbHeader == 64) {
+                rec.putInt(base + 60, descriptors);
+            }
+            int data = base + usbHeader + descriptors * 16;
+            int offset = 0;
+            for (int i = 0; i < payloads.length; i++) {
+                if (iso) {
+                    int d = base + usbHeader + i * 16;
+                    rec.putInt(d, i == lostPacket ? -18 : 0);
+                    rec.putInt(d + 4, offset);
+                    rec.putInt(d + 8, payloads[i].length);
+                }
+                rec.position(data + offset);
+                rec.put(payloads[i]);
+                offset += payloads[i].length;
+            }
+            mOut.write(rec.array(), 0, rec.capacity());
+            lostPacket = -1;
+        }
+
+        UvcCaptureReader open() throws IOException {
+            return new UvcCaptureReader(
+                    Channels.newChannel(new ByteArrayInputStream(toByteArray())), ENDPOINT);
+        }
+
+        byte[] toByteArray() {
+            return mOut.toByteArray();
+        }
+
+        private static ByteBuffer le(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.hsj.camera.externalcameratest.uvc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.hsj.camera.externalcameratest.frame.Frame;
+import com.hsj.camera.externalcameratest.frame.FrameFormat;
+import com.hsj.camera.externalcameratest.frame.FrameRing;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class UvcFrameAssemblerTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+    private static final FrameFormat FORMAT = FrameFormat.YUYV;
+    private static final int FRAME_SIZE = FORMAT.getFrameSize(WIDTH, HEIGHT);
+
+    @Test
+    public void parsesHeaderFields() {
+        ByteBuffer packet = ByteBuffer.wrap(new byte[] {
+                12, (byte) (0x80 | 0x08 | 0x04 | 0x02 | 0x01),
+                0x78, 0x56, 0x34, 0x12,                     // PTS
+                0x01, 0x00, 0x00, (byte) 0x80,              // SCR source time clock
+                (byte) 0xff, (byte) 0xff,                   // SCR SOF counter (11 bits)
+                42 });
+        packet.position(0);
+        UvcPayloadHeader header = new UvcPayloadHeader();
+        assertTrue(header.parse(packet));
+        assertEquals(12, header.getHeaderLength());
+        assertEquals(1, header.getFrameId());
+        assertTrue(header.isEndOfFrame());
+        assertFalse(header.isError());
+        assertEquals(0x12345678L, header.getPts());
+        assertEquals(0x80000001L, header.getScrStc());
+        assertEquals(0x7ff, header.getScrSof());
+        assertEquals(0, packet.position());
+    }
+
+    @Test
+    public void rejectsInconsistentHeaders() {
+        UvcPayloadHeader header = new UvcPayloadHeader();
+        assertFalse(header.parse(ByteBuffer.wrap(new byte[] { 2 })));
+        // Claims a PTS but is too short to hold one.
+        assertFalse(header.parse(ByteBuffer.wrap(new byte[] { 2, 0x04, 0, 0, 0, 0 })));
+        // Longer than the packet.
+        assertFalse(header.parse(ByteBuffer.wrap(new byte[] { 12, 0 })));
+        assertTrue(header.parse(ByteBuffer.wrap(new byte[] { 2, 0 })));
+    }
+
+    @Test
+    public void reassemblesFramesOnFidToggle() {
+        FrameRing ring = new FrameRing(3, FRAME_SIZE, 3);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FORMAT, WIDTH, HEIGHT);
+
+        // A tail of a frame we joined late, then two whole frames without EOF bits; the
+        // second one is only known to be complete once the FID toggles again.
+        assembler.onPayload(payload(0, 0, new byte[10]), 1);
+        sendFrame(assembler, 1, 0, 100, 7, false);
+        sendFrame(assembler, 0, 0, 200, 7, false);
+        assertEquals(1, assembler.getCompleteFrameCount());
+        assembler.onPayload(payload(1, 0, new byte[0]), 300);
+        assertEquals(2, assembler.getCompleteFrameCount());
+
+        Frame first = ring.acquireFrame();
+        assertEquals(100, first.getTimestampNanos());
+        assertEquals(FORMAT, first.getFormat());
+        checkPattern(first, 1);
+        ring.releaseFrame(first);
+        Frame second = ring.acquireFrame();
+        assertEquals(200, second.getTimestampNanos());
+        checkPattern(second, 0);
+        ring.releaseFrame(second);
+        assertNull(ring.acquireFrame());
+    }
+
+    @Test
+    public void endOfFrameCompletesImmediately() {
+        FrameRing ring = new FrameRing(3, FRAME_SIZE);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FORMAT, WIDTH, HEIGHT);
+        assembler.onPayload(payload(0, 0, new byte[0]), 0);
+        sendFrame(assembler, 1, 0, 10, 5, true);
+        assertEquals(1, assembler.getCompleteFrameCount());
+        Frame frame = ring.acquireFrame();
+        assertNotNull(frame);
+        checkPattern(frame, 1);
+        ring.releaseFrame(frame);
+
+        // Header-only payloads after EOF with the same FID are ignored.
+        assembler.onPayload(payload(1, 0, new byte[0]), 20);
+        assertNull(ring.acquireFrame());
+    }
+
+    @Test
+    public void errorAndShortFramesAreDropped() {
+        FrameRing ring = new FrameRing(3, FRAME_SIZE);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FORMAT, WIDTH, HEIGHT);
+        assembler.onPayload(payload(0, 0, new byte[0]), 0);
+
+        sendFrame(assembler, 1, UvcPayloadHeader.BIT_ERR, 10, 5, true);
+        assertEquals(1, assembler.getErrorFrameCount());
+
+        assembler.onPayload(payload(0, UvcPayloadHeader.BIT_EOF, new byte[FRAME_SIZE - 1]), 20);
+        assertEquals(1, assembler.getSizeMismatchFrameCount());
+
+        // Too much data: the boundaries were lost.
+        assembler.onPayload(payload(1, 0, new byte[FRAME_SIZE]), 30);
+        assembler.onPayload(payload(1, UvcPayloadHeader.BIT_EOF, new byte[1]), 31);
+        assertEquals(2, assembler.getErrorFrameCount());
+
+        assembler.onPayload(ByteBuffer.wrap(new byte[] { 1 }), 40);
+        assertEquals(1, assembler.getInvalidPacketCount());
+
+        assertEquals(0, assembler.getCompleteFrameCount());
+        assertNull(ring.acquireFrame());
+        // Every buffer went back to the pool.
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(ring.dequeueFree());
+        }
+    }
+
+    @Test
+    public void framesAreSkippedWhileTheRendererHoldsEveryBuffer() {
+        FrameRing ring = new FrameRing(2, FRAME_SIZE);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FORMAT, WIDTH, HEIGHT);
+        assembler.onPayload(payload(0, 0, new byte[0]), 0);
+        Frame held1 = ring.dequeueFree();
+        Frame held2 = ring.dequeueFree();
+
+        // With and without EOF: the payloads of both are dropped.
+        sendFrame(assembler, 1, 0, 10, 5, true);
+        sendFrame(assembler, 0, 0, 20, 5, false);
+        assertEquals(2, assembler.getSkippedFrameCount());
+        assertEquals(0, assembler.getCompleteFrameCount());
+
+        ring.cancelFrame(held1);
+        ring.cancelFrame(held2);
+        sendFrame(assembler, 1, 0, 30, 5, true);
+        assertEquals(1, assembler.getCompleteFrameCount());
+        Frame frame = ring.acquireFrame();
+        assertEquals(30, frame.getTimestampNanos());
+        checkPattern(frame, 1);
+    }
+
+    @Test
+    public void tracksClockFields() {
+        FrameRing ring = new FrameRing(3, FRAME_SIZE);
+        UvcFrameAssembler assembler = new UvcFrameAssembler(ring, FORMAT, WIDTH, HEIGHT);
+        ByteBuffer packet = ByteBuffer.wrap(new byte[] {
+                12, (byte) (0x08 | 0x04 | 0x01),
+                10, 0, 0, 0,
+                20, 0, 0, 0, 5, 0 });
+        assembler.onPayload(packet, 0);
+        assertEquals(10, assembler.getLastPts());
+        assertEquals(20, assembler.getLastScrStc());
+        assertEquals(5, assembler.getLastScrSof());
+    }
+
+    /**
+     * Sends a frame in seven-or-so payloads.  Byte i of the frame holds i + fid.
+     */
+    private static void sendFrame(UvcFrameAssembler assembler, int fid, int extraFlags,
+            long nanos, int payloads, boolean eof) {
+        int chunk = (FRAME_SIZE + payloads - 1) / payloads;
+        for (int offset = 0; offset < FRAME_SIZE; offset += chunk) {
+            int length = Math.min(chunk, FRAME_SIZE - offset);
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (offset + i + fid);
+            }
+            boolean lastPayload = offset + length == FRAME_SIZE;
+            int flags = extraFlags | (eof && lastPayload ? UvcPayloadHeader.BIT_EOF : 0);
+            assembler.onPayload(payload(fid, flags, data), nanos);
+        }
+    }
+
+    private static void checkPattern(Frame frame, int fid) {
+        ByteBuffer buf = frame.getBuffer();
+        assertEquals(FRAME_SIZE, buf.remaining());
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            assertEquals((byte) (i + fid), buf.get(i));
+        }
+    }
+
+    /**
+     * Builds a payload with a 2-byte header, positioned past some unrelated leading bytes to
+     * check that the assembler honors the buffer's position.
+     */
+    static ByteBuffer payload(int fid, int flags, byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocate(3 + 2 + data.length);
+        buf.position(3);
+        buf.put((byte) 2);
+        buf.put((byte) (UvcPayloadHeader.BIT_EOH | flags | fid));
+        buf.put(data);
+        buf.position(3);
+        return buf;
+    }
+}